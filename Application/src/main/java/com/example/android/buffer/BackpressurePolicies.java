@@ -0,0 +1,177 @@
+package com.example.android.buffer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Built-in {@link BackpressurePolicy} strategies.
+ */
+public final class BackpressurePolicies {
+    private BackpressurePolicies() {
+    }
+
+    /**
+     * Keeps the newest frames: a full ring evicts its oldest frame. Frames are
+     * never lost silently, but gaps come in bursts while the consumer stalls.
+     */
+    public static <T> BackpressurePolicy<T> dropOldest() {
+        return new DropOldest<T>();
+    }
+
+    /**
+     * Keeps the queued frames: a frame that finds the ring full is rejected.
+     */
+    public static <T> BackpressurePolicy<T> dropNewest() {
+        return new DropNewest<T>();
+    }
+
+    /**
+     * Parks the producer until the consumer makes room, and rejects the frame
+     * if that takes longer than {@code timeout}. This throttles the producer,
+     * so only use it when the producer thread may block.
+     */
+    public static <T> BackpressurePolicy<T> blockWithTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("Negative timeout " + timeout);
+        }
+        return new BlockWithTimeout<T>(unit.toNanos(timeout));
+    }
+
+    /**
+     * Adapts to the consumer by keeping only every Nth frame, so the frames
+     * that survive stay evenly spaced in time instead of leaving bursty gaps.
+     * <p>
+     * N starts at 1. It goes up by one while the ring stays at least three
+     * quarters full and back down while it stays at most a quarter full,
+     * changing at most once per {@code ring.capacity()} frames so the ring has
+     * time to settle. If the ring is still full when a kept frame arrives the
+     * oldest one is evicted, as with {@link #dropOldest()}.
+     * </p>
+     *
+     * @param maxFactor Upper bound for N.
+     */
+    public static <T> BackpressurePolicy<T> decimate(int maxFactor) {
+        if (maxFactor < 1) {
+            throw new IllegalArgumentException("Invalid decimation factor " + maxFactor);
+        }
+        return new Decimate<T>(maxFactor);
+    }
+
+    private static <T> T offerEvictingOldest(FrameRing<T> ring, T item, FrameDropStats stats) {
+        T evicted = ring.offer(item);
+        stats.recordQueued();
+        if (evicted != null) {
+            stats.recordDrop(DropReason.EVICTED_OLDEST);
+        }
+        return evicted;
+    }
+
+    // Base for policies that keep no state and build every frame.
+    private abstract static class StatelessPolicy<T> implements BackpressurePolicy<T> {
+        @Override
+        public boolean admit(FrameRing<T> ring, FrameDropStats stats) {
+            return true;
+        }
+
+        @Override
+        public void reset() {
+        }
+    }
+
+    private static class DropOldest<T> extends StatelessPolicy<T> {
+        @Override
+        public T offer(FrameRing<T> ring, T item, FrameDropStats stats) {
+            return offerEvictingOldest(ring, item, stats);
+        }
+    }
+
+    private static class DropNewest<T> extends StatelessPolicy<T> {
+        @Override
+        public boolean admit(FrameRing<T> ring, FrameDropStats stats) {
+            // Only the consumer takes from the ring, so it can only get emptier
+            // before the admitted frame is offered.
+            if (ring.size() < ring.capacity()) {
+                return true;
+            }
+            stats.recordDrop(DropReason.REJECTED_NEWEST);
+            return false;
+        }
+
+        @Override
+        public T offer(FrameRing<T> ring, T item, FrameDropStats stats) {
+            if (ring.tryOffer(item)) {
+                stats.recordQueued();
+                return null;
+            }
+            stats.recordDrop(DropReason.REJECTED_NEWEST);
+            return item;
+        }
+    }
+
+    private static class BlockWithTimeout<T> extends StatelessPolicy<T> {
+        private final long mTimeoutNs;
+
+        BlockWithTimeout(long timeoutNs) {
+            mTimeoutNs = timeoutNs;
+        }
+
+        @Override
+        public T offer(FrameRing<T> ring, T item, FrameDropStats stats) {
+            if (ring.offer(item, mTimeoutNs, TimeUnit.NANOSECONDS)) {
+                stats.recordQueued();
+                return null;
+            }
+            stats.recordDrop(DropReason.TIMED_OUT);
+            return item;
+        }
+    }
+
+    private static class Decimate<T> implements BackpressurePolicy<T> {
+        private final int mMaxFactor;
+        private int mFactor = 1;
+        // Frames since the factor last changed; frame 0 of each period is kept.
+        private long mSequence;
+        // Whether admit() already decided to keep the frame offered next.
+        private boolean mAdmitted;
+
+        Decimate(int maxFactor) {
+            mMaxFactor = maxFactor;
+        }
+
+        @Override
+        public T offer(FrameRing<T> ring, T item, FrameDropStats stats) {
+            if (!mAdmitted && !admit(ring, stats)) {
+                return item;
+            }
+            mAdmitted = false;
+            return offerEvictingOldest(ring, item, stats);
+        }
+
+        @Override
+        public boolean admit(FrameRing<T> ring, FrameDropStats stats) {
+            int capacity = ring.capacity();
+            if (mSequence >= capacity) {
+                int depth = ring.size();
+                if (depth * 4 >= capacity * 3 && mFactor < mMaxFactor) {
+                    mFactor++;
+                    mSequence = 0;
+                } else if (depth * 4 <= capacity && mFactor > 1) {
+                    mFactor--;
+                    mSequence = 0;
+                }
+            }
+            if (mSequence++ % mFactor != 0) {
+                stats.recordDrop(DropReason.DECIMATED);
+                return false;
+            }
+            mAdmitted = true;
+            return true;
+        }
+
+        @Override
+        public void reset() {
+            mFactor = 1;
+            mSequence = 0;
+            mAdmitted = false;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.android.buffer;
+
+/**
+ * Decides what happens to a frame handed to a {@link FrameRing} that the
+ * consumer cannot keep up with.
+ * <p>
+ * Implementations are called from the producer thread only and may keep
+ * per-stream state, so every ring needs its own instance. See
+ * {@link BackpressurePolicies} for the built-in strategies.
+ * </p>
+ */
+public interface BackpressurePolicy<T> {
+    /**
+     * Queues {@code item} or drops a frame, recording every drop in
+     * {@code stats}.
+     *
+     * @return The frame that was dropped, either {@code item} or one evicted
+     *         from the ring, so the caller can recycle it; null if nothing was
+     *         dropped.
+     */
+    T offer(FrameRing<T> ring, T item, FrameDropStats stats);
+
+    /**
+     * Decides before the next frame is built whether it would be dropped
+     * anyway, so the producer can skip copying or converting it. A rejected
+     * frame is recorded in {@code stats}; an admitted one must be passed to
+     * {@link #offer} next, which then does not decide on it again. Calling
+     * this is optional.
+     *
+     * @return false if the next frame should not be built.
+     */
+    boolean admit(FrameRing<T> ring, FrameDropStats stats);
+
+    /**
+     * Forgets per-stream state, so the next frame is treated like the first
+     * one of a new stream. Call it between recordings, while no frames are
+     * offered.
+     */
+    void reset();
+}
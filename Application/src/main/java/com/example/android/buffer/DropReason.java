@@ -0,0 +1,17 @@
+package com.example.android.buffer;
+
+/**
+ * Why a captured frame never reached the encoder.
+ */
+public enum DropReason {
+    /** The queue was full and the oldest queued frame was evicted. */
+    EVICTED_OLDEST,
+    /** The queue was full and the new frame was rejected. */
+    REJECTED_NEWEST,
+    /** The producer waited for room in the queue and gave up. */
+    TIMED_OUT,
+    /** The frame was skipped to keep an evenly decimated frame rate. */
+    DECIMATED,
+    /** No frame buffer was available within the pool's memory cap. */
+    POOL_EXHAUSTED
+}
@@ -0,0 +1,97 @@
+package com.example.android.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference-counted frame buffer handed out by {@link FrameBufferPool}.
+ * <p>
+ * The buffer starts with one reference owned by whoever acquired it. Every
+ * additional consumer that keeps the frame beyond the current call (an
+ * encoder queue, a dump writer, ...) calls {@link #retain()} and later
+ * {@link #release()}; the last release returns the memory to the pool.
+ * </p>
+ * <p>
+ * The backing storage can be larger than the frame because pools round sizes
+ * up to a size class; {@link #size()} is the length that was asked for.
+ * </p>
+ */
+public class FrameBuffer {
+    private final FrameBufferPool mPool;
+    private final int mSizeClass;
+    private final ByteBuffer mBuffer;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mSize;
+
+    FrameBuffer(FrameBufferPool pool, int sizeClass, int capacity, boolean direct) {
+        mPool = pool;
+        mSizeClass = sizeClass;
+        mBuffer = direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    // Called by the pool when the buffer is handed out.
+    void open(int size) {
+        mSize = size;
+        mBuffer.clear();
+        mRefCount.set(1);
+    }
+
+    int getSizeClass() {
+        return mSizeClass;
+    }
+
+    /**
+     * Returns the backing array, or null for direct buffers.
+     */
+    public byte[] array() {
+        return mBuffer.hasArray() ? mBuffer.array() : null;
+    }
+
+    /**
+     * Returns the backing buffer. Its position and limit are shared by all
+     * holders of this frame.
+     */
+    public ByteBuffer buffer() {
+        return mBuffer;
+    }
+
+    public boolean isDirect() {
+        return mBuffer.isDirect();
+    }
+
+    /**
+     * Number of bytes of frame data.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    public int capacity() {
+        return mBuffer.capacity();
+    }
+
+    public int refCount() {
+        return mRefCount.get();
+    }
+
+    public FrameBuffer retain() {
+        for (;;) {
+            int count = mRefCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame buffer already released");
+            }
+            if (mRefCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    public void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame buffer released too many times");
+        }
+    }
+}
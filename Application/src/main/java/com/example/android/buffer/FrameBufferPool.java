@@ -0,0 +1,185 @@
+package com.example.android.buffer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of {@link FrameBuffer}s grouped in size classes.
+ * <p>
+ * Requested sizes are rounded up to a class: every power-of-two range is split
+ * into four steps, so at most a quarter of a buffer is wasted and frames whose
+ * size changes a little (a new crop, another color format) still reuse the
+ * same buffers. Buffers are either heap arrays or direct (off-heap) memory.
+ * </p>
+ * <p>
+ * The pool never holds more than {@code maxBytes}, counting both buffers in use
+ * and idle ones. When a new buffer would exceed the cap, idle buffers of other
+ * classes are dropped first; if that is not enough {@link #acquire(int)}
+ * returns null and the caller is expected to drop the frame.
+ * </p>
+ * <p>
+ * All methods are thread-safe. The counters can be read at any time.
+ * </p>
+ */
+public class FrameBufferPool {
+    private static final int MIN_CLASS_SHIFT = 12;
+    private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+    private static final int STEPS_PER_CLASS = 4;
+    private static final int CLASS_COUNT = 1 + (31 - MIN_CLASS_SHIFT) * STEPS_PER_CLASS;
+
+    private final boolean mDirect;
+    private final long mMaxBytes;
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private final ArrayDeque<FrameBuffer>[] mFreeLists = new ArrayDeque[CLASS_COUNT];
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExhausted = new AtomicLong();
+    private final AtomicLong mBytesOutstanding = new AtomicLong();
+    private final AtomicLong mBytesPooled = new AtomicLong();
+
+    /**
+     * @param direct Whether buffers are allocated off-heap.
+     * @param maxBytes Upper bound for memory held by the pool, in use or idle.
+     */
+    public FrameBufferPool(boolean direct, long maxBytes) {
+        mDirect = direct;
+        mMaxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a buffer of at least {@code size} bytes with a reference count of
+     * one, or null if the memory cap does not allow another buffer.
+     */
+    public FrameBuffer acquire(int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + size);
+        }
+        int sizeClass = sizeClassOf(size);
+        int capacity = classSize(sizeClass);
+        FrameBuffer buffer;
+        synchronized (this) {
+            ArrayDeque<FrameBuffer> freeList = mFreeLists[sizeClass];
+            buffer = freeList == null ? null : freeList.pollLast();
+            if (buffer != null) {
+                mBytesPooled.addAndGet(-capacity);
+                mHits.incrementAndGet();
+            } else {
+                if (!reserve(capacity)) {
+                    mExhausted.incrementAndGet();
+                    return null;
+                }
+                mMisses.incrementAndGet();
+            }
+            mBytesOutstanding.addAndGet(capacity);
+        }
+        if (buffer == null) {
+            // Allocate outside the lock, the bytes are already accounted for.
+            buffer = new FrameBuffer(this, sizeClass, capacity, mDirect);
+        }
+        buffer.open(size);
+        return buffer;
+    }
+
+    // Makes room for a new buffer under the cap by dropping idle buffers. Called with the lock held.
+    private boolean reserve(int capacity) {
+        for (int i = CLASS_COUNT - 1; i >= 0
+                && mBytesOutstanding.get() + mBytesPooled.get() + capacity > mMaxBytes; i--) {
+            ArrayDeque<FrameBuffer> freeList = mFreeLists[i];
+            while (freeList != null && !freeList.isEmpty()
+                    && mBytesOutstanding.get() + mBytesPooled.get() + capacity > mMaxBytes) {
+                freeList.pollFirst();
+                mBytesPooled.addAndGet(-classSize(i));
+            }
+        }
+        return mBytesOutstanding.get() + mBytesPooled.get() + capacity <= mMaxBytes;
+    }
+
+    void recycle(FrameBuffer buffer) {
+        int sizeClass = buffer.getSizeClass();
+        int capacity = buffer.capacity();
+        synchronized (this) {
+            ArrayDeque<FrameBuffer> freeList = mFreeLists[sizeClass];
+            if (freeList == null) {
+                freeList = new ArrayDeque<>();
+                mFreeLists[sizeClass] = freeList;
+            }
+            freeList.addLast(buffer);
+            mBytesOutstanding.addAndGet(-capacity);
+            mBytesPooled.addAndGet(capacity);
+        }
+    }
+
+    /**
+     * Drops all idle buffers.
+     */
+    public synchronized void trim() {
+        for (int i = 0; i < CLASS_COUNT; i++) {
+            if (mFreeLists[i] != null) {
+                mBytesPooled.addAndGet(-(long) classSize(i) * mFreeLists[i].size());
+                mFreeLists[i].clear();
+            }
+        }
+    }
+
+    public boolean isDirect() {
+        return mDirect;
+    }
+
+    public long getMaxBytes() {
+        return mMaxBytes;
+    }
+
+    /** Number of acquires served from an idle buffer. */
+    public long getHits() {
+        return mHits.get();
+    }
+
+    /** Number of acquires that had to allocate. */
+    public long getMisses() {
+        return mMisses.get();
+    }
+
+    /** Number of acquires refused because of the memory cap. */
+    public long getExhausted() {
+        return mExhausted.get();
+    }
+
+    /** Bytes held by buffers that are currently in use. */
+    public long getBytesOutstanding() {
+        return mBytesOutstanding.get();
+    }
+
+    /** Bytes held by idle buffers. */
+    public long getBytesPooled() {
+        return mBytesPooled.get();
+    }
+
+    @Override
+    public String toString() {
+        return "FrameBufferPool{hits=" + getHits() + ", misses=" + getMisses()
+                + ", exhausted=" + getExhausted() + ", outstanding=" + getBytesOutstanding()
+                + ", pooled=" + getBytesPooled() + ", max=" + mMaxBytes + "}";
+    }
+
+    static int sizeClassOf(int size) {
+        if (size <= MIN_CLASS_SIZE) {
+            return 0;
+        }
+        // size lies in (2^highBit, 2^(highBit + 1)], split into four equal steps.
+        int highBit = 31 - Integer.numberOfLeadingZeros(size - 1);
+        int step = 1 << (highBit - 2);
+        int subClass = (size - 1 - (1 << highBit)) / step;
+        return 1 + (highBit - MIN_CLASS_SHIFT) * STEPS_PER_CLASS + subClass;
+    }
+
+    static int classSize(int sizeClass) {
+        if (sizeClass == 0) {
+            return MIN_CLASS_SIZE;
+        }
+        int highBit = MIN_CLASS_SHIFT + (sizeClass - 1) / STEPS_PER_CLASS;
+        int subClass = (sizeClass - 1) % STEPS_PER_CLASS;
+        long size = (1L << highBit) + (long) (subClass + 1) * (1 << (highBit - 2));
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+}
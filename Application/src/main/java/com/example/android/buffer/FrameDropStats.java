@@ -0,0 +1,58 @@
+package com.example.android.buffer;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counts dropped frames per {@link DropReason}, together with the number of
+ * frames that were queued. Thread-safe.
+ */
+public class FrameDropStats {
+    private static final DropReason[] REASONS = DropReason.values();
+
+    private final AtomicLongArray mDrops = new AtomicLongArray(REASONS.length);
+    private final AtomicLong mQueued = new AtomicLong();
+
+    public void recordDrop(DropReason reason) {
+        mDrops.incrementAndGet(reason.ordinal());
+    }
+
+    public void recordQueued() {
+        mQueued.incrementAndGet();
+    }
+
+    public long getDropCount(DropReason reason) {
+        return mDrops.get(reason.ordinal());
+    }
+
+    public long getTotalDropCount() {
+        long total = 0;
+        for (int i = 0; i < REASONS.length; i++) {
+            total += mDrops.get(i);
+        }
+        return total;
+    }
+
+    public long getQueuedCount() {
+        return mQueued.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < REASONS.length; i++) {
+            mDrops.set(i, 0);
+        }
+        mQueued.set(0);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FrameDropStats{queued=").append(getQueuedCount());
+        for (int i = 0; i < REASONS.length; i++) {
+            long count = mDrops.get(i);
+            if (count != 0) {
+                sb.append(", ").append(REASONS[i].name().toLowerCase()).append('=').append(count);
+            }
+        }
+        return sb.append('}').toString();
+    }
+}
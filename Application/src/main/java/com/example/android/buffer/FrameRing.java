@@ -0,0 +1,220 @@
+package com.example.android.buffer;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded single-producer/single-consumer ring that drops its oldest element
+ * when full.
+ * <p>
+ * Slots are preallocated, so neither {@link #offer(Object)} nor
+ * {@link #poll()} allocate. {@code head} and {@code tail} are ever-increasing
+ * sequence numbers. The consumer takes an element by advancing {@code head}
+ * with a CAS; when the ring is full the producer claims the oldest element
+ * with the same CAS, so dropping and consuming never hand out one element
+ * twice and the producer never waits for the consumer.
+ * </p>
+ * <p>
+ * Exactly one thread may offer and one thread may poll at a time. The consumer
+ * can park in {@link #take(long, TimeUnit)} until the producer publishes, and
+ * the producer can park in {@link #offer(Object, long, TimeUnit)} until the
+ * consumer makes room. How a full ring is handled is usually decided by a
+ * {@link BackpressurePolicy}.
+ * </p>
+ */
+public class FrameRing<T> {
+    private final AtomicReferenceArray<T> mSlots;
+    private final int mMask;
+    private final int mCapacity;
+    // Sequence of the oldest element, advanced by the consumer and by dropping.
+    private final AtomicLong mHead = new AtomicLong();
+    // Sequence of the next element to write, only advanced by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private volatile Thread mWaiter;
+    private volatile Thread mProducerWaiter;
+
+    public FrameRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Invalid ring capacity " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mSlots = new AtomicReferenceArray<T>(slots);
+        mMask = slots - 1;
+        mCapacity = capacity;
+    }
+
+    /**
+     * Adds an element, dropping the oldest one if the ring is full. Producer
+     * thread only.
+     *
+     * @return The dropped element, which the caller now owns, or null.
+     */
+    public T offer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        long tail = mTail.get();
+        T dropped = null;
+        while (dropped == null) {
+            long head = mHead.get();
+            if (tail - head < mCapacity) {
+                break;
+            }
+            int index = (int) head & mMask;
+            T oldest = mSlots.get(index);
+            if (mHead.compareAndSet(head, head + 1)) {
+                mSlots.compareAndSet(index, oldest, null);
+                mDropped.incrementAndGet();
+                dropped = oldest;
+            }
+            // Otherwise the consumer took it, so there is room now.
+        }
+        publish(tail, item);
+        return dropped;
+    }
+
+    /**
+     * Adds an element if there is room. Producer thread only.
+     *
+     * @return false if the ring is full; nothing is dropped then.
+     */
+    public boolean tryOffer(T item) {
+        if (item == null) {
+            throw new NullPointerException("item");
+        }
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mCapacity) {
+            return false;
+        }
+        publish(tail, item);
+        return true;
+    }
+
+    /**
+     * Adds an element, parking until the consumer makes room or the timeout
+     * expires. Producer thread only.
+     *
+     * @return false on timeout or interrupt; nothing is dropped then.
+     */
+    public boolean offer(T item, long timeout, TimeUnit unit) {
+        if (tryOffer(item)) {
+            return true;
+        }
+        if (timeout <= 0) {
+            return false;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        mProducerWaiter = current;
+        try {
+            while (true) {
+                if (tryOffer(item)) {
+                    return true;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mProducerWaiter = null;
+        }
+    }
+
+    private void publish(long tail, T item) {
+        mSlots.set((int) tail & mMask, item);
+        // A volatile write so a consumer that registered itself as waiter
+        // either sees the element or is seen by the read below.
+        mTail.set(tail + 1);
+        Thread waiter = mWaiter;
+        if (waiter != null) {
+            LockSupport.unpark(waiter);
+        }
+    }
+
+    /**
+     * Removes the oldest element, or returns null if the ring is empty.
+     * Consumer thread only.
+     */
+    public T poll() {
+        while (true) {
+            long head = mHead.get();
+            if (head >= mTail.get()) {
+                return null;
+            }
+            int index = (int) head & mMask;
+            T item = mSlots.get(index);
+            if (item != null && mHead.compareAndSet(head, head + 1)) {
+                // Clear the slot unless the producer already refilled it.
+                mSlots.compareAndSet(index, item, null);
+                Thread waiter = mProducerWaiter;
+                if (waiter != null) {
+                    LockSupport.unpark(waiter);
+                }
+                return item;
+            }
+            // The producer dropped this element meanwhile, retry with the next.
+        }
+    }
+
+    /**
+     * Removes the oldest element, parking until one is offered or the timeout
+     * expires. Consumer thread only.
+     *
+     * @return The element, or null on timeout or interrupt.
+     */
+    public T take(long timeout, TimeUnit unit) {
+        T item = poll();
+        if (item != null || timeout <= 0) {
+            return item;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread current = Thread.currentThread();
+        mWaiter = current;
+        try {
+            while (true) {
+                item = poll();
+                if (item != null) {
+                    return item;
+                }
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0 || current.isInterrupted()) {
+                    return null;
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            mWaiter = null;
+        }
+    }
+
+    /**
+     * Approximate number of queued elements.
+     */
+    public int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, mCapacity));
+    }
+
+    public boolean isEmpty() {
+        return mTail.get() <= mHead.get();
+    }
+
+    public int capacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Number of elements dropped by {@link #offer(Object)} since creation.
+     */
+    public long getDroppedCount() {
+        return mDropped.get();
+    }
+}
@@ -0,0 +1,10 @@
+package com.example.android.buffer;
+
+/**
+ * A camera frame travelling from the capture thread to the encoder: pooled
+ * pixel data plus its presentation time.
+ */
+public class ImageDataInfo {
+    public FrameBuffer mFrame;
+    public long mPresentationTimeUs = -1;
+}
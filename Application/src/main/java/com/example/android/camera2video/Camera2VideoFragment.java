@@ -74,15 +74,36 @@ import android.widget.CheckBox;
 import android.widget.CompoundButton;
 import android.widget.Toast;
 
-import com.example.android.utils.FileUtils;
-
-import java.io.BufferedWriter;
+import com.example.android.buffer.BackpressurePolicies;
+import com.example.android.buffer.BackpressurePolicy;
+import com.example.android.buffer.DropReason;
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.buffer.FrameDropStats;
+import com.example.android.buffer.FrameRing;
+import com.example.android.buffer.ImageDataInfo;
+import com.example.android.dump.RawDumpWriter;
+import com.example.android.replay.ReplayFrameSource;
+import com.example.android.sensor.FrameImuSynchronizer;
+import com.example.android.sensor.FrameImuWindow;
+import com.example.android.sensor.FrameRotationWriter;
+import com.example.android.sensor.GyroPreintegrator;
+import com.example.android.sensor.ImuCompressedWriter;
+import com.example.android.sensor.ImuCsvConverter;
+import com.example.android.sensor.ImuCsvWriter;
+import com.example.android.sensor.ImuRecordWriter;
+import com.example.android.sensor.SensorLogWriter;
+import com.example.android.sensor.SensorSampleRing;
+import com.example.android.sensor.SensorSampleSink;
+import com.example.android.sensor.SensorSampleTee;
+import com.example.android.yuv.ParallelYuvConverter;
+import com.example.android.yuv.YuvConverter;
+import com.example.android.yuv.YuvPlane;
+
+import java.io.Closeable;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -91,10 +112,10 @@ import java.util.Date;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Queue;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
+import java.util.zip.Deflater;
 
 public class Camera2VideoFragment extends Fragment
         implements View.OnClickListener, FragmentCompat.OnRequestPermissionsResultCallback {
@@ -204,6 +225,47 @@ public class Camera2VideoFragment extends Fragment
 
     private CameraRecordingStream mMediaCodecWrapper;
 
+    /**
+     * Bit rate of the MediaCodec recording. The encoder is pre-warmed with it
+     * when the camera opens, so that the first record press can reuse it.
+     */
+    private static final int CODEC_BIT_RATE = 1250000;
+
+    /**
+     * Whether camera frames are converted straight into the encoder's input
+     * buffers on the camera thread. This saves a full-frame copy, but a frame is
+     * dropped whenever the encoder has no free input buffer at that moment. The
+     * queued path absorbs short encoder stalls instead, and is always used while
+     * raw frames are dumped.
+     */
+    private static final boolean USE_DIRECT_CODEC_INPUT = false;
+
+    /**
+     * Rolls the MediaCodec recording over into a new file at a key frame after
+     * this many milliseconds or bytes, with a .csv manifest of the files; 0
+     * for both records one file. See {@link CameraRecordingStream#setSegmentation}.
+     */
+    private static final long OUTPUT_SEGMENT_DURATION_MS = 0;
+    private static final long OUTPUT_SEGMENT_MAX_BYTES = 0;
+
+    /**
+     * Writes fragmented MP4 with fragments of about this many milliseconds,
+     * which stays playable if the app dies mid-recording; 0 uses MediaMuxer.
+     */
+    private static final long OUTPUT_FRAGMENT_DURATION_MS = 0;
+
+    /**
+     * Writes an indexed Annex-B .h264 stream instead of an .mp4 file.
+     */
+    private static final boolean OUTPUT_ANNEX_B = false;
+
+    /**
+     * Keeps this many milliseconds of encoded video in memory once recording
+     * starts; the output file is only opened on the next press of the record
+     * button and begins with the buffered video. 0 records on the first press.
+     */
+    private static final long PRE_ROLL_MS = 0;
+
     /**
      * Whether the app is recording video now
      */
@@ -367,11 +429,25 @@ public class Camera2VideoFragment extends Fragment
         super.onPause();
     }
 
+    @Override
+    public void onDestroy() {
+        if (mYuvConverter instanceof ParallelYuvConverter) {
+            ((ParallelYuvConverter) mYuvConverter).release();
+        }
+        super.onDestroy();
+    }
+
     @Override
     public void onClick(View view) {
         switch (view.getId()) {
             case R.id.video: {
                 if (mIsRecordingVideo) {
+                    if (PRE_ROLL_MS > 0 && null != mMediaCodecWrapper
+                            && mMediaCodecWrapper.triggerRecording()) {
+                        // Buffered until now, the next press stops.
+                        mButtonVideo.setText(R.string.stop);
+                        break;
+                    }
                     stopRecordingVideo();
                 } else {
                     startRecordingVideo();
@@ -535,6 +611,15 @@ public class Camera2VideoFragment extends Fragment
             configureTransform(width, height);
 //            mMediaRecorder = new MediaRecorder();
             mMediaCodecWrapper = new CameraRecordingStream();
+            // Direct input queues frames from the camera thread, which needs the polling mode.
+            mMediaCodecWrapper.setAsyncEncoding(!USE_DIRECT_CODEC_INPUT);
+            mMediaCodecWrapper.setDirectInput(USE_DIRECT_CODEC_INPUT);
+            mMediaCodecWrapper.setSegmentation(OUTPUT_SEGMENT_DURATION_MS,
+                    OUTPUT_SEGMENT_MAX_BYTES);
+            mMediaCodecWrapper.setFragmentedMp4(OUTPUT_FRAGMENT_DURATION_MS);
+            mMediaCodecWrapper.setAnnexBOutput(OUTPUT_ANNEX_B);
+            mMediaCodecWrapper.setPreRoll(PRE_ROLL_MS);
+            prewarmEncoder(mMediaCodecWrapper);
             manager.openCamera(cameraId, mStateCallback, null);
         } catch (CameraAccessException e) {
             Toast.makeText(activity, "Cannot access the camera.", Toast.LENGTH_LONG).show();
@@ -561,6 +646,11 @@ public class Camera2VideoFragment extends Fragment
                 mMediaRecorder.release();
                 mMediaRecorder = null;
             }
+            if (null != mMediaCodecWrapper) {
+                // Frees the encoder that was kept warm between recordings.
+                mMediaCodecWrapper.release();
+                mMediaCodecWrapper = null;
+            }
         } catch (InterruptedException e) {
             throw new RuntimeException("Interrupted while trying to lock camera closing.");
         } finally {
@@ -663,9 +753,32 @@ public class Camera2VideoFragment extends Fragment
 
     private void setUpMediaCodecWrapper(String outputFileName) {
         if(null != mMediaCodecWrapper)
-            mMediaCodecWrapper.configure(mVideoSize, true,1250000 , outputFileName, mUsingInputSurface);
+            mMediaCodecWrapper.configure(mVideoSize, true, CODEC_BIT_RATE, outputFileName, mUsingInputSurface);
 
     }
+
+    /**
+     * Creates and configures the encoder on the background thread while the
+     * camera opens, so the first record press only has to attach a muxer.
+     */
+    private void prewarmEncoder(final CameraRecordingStream stream) {
+        if (null == mBackgroundHandler) {
+            return;
+        }
+        final Size videoSize = mVideoSize;
+        final boolean usingInputSurface = mUsingInputSurface;
+        mBackgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stream.prewarm(videoSize, CODEC_BIT_RATE, usingInputSurface);
+                } catch (RuntimeException e) {
+                    // configure() creates the encoder again on the record press.
+                    Log.w(TAG, "Encoder pre-warm failed", e);
+                }
+            }
+        });
+    }
     private void setUpMediaRecorder(String outputFileName) throws IOException {
         final Activity activity = getActivity();
         if (null == activity || null == mMediaRecorder) {
@@ -749,6 +862,9 @@ public class Camera2VideoFragment extends Fragment
         mAVIVideoFileName = mDumpFolder.concat(File.separator)+System.currentTimeMillis()+".avi";
         mMP4VideoFileName = mDumpFolder.concat(File.separator)+System.currentTimeMillis()+".mp4";
         Log.d(TAG, "save to dir:"+getDumpFolderPath());
+        if (bDumpRawFiles) {
+            createRawDumpWriter();
+        }
         try {
             closePreviewSession();
             setUpMediaRecorder(mAVIVideoFileName);
@@ -798,7 +914,8 @@ public class Camera2VideoFragment extends Fragment
                         @Override
                         public void run() {
                             // UI
-                            mButtonVideo.setText(R.string.stop);
+                            mButtonVideo.setText(PRE_ROLL_MS > 0 && null != mMediaCodecWrapper
+                                    ? R.string.save : R.string.stop);
                             mIsRecordingVideo = true;
                             startTimestamp = -1;
                             // Start recording
@@ -854,7 +971,17 @@ public class Camera2VideoFragment extends Fragment
 
         if(null != mMediaCodecWrapper)
             mMediaCodecWrapper.stop();
+        closeRawDumpWriter();
         closeSensorDumpFiles();
+        ImageDataInfo pending;
+        while ((pending = mImageDataQueue.poll()) != null) {
+            releaseImageData(pending);
+        }
+        Log.i(TAG, "Frame pool after recording: " + mFramePool);
+        Log.i(TAG, "Frame drops during recording: " + mFrameDropStats);
+        mFrameDropStats.reset();
+        // The image reader is closed, so no frame is being offered.
+        mBackpressurePolicy.reset();
 
         Activity activity = getActivity();
         if (null != activity) {
@@ -939,14 +1066,18 @@ public class Camera2VideoFragment extends Fragment
         public void onImageAvailable(ImageReader reader) {
             closeLock.lock();
             Image image = reader.acquireLatestImage();
-            if (image == null)
+            if (image == null) {
+                closeLock.unlock();
                 return;
+            }
             if(startTimestamp <= 0){
                 startTimestamp = image.getTimestamp();
             }
 //            Log.d(TAG, "Image timestamp:"+image.getTimestamp());
-            if(mImageTimestampFW != null)
-                mImageTimestampFW.println(image.getTimestamp());
+            SensorSampleRing imageTimestampRing = mImageTimestampRing;
+            if (imageTimestampRing != null) {
+                imageTimestampRing.offer(ImuRecordWriter.TAG_IMAGE, image.getTimestamp(), 0, 0, 0);
+            }
 
 //            Image.Plane Y = image.getPlanes()[0];
 //            Image.Plane U = image.getPlanes()[1];
@@ -964,16 +1095,38 @@ public class Camera2VideoFragment extends Fragment
 //            V.getBuffer().get(data, Yb + Ub, Vb);
             long timestamp = image.getTimestamp();
             Rect crop = image.getCropRect();
-            int format = image.getFormat();
-            int width = crop.width();
-            int height = crop.height();
-            int size = width * height * ImageFormat.getBitsPerPixel(format) / 8;
-            ImageDataInfo info = getIdleImageData(size);
-            getDataFromImage(image, COLOR_FormatNV12, info.mImageData);
-            info.mPresentationTimeUs = (timestamp - startTimestamp) / 1000;
-            putImageData(info);
-            if(bDumpRawFiles) {
-                FileUtils.saveRawData(info.mImageData, mDumpFolder + "dumpImage_" + image.getTimestamp() + "_" + image.getWidth() + "x" + image.getHeight() + ".nv12");
+            if (USE_DIRECT_CODEC_INPUT && !bDumpRawFiles && null != mMediaCodecWrapper) {
+                fillYuvPlanes(image);
+                mMediaCodecWrapper.queueImageFrame(mYuvPlanes, crop.left, crop.top,
+                        (timestamp - startTimestamp) / 1000);
+            } else {
+                int format = image.getFormat();
+                int width = crop.width();
+                int height = crop.height();
+                int size = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+                // Ask the policy first so frames it would drop are not converted,
+                // unless the raw dump still wants them.
+                boolean admitted = mBackpressurePolicy.admit(mImageDataQueue, mFrameDropStats);
+                RawDumpWriter rawDumpWriter = mRawDumpWriter;
+                ImageDataInfo info = admitted || rawDumpWriter != null
+                        ? getIdleImageData(size) : null;
+                if (info != null) {
+                    getDataFromImage(image, COLOR_FormatNV12, info.mFrame);
+                    info.mPresentationTimeUs = (timestamp - startTimestamp) / 1000;
+                    if (rawDumpWriter != null) {
+                        rawDumpWriter.dump(info.mFrame, size, timestamp, COLOR_FormatNV12,
+                                width, height);
+                    }
+                    if (admitted) {
+                        putImageData(info);
+                        if (null != mMediaCodecWrapper) {
+                            mMediaCodecWrapper.notifyFrameAvailable();
+                        }
+                    } else {
+                        releaseImageData(info);
+                        mSpareImageData = info;
+                    }
+                }
             }
 
             image.close();
@@ -981,45 +1134,90 @@ public class Camera2VideoFragment extends Fragment
         }
     };
 
-    private LinkedBlockingQueue<ImageDataInfo> mIdleImageDataQueue = new LinkedBlockingQueue<>(15);
-    private LinkedBlockingQueue<ImageDataInfo> mImageDataQueue = new LinkedBlockingQueue<>(15);
-    public class ImageDataInfo{
-        public byte[] mImageData;
-        public long mPresentationTimeUs = -1;
-    }
+    /**
+     * Upper bound for memory held by queued and idle camera frames.
+     */
+    private static final long FRAME_POOL_MAX_BYTES = 64 * 1024 * 1024;
+    private final FrameBufferPool mFramePool = new FrameBufferPool(false, FRAME_POOL_MAX_BYTES);
+    // Filled frames, camera thread -> recording thread.
+    private final FrameRing<ImageDataInfo> mImageDataQueue = new FrameRing<>(15);
+    // Empty frame holders, recording thread -> camera thread.
+    private final FrameRing<ImageDataInfo> mIdleImageDataQueue = new FrameRing<>(16);
+    // Holder of the last dropped frame, only touched by the camera thread.
+    private ImageDataInfo mSpareImageData;
+    /**
+     * Maximum frame decimation when the encoder falls behind. Evenly spaced
+     * frames suit visual-inertial processing better than bursts of drops.
+     */
+    private static final int MAX_FRAME_DECIMATION = 4;
+    private final BackpressurePolicy<ImageDataInfo> mBackpressurePolicy =
+            BackpressurePolicies.decimate(MAX_FRAME_DECIMATION);
+    private final FrameDropStats mFrameDropStats = new FrameDropStats();
 
+    /**
+     * Returns a frame holder with pooled pixel data of at least {@code dataSize}
+     * bytes, or null when the pool's memory cap is reached.
+     */
     private ImageDataInfo getIdleImageData(int dataSize) {
-        ImageDataInfo info = mIdleImageDataQueue.poll();
-        if(info == null || info.mImageData.length != dataSize){
+        FrameBuffer frame = mFramePool.acquire(dataSize);
+        if (frame == null) {
+            mFrameDropStats.recordDrop(DropReason.POOL_EXHAUSTED);
+            Log.w(TAG, "Frame pool exhausted, dropping frame: " + mFramePool);
+            return null;
+        }
+        ImageDataInfo info = mSpareImageData;
+        mSpareImageData = null;
+        if (info == null) {
+            info = mIdleImageDataQueue.poll();
+        }
+        if(info == null){
             info = new ImageDataInfo();
-            info.mImageData = new byte[dataSize];
         }
-
+        info.mFrame = frame;
         return info;
     }
 
+    /**
+     * Hands a frame to the recording thread. When the recording thread falls
+     * behind, {@link #mBackpressurePolicy} decides which frame is dropped.
+     * Camera thread only.
+     */
     public void putImageData(ImageDataInfo info){
-        while(!mImageDataQueue.offer(info)) {//添加一个元素并返回true       如果队列已满，则返回false
-            mImageDataQueue.poll();
-            Log.d(TAG, "getImageData");
+        ImageDataInfo dropped = mBackpressurePolicy.offer(mImageDataQueue, info, mFrameDropStats);
+        if (dropped != null) {
+            Log.d(TAG, "drop frame " + dropped.mPresentationTimeUs);
+            releaseImageData(dropped);
+            mSpareImageData = dropped;
         }
     }
 
-    public ImageDataInfo getImageData(){
-            ImageDataInfo info =  mImageDataQueue.poll();
-            Log.d(TAG, "getImageData");
-        return info;
+    /**
+     * Waits up to {@code timeoutUs} for the next frame. Recording thread only.
+     */
+    public ImageDataInfo getImageData(long timeoutUs){
+        return mImageDataQueue.take(timeoutUs, TimeUnit.MICROSECONDS);
     }
 
+    /**
+     * Returns a consumed frame to the pool. Recording thread only.
+     */
     public void recycleImageData(ImageDataInfo data){
-        data.mPresentationTimeUs = -1;
+        releaseImageData(data);
         mIdleImageDataQueue.offer(data);
     }
+
+    private static void releaseImageData(ImageDataInfo data) {
+        if (data.mFrame != null) {
+            data.mFrame.release();
+            data.mFrame = null;
+        }
+        data.mPresentationTimeUs = -1;
+    }
     CameraRecordingStream.DataProvider mCodecImageProvider = new  CameraRecordingStream.DataProvider() {
 
         @Override
-        public ImageDataInfo getImageData() {
-            return Camera2VideoFragment.this.getImageData();
+        public ImageDataInfo getImageData(long timeoutUs) {
+            return Camera2VideoFragment.this.getImageData(timeoutUs);
         }
 
         @Override
@@ -1029,26 +1227,35 @@ public class Camera2VideoFragment extends Fragment
     };
 
     public void registerSensorManagerListener() {
+        // Sensor events are delivered on their own thread instead of the
+        // main looper, so a slow listener can not stall the UI.
+        mSensorThread = new HandlerThread("SensorEvents");
+        mSensorThread.start();
+        Handler sensorHandler = new Handler(mSensorThread.getLooper());
         boolean result =   sensorManager.registerListener(mySensorListener,
                 sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER),
-                SensorManager.SENSOR_DELAY_FASTEST);                              //最后一个参数用于控制传感器数据获取的频率，频率可以自由调整
+                SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);                              //最后一个参数用于控制传感器数据获取的频率，频率可以自由调整
 
         sensorManager.registerListener(mySensorListener,
                 sensorManager.getDefaultSensor(Sensor.TYPE_ACCELEROMETER_UNCALIBRATED),
-                SensorManager.SENSOR_DELAY_FASTEST);
+                SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
 
         sensorManager.registerListener(mySensorListener,
                 sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE),
-                SensorManager.SENSOR_DELAY_FASTEST);
+                SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
 
         sensorManager.registerListener(mySensorListener,
                 sensorManager.getDefaultSensor(Sensor.TYPE_GYROSCOPE_UNCALIBRATED),
-                SensorManager.SENSOR_DELAY_FASTEST);
+                SensorManager.SENSOR_DELAY_FASTEST, sensorHandler);
 
 
     }
     public void unregisterSensorManagerListener() {
         sensorManager.unregisterListener(mySensorListener);
+        if (mSensorThread != null) {
+            mSensorThread.quitSafely();
+            mSensorThread = null;
+        }
         System.out.println("StateCollectService listener is unregistered ! ");
     }
 
@@ -1057,29 +1264,14 @@ public class Camera2VideoFragment extends Fragment
     private SensorEventListener mySensorListener = new SensorEventListener() {
         @Override
         public void onSensorChanged(SensorEvent event) {
-            switch(event.sensor.getType()) {
-                case Sensor.TYPE_ACCELEROMETER:
-                    if(null != mAccelerometerFW)
-                        mAccelerometerFW.println(event.timestamp+","+event.values[0]+","+event.values[1]+","+event.values[2]);
-//                    Log.d("MainActivity","TYPE_ACCELEROMETER, "+event.values[0]+","+event.values[1]+","+event.values[2]+", timestamp(ns):"+event.timestamp+",curTime(ms):"+System.currentTimeMillis());
-                    break;
-                case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
-                    if(null != mAccelerometerUncalibratedFW)
-                        mAccelerometerUncalibratedFW.println(event.timestamp+","+event.values[0]+","+event.values[1]+","+event.values[2]);
-//                    Log.d("MainActivity","TYPE_ACCELEROMETER_UNCALIBRATED, "+event.values[0]+","+event.values[1]+","+event.values[2]+", timestamp:"+event.timestamp);
-                    break;
-                case Sensor.TYPE_GYROSCOPE:
-                    if(null != mGyroscopeFW) {
-                        mGyroscopeFW.printf("%d,%f,%f,%f", event.timestamp, event.values[0],event.values[1], event.values[2]);//(event.timestamp+event.values[0]+","+event.values[1]+","+event.values[2]);
-                        mGyroscopeFW.println();
-                    }
-//                    Log.d("MainActivity","TYPE_GYROSCOPE, "+event.values[0]+","+event.values[1]+","+event.values[2]+", timestamp:"+event.timestamp);
-                    break;
-                case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
-                    if(null != mGyroscopeUncalibratedFW)
-                        mGyroscopeUncalibratedFW.println(event.timestamp+","+event.values[0]+","+event.values[1]+","+event.values[2]);
-//                    Log.d("MainActivity","TYPE_GYROSCOPE_UNCALIBRATED, "+event.values[0]+","+event.values[1]+","+event.values[2]+", timestamp:"+event.timestamp);
-                    break;
+            SensorSampleRing sensorRing = mSensorRing;
+            if (sensorRing == null) {
+                return;
+            }
+            byte tag = getImuRecordTag(event.sensor.getType());
+            if (tag != 0) {
+                sensorRing.offer(tag, event.timestamp,
+                        event.values[0], event.values[1], event.values[2]);
             }
         }
 
@@ -1087,58 +1279,245 @@ public class Camera2VideoFragment extends Fragment
         public void onAccuracyChanged(Sensor sensor, int i) {
         }
     };
+    private static byte getImuRecordTag(int sensorType) {
+        switch (sensorType) {
+            case Sensor.TYPE_ACCELEROMETER:
+                return ImuRecordWriter.TAG_ACCELEROMETER;
+            case Sensor.TYPE_ACCELEROMETER_UNCALIBRATED:
+                return ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED;
+            case Sensor.TYPE_GYROSCOPE:
+                return ImuRecordWriter.TAG_GYROSCOPE;
+            case Sensor.TYPE_GYROSCOPE_UNCALIBRATED:
+                return ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED;
+        }
+        return 0;
+    }
     private SensorManager sensorManager;
-    private String mAccelerometerName = "accelerometer.csv", mAccelerometerUncalibratedName = "accelerometerUncalibrated.csv",
-            mGyroscopeName = "gyroscope.csv", mGyroscopeUncalibratedName = "gyroscopeUncalibrated.csv", mImageTimestampName = "image_timestamp.csv";
-    private PrintWriter mAccelerometerFW = null, mAccelerometerUncalibratedFW = null,
-            mGyroscopeFW = null, mGyroscopeUncalibratedFW = null, mImageTimestampFW = null;
-    private void createSensorDumpFiles(){
-        try{
-            mAccelerometerFW = new PrintWriter(new BufferedWriter(new FileWriter(mDumpFolder+mAccelerometerName, true)));
-            mAccelerometerFW.println("#timestamp [ns], a_RS_S_x [m s^-2], a_RS_S_y [m s^-2], a_RS_S_z [m s^-2]");
-
-            mAccelerometerUncalibratedFW = new PrintWriter(new BufferedWriter(new FileWriter(mDumpFolder+mAccelerometerUncalibratedName, true)));
-            mAccelerometerUncalibratedFW.println("#timestamp [ns], a_RS_S_x [m s^-2], a_RS_S_y [m s^-2], a_RS_S_z [m s^-2]");
-
-            mGyroscopeFW = new PrintWriter(new BufferedWriter(new FileWriter(mDumpFolder+mGyroscopeName, true)));
-            mGyroscopeFW.println("#timestamp [ns], w_RS_S_x [rad s^-1], w_RS_S_y [rad s^-1], w_RS_S_z [rad s^-1]");
+    private HandlerThread mSensorThread;
+    /**
+     * Sensor samples and frame timestamps go to one compressed log, see
+     * {@link ImuCompressedWriter}, or with COMPRESS_SENSOR_LOG cleared to
+     * fixed size records, see {@link ImuRecordWriter}; {@link ImuCsvConverter}
+     * turns either into the CSV files. Set DUMP_SENSORS_AS_CSV to write the
+     * CSV files directly instead, which costs about three times the space of
+     * the records and seven times that of the quantized compressed log.
+     */
+    private static final boolean DUMP_SENSORS_AS_CSV = false;
+    private static final boolean COMPRESS_SENSOR_LOG = true;
+    // Rounds the compressed values to each sensor's resolution, which halves
+    // the log again but makes it lossy: values are off by up to half the
+    // resolution and no longer match what the sensor reported.
+    private static final boolean QUANTIZE_SENSOR_LOG = false;
+    // The callbacks only fill rings, the log is written by mSensorLogWriter.
+    // The rings hold about 2s of all four sensors at 500Hz and of frames.
+    private static final int SENSOR_RING_CAPACITY = 4096;
+    private static final int IMAGE_TIMESTAMP_RING_CAPACITY = 64;
+    // Bounds what a crash loses, at the cost of a write per interval.
+    private static final long SENSOR_LOG_FLUSH_INTERVAL_MS = 1000;
+    /**
+     * Also aligns every frame with the gyroscope and accelerometer on the
+     * sensor log thread, see {@link FrameImuSynchronizer}, and logs the
+     * rotation between frames and the orientation at each frame to
+     * {@link #ROTATION_LOG_FILE}, see {@link GyroPreintegrator}. Consumers of
+     * the windows hook into {@link #mFrameImuListener}.
+     */
+    private static final boolean SYNC_FRAME_IMU = true;
+    // About 1.2s of a 400Hz sensor behind the frame timestamps.
+    private static final int SYNC_SAMPLE_CAPACITY = 512;
+    private static final int SYNC_FRAME_CAPACITY = 32;
+    private static final String ROTATION_LOG_FILE = "rotation.bin";
+    private SensorSampleSink mSensorLogSink;
+    private SensorLogWriter mSensorLogWriter;
+    private FrameImuSynchronizer mFrameImuSynchronizer;
+    private FrameRotationWriter mFrameRotationWriter;
+    // Only touched on the sensor log thread while it runs.
+    private GyroPreintegrator mGyroPreintegrator;
+    private int mMaxFrameImuSamples;
+    private final FrameImuSynchronizer.Listener mFrameImuListener =
+            new FrameImuSynchronizer.Listener() {
+        @Override
+        public void onFrameImu(FrameImuWindow window) throws IOException {
+            if (window.sampleCount > mMaxFrameImuSamples) {
+                mMaxFrameImuSamples = window.sampleCount;
+            }
+            if (mGyroPreintegrator != null) {
+                mGyroPreintegrator.onFrameImu(window);
+            }
+        }
+    };
+    /**
+     * Flushes the rotation log along with the sensor log, so both lose at
+     * most a flush interval when recording dies.
+     */
+    private final SensorSampleSink mFrameRotationFlusher = new SensorSampleSink() {
+        @Override
+        public void write(byte tag, long timestampNs, float x, float y, float z) {
+        }
 
-            mGyroscopeUncalibratedFW = new PrintWriter(new BufferedWriter(new FileWriter(mDumpFolder+mGyroscopeUncalibratedName, true)));
-            mGyroscopeUncalibratedFW.println("#timestamp [ns], w_RS_S_x [rad s^-1], w_RS_S_y [rad s^-1], w_RS_S_z [rad s^-1]");
+        @Override
+        public void flush() throws IOException {
+            if (mFrameRotationWriter != null) {
+                mFrameRotationWriter.flush();
+            }
+        }
+    };
+    private volatile SensorSampleRing mSensorRing;
+    private volatile SensorSampleRing mImageTimestampRing;
+    private void createSensorDumpFiles(){
+        try {
+            if (DUMP_SENSORS_AS_CSV) {
+                mSensorLogSink = new ImuCsvWriter(mDumpFolder, true);
+            } else if (COMPRESS_SENSOR_LOG) {
+                ImuCompressedWriter writer =
+                        new ImuCompressedWriter(
+                                mDumpFolder + ReplayFrameSource.IMU_COMPRESSED_LOG_FILE);
+                if (QUANTIZE_SENSOR_LOG) {
+                    setSensorLogQuantization(writer, Sensor.TYPE_ACCELEROMETER);
+                    setSensorLogQuantization(writer, Sensor.TYPE_ACCELEROMETER_UNCALIBRATED);
+                    setSensorLogQuantization(writer, Sensor.TYPE_GYROSCOPE);
+                    setSensorLogQuantization(writer, Sensor.TYPE_GYROSCOPE_UNCALIBRATED);
+                }
+                mSensorLogSink = writer;
+            } else {
+                mSensorLogSink =
+                        new ImuRecordWriter(mDumpFolder + ReplayFrameSource.IMU_LOG_FILE);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Creating sensor log failed", e);
+            return;
+        }
+        SensorSampleSink sink = mSensorLogSink;
+        if (SYNC_FRAME_IMU) {
+            mMaxFrameImuSamples = 0;
+            try {
+                mFrameRotationWriter = new FrameRotationWriter(mDumpFolder + ROTATION_LOG_FILE);
+                // TYPE_GYROSCOPE is bias corrected already.
+                mGyroPreintegrator = new GyroPreintegrator(mFrameRotationWriter);
+            } catch (IOException e) {
+                Log.e(TAG, "Creating rotation log failed", e);
+            }
+            mFrameImuSynchronizer = new FrameImuSynchronizer(SYNC_SAMPLE_CAPACITY,
+                    SYNC_FRAME_CAPACITY, mFrameImuListener);
+            sink = new SensorSampleTee(mSensorLogSink, mFrameImuSynchronizer,
+                    mFrameRotationFlusher);
+        }
+        mSensorLogWriter = new SensorLogWriter(sink, SENSOR_LOG_FLUSH_INTERVAL_MS);
+        SensorSampleRing sensorRing = mSensorLogWriter.addRing(SENSOR_RING_CAPACITY);
+        SensorSampleRing imageTimestampRing = mSensorLogWriter.addRing(IMAGE_TIMESTAMP_RING_CAPACITY);
+        mSensorLogWriter.start();
+        mSensorRing = sensorRing;
+        mImageTimestampRing = imageTimestampRing;
+    }
 
-            mImageTimestampFW = new PrintWriter(new BufferedWriter(new FileWriter(mDumpFolder+mImageTimestampName, true)));
-            mImageTimestampFW.println("#timestamp [ns]");
-        }catch (Exception e){
-            e.printStackTrace();
+    private void setSensorLogQuantization(ImuCompressedWriter writer, int sensorType) {
+        Sensor sensor = sensorManager.getDefaultSensor(sensorType);
+        if (sensor != null && sensor.getResolution() > 0) {
+            writer.setQuantization(getImuRecordTag(sensorType), sensor.getResolution());
         }
     }
 
     private void closeSensorDumpFiles()
     {
-        if(null != mAccelerometerFW){
-            mAccelerometerFW.close();
-            mAccelerometerFW = null;
+        mSensorRing = null;
+        mImageTimestampRing = null;
+        if (mSensorLogWriter != null) {
+            try {
+                mSensorLogWriter.stop();
+            } catch (IOException e) {
+                Log.e(TAG, "Writing sensor log failed", e);
+            }
+            Log.i(TAG, "Sensor log: " + mSensorLogWriter);
+            mSensorLogWriter = null;
         }
-        if(null != mAccelerometerUncalibratedFW){
-            mAccelerometerUncalibratedFW.close();
-            mAccelerometerUncalibratedFW = null;
+        if (mFrameImuSynchronizer != null) {
+            Log.i(TAG, "Frame IMU sync: " + mFrameImuSynchronizer
+                    + ", max samples per frame " + mMaxFrameImuSamples);
+            mFrameImuSynchronizer = null;
         }
-        if(null != mGyroscopeFW){
-            mGyroscopeFW.close();
-            mGyroscopeFW = null;
+        if (mGyroPreintegrator != null) {
+            Log.i(TAG, "Gyro preintegration: " + mGyroPreintegrator);
+            mGyroPreintegrator = null;
         }
-        if(null != mGyroscopeUncalibratedFW){
-            mGyroscopeUncalibratedFW.close();
-            mGyroscopeUncalibratedFW = null;
+        if (mFrameRotationWriter != null) {
+            try {
+                mFrameRotationWriter.close();
+            } catch (IOException e) {
+                Log.e(TAG, "Closing rotation log failed", e);
+            }
+            mFrameRotationWriter = null;
         }
-        if(null != mImageTimestampFW){
-            mImageTimestampFW.close();
-            mImageTimestampFW = null;
+        if (mSensorLogSink != null) {
+            try {
+                ((Closeable) mSensorLogSink).close();
+            } catch (IOException e) {
+                Log.e(TAG, "Closing sensor log failed", e);
+            }
+            if (mSensorLogSink instanceof ImuCompressedWriter) {
+                Log.i(TAG, "Sensor log file: " + mSensorLogSink);
+            }
+            mSensorLogSink = null;
         }
     }
-    private static final int COLOR_FormatI420 = 1;
-    private static final int COLOR_FormatNV21 = 2;
-    private static final int COLOR_FormatNV12 = 3;
+
+    /**
+     * Raw frames go to one container in the dump folder, see
+     * {@link RawDumpWriter}, written on its own thread. Frames that find
+     * {@link #RAW_DUMP_QUEUE_CAPACITY} frames waiting are dropped from the
+     * dump only, and counted. The files of a session have the names
+     * {@link ReplayFrameSource} looks for. The index has room for 30 minutes
+     * at 30 fps.
+     */
+    private static final int RAW_DUMP_INDEX_CAPACITY = 54000;
+    // About 0.25s at 30 fps; each waiting frame holds a pooled buffer.
+    private static final int RAW_DUMP_QUEUE_CAPACITY = 8;
+    /**
+     * Memory of the frames waiting to be dumped. The dump copies every frame
+     * into a pool of its own with this cap instead of keeping the camera
+     * frame, so a slow card can not exhaust {@link #mFramePool} and cost the
+     * recording frames. 40 MB hold the queue and the frames being compressed
+     * at 1080p.
+     */
+    private static final long RAW_DUMP_POOL_MAX_BYTES = 40 * 1024 * 1024;
+    /**
+     * Threads compressing dumped frames losslessly, see
+     * {@link com.example.android.dump.FrameCompressor}, 0 to dump them as
+     * they are. Raw 1080p at 30 fps is 93 MB/s, more than many phones
+     * write sustained; compressed it is 2.4 to 3 times smaller. A desktop
+     * core compresses about 20 such frames per second, see
+     * FrameCompressionBenchmark, and a phone core fewer, hence several
+     * threads. The camera thread only queues frames either way.
+     */
+    private static final int RAW_DUMP_COMPRESSION_THREADS = 3;
+    private volatile RawDumpWriter mRawDumpWriter;
+    private void createRawDumpWriter() {
+        try {
+            RawDumpWriter writer = new RawDumpWriter(
+                    mDumpFolder + ReplayFrameSource.RAW_DUMP_FILE, RAW_DUMP_INDEX_CAPACITY,
+                    RAW_DUMP_QUEUE_CAPACITY, RAW_DUMP_COMPRESSION_THREADS, Deflater.BEST_SPEED,
+                    new FrameBufferPool(false, RAW_DUMP_POOL_MAX_BYTES));
+            writer.start();
+            mRawDumpWriter = writer;
+        } catch (IOException e) {
+            Log.e(TAG, "Creating raw dump failed", e);
+        }
+    }
+
+    private void closeRawDumpWriter() {
+        RawDumpWriter writer = mRawDumpWriter;
+        if (writer == null) {
+            return;
+        }
+        mRawDumpWriter = null;
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Writing raw dump failed", e);
+        }
+        Log.i(TAG, "Raw dump: " + writer);
+    }
+    private static final int COLOR_FormatI420 = YuvConverter.COLOR_FormatI420;
+    private static final int COLOR_FormatNV21 = YuvConverter.COLOR_FormatNV21;
+    private static final int COLOR_FormatNV12 = YuvConverter.COLOR_FormatNV12;
     private static boolean isImageFormatSupported(Image image) {
         int format = image.getFormat();
         switch (format) {
@@ -1150,93 +1529,40 @@ public class Camera2VideoFragment extends Fragment
         return false;
     }
 
-    private static void getDataFromImage(Image image, int colorFormat, byte[]  outputData) {
-        if (colorFormat != COLOR_FormatI420 && colorFormat != COLOR_FormatNV21 && colorFormat != COLOR_FormatNV12) {
-            throw new IllegalArgumentException("only support COLOR_FormatI420 " + "and COLOR_FormatNV21");
+    /**
+     * Number of threads used to convert one camera frame. With 1 the conversion
+     * runs on the camera background thread; larger values split frames of 1080p
+     * and above into stripes converted on a worker pool.
+     */
+    private static final int FRAME_CONVERSION_THREADS = 1;
+
+    /**
+     * Converter and plane descriptors are reused for every frame, they are only
+     * touched from the image callback on the background thread.
+     */
+    private final YuvConverter mYuvConverter = FRAME_CONVERSION_THREADS > 1
+            ? new ParallelYuvConverter(FRAME_CONVERSION_THREADS) : new YuvConverter();
+    private final YuvPlane[] mYuvPlanes = {new YuvPlane(), new YuvPlane(), new YuvPlane()};
+
+    private void fillYuvPlanes(Image image) {
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < planes.length; i++) {
+            mYuvPlanes[i].set(planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
         }
+    }
+
+    private void getDataFromImage(Image image, int colorFormat, FrameBuffer outputData) {
         if (!isImageFormatSupported(image)) {
             throw new RuntimeException("can't convert Image to byte array, format " + image.getFormat());
         }
         Rect crop = image.getCropRect();
-        int format = image.getFormat();
-        int width = crop.width();
-        int height = crop.height();
-        Log.d(TAG, "crop top:"+crop.top+",left:"+crop.left+", bottom:"+crop.bottom+", right:"+crop.right);
-        Image.Plane[] planes = image.getPlanes();
-        int size = width * height * ImageFormat.getBitsPerPixel(format) / 8;
-        if(outputData == null || outputData.length != size) {
-            throw new RuntimeException("Output data bytes is null or length is unequal to " + size);
-        }
-//        byte[] data = new byte[width * height * ImageFormat.getBitsPerPixel(format) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-//         Log.v(TAG, "get data from " + planes.length + " planes");
-        int channelOffset = 0;
-        int outputStride = 1;
-        for (int i = 0; i < planes.length; i++) {
-            switch (i) {
-                case 0:
-                    channelOffset = 0;
-                    outputStride = 1;
-                    break;
-                case 1:
-                    if (colorFormat == COLOR_FormatI420) {
-                        channelOffset = width * height;
-                        outputStride = 1;
-                    } else if (colorFormat == COLOR_FormatNV21) {
-                        channelOffset = width * height + 1;
-                        outputStride = 2;
-                    } else if (colorFormat == COLOR_FormatNV12) {
-                        channelOffset = width * height;
-                        outputStride = 2;
-                    }
-                    break;
-                case 2:
-                    if (colorFormat == COLOR_FormatI420) {
-                        channelOffset = (int) (width * height * 1.25);
-                        outputStride = 1;
-                    } else if (colorFormat == COLOR_FormatNV21) {
-                        channelOffset = width * height;
-                        outputStride = 2;
-                    } else if (colorFormat == COLOR_FormatNV12) {
-                        channelOffset = width * height + 1;
-                        outputStride = 2;
-                    }
-                    break;
-            }
-            ByteBuffer buffer = planes[i].getBuffer();
-            int rowStride = planes[i].getRowStride();
-            int pixelStride = planes[i].getPixelStride();
-//            {
-//                Log.v(TAG, "plane "+i+" pixelStride " + pixelStride);
-//                Log.v(TAG, "plane "+i+" rowStride " + rowStride);
-//                Log.v(TAG, "plane "+i+" width " + width);
-//                Log.v(TAG, "plane "+i+" height " + height);
-//                Log.v(TAG, "plane "+i+" buffer size " + buffer.remaining());
-//            }
-            int shift = (i == 0) ? 0 : 1;
-            int w = width >> shift;
-            int h = height >> shift;
-            buffer.position(rowStride * (crop.top >> shift) + pixelStride * (crop.left >> shift));
-            for (int row = 0; row < h; row++) {
-                int length;
-                if (pixelStride == 1 && outputStride == 1) {
-                    length = w;
-                    buffer.get(outputData, channelOffset, length);
-                    channelOffset += length;
-                } else {
-                    length = (w - 1) * pixelStride + 1;
-                    buffer.get(rowData, 0, length);
-                    for (int col = 0; col < w; col++) {
-                        outputData[channelOffset] = rowData[col * pixelStride];
-                        channelOffset += outputStride;
-                    }
-                }
-                if (row < h - 1) {
-                    buffer.position(buffer.position() + rowStride - length);
-                }
-            }
-//             Log.v(TAG, "Finished reading data from plane " + i);
+        fillYuvPlanes(image);
+        if (outputData.array() != null) {
+            mYuvConverter.convert(mYuvPlanes, crop.left, crop.top, crop.width(), crop.height(),
+                    colorFormat, outputData.array());
+        } else {
+            mYuvConverter.convert(mYuvPlanes, crop.left, crop.top, crop.width(), crop.height(),
+                    colorFormat, outputData.buffer(), crop.width(), crop.height());
         }
-//        return data;
     }
 }
@@ -19,21 +19,37 @@ import android.media.MediaCodec;
 import android.media.MediaCodecInfo;
 import android.media.MediaCodecList;
 import android.media.MediaFormat;
-import android.media.MediaMuxer;
+import android.os.Build;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.util.Size;
 import android.view.Surface;
 
+import com.example.android.codec.AnnexBFileWriter;
+import com.example.android.codec.AsyncSampleMuxer;
+import com.example.android.codec.DirectInputWriter;
+import com.example.android.codec.EncoderInputLayout;
+import com.example.android.codec.EncodingSession;
+import com.example.android.codec.FragmentedMp4Writer;
+import com.example.android.codec.FrameSource;
+import com.example.android.codec.PreRollBuffer;
+import com.example.android.codec.SampleMuxer;
+import com.example.android.codec.SegmentingMuxer;
+import com.example.android.codec.VideoEncoder;
 import com.example.android.utils.FileUtils;
+import com.example.android.yuv.YuvConverter;
+import com.example.android.yuv.YuvPlane;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 /**
  * Camera video recording class. It takes frames produced by camera and encoded
  * with either MediaCodec or MediaRecorder. MediaRecorder path is not
@@ -49,27 +65,161 @@ public class CameraRecordingStream {
     private static final int FRAME_RATE = 30; // 30fps
     private static final int IFRAME_INTERVAL = 1; // 1 seconds between I-frames
     private static final int TIMEOUT_USEC = 10000; // Timeout value 10ms.
+    // How long stop() waits for the encoder to drain in async mode.
+    private static final long ASYNC_STOP_TIMEOUT_MS = 3000;
+    // MediaFormat.KEY_STRIDE and KEY_SLICE_HEIGHT are public from API 23, the
+    // encoders report the same keys before that.
+    private static final String KEY_STRIDE = "stride";
+    private static final String KEY_SLICE_HEIGHT = "slice-height";
+    // Frames handed over by the DataProvider are packed NV12.
+    private static final int QUEUED_FRAME_COLOR_FORMAT = YuvConverter.COLOR_FormatNV12;
+    // Encoded samples the muxer thread may fall behind by, about 3s of video,
+    // so a storage stall does not back up into the encoder.
+    private static final int MUXER_QUEUE_CAPACITY = 3 * FRAME_RATE;
+    private static final long MUXER_QUEUE_MAX_BYTES = 32L * 1024 * 1024;
+    private static final String MP4_EXTENSION = ".mp4";
+    private static final String ANNEX_B_EXTENSION = ".h264";
+    // Sync frames for a segment boundary are requested this early, which
+    // covers the encoder latency plus the muxer queue at normal depth.
+    private static final long SEGMENT_SYNC_FRAME_LEAD_US = 200000;
+    // The pre-roll ring holds up to one GOP more than asked for, since it is
+    // only evicted in whole GOPs, and twice the nominal bit rate for bursts.
+    private static final long PRE_ROLL_SLACK_MS = IFRAME_INTERVAL * 1000;
+    private static final int PRE_ROLL_BIT_RATE_FACTOR = 2;
     // Sync object to protect stream state access from multiple threads.
     private final Object mStateLock = new Object();
-    private int mStreamState = STREAM_STATE_IDLE;
+    // Written under mStateLock, read without it by the recording loop.
+    private volatile int mStreamState = STREAM_STATE_IDLE;
     private MediaCodec mEncoder;
+    private VideoEncoder mVideoEncoder;
     private Surface mRecordingSurface;
     private int mEncBitRate;
-    private MediaCodec.BufferInfo mBufferInfo;
-    private MediaMuxer mMuxer;
-    private int mTrackIndex = -1;
-    private boolean mMuxerStarted;
+    private SampleMuxer mMuxer;
     private boolean mUseMediaCodec = false;
     private Size mStreamSize = new Size(-1, -1);
-    private Thread mRecordingThread;
     private String mSavePath;
-    public interface DataProvider{
-        public Camera2VideoFragment.ImageDataInfo getImageData();
-        public void recycleImageData(Camera2VideoFragment.ImageDataInfo data);
+    private DirectInputWriter mInputWriter;
+    private volatile EncodingSession mSession;
+    // Async mode: codec callbacks, frame notifications and EOS all run here.
+    private boolean mAsyncEncodingRequested = true;
+    private boolean mAsyncEncoding;
+    // Frames are written by queueImageFrame() instead of taken from mDataProvider.
+    private boolean mDirectInputRequested;
+    private boolean mDirectInput;
+    private HandlerThread mEncoderThread;
+    // Segmented recording, off when both are 0.
+    private long mSegmentDurationMs;
+    private long mSegmentMaxBytes;
+    // Fragmented MP4 instead of MediaMuxer when not 0.
+    private long mFragmentDurationMs;
+    // Raw .h264 stream with an access unit index instead of a container.
+    private boolean mAnnexBOutput;
+    // Pre-roll mode when not 0: start() fills mPreRollBuffer, and the output
+    // file is only opened by triggerRecording().
+    private long mPreRollMs;
+    private PreRollBuffer mPreRollBuffer;
+    private String mOutputFileName;
+    // Set by release(); a pre-warm posted before that must not revive the encoder.
+    private boolean mReleased;
+    public interface DataProvider extends FrameSource {
     }
     public DataProvider mDataProvider;
     public void setDataProvider(DataProvider provider){
         this.mDataProvider = provider;
+        EncodingSession session = mSession;
+        if (session != null) {
+            session.setFrameSource(provider);
+        }
+    }
+    /**
+     * Chooses between the event-driven encoder mode, where MediaCodec
+     * announces free input and ready output on a dedicated handler thread,
+     * and the polling loop on a recording thread. Async mode needs API 23 and
+     * is not used with {@link #queueImageFrame}. Takes effect on the next
+     * {@link #configure}.
+     */
+    public synchronized void setAsyncEncoding(boolean async) {
+        mAsyncEncodingRequested = async;
+    }
+    /**
+     * Makes {@link #queueImageFrame} the only frame input, so the encoder's
+     * input buffers are left to it instead of being held for the
+     * DataProvider queue. Needs ByteBuffer input and the polling mode. Takes
+     * effect on the next {@link #configure}.
+     */
+    public synchronized void setDirectInput(boolean directInput) {
+        mDirectInputRequested = directInput;
+    }
+    /**
+     * Splits recordings into a series of .mp4 files that roll over at a key
+     * frame after {@code maxDurationMs} or {@code maxBytes}, whichever comes
+     * first, without stopping the encoder. The files are named after the
+     * output file with an index appended, next to a .csv manifest of their
+     * time ranges. Pass 0 for both to record a single file again. Takes effect
+     * on the next {@link #configure}.
+     */
+    public synchronized void setSegmentation(long maxDurationMs, long maxBytes) {
+        mSegmentDurationMs = maxDurationMs;
+        mSegmentMaxBytes = maxBytes;
+    }
+    /**
+     * Writes fragmented MP4 with {@link FragmentedMp4Writer} instead of using
+     * MediaMuxer, appending a fragment about every {@code fragmentDurationMs}.
+     * Such a file stays playable up to the last fragment if the app dies
+     * mid-recording. Pass 0 to use MediaMuxer again. Takes effect on the next
+     * {@link #configure}.
+     */
+    public synchronized void setFragmentedMp4(long fragmentDurationMs) {
+        mFragmentDurationMs = fragmentDurationMs;
+    }
+    /**
+     * Writes the encoder output as an Annex-B .h264 elementary stream with
+     * {@link AnnexBFileWriter}, next to a .idx index of the access units that
+     * tools can seek in without scanning the stream. Replaces the .mp4
+     * extension of the output file and takes precedence over
+     * {@link #setFragmentedMp4}. Takes effect on the next {@link #configure}.
+     */
+    public synchronized void setAnnexBOutput(boolean enabled) {
+        mAnnexBOutput = enabled;
+    }
+    /**
+     * Keeps the last {@code durationMs} of encoded video in memory instead of
+     * writing it: {@link #start()} then runs the encoder into a
+     * {@link PreRollBuffer}, and {@link #triggerRecording()} opens the output
+     * file starting with the buffered video from its oldest key frame. Pass 0
+     * to record on start() again. Takes effect on the next {@link #configure}.
+     */
+    public synchronized void setPreRoll(long durationMs) {
+        mPreRollMs = durationMs;
+    }
+    /**
+     * In pre-roll mode, starts writing the output file with the buffered
+     * video before this call, followed by the live video until {@link #stop()}.
+     * The buffer's memory use and flush latency are logged on stop.
+     *
+     * @return false if the stream is not recording in pre-roll mode or was
+     * triggered already.
+     */
+    public synchronized boolean triggerRecording() {
+        if (mPreRollBuffer == null || mPreRollBuffer.isTriggered()
+                || getStreamState() != STREAM_STATE_RECORDING) {
+            return false;
+        }
+        mPreRollBuffer.trigger(createOutputMuxer(mOutputFileName));
+        Log.i(TAG, "pre-roll triggered with " + mPreRollBuffer.getBufferedDurationUs() / 1000
+                + "ms buffered");
+        return true;
+    }
+    /**
+     * Tells the stream that the DataProvider has a new frame. In async mode
+     * this wakes up the encoder thread to fill a free input buffer; the
+     * polling loop does not need it.
+     */
+    public void notifyFrameAvailable() {
+        EncodingSession session = mSession;
+        if (session != null) {
+            session.notifyFrameAvailable();
+        }
     }
     public CameraRecordingStream() {
     }
@@ -87,42 +237,50 @@ public class CameraRecordingStream {
                     "Stream can only be configured when stream is in IDLE state");
         }
         mSavePath = savePath;
-        mUsingInputSurface = usingInputSurface;
-        boolean isConfigChanged =
-                (!mStreamSize.equals(size)) ||
-                        (mUseMediaCodec != useMediaCodec) ||
-                        (mEncBitRate != bitRate);
-        mStreamSize = size;
         mUseMediaCodec = useMediaCodec;
-        mEncBitRate = bitRate;
 //        if (mUseMediaCodec) {
-            if (getStreamState() == STREAM_STATE_CONFIGURED) {
-                /**
-                 * Stream is already configured, need release encoder and muxer
-                 * first, then reconfigure only if configuration is changed.
-                 */
-                if (!isConfigChanged) {
-                    /**
-                     * TODO: this is only the skeleton, it is tricky to
-                     * implement because muxer need reconfigure always. But
-                     * muxer is closely coupled with MediaCodec for now because
-                     * muxer can only be started once format change callback is
-                     * sent from mediacodec. We need decouple MediaCodec and
-                     * Muxer for future.
-                     */
-                }
-                releaseEncoder();
-                releaseMuxer();
-                configureMediaCodecEncoder();
-            } else {
-                configureMediaCodecEncoder();
-            }
+            /**
+             * A muxer can not be reused across recordings, so every configure
+             * gets a new one. The encoder is kept from pre-warm or the last
+             * recording as long as its configuration did not change.
+             */
+            releaseMuxer();
+            prepareEncoder(size, bitRate, usingInputSurface);
+            attachMuxer();
 //        } else {
 //            // TODO: implement MediaRecoder mode.
 //            Log.w(TAG, "MediaRecorder configure is not implemented yet");
 //        }
         setStreamState(STREAM_STATE_CONFIGURED);
     }
+    /**
+     * Creates, configures and starts the encoder ahead of the first
+     * {@link #configure}, which then only has to attach a muxer. Codec
+     * creation and configuration take hundreds of milliseconds, so call this
+     * off the UI thread as soon as the video size is known. Has no effect
+     * while configured or recording, or after {@link #release()}.
+     */
+    public synchronized void prewarm(Size size, int bitRate, boolean usingInputSurface) {
+        if (mReleased || getStreamState() != STREAM_STATE_IDLE) {
+            return;
+        }
+        long start = System.nanoTime();
+        prepareEncoder(size, bitRate, usingInputSurface);
+        Log.i(TAG, "encoder pre-warmed in " + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+    /**
+     * Stops recording if needed and releases the encoder kept between
+     * recordings. The stream can not be used afterwards.
+     */
+    public synchronized void release() {
+        if (getStreamState() == STREAM_STATE_RECORDING) {
+            stop();
+        }
+        mReleased = true;
+        releaseEncoder();
+        releaseMuxer();
+        setStreamState(STREAM_STATE_IDLE);
+    }
     /**
      * Add the stream output surface to the target output surface list.
      *
@@ -196,6 +354,30 @@ public class CameraRecordingStream {
             setStreamState(STREAM_STATE_RECORDING);
         }
     }
+    /**
+     * Converts a camera frame straight into an encoder input buffer and queues
+     * it, bypassing the DataProvider queue and its intermediate copy. Only
+     * available with {@link #setDirectInput} when the encoder takes
+     * ByteBuffer input in sync mode.
+     *
+     * @return false if the stream is not recording or the encoder has no free
+     * input buffer right now; the frame is dropped in that case.
+     */
+    public synchronized boolean queueImageFrame(YuvPlane[] planes, int cropLeft, int cropTop,
+                                                long presentationTimeUs) {
+        if (mInputWriter == null || !mDirectInput || mAsyncEncoding
+                || getStreamState() != STREAM_STATE_RECORDING) {
+            return false;
+        }
+        if (!mInputWriter.writeFrame(planes, cropLeft, cropTop, presentationTimeUs, 0, 0)) {
+            if (VERBOSE) {
+                Log.v(TAG, "No free encoder input buffer, dropping frame " + presentationTimeUs);
+            }
+            return false;
+        }
+        mSession.getPump().setLastPresentationTimeUs(presentationTimeUs);
+        return true;
+    }
     /**
      * <p>
      * Stop recording stream. Calling stop on an already stopped stream has no
@@ -203,11 +385,10 @@ public class CameraRecordingStream {
      * to avoid sending buffers to a stopped encoder.
      * </p>
      * <p>
-     * TODO: We have to release encoder and muxer for MediaCodec mode because
-     * encoder is closely coupled with muxer, and muxser can not be reused
-     * across different recording session(by design, you can not reset/restart
-     * it). To save the subsequent start recording time, we need avoid releasing
-     * encoder for future.
+     * The muxer can not be reused across recordings and is released. The
+     * encoder is flushed and kept configured for the next recording, which
+     * saves creating and configuring it again; it is only released if it did
+     * not reach end of stream or can not be flushed.
      * </p>
      */
     public synchronized void stop() {
@@ -218,16 +399,24 @@ public class CameraRecordingStream {
         setStreamState(STREAM_STATE_IDLE);
         Log.e(TAG, "setting camera to idle");
         if (mUseMediaCodec) {
-            // Wait until recording thread stop
+            // Encode what is still queued, then wait for EOS on the output.
+            boolean reachedEnd = false;
             try {
-                mRecordingThread.join();
+                reachedEnd = mSession.stop(ASYNC_STOP_TIMEOUT_MS);
+                if (!reachedEnd) {
+                    Log.w(TAG, "Encoder did not reach end of stream in " + ASYNC_STOP_TIMEOUT_MS + "ms");
+                }
+                if (mSession.isAbandoned()) {
+                    Log.w(TAG, "Encoder callback thread is stuck, releasing the encoder");
+                }
             } catch (InterruptedException e) {
                 throw new RuntimeException("Stop recording failed", e);
+            } finally {
+                releaseMuxer();
+                if (!reachedEnd || !flushEncoder()) {
+                    releaseEncoder();
+                }
             }
-            // Drain encoder
-            doMediaCodecEncoding(/* notifyEndOfStream */true);
-            releaseEncoder();
-            releaseMuxer();
         } else {
             releaseEncoder();
             releaseMuxer();
@@ -239,26 +428,10 @@ public class CameraRecordingStream {
      */
     private void startMediaCodecRecording() {
         /**
-         * Start video recording asynchronously. we need a loop to handle output
-         * data for each frame.
+         * Start video recording asynchronously, either on the codec callbacks
+         * or on a recording thread that polls the encoder.
          */
-        mRecordingThread = new Thread() {
-            @Override
-            public void run() {
-                if (VERBOSE) {
-                    Log.v(TAG, "Recording thread starts");
-                }
-                while (getStreamState() == STREAM_STATE_RECORDING) {
-                    // Feed encoder output into the muxer until recording stops.
-                    doMediaCodecEncoding(/* notifyEndOfStream */false);
-                }
-                if (VERBOSE) {
-                    Log.v(TAG, "Recording thread completes");
-                }
-                return;
-            }
-        };
-        mRecordingThread.start();
+        mSession.start();
     }
     // Thread-safe access to the stream state.
     private synchronized void setStreamState(int state) {
@@ -271,22 +444,45 @@ public class CameraRecordingStream {
     }
     // Thread-safe access to the stream state.
     private int getStreamState() {
-        synchronized(mStateLock) {
-            return mStreamState;
+        return mStreamState;
+    }
+    /**
+     * Flushes the encoder after end of stream so that the next recording can
+     * reuse it.
+     *
+     * @return false if the encoder could not be flushed.
+     */
+    private boolean flushEncoder() {
+        try {
+            mSession.reset();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            // Some encoders, mostly with surface input, do not resume after EOS.
+            Log.w(TAG, "Encoder can not be flushed, releasing it", e);
         }
+        return false;
     }
     private void releaseEncoder() {
         // Release encoder
         if (VERBOSE) {
             Log.v(TAG, "releasing encoder");
         }
-        if (mEncoder != null) {
-            mEncoder.stop();
-            mEncoder.release();
+        if (mVideoEncoder != null) {
+            mVideoEncoder.stop();
+            mVideoEncoder.release();
             if (mRecordingSurface != null) {
                 mRecordingSurface.release();
             }
             mEncoder = null;
+            mVideoEncoder = null;
+            mInputWriter = null;
+            mSession = null;
+        }
+        if (mEncoderThread != null) {
+            mEncoderThread.quitSafely();
+            mEncoderThread = null;
         }
     }
     private void releaseMuxer() {
@@ -294,7 +490,12 @@ public class CameraRecordingStream {
             Log.v(TAG, "releasing muxer");
         }
         if (mMuxer != null) {
-            mMuxer.stop();
+            Log.i(TAG, "muxer stats: " + mMuxer);
+            if (mPreRollBuffer != null) {
+                Log.i(TAG, "pre-roll stats: " + mPreRollBuffer);
+                mPreRollBuffer = null;
+            }
+            // The session already stopped the muxer if it was ever started.
             mMuxer.release();
             mMuxer = null;
         }
@@ -324,12 +525,108 @@ public class CameraRecordingStream {
     }
     private boolean mUsingInputSurface = false;
     /**
-     * Configures encoder and muxer state, and prepares the input Surface.
-     * Initializes mEncoder, mMuxer, mRecordingSurface, mBufferInfo,
-     * mTrackIndex, and mMuxerStarted.
+     * Makes sure a started encoder with the given configuration exists,
+     * keeping the current one if it matches.
+     */
+    private void prepareEncoder(Size size, int bitRate, boolean usingInputSurface) {
+        boolean asyncEncoding = mAsyncEncodingRequested
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        boolean isConfigChanged =
+                (!mStreamSize.equals(size)) ||
+                        (mEncBitRate != bitRate) ||
+                        (mUsingInputSurface != usingInputSurface) ||
+                        (mAsyncEncoding != asyncEncoding) ||
+                        (mDirectInput != mDirectInputRequested);
+        if (mVideoEncoder != null && !isConfigChanged) {
+            if (VERBOSE) {
+                Log.v(TAG, "reusing warm encoder");
+            }
+            return;
+        }
+        releaseEncoder();
+        mStreamSize = size;
+        mEncBitRate = bitRate;
+        mUsingInputSurface = usingInputSurface;
+        mDirectInput = mDirectInputRequested;
+        configureMediaCodecEncoder();
+    }
+    /**
+     * Creates the muxer for the next recording and hands it to the session.
+     */
+    private void attachMuxer() {
+        if (mSession == null) {
+            // configureMediaCodecEncoder() found no codec.
+            return;
+        }
+        String outputFileName = mSavePath;
+        if(outputFileName == null) {
+            outputFileName = getOutputMediaFileName();
+        }
+        if (outputFileName == null) {
+            throw new IllegalStateException("Failed to get video output file");
+        }
+        mOutputFileName = outputFileName;
+        /**
+         * Create the muxer. The video track is added and the muxer started
+         * once the encoder reports its format, or right away on start() if a
+         * reused encoder reported it during an earlier recording. In pre-roll
+         * mode the output muxer is created on trigger.
+         */
+        SampleMuxer fileMuxer;
+        if (mPreRollMs > 0) {
+            long maxBytes = mEncBitRate / 8L * PRE_ROLL_BIT_RATE_FACTOR
+                    * (mPreRollMs + PRE_ROLL_SLACK_MS) / 1000;
+            int maxSamples = (int) (FRAME_RATE * (mPreRollMs + PRE_ROLL_SLACK_MS) / 1000);
+            mPreRollBuffer = new PreRollBuffer(mPreRollMs * 1000,
+                    (int) Math.min(maxBytes, Integer.MAX_VALUE), maxSamples);
+            fileMuxer = mPreRollBuffer;
+        } else {
+            fileMuxer = createOutputMuxer(outputFileName);
+        }
+        // Samples are written on a muxer thread, off the encoder's drain loop.
+        mMuxer = new AsyncSampleMuxer(fileMuxer, MUXER_QUEUE_CAPACITY, MUXER_QUEUE_MAX_BYTES);
+        mSession.setMuxer(mMuxer);
+    }
+    /**
+     * Creates the muxer for {@code outputFileName}, a series of segments if
+     * segmentation is on.
+     */
+    private SampleMuxer createOutputMuxer(String outputFileName) {
+        String extension = mAnnexBOutput ? ANNEX_B_EXTENSION : MP4_EXTENSION;
+        String prefix = outputFileName.endsWith(MP4_EXTENSION)
+                ? outputFileName.substring(0, outputFileName.length() - MP4_EXTENSION.length())
+                : outputFileName;
+        if (mSegmentDurationMs > 0 || mSegmentMaxBytes > 0) {
+            return new SegmentingMuxer(new SegmentingMuxer.SegmentFactory() {
+                @Override
+                public SampleMuxer createSegment(String path) throws IOException {
+                    return createFileMuxer(path);
+                }
+            }, prefix, extension, mSegmentDurationMs * 1000, mSegmentMaxBytes,
+                    SEGMENT_SYNC_FRAME_LEAD_US, mVideoEncoder);
+        }
+        try {
+            return createFileMuxer(mAnnexBOutput ? prefix + extension : outputFileName);
+        } catch (IOException ioe) {
+            throw new IllegalStateException("Muxer creation failed", ioe);
+        }
+    }
+    private SampleMuxer createFileMuxer(String path) throws IOException {
+        if (mAnnexBOutput) {
+            return new AnnexBFileWriter(path);
+        }
+        if (mFragmentDurationMs > 0) {
+            return new FragmentedMp4Writer(path, mFragmentDurationMs * 1000);
+        }
+        return new MediaMuxerSampleMuxer(path);
+    }
+    /**
+     * Configures and starts the encoder, and prepares the input Surface.
+     * Initializes mEncoder, mVideoEncoder, mRecordingSurface and mSession;
+     * the muxer is attached per recording by attachMuxer().
      */
     private void configureMediaCodecEncoder() {
-        mBufferInfo = new MediaCodec.BufferInfo();
+        int colorFormat = 0;
         MediaFormat format =
                 MediaFormat.createVideoFormat(MIME_TYPE,
                         mStreamSize.getWidth(), mStreamSize.getHeight());
@@ -348,7 +645,7 @@ public class CameraRecordingStream {
                 return;
             }
             Log.d(TAG, "found codec: " + codecInfo.getName());
-            int colorFormat = selectColorFormat(codecInfo, MIME_TYPE);
+            colorFormat = selectColorFormat(codecInfo, MIME_TYPE);
              Log.d(TAG, "found colorFormat: " + colorFormat);
             format.setInteger(MediaFormat.KEY_COLOR_FORMAT, colorFormat);
         }
@@ -362,139 +659,84 @@ public class CameraRecordingStream {
         } catch (IOException ioe) {
             throw new IllegalStateException("MediaCodec creation failed", ioe);
         }
-        mMuxerStarted = false;
+        // MediaCodec.setCallback(Callback, Handler) is API 23; older devices poll.
+        mAsyncEncoding = mAsyncEncodingRequested && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M;
+        Executor callbackExecutor = null;
+        Handler callbackHandler = null;
+        if (mAsyncEncoding) {
+            mEncoderThread = new HandlerThread("EncoderCallback");
+            mEncoderThread.start();
+            callbackHandler = new Handler(mEncoderThread.getLooper());
+            callbackExecutor = new HandlerExecutor(callbackHandler);
+        }
+        mVideoEncoder = new MediaCodecVideoEncoder(mEncoder, callbackHandler);
+        // Created before configure(), which fixes the codec in sync or async mode.
+        // With direct input the pump holds no input buffer; it only queues end
+        // of stream through the input writer.
+        mSession = new EncodingSession(mVideoEncoder, null, !mUsingInputSurface && !mDirectInput,
+                QUEUED_FRAME_COLOR_FORMAT, TIMEOUT_USEC, callbackExecutor);
+        mSession.setFrameSource(mDataProvider);
+        Log.i(TAG, "encoder mode: " + (mAsyncEncoding ? "async" : "sync"));
         mEncoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         if(mUsingInputSurface)
             mRecordingSurface = mEncoder.createInputSurface();
-        mEncoder.start();
-
-        String outputFileName = mSavePath;
-        if(outputFileName == null) {
-            outputFileName = getOutputMediaFileName();
+        mVideoEncoder.start();
+        if (!mUsingInputSurface) {
+            EncoderInputLayout layout = getInputLayout(mEncoder.getInputFormat(), colorFormat);
+            Log.i(TAG, "encoder input layout: " + layout);
+            mInputWriter = new DirectInputWriter(mVideoEncoder, layout);
+            // Input buffers announced before this are kept by the pump.
+            mSession.setInputWriter(mInputWriter);
         }
-        if (outputFileName == null) {
-            throw new IllegalStateException("Failed to get video output file");
+    }
+
+    /**
+     * Builds the input layout from the encoder's input format, falling back to
+     * tightly packed rows when stride or slice height are not reported.
+     */
+    private EncoderInputLayout getInputLayout(MediaFormat inputFormat, int codecColorFormat) {
+        int width = mStreamSize.getWidth();
+        int height = mStreamSize.getHeight();
+        int stride = width;
+        int sliceHeight = height;
+        if (inputFormat != null) {
+            if (inputFormat.containsKey(KEY_STRIDE)) {
+                stride = inputFormat.getInteger(KEY_STRIDE);
+            }
+            if (inputFormat.containsKey(KEY_SLICE_HEIGHT)) {
+                sliceHeight = inputFormat.getInteger(KEY_SLICE_HEIGHT);
+            }
         }
-        /**
-         * Create a MediaMuxer. We can't add the video track and start() the
-         * muxer until the encoder starts and notifies the new media format.
-         */
-        try {
-            mMuxer = new MediaMuxer(
-                    outputFileName, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
-        } catch (IOException ioe) {
-            throw new IllegalStateException("MediaMuxer creation failed", ioe);
+        int yuvColorFormat;
+        switch (codecColorFormat) {
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420Planar:
+            case MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420PackedPlanar:
+                yuvColorFormat = YuvConverter.COLOR_FormatI420;
+                break;
+            default:
+                yuvColorFormat = YuvConverter.COLOR_FormatNV12;
+                break;
         }
-        mMuxerStarted = false;
+        return new EncoderInputLayout(yuvColorFormat, width, height, stride, sliceHeight);
     }
+
     /**
-     * Do encoding by using MediaCodec encoder, then extracts all pending data
-     * from the encoder and forwards it to the muxer.
-     * <p>
-     * If notifyEndOfStream is not set, this returns when there is no more data
-     * to output. If it is set, we send EOS to the encoder, and then iterate
-     * until we see EOS on the output. Calling this with notifyEndOfStream set
-     * should be done once, before stopping the muxer.
-     * </p>
-     * <p>
-     * We're just using the muxer to get a .mp4 file and audio is not included
-     * here.
-     * </p>
+     * Runs the session's callback work on the encoder's handler thread.
      */
-    private void doMediaCodecEncoding(boolean notifyEndOfStream) {
-        boolean notDone = true;
-        if (mUsingInputSurface && notifyEndOfStream) {
-            mEncoder.signalEndOfInputStream();
-        }
-        while (notDone) {
-            if(!mUsingInputSurface) {
-                if (mDataProvider == null)
-                    return;
-                Camera2VideoFragment.ImageDataInfo info = mDataProvider.getImageData();
-                if(info != null){
-                    int inputBufIndex = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
-                    Log.d(TAG, "set image to input buffer index " + inputBufIndex);
-                    if (inputBufIndex >= 0) {
-                        ByteBuffer inputBuffer = mEncoder.getInputBuffer(inputBufIndex);
-                        inputBuffer.clear();
-                        Log.d(TAG,"Buffer size:"+inputBuffer.capacity()+", image size:"+info.mImageData.length);//    CXD Buffer size:1200128, image size:1572862
-                        inputBuffer.put(info.mImageData);
-//                        FileUtils.saveRawData(info.mImageData, "/sdcard/ArcAR_Dump/dumpImageNV_" + info.mPresentationTimeUs+"_1024x768.nv21");
-                        mEncoder.queueInputBuffer(inputBufIndex, 0, info.mImageData.length, info.mPresentationTimeUs, notifyEndOfStream ? MediaCodec.BUFFER_FLAG_END_OF_STREAM : 0);
-                        lastPresentationTimeUs =  info.mPresentationTimeUs;
-                        mDataProvider.recycleImageData(info);
-                    }
-                }else if(notifyEndOfStream){
-                    int inputBufIndex = mEncoder.dequeueInputBuffer(TIMEOUT_USEC);
-                    Log.d(TAG, "notifyEndOfStream buffer index " + inputBufIndex);
-                    if(inputBufIndex >=0) {
-                        mEncoder.queueInputBuffer(inputBufIndex, 0, 0, lastPresentationTimeUs + 33000, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
-                    }
-                }
+    private static class HandlerExecutor implements Executor {
+        private final Handler mHandler;
 
-            }
+        HandlerExecutor(Handler handler) {
+            mHandler = handler;
+        }
 
-            int encoderStatus = mEncoder.dequeueOutputBuffer(mBufferInfo, TIMEOUT_USEC);
-            Log.d(TAG, "output buffer index:"+encoderStatus);
-            if (encoderStatus == MediaCodec.INFO_TRY_AGAIN_LATER) {
-                if (!notifyEndOfStream) {
-                    notDone = false;
-                } else {
-                        Log.i(TAG, "no output available, spinning to await EOS");
-                }
+        @Override
+        public void execute(Runnable command) {
+            if (!mHandler.post(command)) {
+                throw new RejectedExecutionException("Encoder thread has quit");
             }
-//            else if (encoderStatus == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
-//                // generic case for mediacodec, not likely occurs for encoder.
-//                encoderOutputBuffers = mEncoder.getOutputBuffers();
-//            }
-            else if (encoderStatus == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                /**
-                 * should happen before receiving buffers, and should only
-                 * happen once
-                 */
-                if (mMuxerStarted) {
-                    throw new IllegalStateException("format changed twice");
-                }
-                MediaFormat newFormat = mEncoder.getOutputFormat();
-                mTrackIndex = mMuxer.addTrack(newFormat);
-                Log.i(TAG, "doMediaCodecEncoding  mMuxer.addTrack "+newFormat);
-                mMuxer.start();
-                mMuxerStarted = true;
-            } else if (encoderStatus < 0) {
-                Log.w(TAG, "unexpected result from encoder.dequeueOutputBuffer: " + encoderStatus);
-            } else {
-                // Normal flow: get output encoded buffer, send to muxer.
-                ByteBuffer encodedData = mEncoder.getOutputBuffer(encoderStatus);//encoderOutputBuffers[encoderStatus];
-                if (encodedData == null) {
-                    throw new RuntimeException("encoderOutputBuffer " + encoderStatus + " was null");
-                }
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
-                    mBufferInfo.size = 0;
-                }
-                if (mBufferInfo.size != 0) {
-                    if (!mMuxerStarted) {
-                        throw new RuntimeException("muxer hasn't started");
-                    }
-                    encodedData.position(mBufferInfo.offset);
-                    encodedData.limit(mBufferInfo.offset + mBufferInfo.size);
-                    mMuxer.writeSampleData(mTrackIndex, encodedData, mBufferInfo);
-                    Log.i(TAG, "Buffer info timestamp:"+mBufferInfo.presentationTimeUs);
-                }
-                mEncoder.releaseOutputBuffer(encoderStatus, false);
-                if ((mBufferInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
-                    if (!notifyEndOfStream) {
-                        Log.w(TAG, "reached end of stream unexpectedly");
-                    } else {
-                            Log.v(TAG, "end of stream reached");
-                    }
-                    // Finish encoding.
-                    notDone = false;
-                    Log.d(TAG,"output BUFFER_FLAG_END_OF_STREAM");
-                }
-            }
-        } // End of while(notDone)
+        }
     }
-    private long lastPresentationTimeUs;
 
     private static MediaCodecInfo selectCodec(String mimeType) {
         int numCodecs = MediaCodecList.getCodecCount();
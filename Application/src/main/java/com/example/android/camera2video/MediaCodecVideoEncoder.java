@@ -0,0 +1,178 @@
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Bundle;
+import android.os.Handler;
+import android.util.Log;
+
+import com.example.android.codec.EncodedSampleInfo;
+import com.example.android.codec.EncoderCallback;
+import com.example.android.codec.VideoEncoder;
+import com.example.android.codec.VideoFormat;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Exposes a MediaCodec encoder as a {@link VideoEncoder}. The codec is
+ * configured by the owner; callback mode delivers events on the handler given
+ * to the constructor.
+ */
+class MediaCodecVideoEncoder implements VideoEncoder {
+    private static final String TAG = "MediaCodecVideoEncoder";
+    private static final String KEY_CSD_0 = "csd-0";
+    private static final String KEY_CSD_1 = "csd-1";
+
+    private final MediaCodec mCodec;
+    private final Handler mCallbackHandler;
+    private final MediaCodec.BufferInfo mCodecInfo = new MediaCodec.BufferInfo();
+    // Reused for callbacks, which all arrive on one handler thread.
+    private final EncodedSampleInfo mCallbackInfo = new EncodedSampleInfo();
+
+    MediaCodecVideoEncoder(MediaCodec codec, Handler callbackHandler) {
+        mCodec = codec;
+        mCallbackHandler = callbackHandler;
+    }
+
+    MediaCodec getCodec() {
+        return mCodec;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return mCodec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return mCodec.getInputBuffer(index);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                 int flags) {
+        mCodec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(EncodedSampleInfo info, long timeoutUs) {
+        int index = mCodec.dequeueOutputBuffer(mCodecInfo, timeoutUs);
+        if (index >= 0) {
+            info.set(mCodecInfo.offset, mCodecInfo.size, mCodecInfo.presentationTimeUs,
+                    mCodecInfo.flags);
+        }
+        return index;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mCodec.getOutputBuffer(index);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mCodec.releaseOutputBuffer(index, false);
+    }
+
+    @Override
+    public VideoFormat getOutputFormat() {
+        return toVideoFormat(mCodec.getOutputFormat());
+    }
+
+    @Override
+    public void start() {
+        mCodec.start();
+    }
+
+    @Override
+    public void stop() {
+        mCodec.stop();
+    }
+
+    @Override
+    public void release() {
+        mCodec.release();
+    }
+
+    /**
+     * Flushes the codec. In callback mode MediaCodec stays paused after a
+     * flush until it is started again, which happens here as well.
+     */
+    @Override
+    public void flush() {
+        mCodec.flush();
+        if (mCallbackHandler != null) {
+            mCodec.start();
+        }
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        Bundle params = new Bundle();
+        params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+        mCodec.setParameters(params);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        mCodec.signalEndOfInputStream();
+    }
+
+    /**
+     * Switches the codec to async mode with callbacks on the handler given to
+     * the constructor. API 23 and later.
+     */
+    @Override
+    public void setCallback(final EncoderCallback callback) {
+        mCodec.setCallback(new MediaCodec.Callback() {
+            @Override
+            public void onInputBufferAvailable(MediaCodec codec, int index) {
+                callback.onInputBufferAvailable(index);
+            }
+
+            @Override
+            public void onOutputBufferAvailable(MediaCodec codec, int index,
+                                                MediaCodec.BufferInfo info) {
+                mCallbackInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+                callback.onOutputBufferAvailable(index, mCallbackInfo);
+            }
+
+            @Override
+            public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+                Log.e(TAG, "encoder error", e);
+                callback.onError(e);
+            }
+
+            @Override
+            public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+                callback.onOutputFormatChanged();
+            }
+        }, mCallbackHandler);
+    }
+
+    static VideoFormat toVideoFormat(MediaFormat format) {
+        VideoFormat videoFormat = new VideoFormat(format.getString(MediaFormat.KEY_MIME),
+                format.getInteger(MediaFormat.KEY_WIDTH), format.getInteger(MediaFormat.KEY_HEIGHT));
+        if (format.containsKey(KEY_CSD_0)) {
+            videoFormat.setCodecSpecificData(0, format.getByteBuffer(KEY_CSD_0));
+        }
+        if (format.containsKey(KEY_CSD_1)) {
+            videoFormat.setCodecSpecificData(1, format.getByteBuffer(KEY_CSD_1));
+        }
+        return videoFormat;
+    }
+
+    static MediaFormat toMediaFormat(VideoFormat videoFormat) {
+        MediaFormat format = MediaFormat.createVideoFormat(videoFormat.getMime(),
+                videoFormat.getWidth(), videoFormat.getHeight());
+        ByteBuffer csd0 = videoFormat.getCodecSpecificData(0);
+        if (csd0 != null) {
+            format.setByteBuffer(KEY_CSD_0, csd0);
+        }
+        ByteBuffer csd1 = videoFormat.getCodecSpecificData(1);
+        if (csd1 != null) {
+            format.setByteBuffer(KEY_CSD_1, csd1);
+        }
+        return format;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.android.camera2video;
+
+import android.media.MediaCodec;
+import android.media.MediaMuxer;
+
+import com.example.android.codec.EncodedSampleInfo;
+import com.example.android.codec.SampleMuxer;
+import com.example.android.codec.VideoFormat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Exposes a MediaMuxer writing an .mp4 file as a {@link SampleMuxer}.
+ */
+class MediaMuxerSampleMuxer implements SampleMuxer {
+    private final MediaMuxer mMuxer;
+    private final MediaCodec.BufferInfo mBufferInfo = new MediaCodec.BufferInfo();
+
+    MediaMuxerSampleMuxer(String path) throws IOException {
+        mMuxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+    }
+
+    @Override
+    public int addTrack(VideoFormat format) {
+        return mMuxer.addTrack(MediaCodecVideoEncoder.toMediaFormat(format));
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        mBufferInfo.set(info.offset, info.size, info.presentationTimeUs, info.flags);
+        mMuxer.writeSampleData(trackIndex, data, mBufferInfo);
+    }
+
+    @Override
+    public void stop() {
+        mMuxer.stop();
+    }
+
+    @Override
+    public void release() {
+        mMuxer.release();
+    }
+}
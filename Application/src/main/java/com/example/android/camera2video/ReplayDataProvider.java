@@ -0,0 +1,39 @@
+package com.example.android.camera2video;
+
+import android.util.Log;
+
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.replay.ReplayFrameSource;
+
+import java.io.IOException;
+
+/**
+ * Feeds a {@link CameraRecordingStream} from a recorded session folder
+ * instead of the camera, see {@link ReplayFrameSource}. Set it with
+ * {@link CameraRecordingStream#setDataProvider}, start the recording, then
+ * {@link #start()} the replay; it wakes the stream for every frame.
+ */
+public class ReplayDataProvider extends ReplayFrameSource
+        implements CameraRecordingStream.DataProvider {
+    private static final String TAG = "ReplayDataProvider";
+
+    public ReplayDataProvider(String folder, FrameBufferPool pool, int prefetchFrames,
+                              final CameraRecordingStream stream) throws IOException {
+        super(folder, pool, prefetchFrames);
+        setListener(new Listener() {
+            @Override
+            public void onFrameAvailable() {
+                stream.notifyFrameAvailable();
+            }
+
+            @Override
+            public void onReplayFinished() {
+                IOException error = getError();
+                if (error != null) {
+                    Log.e(TAG, "Replay failed", error);
+                }
+                Log.i(TAG, "Replay finished: " + ReplayDataProvider.this);
+            }
+        });
+    }
+}
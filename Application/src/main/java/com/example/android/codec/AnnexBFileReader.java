@@ -0,0 +1,169 @@
+package com.example.android.codec;
+
+import java.io.Closeable;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Random access to an Annex-B stream written by {@link AnnexBFileWriter},
+ * through its index. The index is loaded into memory on open; lookups by
+ * time are binary searches, no scan of the stream is needed.
+ */
+public class AnnexBFileReader implements Closeable {
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final long mStreamLength;
+    private final long[] mPresentationTimesUs;
+    private final long[] mOffsets;
+    private final int[] mFlags;
+    private final int[] mSizes;
+    // Indices of the key frames, in stream order.
+    private final int[] mKeyFrames;
+
+    public AnnexBFileReader(String path) throws IOException {
+        FileInputStream indexStream = new FileInputStream(path + AnnexBFileWriter.INDEX_EXTENSION);
+        try {
+            FileChannel index = indexStream.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate((int) index.size()).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining() && index.read(buffer) >= 0) {
+                // Read the whole index.
+            }
+            buffer.flip();
+            if (buffer.remaining() < AnnexBFileWriter.INDEX_HEADER_SIZE
+                    || buffer.getInt() != AnnexBFileWriter.INDEX_MAGIC) {
+                throw new IOException("Not an access unit index: " + path);
+            }
+            int version = buffer.getInt();
+            int recordSize = buffer.getInt();
+            buffer.getInt();
+            if (version != AnnexBFileWriter.INDEX_VERSION
+                    || recordSize < AnnexBFileWriter.INDEX_RECORD_SIZE_WITHOUT_SIZE) {
+                throw new IOException("Unsupported index version " + version);
+            }
+            // A record cut off by a crash is ignored.
+            int count = buffer.remaining() / recordSize;
+            mPresentationTimesUs = new long[count];
+            mOffsets = new long[count];
+            mFlags = new int[count];
+            mSizes = new int[count];
+            int[] keyFrames = new int[count];
+            int keyFrameCount = 0;
+            for (int i = 0; i < count; i++) {
+                int record = buffer.position();
+                mPresentationTimesUs[i] = buffer.getLong();
+                mOffsets[i] = buffer.getLong();
+                mFlags[i] = buffer.getInt();
+                // Older files leave the size to the offset of the next unit.
+                mSizes[i] = recordSize >= AnnexBFileWriter.INDEX_RECORD_SIZE ? buffer.getInt() : -1;
+                buffer.position(record + recordSize);
+                if ((mFlags[i] & EncodedSampleInfo.FLAG_KEY_FRAME) != 0) {
+                    keyFrames[keyFrameCount++] = i;
+                }
+            }
+            mKeyFrames = Arrays.copyOf(keyFrames, keyFrameCount);
+        } finally {
+            indexStream.close();
+        }
+        mStream = new FileInputStream(path);
+        mChannel = mStream.getChannel();
+        mStreamLength = mChannel.size();
+    }
+
+    /**
+     * Number of access units in the index.
+     */
+    public int size() {
+        return mOffsets.length;
+    }
+
+    public int getKeyFrameCount() {
+        return mKeyFrames.length;
+    }
+
+    public long getPresentationTimeUs(int index) {
+        return mPresentationTimesUs[index];
+    }
+
+    public long getOffset(int index) {
+        return mOffsets[index];
+    }
+
+    /**
+     * Size of an access unit in the stream, including the parameter sets in
+     * front of a key frame.
+     */
+    public int getSize(int index) {
+        if (mSizes[index] >= 0) {
+            return mSizes[index];
+        }
+        long end = index + 1 < mOffsets.length ? mOffsets[index + 1] : mStreamLength;
+        return (int) (end - mOffsets[index]);
+    }
+
+    public boolean isKeyFrame(int index) {
+        return (mFlags[index] & EncodedSampleInfo.FLAG_KEY_FRAME) != 0;
+    }
+
+    /**
+     * Returns the last access unit at or before {@code presentationTimeUs},
+     * or -1 if all are later.
+     */
+    public int findAccessUnit(long presentationTimeUs) {
+        int found = Arrays.binarySearch(mPresentationTimesUs, presentationTimeUs);
+        return found >= 0 ? found : -found - 2;
+    }
+
+    /**
+     * Returns the last key frame at or before {@code presentationTimeUs},
+     * where decoding has to start to show that time, or -1 if there is none.
+     */
+    public int findKeyFrame(long presentationTimeUs) {
+        int low = 0;
+        int high = mKeyFrames.length - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (mPresentationTimesUs[mKeyFrames[mid]] <= presentationTimeUs) {
+                found = mKeyFrames[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads access unit {@code index} into {@code dst}, which needs room for
+     * {@link #getSize(int)} bytes.
+     */
+    public void readAccessUnit(int index, ByteBuffer dst) throws IOException {
+        int size = getSize(index);
+        if (dst.remaining() < size) {
+            throw new IllegalArgumentException("Buffer too small for " + size + " bytes");
+        }
+        int limit = dst.limit();
+        dst.limit(dst.position() + size);
+        long position = mOffsets[index];
+        try {
+            while (dst.hasRemaining()) {
+                int read = mChannel.read(dst, position);
+                if (read < 0) {
+                    throw new IOException("Stream ends inside access unit " + index);
+                }
+                position += read;
+            }
+        } finally {
+            dst.limit(limit);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+}
@@ -0,0 +1,206 @@
+package com.example.android.codec;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A {@link SampleMuxer} writing the encoder output as a raw Annex-B H.264
+ * elementary stream, plus a binary index of its access units for random
+ * access without scanning the stream.
+ * <p>
+ * The SPS and PPS from the track format are written in front of every key
+ * frame, so decoding can start at any key frame offset of the index. Stream
+ * and index are written through large buffers. Both are written out in front
+ * of every key frame, stream first, so that after a crash the index on disk
+ * covers every whole group of pictures before the last key frame and only
+ * points at stream bytes that were written.
+ * </p>
+ * <p>
+ * The index file {@code <path>.idx} is a 16 byte header followed by one
+ * record per access unit, all little-endian; see {@link AnnexBFileReader}:
+ * </p>
+ * <pre>
+ * header: magic "AUIX", int32 version, int32 record size, int32 reserved
+ * record: int64 presentationTimeUs, int64 stream offset, int32 flags, int32 size
+ * </pre>
+ * <p>
+ * The size was added after the first files were written; readers take it
+ * from the record size in the header.
+ * </p>
+ */
+public class AnnexBFileWriter implements SampleMuxer {
+    public static final String INDEX_EXTENSION = ".idx";
+    static final int INDEX_MAGIC = 0x58495541; // "AUIX" read little-endian
+    static final int INDEX_VERSION = 1;
+    static final int INDEX_HEADER_SIZE = 16;
+    static final int INDEX_RECORD_SIZE = 24;
+    // Records of files written before the size was indexed.
+    static final int INDEX_RECORD_SIZE_WITHOUT_SIZE = 20;
+    private static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    private static final int INDEX_BUFFER_SIZE = 64 * 1024;
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final FileOutputStream mIndexStream;
+    private final FileChannel mIndexChannel;
+    private final ByteBuffer mBuffer;
+    private final ByteBuffer mIndexBuffer =
+            ByteBuffer.allocateDirect(INDEX_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mParameterSets;
+    private boolean mStarted;
+    private long mOffset;
+    private long mAccessUnits;
+
+    public AnnexBFileWriter(String path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Bytes collected before the stream is written out.
+     */
+    public AnnexBFileWriter(String path, int bufferSize) throws IOException {
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+        mIndexStream = new FileOutputStream(path + INDEX_EXTENSION);
+        mIndexChannel = mIndexStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    public long getBytesWritten() {
+        return mOffset;
+    }
+
+    public long getAccessUnitCount() {
+        return mAccessUnits;
+    }
+
+    /**
+     * Takes the SPS and PPS from the format's codec specific data. Only one
+     * track is supported.
+     */
+    @Override
+    public int addTrack(VideoFormat format) {
+        if (mParameterSets != null) {
+            throw new IllegalStateException("Only one track is supported");
+        }
+        ByteBuffer csd0 = format.getCodecSpecificData(0);
+        ByteBuffer csd1 = format.getCodecSpecificData(1);
+        int size = (csd0 != null ? csd0.remaining() : 0) + (csd1 != null ? csd1.remaining() : 0);
+        mParameterSets = ByteBuffer.allocateDirect(size);
+        if (csd0 != null) {
+            mParameterSets.put(csd0);
+        }
+        if (csd1 != null) {
+            mParameterSets.put(csd1);
+        }
+        mParameterSets.flip();
+        return 0;
+    }
+
+    @Override
+    public void start() {
+        mIndexBuffer.putInt(INDEX_MAGIC).putInt(INDEX_VERSION).putInt(INDEX_RECORD_SIZE).putInt(0);
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("Writer is not started");
+        }
+        if (info.isCodecConfig()) {
+            // Parameter sets are repeated from the format in front of key frames.
+            return;
+        }
+        if (info.isKeyFrame() && mAccessUnits > 0) {
+            // The previous group of pictures is complete, keep it on disk.
+            flush();
+        }
+        long offset = mOffset;
+        if (info.isKeyFrame() && mParameterSets != null) {
+            put(mParameterSets.duplicate());
+        }
+        if (!startsWithStartCode(data)) {
+            put(ByteBuffer.wrap(START_CODE));
+        }
+        put(data.duplicate());
+        if (mIndexBuffer.remaining() < INDEX_RECORD_SIZE) {
+            // A long group of pictures, its records cannot wait for the next key frame.
+            flush();
+        }
+        mIndexBuffer.putLong(info.presentationTimeUs).putLong(offset).putInt(info.flags)
+                .putInt((int) (mOffset - offset));
+        mAccessUnits++;
+    }
+
+    /**
+     * Writes out what is still buffered.
+     */
+    @Override
+    public void stop() {
+        flush();
+    }
+
+    @Override
+    public void release() {
+        try {
+            mStream.close();
+            mIndexStream.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Closing Annex-B stream failed", e);
+        }
+    }
+
+    /**
+     * Writes the buffered stream and then the buffered index records, which
+     * only refer to stream bytes written before them.
+     */
+    private void flush() {
+        mBuffer.flip();
+        write(mChannel, mBuffer);
+        mBuffer.clear();
+        mIndexBuffer.flip();
+        write(mIndexChannel, mIndexBuffer);
+        mIndexBuffer.clear();
+    }
+
+    private void put(ByteBuffer data) {
+        int size = data.remaining();
+        if (mBuffer.remaining() < size) {
+            mBuffer.flip();
+            write(mChannel, mBuffer);
+            mBuffer.clear();
+            if (mBuffer.remaining() < size) {
+                // Larger than the whole buffer, write it straight through.
+                write(mChannel, data);
+                mOffset += size;
+                return;
+            }
+        }
+        mBuffer.put(data);
+        mOffset += size;
+    }
+
+    private static boolean startsWithStartCode(ByteBuffer data) {
+        int p = data.position();
+        if (data.remaining() >= 3 && data.get(p) == 0 && data.get(p + 1) == 0) {
+            return data.get(p + 2) == 1
+                    || (data.remaining() >= 4 && data.get(p + 2) == 0 && data.get(p + 3) == 1);
+        }
+        return false;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing Annex-B stream failed", e);
+        }
+    }
+}
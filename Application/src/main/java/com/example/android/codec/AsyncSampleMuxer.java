@@ -0,0 +1,283 @@
+package com.example.android.codec;
+
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link SampleMuxer} decorator that writes samples on its own muxer
+ * thread, so a storage stall does not block the encoder's output loop.
+ * <p>
+ * {@link #writeSampleData} copies the sample into a pooled buffer and hands it
+ * to the muxer thread through a bounded queue. Encoded samples cannot be
+ * dropped without corrupting the stream, so when the queue or the pool's
+ * memory cap is full the caller waits: the stall then backs up into the
+ * encoder and from there into the frame queue, whose backpressure policy
+ * decides which camera frames to drop. A queue large enough to cover the
+ * longest expected stall keeps that from happening. A sample larger than the
+ * memory cap waits until the queue is empty and is then copied into a buffer
+ * of its own, outside the pool.
+ * </p>
+ * <p>
+ * {@link #addTrack} and {@link #start()} are passed through on the calling
+ * thread before the muxer thread starts; {@link #stop()} writes everything
+ * still queued before it stops the wrapped muxer. Errors of the wrapped muxer
+ * are rethrown on the next call from the producer, also one that is waiting
+ * for room, and so is the muxer thread ending unexpectedly.
+ * </p>
+ */
+public class AsyncSampleMuxer implements SampleMuxer {
+    // How long a producer waits for a pool buffer before checking again.
+    private static final long POOL_WAIT_MS = 5;
+
+    private final SampleMuxer mMuxer;
+    private final int mCapacity;
+    private final FrameBufferPool mPool;
+    private final ArrayBlockingQueue<PendingSample> mPending;
+    private final ArrayBlockingQueue<PendingSample> mFree;
+    private final PendingSample mStopMarker = new PendingSample();
+    private final Object mPoolLock = new Object();
+    private Thread mThread;
+    private volatile RuntimeException mError;
+
+    private final AtomicLong mSamplesWritten = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mProducerWaitNanos = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    private static class PendingSample {
+        final EncodedSampleInfo mInfo = new EncodedSampleInfo();
+        int mTrackIndex;
+        FrameBuffer mData;
+        // Copy of a sample too large for the pool, used instead of mData.
+        ByteBuffer mOversizedData;
+    }
+
+    /**
+     * @param muxer The muxer to write to on the muxer thread.
+     * @param queueCapacity Maximum number of samples waiting to be written.
+     * @param maxQueuedBytes Upper bound for memory held by queued samples.
+     */
+    public AsyncSampleMuxer(SampleMuxer muxer, int queueCapacity, long maxQueuedBytes) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid queue capacity " + queueCapacity);
+        }
+        mMuxer = muxer;
+        mCapacity = queueCapacity;
+        // Direct buffers, MediaMuxer reads them without another copy.
+        mPool = new FrameBufferPool(true, maxQueuedBytes);
+        mPending = new ArrayBlockingQueue<>(queueCapacity + 1);
+        mFree = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            mFree.add(new PendingSample());
+        }
+    }
+
+    @Override
+    public int addTrack(VideoFormat format) {
+        return mMuxer.addTrack(format);
+    }
+
+    @Override
+    public void start() {
+        mMuxer.start();
+        mThread = new Thread("SampleMuxer") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mThread.start();
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        checkError();
+        long waitStart = System.nanoTime();
+        boolean waited = false;
+        PendingSample sample = null;
+        try {
+            sample = mFree.poll();
+            while (sample == null) {
+                waited = true;
+                sample = mFree.poll(POOL_WAIT_MS, TimeUnit.MILLISECONDS);
+                checkError();
+            }
+            int size = data.remaining();
+            FrameBuffer buffer = mPool.acquire(Math.max(1, size));
+            ByteBuffer copy = null;
+            while (buffer == null) {
+                if (mPool.getBytesOutstanding() == 0) {
+                    // Even an empty pool can not hold it: let it through alone.
+                    copy = ByteBuffer.allocateDirect(size);
+                    break;
+                }
+                waited = true;
+                checkError();
+                synchronized (mPoolLock) {
+                    mPoolLock.wait(POOL_WAIT_MS);
+                }
+                buffer = mPool.acquire(Math.max(1, size));
+            }
+            if (buffer != null) {
+                copy = buffer.buffer();
+            }
+            copy.clear();
+            copy.put(data.duplicate());
+            copy.flip();
+            sample.mData = buffer;
+            sample.mOversizedData = buffer == null ? copy : null;
+            sample.mTrackIndex = trackIndex;
+            // The copy starts at 0, whatever the offset in the encoder buffer was.
+            sample.mInfo.set(0, size, info.presentationTimeUs, info.flags);
+            // Never blocks, the queue has room for every sample and the stop marker.
+            mPending.put(sample);
+            sample = null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while queueing a sample", e);
+        } finally {
+            if (sample != null) {
+                mFree.add(sample);
+            }
+        }
+        if (waited) {
+            mProducerWaitNanos.addAndGet(System.nanoTime() - waitStart);
+        }
+        int depth = mPending.size();
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+    }
+
+    /**
+     * Writes all queued samples, stops the muxer thread and then the wrapped
+     * muxer.
+     */
+    @Override
+    public void stop() {
+        stopThread();
+        checkError();
+        mMuxer.stop();
+    }
+
+    /**
+     * Releases the wrapped muxer, after the muxer thread wrote what was
+     * queued if the muxer was never stopped.
+     */
+    @Override
+    public void release() {
+        try {
+            stopThread();
+        } finally {
+            mMuxer.release();
+            mPool.trim();
+        }
+    }
+
+    /**
+     * Number of samples waiting to be written.
+     */
+    public int getQueueDepth() {
+        return mPending.size();
+    }
+
+    /**
+     * Largest queue depth seen so far.
+     */
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Total time producers waited for room in the queue or the pool.
+     */
+    public long getProducerWaitNanos() {
+        return mProducerWaitNanos.get();
+    }
+
+    public long getSamplesWritten() {
+        return mSamplesWritten.get();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    @Override
+    public String toString() {
+        return "AsyncSampleMuxer{samples=" + getSamplesWritten()
+                + ", bytes=" + getBytesWritten()
+                + ", depth=" + getQueueDepth()
+                + ", highWater=" + getHighWaterMark() + "/" + mCapacity
+                + ", producerWaitMs=" + TimeUnit.NANOSECONDS.toMillis(getProducerWaitNanos())
+                + "}";
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                PendingSample sample = mPending.take();
+                if (sample == mStopMarker) {
+                    return;
+                }
+                try {
+                    if (mError == null) {
+                        ByteBuffer data = sample.mData != null
+                                ? sample.mData.buffer() : sample.mOversizedData;
+                        mMuxer.writeSampleData(sample.mTrackIndex, data, sample.mInfo);
+                        mSamplesWritten.incrementAndGet();
+                        mBytesWritten.addAndGet(sample.mInfo.size);
+                    }
+                } catch (RuntimeException e) {
+                    // Keep draining so producers do not block forever.
+                    mError = e;
+                } finally {
+                    if (sample.mData != null) {
+                        sample.mData.release();
+                        sample.mData = null;
+                    }
+                    sample.mOversizedData = null;
+                    mFree.add(sample);
+                    synchronized (mPoolLock) {
+                        mPoolLock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            mError = new IllegalStateException("Muxer thread interrupted", e);
+        } catch (Error e) {
+            mError = new IllegalStateException("Muxer thread failed", e);
+            throw e;
+        }
+    }
+
+    private void stopThread() {
+        if (mThread == null) {
+            return;
+        }
+        try {
+            mPending.put(mStopMarker);
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while stopping the muxer", e);
+        }
+        mThread = null;
+    }
+
+    private void checkError() {
+        RuntimeException error = mError;
+        if (error != null) {
+            throw error;
+        }
+        Thread thread = mThread;
+        if (thread != null && !thread.isAlive()) {
+            throw new IllegalStateException("Muxer thread is not running");
+        }
+    }
+}
@@ -0,0 +1,159 @@
+package com.example.android.codec;
+
+import com.example.android.yuv.YuvConverter;
+import com.example.android.yuv.YuvPlane;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes camera frames straight into encoder input buffers, converting the
+ * YUV_420_888 planes into the layout the encoder asked for. No intermediate
+ * frame copy is made.
+ * <p>
+ * Frames that are already packed (for example queued copies of earlier
+ * frames) are written with {@link #writePackedFrame}, which re-lays the rows
+ * out with the encoder's stride and slice height instead of copying the array
+ * as-is into a buffer it may not fit.
+ * </p>
+ * <p>
+ * Not thread-safe: use it from one producer thread.
+ * </p>
+ */
+public class DirectInputWriter {
+    private final EncoderInput mInput;
+    private final EncoderInputLayout mLayout;
+    private final YuvConverter mConverter = new YuvConverter();
+    private final YuvPlane[] mPackedPlanes = {new YuvPlane(), new YuvPlane(), new YuvPlane()};
+    private ByteBuffer mPackedData;
+    private int mPackedFormat;
+    private long mFramesWritten;
+    private long mFramesDropped;
+
+    public DirectInputWriter(EncoderInput input, EncoderInputLayout layout) {
+        mInput = input;
+        mLayout = layout;
+    }
+
+    public EncoderInputLayout getLayout() {
+        return mLayout;
+    }
+
+    /**
+     * Converts the crop area of an image into the next free input buffer and
+     * queues it.
+     *
+     * @return false if the encoder had no free input buffer within
+     * {@code timeoutUs}; the frame is then dropped.
+     */
+    public boolean writeFrame(YuvPlane[] planes, int cropLeft, int cropTop,
+                              long presentationTimeUs, long timeoutUs, int flags) {
+        int index = mInput.dequeueInputBuffer(timeoutUs);
+        if (index < 0) {
+            mFramesDropped++;
+            return false;
+        }
+        writeFrame(index, planes, cropLeft, cropTop, presentationTimeUs, flags);
+        return true;
+    }
+
+    /**
+     * Converts a frame into an input buffer the caller already owns, for example
+     * one the codec handed out through an availability callback, and queues it.
+     */
+    public void writeFrame(int index, YuvPlane[] planes, int cropLeft, int cropTop,
+                           long presentationTimeUs, int flags) {
+        ByteBuffer buffer = mInput.getInputBuffer(index);
+        int extent = mConverter.convert(planes, cropLeft, cropTop, mLayout.getWidth(),
+                mLayout.getHeight(), mLayout.getColorFormat(), buffer, mLayout.getStride(),
+                mLayout.getSliceHeight());
+        // Encoders size frames by stride * sliceHeight * 3 / 2, even if the last
+        // chroma row does not need all of it.
+        int size = Math.max(extent, Math.min(mLayout.getFrameSize(), buffer.capacity()));
+        mInput.queueInputBuffer(index, 0, size, presentationTimeUs, flags);
+        mFramesWritten++;
+    }
+
+    /**
+     * Writes a packed frame of the layout's size into an input buffer the caller
+     * owns and queues it.
+     *
+     * @param data Frame data starting at index 0. Its position and limit are
+     * neither read nor changed, so the buffer may be shared with other readers.
+     * @param colorFormat Packing of {@code data}, one of the {@link YuvConverter}
+     * color formats.
+     */
+    public void writePackedFrame(int index, ByteBuffer data, int colorFormat,
+                                 long presentationTimeUs, int flags) {
+        describePackedFrame(data, colorFormat);
+        writeFrame(index, mPackedPlanes, 0, 0, presentationTimeUs, flags);
+    }
+
+    /**
+     * Queues an empty buffer flagged as end of stream into the next free input
+     * buffer. Buffer input has no {@code signalEndOfInputStream()}, that only
+     * works for an input surface.
+     *
+     * @return false if the encoder had no free input buffer within
+     * {@code timeoutUs}; try again while draining its output.
+     */
+    public boolean tryWriteEndOfStream(long presentationTimeUs, long timeoutUs) {
+        int index = mInput.dequeueInputBuffer(timeoutUs);
+        if (index < 0) {
+            return false;
+        }
+        writeEndOfStream(index, presentationTimeUs);
+        return true;
+    }
+
+    /**
+     * Queues an empty end-of-stream buffer into an input buffer the caller owns.
+     */
+    public void writeEndOfStream(int index, long presentationTimeUs) {
+        mInput.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                EncodedSampleInfo.FLAG_END_OF_STREAM);
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten;
+    }
+
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    // Describes a packed frame as planes; the wrappers are kept while the same array comes back.
+    private void describePackedFrame(ByteBuffer data, int colorFormat) {
+        if (data == mPackedData && colorFormat == mPackedFormat) {
+            return;
+        }
+        int width = mLayout.getWidth();
+        int height = mLayout.getHeight();
+        int lumaSize = width * height;
+        int chromaWidth = width >> 1;
+        // Slice a private view; pooled frames share their cursors with other holders.
+        ByteBuffer frame = data.duplicate();
+        mPackedPlanes[0].set(slice(frame, 0, lumaSize), width, 1);
+        if (colorFormat == YuvConverter.COLOR_FormatI420) {
+            int chromaSize = chromaWidth * (height >> 1);
+            mPackedPlanes[1].set(slice(frame, lumaSize, chromaSize), Math.max(chromaWidth, 1), 1);
+            mPackedPlanes[2].set(slice(frame, lumaSize + (lumaSize >> 2), chromaSize),
+                    Math.max(chromaWidth, 1), 1);
+        } else {
+            int chromaSize = YuvConverter.getFrameSize(width, height) - lumaSize;
+            int uOffset = colorFormat == YuvConverter.COLOR_FormatNV12 ? lumaSize : lumaSize + 1;
+            int vOffset = colorFormat == YuvConverter.COLOR_FormatNV12 ? lumaSize + 1 : lumaSize;
+            int chromaStride = Math.max(chromaWidth * 2, 1);
+            mPackedPlanes[1].set(slice(frame, uOffset, chromaSize - 1), chromaStride, 2);
+            mPackedPlanes[2].set(slice(frame, vOffset, chromaSize - 1), chromaStride, 2);
+        }
+        mPackedData = data;
+        mPackedFormat = colorFormat;
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        buffer.clear();
+        buffer.position(offset);
+        buffer.limit(offset + length);
+        return buffer.slice();
+    }
+}
@@ -0,0 +1,36 @@
+package com.example.android.codec;
+
+/**
+ * Metadata of one encoded sample, mirroring {@code MediaCodec.BufferInfo}
+ * without depending on the Android framework. The flag values match the
+ * {@code MediaCodec.BUFFER_FLAG_*} constants so they can be copied as-is.
+ */
+public class EncodedSampleInfo {
+    public static final int FLAG_KEY_FRAME = 1;
+    public static final int FLAG_CODEC_CONFIG = 2;
+    public static final int FLAG_END_OF_STREAM = 4;
+
+    public int offset;
+    public int size;
+    public long presentationTimeUs;
+    public int flags;
+
+    public void set(int newOffset, int newSize, long newPresentationTimeUs, int newFlags) {
+        offset = newOffset;
+        size = newSize;
+        presentationTimeUs = newPresentationTimeUs;
+        flags = newFlags;
+    }
+
+    public boolean isKeyFrame() {
+        return (flags & FLAG_KEY_FRAME) != 0;
+    }
+
+    public boolean isCodecConfig() {
+        return (flags & FLAG_CODEC_CONFIG) != 0;
+    }
+
+    public boolean isEndOfStream() {
+        return (flags & FLAG_END_OF_STREAM) != 0;
+    }
+}
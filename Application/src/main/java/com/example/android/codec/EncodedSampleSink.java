@@ -0,0 +1,20 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the output of an {@link EncodingPump}, typically a muxer.
+ */
+public interface EncodedSampleSink {
+    /**
+     * The encoder reported its output format; called once before the first
+     * sample.
+     */
+    void onOutputFormatChanged();
+
+    /**
+     * Writes one encoded sample. {@code data} is positioned on the sample and
+     * only valid during the call.
+     */
+    void writeSample(ByteBuffer data, EncodedSampleInfo info);
+}
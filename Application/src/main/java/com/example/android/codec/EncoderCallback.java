@@ -0,0 +1,19 @@
+package com.example.android.codec;
+
+/**
+ * Events of a {@link VideoEncoder} in callback mode, mirroring
+ * {@code MediaCodec.Callback}. All events of one encoder are delivered on the
+ * same thread.
+ */
+public interface EncoderCallback {
+    void onInputBufferAvailable(int index);
+
+    /**
+     * @param info Only valid during the call; copy it to keep it.
+     */
+    void onOutputBufferAvailable(int index, EncodedSampleInfo info);
+
+    void onOutputFormatChanged();
+
+    void onError(RuntimeException error);
+}
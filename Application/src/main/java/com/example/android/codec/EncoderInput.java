@@ -0,0 +1,20 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The input side of a ByteBuffer-mode video encoder, shaped after the matching
+ * {@link android.media.MediaCodec} calls so that the real codec can be adapted
+ * with one-line delegates and a fake can stand in for it on the JVM.
+ */
+public interface EncoderInput {
+    /**
+     * Returns the index of an input buffer that can be filled, or a negative
+     * value if none became available within {@code timeoutUs}.
+     */
+    int dequeueInputBuffer(long timeoutUs);
+
+    ByteBuffer getInputBuffer(int index);
+
+    void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+}
@@ -0,0 +1,66 @@
+package com.example.android.codec;
+
+import com.example.android.yuv.YuvConverter;
+
+/**
+ * How an encoder expects raw frames to be laid out in its input buffers: pixel
+ * format, the visible size, and the row stride and slice height it reports in
+ * its input format (KEY_STRIDE / KEY_SLICE_HEIGHT). Encoders that do not report
+ * them use tightly packed rows.
+ */
+public class EncoderInputLayout {
+    private final int mColorFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mStride;
+    private final int mSliceHeight;
+
+    /**
+     * @param colorFormat One of the {@link YuvConverter} color formats.
+     * @param stride Reported row stride; values smaller than the width are ignored.
+     * @param sliceHeight Reported slice height; values smaller than the height are ignored.
+     */
+    public EncoderInputLayout(int colorFormat, int width, int height, int stride, int sliceHeight) {
+        if (!YuvConverter.isSupportedColorFormat(colorFormat)) {
+            throw new IllegalArgumentException("Unsupported color format " + colorFormat);
+        }
+        mColorFormat = colorFormat;
+        mWidth = width;
+        mHeight = height;
+        mStride = Math.max(stride, width);
+        mSliceHeight = Math.max(sliceHeight, height);
+    }
+
+    public int getColorFormat() {
+        return mColorFormat;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    public int getStride() {
+        return mStride;
+    }
+
+    public int getSliceHeight() {
+        return mSliceHeight;
+    }
+
+    /**
+     * Returns the number of bytes one frame occupies in an input buffer.
+     */
+    public int getFrameSize() {
+        return YuvConverter.getFrameSize(mStride, mSliceHeight, mColorFormat);
+    }
+
+    @Override
+    public String toString() {
+        return "EncoderInputLayout{format=" + mColorFormat + ", size=" + mWidth + "x" + mHeight
+                + ", stride=" + mStride + ", sliceHeight=" + mSliceHeight + "}";
+    }
+}
@@ -0,0 +1,347 @@
+package com.example.android.codec;
+
+import com.example.android.buffer.ImageDataInfo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Moves queued frames from a {@link FrameSource} into a {@link VideoEncoder}
+ * and its encoded output into an {@link EncodedSampleSink}, either by polling
+ * the encoder or by reacting to its callbacks.
+ * <p>
+ * In sync mode a recording thread calls {@link #drain(boolean)} in a loop.
+ * In callback mode the pump is registered as the encoder's
+ * {@link EncoderCallback}: input buffers are remembered as they are
+ * announced and filled by {@link #feed()} as soon as frames are queued, and
+ * output is written when the encoder hands it over. Both modes share the code
+ * that fills input buffers and forwards output.
+ * </p>
+ * <p>
+ * In callback mode every method except {@link #awaitEndOfStream(long)} and
+ * the setters must be called on the encoder's callback thread.
+ * </p>
+ */
+public class EncodingPump implements EncoderCallback {
+    // Frame interval used for the timestamp of an empty end-of-stream buffer.
+    private static final long END_OF_STREAM_PTS_STEP_US = 33000;
+
+    private final VideoEncoder mEncoder;
+    private final EncodedSampleSink mSink;
+    private final boolean mBufferInput;
+    private final int mPackedColorFormat;
+    private final long mTimeoutUs;
+    private final EncodedSampleInfo mSyncInfo = new EncodedSampleInfo();
+    private final Object mEndOfStreamLock = new Object();
+    // Sync mode: an input buffer dequeued while no frame was queued.
+    private int mHeldInputIndex = -1;
+
+    private volatile FrameSource mSource;
+    private volatile DirectInputWriter mInputWriter;
+    private volatile long mLastPresentationTimeUs;
+
+    // Callback mode: indices of input buffers the encoder announced, in order.
+    private int[] mFreeInputs = new int[16];
+    private int mFreeHead;
+    private int mFreeCount;
+    private boolean mEndOfStreamRequested;
+    private boolean mEndOfStreamQueued;
+
+    // Guarded by mEndOfStreamLock.
+    private boolean mOutputDone;
+    private RuntimeException mError;
+
+    private long mFramesQueued;
+    private long mSamplesWritten;
+
+    /**
+     * @param bufferInput Whether the pump fills input buffers with frames from
+     *        the source, as opposed to an input surface it does not see or
+     *        frames written around it with the input writer. End of stream
+     *        goes through the input writer if there is one, and is signalled
+     *        on the input surface otherwise.
+     * @param packedColorFormat YuvConverter color format of the frames the
+     *        source hands out.
+     * @param timeoutUs Timeout of the dequeue calls in sync mode.
+     */
+    public EncodingPump(VideoEncoder encoder, EncodedSampleSink sink, boolean bufferInput,
+                        int packedColorFormat, long timeoutUs) {
+        mEncoder = encoder;
+        mSink = sink;
+        mBufferInput = bufferInput;
+        mPackedColorFormat = packedColorFormat;
+        mTimeoutUs = timeoutUs;
+    }
+
+    public void setFrameSource(FrameSource source) {
+        mSource = source;
+    }
+
+    /**
+     * Sets the writer for input buffers, which can only be built once the
+     * encoder reported its input layout. Announced buffers are kept until then.
+     * Leave it unset for an input surface.
+     */
+    public void setInputWriter(DirectInputWriter writer) {
+        mInputWriter = writer;
+    }
+
+    public long getLastPresentationTimeUs() {
+        return mLastPresentationTimeUs;
+    }
+
+    /**
+     * Records the timestamp of a frame that was queued around the pump, so that
+     * the end-of-stream buffer still gets a later timestamp.
+     */
+    public void setLastPresentationTimeUs(long presentationTimeUs) {
+        mLastPresentationTimeUs = presentationTimeUs;
+    }
+
+    public long getFramesQueued() {
+        return mFramesQueued;
+    }
+
+    public long getSamplesWritten() {
+        return mSamplesWritten;
+    }
+
+    /**
+     * Forgets the state of the last stream so the pump can drive the encoder
+     * again after it was flushed. Call it together with
+     * {@link VideoEncoder#flush()}, on the callback thread in callback mode.
+     */
+    public void reset() {
+        mHeldInputIndex = -1;
+        mFreeHead = 0;
+        mFreeCount = 0;
+        mEndOfStreamRequested = false;
+        mEndOfStreamQueued = false;
+        mFramesQueued = 0;
+        mSamplesWritten = 0;
+        synchronized (mEndOfStreamLock) {
+            mOutputDone = false;
+            mError = null;
+        }
+    }
+
+    /**
+     * Sync mode: queues at most one frame and forwards all pending output.
+     * <p>
+     * If endOfStream is not set, this returns when there is no more output. If
+     * it is set, the remaining queued frames are encoded, end of stream is
+     * signalled and this iterates until the encoder reports it on the output.
+     * </p>
+     */
+    public void drain(boolean endOfStream) {
+        while (true) {
+            if (endOfStream && !mBufferInput && !mEndOfStreamQueued) {
+                // Through the input writer this is retried until the encoder
+                // frees an input buffer.
+                signalEndOfInput();
+            }
+            if (mBufferInput && !mEndOfStreamQueued) {
+                FrameSource source = mSource;
+                if (source == null) {
+                    return;
+                }
+                // Hold an input buffer before taking a frame, so frames stay in
+                // the source queue, under its backpressure policy, while the
+                // encoder is busy.
+                if (mHeldInputIndex < 0) {
+                    mHeldInputIndex = mEncoder.dequeueInputBuffer(mTimeoutUs);
+                }
+                if (mHeldInputIndex >= 0) {
+                    // Park on the frame queue instead of polling it; while
+                    // draining at end of stream only take what is already there.
+                    ImageDataInfo info = source.getImageData(endOfStream ? 0 : mTimeoutUs);
+                    if (info != null) {
+                        queueFrame(mHeldInputIndex, info);
+                        mHeldInputIndex = -1;
+                    } else if (endOfStream) {
+                        queueEndOfStream(mHeldInputIndex);
+                        mHeldInputIndex = -1;
+                    }
+                }
+            }
+            int status = mEncoder.dequeueOutputBuffer(mSyncInfo, mTimeoutUs);
+            if (status == VideoEncoder.INFO_TRY_AGAIN_LATER) {
+                if (!endOfStream) {
+                    return;
+                }
+                // Otherwise keep spinning until end of stream comes out.
+            } else if (status == VideoEncoder.INFO_OUTPUT_FORMAT_CHANGED) {
+                mSink.onOutputFormatChanged();
+            } else if (status >= 0) {
+                if (handleOutputBuffer(status, mSyncInfo)) {
+                    return;
+                }
+            }
+            // INFO_OUTPUT_BUFFERS_CHANGED needs no action with getOutputBuffer().
+        }
+    }
+
+    /**
+     * Callback mode: fills announced input buffers with queued frames until
+     * either runs out. Call it whenever a frame was queued.
+     */
+    public void feed() {
+        FrameSource source = mSource;
+        DirectInputWriter writer = mInputWriter;
+        if (writer == null || (mBufferInput && source == null)) {
+            return;
+        }
+        while (mFreeCount > 0 && !mEndOfStreamQueued) {
+            // Without buffer input the free buffers are only for end of stream.
+            ImageDataInfo info = mBufferInput ? source.getImageData(0) : null;
+            if (info != null) {
+                queueFrame(takeFreeInput(), info);
+            } else if (mEndOfStreamRequested) {
+                queueEndOfStream(takeFreeInput());
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Callback mode: encodes the frames still queued and then signals end of
+     * stream. Use {@link #awaitEndOfStream(long)} to wait for the last output.
+     */
+    public void requestEndOfStream() {
+        mEndOfStreamRequested = true;
+        if (!mBufferInput && mInputWriter == null) {
+            if (!mEndOfStreamQueued) {
+                mEncoder.signalEndOfInputStream();
+                mEndOfStreamQueued = true;
+            }
+        } else {
+            feed();
+        }
+    }
+
+    /**
+     * Callback mode: blocks until the encoder output reached end of stream or
+     * failed.
+     *
+     * @return false if that did not happen within {@code timeoutMs}.
+     * @throws RuntimeException The error the encoder reported, if any.
+     */
+    public boolean awaitEndOfStream(long timeoutMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (mEndOfStreamLock) {
+            while (!mOutputDone) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0) {
+                    return false;
+                }
+                mEndOfStreamLock.wait(remaining);
+            }
+            if (mError != null) {
+                throw mError;
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public void onInputBufferAvailable(int index) {
+        if (mFreeCount == mFreeInputs.length) {
+            int[] grown = new int[mFreeInputs.length * 2];
+            for (int i = 0; i < mFreeCount; i++) {
+                grown[i] = mFreeInputs[(mFreeHead + i) % mFreeInputs.length];
+            }
+            mFreeInputs = grown;
+            mFreeHead = 0;
+        }
+        mFreeInputs[(mFreeHead + mFreeCount) % mFreeInputs.length] = index;
+        mFreeCount++;
+        feed();
+    }
+
+    @Override
+    public void onOutputBufferAvailable(int index, EncodedSampleInfo info) {
+        handleOutputBuffer(index, info);
+    }
+
+    @Override
+    public void onOutputFormatChanged() {
+        mSink.onOutputFormatChanged();
+    }
+
+    @Override
+    public void onError(RuntimeException error) {
+        synchronized (mEndOfStreamLock) {
+            mError = error;
+            mOutputDone = true;
+            mEndOfStreamLock.notifyAll();
+        }
+    }
+
+    private int takeFreeInput() {
+        int index = mFreeInputs[mFreeHead];
+        mFreeHead = (mFreeHead + 1) % mFreeInputs.length;
+        mFreeCount--;
+        return index;
+    }
+
+    private void queueFrame(int index, ImageDataInfo info) {
+        // Re-lay the packed frame out with the encoder's stride and slice
+        // height, a plain put() does not fit when the encoder pads rows.
+        mInputWriter.writePackedFrame(index, info.mFrame.buffer(), mPackedColorFormat,
+                info.mPresentationTimeUs, 0);
+        mLastPresentationTimeUs = info.mPresentationTimeUs;
+        mFramesQueued++;
+        mSource.recycleImageData(info);
+    }
+
+    private void queueEndOfStream(int index) {
+        mInputWriter.writeEndOfStream(index, mLastPresentationTimeUs + END_OF_STREAM_PTS_STEP_US);
+        mEndOfStreamQueued = true;
+    }
+
+    /**
+     * Sync mode without buffer input: queues end of stream through the input
+     * writer if there is one, and signals it on the input surface otherwise.
+     */
+    private void signalEndOfInput() {
+        DirectInputWriter writer = mInputWriter;
+        if (writer == null) {
+            mEncoder.signalEndOfInputStream();
+            mEndOfStreamQueued = true;
+        } else if (writer.tryWriteEndOfStream(
+                mLastPresentationTimeUs + END_OF_STREAM_PTS_STEP_US, mTimeoutUs)) {
+            mEndOfStreamQueued = true;
+        }
+    }
+
+    /**
+     * Forwards one output buffer to the sink and gives it back to the encoder.
+     *
+     * @return true if it carried the end of stream.
+     */
+    private boolean handleOutputBuffer(int index, EncodedSampleInfo info) {
+        ByteBuffer data = mEncoder.getOutputBuffer(index);
+        if (data == null) {
+            throw new IllegalStateException("encoder output buffer " + index + " was null");
+        }
+        // Codec config (SPS/PPS) reaches the sink through the output format.
+        if (info.isCodecConfig()) {
+            info.size = 0;
+        }
+        if (info.size != 0) {
+            data.position(info.offset);
+            data.limit(info.offset + info.size);
+            mSink.writeSample(data, info);
+            mSamplesWritten++;
+        }
+        mEncoder.releaseOutputBuffer(index);
+        if (info.isEndOfStream()) {
+            synchronized (mEndOfStreamLock) {
+                mOutputDone = true;
+                mEndOfStreamLock.notifyAll();
+            }
+            return true;
+        }
+        return false;
+    }
+}
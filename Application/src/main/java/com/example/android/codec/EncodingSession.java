@@ -0,0 +1,320 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recordings from a {@link FrameSource}, encoded by a {@link VideoEncoder}
+ * and muxed by a {@link SampleMuxer}.
+ * <p>
+ * Without a callback executor the session polls the encoder on its own
+ * recording thread. With one, the encoder runs in callback mode and the
+ * executor must be the thread the encoder delivers its callbacks on (a
+ * Handler on Android), because the {@link EncodingPump} is not thread-safe.
+ * </p>
+ * <p>
+ * The session neither configures, starts nor releases the encoder and
+ * muxer; it only drives them. Create it before the encoder is configured,
+ * since callback mode has to be selected first.
+ * </p>
+ * <p>
+ * After {@link #stop(long)}, {@link #reset()} flushes the encoder so the same
+ * configured encoder can record again into a muxer given to
+ * {@link #setMuxer(SampleMuxer)}. The encoder does not report its output
+ * format after a flush, so the session keeps the one from the first recording
+ * and starts later muxers with it right away.
+ * </p>
+ */
+public class EncodingSession {
+    private final VideoEncoder mEncoder;
+    private SampleMuxer mMuxer;
+    private final Executor mCallbackExecutor;
+    private final EncodingPump mPump;
+    private final Runnable mFeedRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPump.feed();
+        }
+    };
+    private final Runnable mEndOfStreamRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mPump.requestEndOfStream();
+        }
+    };
+    private final Runnable mAbandonOutputRunnable = new Runnable() {
+        @Override
+        public void run() {
+            mOutputAbandoned = true;
+        }
+    };
+    private final Runnable mResetRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // Input buffers announced by the flush are queued behind this, so
+            // the pump is empty when they arrive.
+            mPump.reset();
+            mEncoder.flush();
+            mOutputAbandoned = false;
+        }
+    };
+    private Thread mRecordingThread;
+    private volatile boolean mRunning;
+    private int mTrackIndex = -1;
+    private volatile boolean mMuxerStarted;
+    // Output format of the encoder, kept across flushes.
+    private volatile VideoFormat mOutputFormat;
+    // Set after a stop timed out; output is then dropped until reset().
+    private volatile boolean mOutputAbandoned;
+    // Set when the callback thread was still busy after a stop timed out;
+    // output is then dropped for good and the encoder can not be reused.
+    private volatile boolean mAbandoned;
+
+    /**
+     * @param bufferInput Whether frames are queued into input buffers rather
+     *        than rendered into an input surface.
+     * @param packedColorFormat YuvConverter color format of the source frames.
+     * @param timeoutUs Dequeue timeout used in sync mode.
+     * @param callbackExecutor Runs code on the encoder's callback thread, or
+     *        null to poll the encoder.
+     */
+    public EncodingSession(VideoEncoder encoder, SampleMuxer muxer, boolean bufferInput,
+                           int packedColorFormat, long timeoutUs, Executor callbackExecutor) {
+        mEncoder = encoder;
+        mMuxer = muxer;
+        mCallbackExecutor = callbackExecutor;
+        mPump = new EncodingPump(encoder, new MuxingSink(), bufferInput, packedColorFormat,
+                timeoutUs);
+        if (callbackExecutor != null) {
+            encoder.setCallback(mPump);
+        }
+    }
+
+    public EncodingPump getPump() {
+        return mPump;
+    }
+
+    public boolean isCallbackMode() {
+        return mCallbackExecutor != null;
+    }
+
+    public void setFrameSource(FrameSource source) {
+        mPump.setFrameSource(source);
+    }
+
+    public void setInputWriter(DirectInputWriter writer) {
+        mPump.setInputWriter(writer);
+    }
+
+    /**
+     * Replaces the muxer for the next recording. Only allowed while stopped.
+     */
+    public void setMuxer(SampleMuxer muxer) {
+        if (mRunning || mMuxerStarted) {
+            throw new IllegalStateException("session is recording");
+        }
+        mMuxer = muxer;
+        mTrackIndex = -1;
+    }
+
+    /**
+     * Returns the output format the encoder reported, or null before the
+     * first recording produced output.
+     */
+    public VideoFormat getOutputFormat() {
+        return mOutputFormat;
+    }
+
+    /**
+     * Starts encoding queued frames. The encoder must have been started.
+     */
+    public void start() {
+        if (mOutputFormat != null) {
+            // A flushed encoder: no format change is coming, and the first
+            // frame of the new file has to be a sync frame.
+            startMuxer();
+            mEncoder.requestSyncFrame();
+        }
+        mRunning = true;
+        if (mCallbackExecutor != null) {
+            // Codec callbacks drive the encoding, pick up what is already queued.
+            mCallbackExecutor.execute(mFeedRunnable);
+            return;
+        }
+        mRecordingThread = new Thread("EncodingSession") {
+            @Override
+            public void run() {
+                while (mRunning) {
+                    // Feed encoder output into the muxer until recording stops.
+                    mPump.drain(false);
+                }
+            }
+        };
+        mRecordingThread.start();
+    }
+
+    /**
+     * Tells the session that the source has a new frame. Only needed in
+     * callback mode, the polling thread waits on the source itself.
+     */
+    public void notifyFrameAvailable() {
+        if (mCallbackExecutor != null && mRunning) {
+            mCallbackExecutor.execute(mFeedRunnable);
+        }
+    }
+
+    /**
+     * Encodes the frames still queued, signals end of stream, waits for the
+     * last output and stops the muxer if it was started.
+     * <p>
+     * If end of stream does not come in time in callback mode, output still
+     * in flight is dropped: the session waits until the callback thread no
+     * longer writes to the muxer before it stops the muxer. Call
+     * {@link #reset()} or release the encoder afterwards.
+     * </p>
+     * <p>
+     * That wait is bounded by {@code timeoutMs} as well, since the callback
+     * thread may be the one that is stuck, for example in a muxer waiting for
+     * room. The muxer is then stopped while that write is still in progress,
+     * the session is {@link #isAbandoned() abandoned} and the encoder has to
+     * be released.
+     * </p>
+     *
+     * @return false if end of stream did not come out within
+     *         {@code timeoutMs} in callback mode.
+     */
+    public boolean stop(long timeoutMs) throws InterruptedException {
+        mRunning = false;
+        boolean reachedEnd = true;
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(mEndOfStreamRunnable);
+            reachedEnd = mPump.awaitEndOfStream(timeoutMs);
+            if (!reachedEnd) {
+                // Output from now on is dropped. Once this ran, no callback
+                // writes to the muxer any more.
+                mOutputAbandoned = true;
+                if (!runOnCallbackThread(mAbandonOutputRunnable, timeoutMs)) {
+                    mAbandoned = true;
+                }
+            }
+        } else {
+            if (mRecordingThread != null) {
+                mRecordingThread.join();
+                mRecordingThread = null;
+            }
+            mPump.drain(true);
+        }
+        if (mMuxerStarted) {
+            mMuxer.stop();
+            mMuxerStarted = false;
+        }
+        return reachedEnd;
+    }
+
+    public boolean isMuxerStarted() {
+        return mMuxerStarted;
+    }
+
+    /**
+     * Returns whether a stop gave up on the callback thread. The encoder must
+     * then be released instead of {@link #reset()}.
+     */
+    public boolean isAbandoned() {
+        return mAbandoned;
+    }
+
+    /**
+     * Flushes the encoder after {@link #stop(long)} so that it can record
+     * again without being configured again. Blocks until that happened on the
+     * callback thread in callback mode.
+     *
+     * @throws RuntimeException What the encoder threw if it cannot be flushed;
+     *         it then has to be released.
+     * @throws IllegalStateException If the session {@link #isAbandoned() was
+     *         abandoned}.
+     */
+    public void reset() throws InterruptedException {
+        if (mRunning) {
+            throw new IllegalStateException("session is recording");
+        }
+        if (mAbandoned) {
+            throw new IllegalStateException("session was abandoned, release the encoder");
+        }
+        if (mCallbackExecutor == null) {
+            mResetRunnable.run();
+        } else {
+            runOnCallbackThread(mResetRunnable, Long.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Runs {@code task} on the callback thread and waits up to
+     * {@code timeoutMs} for it, rethrowing what it threw.
+     *
+     * @return false if the task did not finish in time.
+     */
+    private boolean runOnCallbackThread(final Runnable task, long timeoutMs)
+            throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final RuntimeException[] error = new RuntimeException[1];
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    error[0] = e;
+                } finally {
+                    done.countDown();
+                }
+            }
+        });
+        if (!done.await(timeoutMs, TimeUnit.MILLISECONDS)) {
+            return false;
+        }
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return true;
+    }
+
+    private void startMuxer() {
+        mTrackIndex = mMuxer.addTrack(mOutputFormat);
+        mMuxer.start();
+        mMuxerStarted = true;
+    }
+
+    private class MuxingSink implements EncodedSampleSink {
+        @Override
+        public void onOutputFormatChanged() {
+            // Should happen before receiving buffers, and should only happen once.
+            if (mMuxerStarted) {
+                throw new IllegalStateException("format changed twice");
+            }
+            mOutputFormat = mEncoder.getOutputFormat();
+            if (!mOutputAbandoned) {
+                startMuxer();
+            }
+        }
+
+        @Override
+        public void writeSample(ByteBuffer data, EncodedSampleInfo info) {
+            if (mOutputAbandoned) {
+                return;
+            }
+            if (!mMuxerStarted) {
+                throw new IllegalStateException("muxer hasn't started");
+            }
+            try {
+                mMuxer.writeSampleData(mTrackIndex, data, info);
+            } catch (RuntimeException e) {
+                if (!mAbandoned) {
+                    throw e;
+                }
+                // The muxer was stopped under a write that outlived the stop.
+            }
+        }
+    }
+}
@@ -0,0 +1,531 @@
+package com.example.android.codec;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A {@link SampleMuxer} writing one H.264 track as fragmented MP4, an
+ * alternative to MediaMuxer that never has to go back in the file.
+ * <p>
+ * The init segment ({@code ftyp} and a {@code moov} without samples) is written
+ * on {@link #start()}, with the {@code avcC} built from the SPS and PPS in the
+ * track format's codec specific data. If the format has none, it is written
+ * once a sample carries SPS and PPS in band. Samples are then collected and
+ * appended as a {@code moof}/{@code mdat} fragment at the first key frame after
+ * each fragment duration, so the file is playable up to the last complete
+ * fragment if the recording is cut short, and memory is bounded by one
+ * fragment. Annex-B samples are converted to 4 byte length prefixed NAL units;
+ * parameter sets and access unit delimiters are dropped from the samples.
+ * </p>
+ * <p>
+ * Samples must come in decode order with increasing timestamps, which is what
+ * camera encoders without B-frames produce. Not thread-safe.
+ * </p>
+ */
+public class FragmentedMp4Writer implements SampleMuxer {
+    private static final int TIMESCALE = 90000;
+    private static final int MOVIE_TIMESCALE = 1000;
+    private static final int TRACK_ID = 1;
+    private static final int NAL_TYPE_SPS = 7;
+    private static final int NAL_TYPE_PPS = 8;
+    private static final int NAL_TYPE_AUD = 9;
+    // Sample flags in trun: sample_depends_on and sample_is_non_sync_sample.
+    private static final int SAMPLE_FLAGS_SYNC = 0x02000000;
+    private static final int SAMPLE_FLAGS_NON_SYNC = 0x01010000;
+    // trun flags: data-offset, sample-duration, sample-size and sample-flags present.
+    private static final int TRUN_FLAGS = 0x000001 | 0x000100 | 0x000200 | 0x000400;
+    // tfhd flags: default-base-is-moof.
+    private static final int TFHD_FLAGS = 0x020000;
+    private static final int[] UNITY_MATRIX = {0x00010000, 0, 0, 0, 0x00010000, 0, 0, 0, 0x40000000};
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final long mFragmentDurationUs;
+    private final List<byte[]> mSps = new ArrayList<>();
+    private final List<byte[]> mPps = new ArrayList<>();
+    private VideoFormat mFormat;
+    private boolean mStarted;
+    private boolean mInitWritten;
+    private boolean mSyncEachFragment;
+
+    // Samples of the fragment being collected.
+    private ByteBuffer mPayload = ByteBuffer.allocateDirect(1024 * 1024);
+    private long[] mSampleTimesUs = new long[64];
+    private int[] mSampleSizes = new int[64];
+    private boolean[] mSampleSync = new boolean[64];
+    private int mSampleCount;
+
+    private long mFirstPresentationTimeUs = -1;
+    private long mLastDurationTicks;
+    private int mSequenceNumber;
+    private ByteBuffer mBoxes = ByteBuffer.allocate(4096);
+    private long mBytesWritten;
+    private int mFragmentsWritten;
+
+    /**
+     * @param fragmentDurationUs Minimum duration of a fragment. Fragments are
+     *        cut at the next key frame after it.
+     */
+    public FragmentedMp4Writer(String path, long fragmentDurationUs) throws IOException {
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+        mFragmentDurationUs = fragmentDurationUs;
+    }
+
+    /**
+     * Whether each fragment is forced to storage before the next one is
+     * collected, so that it also survives a power loss. Off by default.
+     */
+    public void setSyncEachFragment(boolean sync) {
+        mSyncEachFragment = sync;
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    public int getFragmentsWritten() {
+        return mFragmentsWritten;
+    }
+
+    /**
+     * Sets the only track. Its codec specific data may hold SPS and PPS as
+     * Annex-B NAL units, in one buffer or one per buffer.
+     */
+    @Override
+    public int addTrack(VideoFormat format) {
+        if (mFormat != null) {
+            throw new IllegalStateException("Only one track is supported");
+        }
+        if (!VideoFormat.MIMETYPE_VIDEO_AVC.equals(format.getMime())) {
+            throw new IllegalArgumentException("Unsupported mime type " + format.getMime());
+        }
+        mFormat = format;
+        for (int i = 0; i < 2; i++) {
+            ByteBuffer csd = format.getCodecSpecificData(i);
+            if (csd != null) {
+                collectParameterSets(csd);
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public void start() {
+        if (mFormat == null) {
+            throw new IllegalStateException("No track added");
+        }
+        mStarted = true;
+        if (!mSps.isEmpty() && !mPps.isEmpty()) {
+            writeInitSegment();
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("Writer is not started");
+        }
+        if (info.isCodecConfig()) {
+            collectParameterSets(data);
+            return;
+        }
+        if (!mInitWritten) {
+            // No csd in the format, the first key frame has to carry it.
+            collectParameterSets(data.duplicate());
+            if (mSps.isEmpty() || mPps.isEmpty()) {
+                throw new IllegalStateException("No SPS/PPS before the first sample");
+            }
+            writeInitSegment();
+        }
+        long pts = info.presentationTimeUs;
+        if (mFirstPresentationTimeUs < 0) {
+            mFirstPresentationTimeUs = pts;
+        }
+        boolean sync = info.isKeyFrame();
+        // Allow half a frame of timestamp jitter, so a GOP exactly as long as a
+        // fragment is not merged with the next one.
+        if (sync && mSampleCount > 0 && pts - mSampleTimesUs[0]
+                + (pts - mSampleTimesUs[mSampleCount - 1]) / 2 >= mFragmentDurationUs) {
+            writeFragment(pts);
+        }
+        addSample(data, pts, sync);
+    }
+
+    /**
+     * Writes the samples still collected as the last fragment.
+     */
+    @Override
+    public void stop() {
+        if (mSampleCount > 0) {
+            writeFragment(-1);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Closing fragmented MP4 failed", e);
+        }
+    }
+
+    private void addSample(ByteBuffer data, long pts, boolean sync) {
+        if (mSampleCount == mSampleTimesUs.length) {
+            int capacity = mSampleCount * 2;
+            long[] times = new long[capacity];
+            int[] sizes = new int[capacity];
+            boolean[] syncs = new boolean[capacity];
+            System.arraycopy(mSampleTimesUs, 0, times, 0, mSampleCount);
+            System.arraycopy(mSampleSizes, 0, sizes, 0, mSampleCount);
+            System.arraycopy(mSampleSync, 0, syncs, 0, mSampleCount);
+            mSampleTimesUs = times;
+            mSampleSizes = sizes;
+            mSampleSync = syncs;
+        }
+        int start = mPayload.position();
+        appendLengthPrefixed(data);
+        mSampleTimesUs[mSampleCount] = pts;
+        mSampleSizes[mSampleCount] = mPayload.position() - start;
+        mSampleSync[mSampleCount] = sync;
+        mSampleCount++;
+    }
+
+    /**
+     * Copies the NAL units of an Annex-B sample into the payload, each behind
+     * its 4 byte length. Parameter sets and delimiters are left out.
+     */
+    private void appendLengthPrefixed(ByteBuffer data) {
+        int end = data.limit();
+        int nal = findNalStart(data, data.position(), end);
+        if (nal < 0) {
+            // Already length prefixed or a single raw NAL unit without start code.
+            ensurePayload(4 + data.remaining());
+            mPayload.putInt(data.remaining());
+            mPayload.put(data.duplicate());
+            return;
+        }
+        while (nal >= 0) {
+            int next = findStartCode(data, nal, end);
+            int nalEnd = next < 0 ? end : trimTrailingZeros(data, nal, next);
+            int type = data.get(nal) & 0x1f;
+            if (type != NAL_TYPE_SPS && type != NAL_TYPE_PPS && type != NAL_TYPE_AUD
+                    && nalEnd > nal) {
+                int length = nalEnd - nal;
+                ensurePayload(4 + length);
+                mPayload.putInt(length);
+                ByteBuffer slice = data.duplicate();
+                slice.limit(nalEnd).position(nal);
+                mPayload.put(slice);
+            }
+            nal = next < 0 ? -1 : findNalStart(data, next, end);
+        }
+    }
+
+    private void ensurePayload(int bytes) {
+        if (mPayload.remaining() < bytes) {
+            int capacity = Math.max(mPayload.capacity() * 2, mPayload.position() + bytes);
+            ByteBuffer grown = ByteBuffer.allocateDirect(capacity);
+            mPayload.flip();
+            grown.put(mPayload);
+            mPayload = grown;
+        }
+    }
+
+    private void collectParameterSets(ByteBuffer data) {
+        int end = data.limit();
+        int nal = findNalStart(data, data.position(), end);
+        while (nal >= 0) {
+            int next = findStartCode(data, nal, end);
+            int nalEnd = next < 0 ? end : trimTrailingZeros(data, nal, next);
+            int type = data.get(nal) & 0x1f;
+            if ((type == NAL_TYPE_SPS || type == NAL_TYPE_PPS) && nalEnd > nal) {
+                byte[] unit = new byte[nalEnd - nal];
+                for (int i = 0; i < unit.length; i++) {
+                    unit[i] = data.get(nal + i);
+                }
+                List<byte[]> sets = type == NAL_TYPE_SPS ? mSps : mPps;
+                // Only the first set of each kind is kept; repeats are in band.
+                if (sets.isEmpty()) {
+                    sets.add(unit);
+                }
+            }
+            nal = next < 0 ? -1 : findNalStart(data, next, end);
+        }
+    }
+
+    /**
+     * Returns the position of the first start code at or after {@code from},
+     * or -1.
+     */
+    private static int findStartCode(ByteBuffer data, int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if (data.get(i) == 0 && data.get(i + 1) == 0 && data.get(i + 2) == 1) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the position of the NAL unit after the first start code at or
+     * after {@code from}, or -1.
+     */
+    private static int findNalStart(ByteBuffer data, int from, int end) {
+        int code = findStartCode(data, from, end);
+        return code < 0 ? -1 : code + 3;
+    }
+
+    // Drops the zero byte of a 4 byte start code, which belongs to the next one.
+    private static int trimTrailingZeros(ByteBuffer data, int start, int end) {
+        while (end > start && data.get(end - 1) == 0) {
+            end--;
+        }
+        return end;
+    }
+
+    private long toTicks(long presentationTimeUs) {
+        return (presentationTimeUs - mFirstPresentationTimeUs) * TIMESCALE / 1000000;
+    }
+
+    /**
+     * Writes the collected samples as one fragment.
+     *
+     * @param nextPresentationTimeUs Time of the sample after the fragment, to
+     *        give the last sample its duration, or -1 at the end of stream.
+     */
+    private void writeFragment(long nextPresentationTimeUs) {
+        int trunSize = 12 + 8 + mSampleCount * 12;
+        int trafSize = 8 + 16 + 20 + trunSize;
+        int moofSize = 8 + 16 + trafSize;
+        ByteBuffer boxes = boxBuffer(moofSize + 8);
+        int moof = startBox(boxes, "moof");
+        int mfhd = startFullBox(boxes, "mfhd", 0, 0);
+        boxes.putInt(++mSequenceNumber);
+        endBox(boxes, mfhd);
+        int traf = startBox(boxes, "traf");
+        int tfhd = startFullBox(boxes, "tfhd", 0, TFHD_FLAGS);
+        boxes.putInt(TRACK_ID);
+        endBox(boxes, tfhd);
+        int tfdt = startFullBox(boxes, "tfdt", 1, 0);
+        boxes.putLong(toTicks(mSampleTimesUs[0]));
+        endBox(boxes, tfdt);
+        int trun = startFullBox(boxes, "trun", 0, TRUN_FLAGS);
+        boxes.putInt(mSampleCount);
+        // Data starts right after the mdat header that follows the moof.
+        boxes.putInt(moofSize + 8);
+        for (int i = 0; i < mSampleCount; i++) {
+            long durationTicks;
+            if (i + 1 < mSampleCount) {
+                durationTicks = toTicks(mSampleTimesUs[i + 1]) - toTicks(mSampleTimesUs[i]);
+            } else if (nextPresentationTimeUs >= 0) {
+                durationTicks = toTicks(nextPresentationTimeUs) - toTicks(mSampleTimesUs[i]);
+            } else {
+                durationTicks = mLastDurationTicks;
+            }
+            mLastDurationTicks = durationTicks;
+            boxes.putInt((int) durationTicks);
+            boxes.putInt(mSampleSizes[i]);
+            boxes.putInt(mSampleSync[i] ? SAMPLE_FLAGS_SYNC : SAMPLE_FLAGS_NON_SYNC);
+        }
+        endBox(boxes, trun);
+        endBox(boxes, traf);
+        endBox(boxes, moof);
+        boxes.putInt(8 + mPayload.position());
+        putType(boxes, "mdat");
+        boxes.flip();
+        mPayload.flip();
+        write(boxes);
+        write(mPayload);
+        mPayload.clear();
+        mSampleCount = 0;
+        mFragmentsWritten++;
+        if (mSyncEachFragment) {
+            try {
+                mChannel.force(false);
+            } catch (IOException e) {
+                throw new IllegalStateException("Syncing fragment failed", e);
+            }
+        }
+    }
+
+    private void writeInitSegment() {
+        ByteBuffer boxes = boxBuffer(1024);
+        int ftyp = startBox(boxes, "ftyp");
+        putType(boxes, "isom");
+        boxes.putInt(0x200);
+        putType(boxes, "isom");
+        putType(boxes, "iso5");
+        putType(boxes, "avc1");
+        putType(boxes, "mp41");
+        endBox(boxes, ftyp);
+
+        int moov = startBox(boxes, "moov");
+        int mvhd = startFullBox(boxes, "mvhd", 0, 0);
+        boxes.putInt(0).putInt(0); // creation and modification time
+        boxes.putInt(MOVIE_TIMESCALE).putInt(0); // duration is in the fragments
+        boxes.putInt(0x00010000).putShort((short) 0x0100).putShort((short) 0);
+        boxes.putInt(0).putInt(0);
+        putMatrix(boxes);
+        for (int i = 0; i < 6; i++) {
+            boxes.putInt(0); // pre_defined
+        }
+        boxes.putInt(TRACK_ID + 1);
+        endBox(boxes, mvhd);
+
+        int trak = startBox(boxes, "trak");
+        int tkhd = startFullBox(boxes, "tkhd", 0, 0x3); // enabled, in movie
+        boxes.putInt(0).putInt(0).putInt(TRACK_ID).putInt(0).putInt(0);
+        boxes.putInt(0).putInt(0); // reserved
+        boxes.putShort((short) 0).putShort((short) 0); // layer, alternate group
+        boxes.putShort((short) 0).putShort((short) 0); // volume, reserved
+        putMatrix(boxes);
+        boxes.putInt(mFormat.getWidth() << 16).putInt(mFormat.getHeight() << 16);
+        endBox(boxes, tkhd);
+
+        int mdia = startBox(boxes, "mdia");
+        int mdhd = startFullBox(boxes, "mdhd", 0, 0);
+        boxes.putInt(0).putInt(0).putInt(TIMESCALE).putInt(0);
+        boxes.putShort((short) 0x55c4).putShort((short) 0); // "und"
+        endBox(boxes, mdhd);
+        int hdlr = startFullBox(boxes, "hdlr", 0, 0);
+        boxes.putInt(0);
+        putType(boxes, "vide");
+        boxes.putInt(0).putInt(0).putInt(0);
+        boxes.put("VideoHandler".getBytes()).put((byte) 0);
+        endBox(boxes, hdlr);
+
+        int minf = startBox(boxes, "minf");
+        int vmhd = startFullBox(boxes, "vmhd", 0, 1);
+        boxes.putLong(0); // graphicsmode, opcolor
+        endBox(boxes, vmhd);
+        int dinf = startBox(boxes, "dinf");
+        int dref = startFullBox(boxes, "dref", 0, 0);
+        boxes.putInt(1);
+        int url = startFullBox(boxes, "url ", 0, 1); // data in this file
+        endBox(boxes, url);
+        endBox(boxes, dref);
+        endBox(boxes, dinf);
+
+        int stbl = startBox(boxes, "stbl");
+        int stsd = startFullBox(boxes, "stsd", 0, 0);
+        boxes.putInt(1);
+        putAvc1(boxes);
+        endBox(boxes, stsd);
+        // Empty sample tables, the samples are in the fragments.
+        int stts = startFullBox(boxes, "stts", 0, 0);
+        boxes.putInt(0);
+        endBox(boxes, stts);
+        int stsc = startFullBox(boxes, "stsc", 0, 0);
+        boxes.putInt(0);
+        endBox(boxes, stsc);
+        int stsz = startFullBox(boxes, "stsz", 0, 0);
+        boxes.putInt(0).putInt(0);
+        endBox(boxes, stsz);
+        int stco = startFullBox(boxes, "stco", 0, 0);
+        boxes.putInt(0);
+        endBox(boxes, stco);
+        endBox(boxes, stbl);
+        endBox(boxes, minf);
+        endBox(boxes, mdia);
+        endBox(boxes, trak);
+
+        int mvex = startBox(boxes, "mvex");
+        int trex = startFullBox(boxes, "trex", 0, 0);
+        boxes.putInt(TRACK_ID).putInt(1).putInt(0).putInt(0).putInt(0);
+        endBox(boxes, trex);
+        endBox(boxes, mvex);
+        endBox(boxes, moov);
+        boxes.flip();
+        write(boxes);
+        mInitWritten = true;
+    }
+
+    private void putAvc1(ByteBuffer boxes) {
+        int avc1 = startBox(boxes, "avc1");
+        boxes.putInt(0).putShort((short) 0); // reserved
+        boxes.putShort((short) 1); // data_reference_index
+        boxes.putLong(0).putLong(0); // pre_defined, reserved
+        boxes.putShort((short) mFormat.getWidth()).putShort((short) mFormat.getHeight());
+        boxes.putInt(0x00480000).putInt(0x00480000); // 72 dpi
+        boxes.putInt(0);
+        boxes.putShort((short) 1); // frame_count
+        boxes.put(new byte[32]); // compressorname
+        boxes.putShort((short) 0x0018).putShort((short) -1);
+
+        byte[] sps = mSps.get(0);
+        int avcC = startBox(boxes, "avcC");
+        boxes.put((byte) 1);
+        boxes.put(sps[1]).put(sps[2]).put(sps[3]); // profile, compatibility, level
+        boxes.put((byte) 0xff); // 4 byte NAL lengths
+        boxes.put((byte) (0xe0 | mSps.size()));
+        for (byte[] set : mSps) {
+            boxes.putShort((short) set.length).put(set);
+        }
+        boxes.put((byte) mPps.size());
+        for (byte[] set : mPps) {
+            boxes.putShort((short) set.length).put(set);
+        }
+        endBox(boxes, avcC);
+        endBox(boxes, avc1);
+    }
+
+    private ByteBuffer boxBuffer(int size) {
+        int needed = size;
+        for (byte[] set : mSps) {
+            needed += set.length;
+        }
+        for (byte[] set : mPps) {
+            needed += set.length;
+        }
+        if (mBoxes.capacity() < needed) {
+            mBoxes = ByteBuffer.allocate(Math.max(needed, mBoxes.capacity() * 2));
+        }
+        mBoxes.clear();
+        return mBoxes;
+    }
+
+    private static int startBox(ByteBuffer boxes, String type) {
+        int start = boxes.position();
+        boxes.putInt(0);
+        putType(boxes, type);
+        return start;
+    }
+
+    private static int startFullBox(ByteBuffer boxes, String type, int version, int flags) {
+        int start = startBox(boxes, type);
+        boxes.putInt((version << 24) | flags);
+        return start;
+    }
+
+    private static void endBox(ByteBuffer boxes, int start) {
+        boxes.putInt(start, boxes.position() - start);
+    }
+
+    private static void putType(ByteBuffer boxes, String type) {
+        for (int i = 0; i < 4; i++) {
+            boxes.put((byte) type.charAt(i));
+        }
+    }
+
+    private static void putMatrix(ByteBuffer boxes) {
+        for (int value : UNITY_MATRIX) {
+            boxes.putInt(value);
+        }
+    }
+
+    private void write(ByteBuffer buffer) {
+        try {
+            while (buffer.hasRemaining()) {
+                mBytesWritten += mChannel.write(buffer);
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing fragmented MP4 failed", e);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.example.android.codec;
+
+import com.example.android.buffer.ImageDataInfo;
+
+/**
+ * Supplies packed frames to an {@link EncodingPump} and takes them back once
+ * they have been copied into the encoder.
+ */
+public interface FrameSource {
+    /**
+     * Returns the next queued frame, waiting up to {@code timeoutUs} for
+     * one to arrive, or null if none did.
+     */
+    ImageDataInfo getImageData(long timeoutUs);
+
+    void recycleImageData(ImageDataInfo data);
+}
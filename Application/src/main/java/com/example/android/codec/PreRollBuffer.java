@@ -0,0 +1,369 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link SampleMuxer} that keeps the last seconds of encoded samples in
+ * memory until recording is triggered, so a clip can start before the event
+ * that triggered it.
+ * <p>
+ * Until {@link #trigger} the samples are copied into one preallocated direct
+ * buffer used as a ring, with their metadata in parallel arrays; nothing is
+ * allocated per sample. Whole GOPs are evicted from the front once the ring
+ * holds more than the pre-roll duration after its second key frame, or when
+ * the byte or sample capacity runs out, so the ring always starts on a key
+ * frame. On trigger the ring is written to the output muxer from its oldest
+ * key frame and the live samples follow without a gap.
+ * </p>
+ * <p>
+ * {@link #trigger} may be called from any thread. The ring itself is written
+ * out on the thread calling {@link #writeSampleData}, with the next sample or
+ * at the latest on {@link #stop()}, so use it behind an
+ * {@link AsyncSampleMuxer} to keep the flush off the encoder's output loop.
+ * </p>
+ */
+public class PreRollBuffer implements SampleMuxer {
+    private final long mDurationUs;
+    private final ByteBuffer mData;
+    private final int mCapacity;
+    // Metadata ring; mFirst is the oldest sample, mCount the number held.
+    private final long[] mPresentationTimesUs;
+    private final int[] mOffsets;
+    private final int[] mSizes;
+    private final int[] mFlags;
+    private int mFirst;
+    private int mCount;
+    // Where the next sample's bytes go.
+    private int mWritePosition;
+    private int mBufferedBytes;
+    // Whether the samples up to the next key frame have to be dropped.
+    private boolean mWaitForKeyFrame = true;
+
+    private final EncodedSampleInfo mInfo = new EncodedSampleInfo();
+    private VideoFormat mFormat;
+    private boolean mStarted;
+    private volatile SampleMuxer mPendingOutput;
+    private volatile long mTriggerNanos;
+    private SampleMuxer mOutput;
+    private int mOutputTrack;
+
+    private int mPeakBytes;
+    private long mEvictedSamples;
+    private long mDroppedSamples;
+    private volatile int mFlushedSamples;
+    private volatile long mFlushedDurationUs;
+    private volatile long mFlushWriteNanos = -1;
+    private volatile long mFlushLatencyNanos = -1;
+
+    /**
+     * @param durationUs How much history to keep, at least, counted from the
+     *        oldest key frame.
+     * @param maxBytes Memory reserved for encoded data. Whole GOPs are
+     *        evicted early when the duration does not fit.
+     * @param maxSamples Number of samples the ring has metadata slots for.
+     */
+    public PreRollBuffer(long durationUs, int maxBytes, int maxSamples) {
+        if (durationUs < 0 || maxBytes <= 0 || maxSamples <= 0) {
+            throw new IllegalArgumentException("Invalid pre-roll size");
+        }
+        mDurationUs = durationUs;
+        mData = ByteBuffer.allocateDirect(maxBytes);
+        mCapacity = maxBytes;
+        mPresentationTimesUs = new long[maxSamples];
+        mOffsets = new int[maxSamples];
+        mSizes = new int[maxSamples];
+        mFlags = new int[maxSamples];
+    }
+
+    /**
+     * Starts writing to {@code output}: the buffered samples first, from the
+     * oldest key frame, then everything that follows. The output gets its
+     * track and is started and stopped by this buffer, and released with it.
+     */
+    public synchronized void trigger(SampleMuxer output) {
+        if (mPendingOutput != null) {
+            throw new IllegalStateException("Pre-roll already triggered");
+        }
+        mTriggerNanos = System.nanoTime();
+        mPendingOutput = output;
+    }
+
+    public boolean isTriggered() {
+        return mPendingOutput != null;
+    }
+
+    /**
+     * Memory reserved for encoded data, in bytes.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Encoded bytes held right now; 0 once the ring has been flushed.
+     */
+    public synchronized int getBufferedBytes() {
+        return mBufferedBytes;
+    }
+
+    public synchronized int getPeakBytes() {
+        return mPeakBytes;
+    }
+
+    /**
+     * Time span of the buffered samples, from the oldest key frame.
+     */
+    public synchronized long getBufferedDurationUs() {
+        if (mCount == 0) {
+            return 0;
+        }
+        return mPresentationTimesUs[slot(mCount - 1)] - mPresentationTimesUs[mFirst];
+    }
+
+    /**
+     * Samples that fell out of the ring in whole GOPs.
+     */
+    public synchronized long getEvictedSamples() {
+        return mEvictedSamples;
+    }
+
+    /**
+     * Samples dropped because their GOP did not fit into the ring at all,
+     * also the rest of such a GOP that comes after the trigger.
+     */
+    public synchronized long getDroppedSamples() {
+        return mDroppedSamples;
+    }
+
+    public int getFlushedSamples() {
+        return mFlushedSamples;
+    }
+
+    public long getFlushedDurationUs() {
+        return mFlushedDurationUs;
+    }
+
+    /**
+     * Time from {@link #trigger} until the whole ring was written to the
+     * output, or -1 before that.
+     */
+    public long getFlushLatencyNanos() {
+        return mFlushLatencyNanos;
+    }
+
+    /**
+     * Time the output muxer took to take the ring, or -1 before the flush.
+     */
+    public long getFlushWriteNanos() {
+        return mFlushWriteNanos;
+    }
+
+    @Override
+    public int addTrack(VideoFormat format) {
+        if (mFormat != null) {
+            throw new IllegalStateException("Only one track is supported");
+        }
+        mFormat = format;
+        return 0;
+    }
+
+    @Override
+    public void start() {
+        mStarted = true;
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        if (!mStarted) {
+            throw new IllegalStateException("Pre-roll buffer is not started");
+        }
+        if (mOutput == null && mPendingOutput != null) {
+            flush();
+        }
+        if (mOutput != null) {
+            if (mWaitForKeyFrame && !info.isKeyFrame() && !info.isCodecConfig()) {
+                // Triggered while a GOP was being dropped; its remaining
+                // samples can not be decoded in the output either.
+                synchronized (this) {
+                    mDroppedSamples++;
+                }
+                return;
+            }
+            mWaitForKeyFrame = false;
+            mOutput.writeSampleData(mOutputTrack, data, info);
+            return;
+        }
+        if (info.isCodecConfig()) {
+            // The track format carries the parameter sets.
+            return;
+        }
+        synchronized (this) {
+            add(data, info);
+        }
+    }
+
+    /**
+     * Writes out the ring if the buffer was triggered after the last sample,
+     * then stops the output. Without a trigger the buffered samples are
+     * discarded.
+     */
+    @Override
+    public void stop() {
+        if (mOutput == null && mPendingOutput != null && mStarted) {
+            flush();
+        }
+        if (mOutput != null) {
+            mOutput.stop();
+        }
+        mStarted = false;
+    }
+
+    @Override
+    public void release() {
+        SampleMuxer output = mOutput != null ? mOutput : mPendingOutput;
+        if (output != null) {
+            output.release();
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "PreRollBuffer{buffered=" + mBufferedBytes + "/" + mCapacity
+                + ", peak=" + mPeakBytes
+                + ", durationMs=" + getBufferedDurationUs() / 1000
+                + ", evicted=" + mEvictedSamples
+                + ", dropped=" + mDroppedSamples
+                + ", flushed=" + mFlushedSamples
+                + ", flushedMs=" + mFlushedDurationUs / 1000
+                + ", flushLatencyMs=" + (mFlushLatencyNanos < 0 ? -1 : mFlushLatencyNanos / 1000000)
+                + "}";
+    }
+
+    private void add(ByteBuffer data, EncodedSampleInfo info) {
+        int size = data.remaining();
+        if (info.isKeyFrame()) {
+            mWaitForKeyFrame = false;
+        }
+        if (mWaitForKeyFrame || size > mCapacity) {
+            mDroppedSamples++;
+            mWaitForKeyFrame = true;
+            return;
+        }
+        int position = findSpace(size);
+        while (position < 0 || mCount == mSizes.length) {
+            if (!evictGop() && !info.isKeyFrame()) {
+                // The current GOP alone fills the ring: without its key
+                // frame the rest of it is useless.
+                mDroppedSamples++;
+                mWaitForKeyFrame = true;
+                return;
+            }
+            position = findSpace(size);
+        }
+        ByteBuffer target = mData.duplicate();
+        target.position(position);
+        target.put(data.duplicate());
+        int index = slot(mCount);
+        mPresentationTimesUs[index] = info.presentationTimeUs;
+        mOffsets[index] = position;
+        mSizes[index] = size;
+        mFlags[index] = info.flags;
+        mCount++;
+        mWritePosition = position + size;
+        mBufferedBytes += size;
+        if (mBufferedBytes > mPeakBytes) {
+            mPeakBytes = mBufferedBytes;
+        }
+        // Drop the oldest GOP while the rest still covers the duration.
+        int nextGop = findNextGop();
+        while (nextGop > 0
+                && info.presentationTimeUs - mPresentationTimesUs[slot(nextGop)] >= mDurationUs) {
+            evictGop();
+            nextGop = findNextGop();
+        }
+    }
+
+    /**
+     * Returns where {@code size} contiguous bytes fit, or -1. Samples are not
+     * split, the end of the buffer is skipped if it is too short.
+     */
+    private int findSpace(int size) {
+        if (mCount == 0) {
+            return 0;
+        }
+        int oldest = mOffsets[mFirst];
+        if (mWritePosition > oldest) {
+            if (mCapacity - mWritePosition >= size) {
+                return mWritePosition;
+            }
+            return oldest >= size ? 0 : -1;
+        }
+        return oldest - mWritePosition >= size ? mWritePosition : -1;
+    }
+
+    /**
+     * Returns the position of the second key frame relative to the oldest
+     * sample, or -1 if the ring holds only one GOP.
+     */
+    private int findNextGop() {
+        for (int i = 1; i < mCount; i++) {
+            if ((mFlags[slot(i)] & EncodedSampleInfo.FLAG_KEY_FRAME) != 0) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean evictGop() {
+        int gop = findNextGop();
+        if (gop < 0) {
+            mEvictedSamples += mCount;
+            clear();
+            return false;
+        }
+        for (int i = 0; i < gop; i++) {
+            mBufferedBytes -= mSizes[mFirst];
+            mFirst = slot(1);
+        }
+        mCount -= gop;
+        mEvictedSamples += gop;
+        return true;
+    }
+
+    private void clear() {
+        mFirst = 0;
+        mCount = 0;
+        mWritePosition = 0;
+        mBufferedBytes = 0;
+    }
+
+    private int slot(int i) {
+        int index = mFirst + i;
+        return index < mSizes.length ? index : index - mSizes.length;
+    }
+
+    private void flush() {
+        long startNanos = System.nanoTime();
+        SampleMuxer output = mPendingOutput;
+        if (mFormat != null) {
+            mOutputTrack = output.addTrack(mFormat);
+        }
+        output.start();
+        mOutput = output;
+        synchronized (this) {
+            for (int i = 0; i < mCount; i++) {
+                int index = slot(i);
+                ByteBuffer sample = mData.duplicate();
+                sample.limit(mOffsets[index] + mSizes[index]).position(mOffsets[index]);
+                mInfo.set(0, mSizes[index], mPresentationTimesUs[index], mFlags[index]);
+                output.writeSampleData(mOutputTrack, sample, mInfo);
+            }
+            mFlushedSamples = mCount;
+            mFlushedDurationUs = getBufferedDurationUs();
+            clear();
+        }
+        long endNanos = System.nanoTime();
+        mFlushWriteNanos = endNanos - startNanos;
+        mFlushLatencyNanos = endNanos - mTriggerNanos;
+    }
+}
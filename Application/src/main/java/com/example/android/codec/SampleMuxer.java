@@ -0,0 +1,27 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes encoded samples into a container, shaped after
+ * {@link android.media.MediaMuxer}: tracks are added before {@link #start()},
+ * samples are written between {@link #start()} and {@link #stop()}.
+ */
+public interface SampleMuxer {
+    /**
+     * @return The track index to pass to {@link #writeSampleData}.
+     */
+    int addTrack(VideoFormat format);
+
+    void start();
+
+    /**
+     * Writes the remaining bytes of {@code data} as one sample. Neither
+     * {@code data} nor {@code info} may be kept after the call.
+     */
+    void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info);
+
+    void stop();
+
+    void release();
+}
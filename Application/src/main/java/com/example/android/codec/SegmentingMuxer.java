@@ -0,0 +1,236 @@
+package com.example.android.codec;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A {@link SampleMuxer} that splits one recording into a series of files,
+ * rolling over to the next file after a maximum duration or size without
+ * stopping the encoder.
+ * <p>
+ * Files only start on key frames, so every segment plays on its own. Shortly
+ * before a segment is full a sync frame is requested from the encoder, and the
+ * muxers are swapped at the next key frame: the key frame opens the new
+ * segment and no sample is lost or duplicated. Without an encoder to ask, the
+ * rollover waits for the encoder's next regular key frame.
+ * </p>
+ * <p>
+ * Segment {@code n} is written to {@code <prefix>_<nnnn><extension>}. A
+ * segment file is only created with its first sample, so a recording stopped
+ * before any output leaves no empty file behind, which MediaMuxer could not
+ * stop cleanly anyway. A
+ * manifest {@code <prefix>.csv} lists each finished segment with its time range
+ * and size; it is flushed per segment, so it stays valid if the recording is
+ * cut short. Use it behind an {@link AsyncSampleMuxer}, since finishing a
+ * segment file can take a while.
+ * </p>
+ */
+public class SegmentingMuxer implements SampleMuxer {
+    public static final String MANIFEST_HEADER =
+            "index,path,startUs,endUs,durationUs,samples,bytes";
+
+    /**
+     * Creates the muxer of one segment file.
+     */
+    public interface SegmentFactory {
+        SampleMuxer createSegment(String path) throws IOException;
+    }
+
+    private final SegmentFactory mFactory;
+    private final String mPathPrefix;
+    private final String mExtension;
+    private final long mMaxDurationUs;
+    private final long mMaxBytes;
+    private final long mLeadUs;
+    private final VideoEncoder mEncoder;
+    private final List<VideoFormat> mFormats = new ArrayList<>();
+    private BufferedWriter mManifest;
+
+    private SampleMuxer mSegment;
+    private String mSegmentPath;
+    private int mSegmentIndex = -1;
+    private long mSegmentStartUs = -1;
+    private long mSegmentSamples;
+    private long mSegmentBytes;
+    private long mLastPresentationTimeUs = -1;
+    private long mLastIntervalUs;
+    private boolean mSyncFrameRequested;
+    private long mTotalBytes;
+
+    /**
+     * @param pathPrefix Path of the segment files without index and extension.
+     * @param maxDurationUs Segment duration to roll over at, 0 for no limit.
+     * @param maxBytes Segment size to roll over at, 0 for no limit.
+     * @param leadUs How long before a segment is full the sync frame is
+     *        requested, enough to cover the encoder's latency. Segments can
+     *        end up that much shorter than {@code maxDurationUs}.
+     * @param encoder The encoder to request sync frames from, or null to
+     *        roll over at its regular key frames.
+     */
+    public SegmentingMuxer(SegmentFactory factory, String pathPrefix, String extension,
+                           long maxDurationUs, long maxBytes, long leadUs, VideoEncoder encoder) {
+        if (maxDurationUs <= 0 && maxBytes <= 0) {
+            throw new IllegalArgumentException("No segment duration or size given");
+        }
+        mFactory = factory;
+        mPathPrefix = pathPrefix;
+        mExtension = extension;
+        mMaxDurationUs = maxDurationUs;
+        mMaxBytes = maxBytes;
+        mLeadUs = leadUs;
+        mEncoder = encoder;
+    }
+
+    public String getManifestPath() {
+        return mPathPrefix + ".csv";
+    }
+
+    /**
+     * Number of segments started so far, each holding at least one sample.
+     */
+    public int getSegmentCount() {
+        return mSegmentIndex + 1;
+    }
+
+    public long getBytesWritten() {
+        return mTotalBytes;
+    }
+
+    /**
+     * Adds a track to every segment. Tracks get the same index in all of them.
+     */
+    @Override
+    public int addTrack(VideoFormat format) {
+        mFormats.add(format);
+        return mFormats.size() - 1;
+    }
+
+    @Override
+    public void start() {
+        try {
+            mManifest = new BufferedWriter(new FileWriter(getManifestPath()));
+            mManifest.write(MANIFEST_HEADER);
+            mManifest.newLine();
+            mManifest.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Creating segment manifest failed", e);
+        }
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        long pts = info.presentationTimeUs;
+        // The first key frame after the request, which may come a bit early,
+        // or any key frame once the segment is full.
+        if (mSegment != null && info.isKeyFrame()
+                && (mSyncFrameRequested || isSegmentDue(pts, 0))) {
+            closeSegment(pts);
+        }
+        if (mSegment == null) {
+            openSegment();
+            mSegmentStartUs = pts;
+        } else if (!mSyncFrameRequested && isSegmentDue(pts, mLeadUs)) {
+            if (mEncoder != null) {
+                mEncoder.requestSyncFrame();
+            }
+            mSyncFrameRequested = true;
+        }
+        int size = data.remaining();
+        mSegment.writeSampleData(trackIndex, data, info);
+        mSegmentSamples++;
+        mSegmentBytes += size;
+        mTotalBytes += size;
+        if (mLastPresentationTimeUs >= 0 && pts > mLastPresentationTimeUs) {
+            mLastIntervalUs = pts - mLastPresentationTimeUs;
+        }
+        mLastPresentationTimeUs = pts;
+    }
+
+    @Override
+    public void stop() {
+        if (mSegment != null) {
+            closeSegment(mLastPresentationTimeUs + mLastIntervalUs);
+        }
+    }
+
+    @Override
+    public void release() {
+        try {
+            if (mSegment != null) {
+                mSegment.release();
+                mSegment = null;
+            }
+        } finally {
+            if (mManifest != null) {
+                try {
+                    mManifest.close();
+                } catch (IOException e) {
+                    throw new IllegalStateException("Closing segment manifest failed", e);
+                }
+                mManifest = null;
+            }
+        }
+    }
+
+    /**
+     * Whether the current segment reaches its duration or size within
+     * {@code leadUs} when a sample with {@code pts} is added. The size is
+     * extrapolated with the segment's average byte rate.
+     */
+    private boolean isSegmentDue(long pts, long leadUs) {
+        long durationUs = pts - mSegmentStartUs;
+        if (mMaxDurationUs > 0 && durationUs + leadUs >= mMaxDurationUs) {
+            return true;
+        }
+        if (mMaxBytes > 0) {
+            long projected = mSegmentBytes;
+            if (durationUs > 0) {
+                projected += mSegmentBytes * leadUs / durationUs;
+            }
+            return projected >= mMaxBytes;
+        }
+        return false;
+    }
+
+    private void openSegment() {
+        mSegmentIndex++;
+        mSegmentPath = String.format(Locale.US, "%s_%04d%s", mPathPrefix, mSegmentIndex, mExtension);
+        try {
+            mSegment = mFactory.createSegment(mSegmentPath);
+        } catch (IOException e) {
+            throw new IllegalStateException("Creating segment " + mSegmentPath + " failed", e);
+        }
+        for (VideoFormat format : mFormats) {
+            mSegment.addTrack(format);
+        }
+        mSegment.start();
+        mSegmentStartUs = -1;
+        mSegmentSamples = 0;
+        mSegmentBytes = 0;
+        mSyncFrameRequested = false;
+    }
+
+    private void closeSegment(long endUs) {
+        SampleMuxer segment = mSegment;
+        mSegment = null;
+        try {
+            segment.stop();
+        } finally {
+            segment.release();
+        }
+        long startUs = mSegmentStartUs;
+        try {
+            mManifest.write(mSegmentIndex + "," + mSegmentPath + "," + startUs + "," + endUs + ","
+                    + (endUs - startUs) + "," + mSegmentSamples + "," + mSegmentBytes);
+            mManifest.newLine();
+            mManifest.flush();
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing segment manifest failed", e);
+        }
+    }
+}
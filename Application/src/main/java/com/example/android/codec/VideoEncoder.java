@@ -0,0 +1,68 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A ByteBuffer-mode video encoder: the input side of {@link EncoderInput}
+ * plus the encoded output, shaped after the matching
+ * {@link android.media.MediaCodec} calls.
+ * <p>
+ * Creating and configuring an encoder is platform specific and left to the
+ * implementation. An encoder runs either in sync mode, where the caller polls with the
+ * {@code dequeue*} calls, or in callback mode after
+ * {@link #setCallback(EncoderCallback)}, where the dequeue calls must not be
+ * used and buffers are announced through {@link EncoderCallback}.
+ * </p>
+ */
+public interface VideoEncoder extends EncoderInput {
+    int INFO_TRY_AGAIN_LATER = -1;
+    int INFO_OUTPUT_FORMAT_CHANGED = -2;
+    int INFO_OUTPUT_BUFFERS_CHANGED = -3;
+
+    /**
+     * Returns the index of an output buffer and fills {@code info}, or one of
+     * the {@code INFO_*} values.
+     */
+    int dequeueOutputBuffer(EncodedSampleInfo info, long timeoutUs);
+
+    ByteBuffer getOutputBuffer(int index);
+
+    void releaseOutputBuffer(int index);
+
+    /**
+     * Returns the output format, valid once the output format change was
+     * reported.
+     */
+    VideoFormat getOutputFormat();
+
+    void start();
+
+    void stop();
+
+    void release();
+
+    /**
+     * Drops all queued input and pending output and makes the encoder ready
+     * for a new stream, including after end of stream, without configuring it
+     * again. Indices of buffers dequeued or announced before are invalid
+     * afterwards; in callback mode the free input buffers are announced again.
+     * The output format is not reported again.
+     */
+    void flush();
+
+    /**
+     * Asks the encoder to make the next frame a sync (key) frame.
+     */
+    void requestSyncFrame();
+
+    /**
+     * Ends the stream of an encoder fed through an input surface.
+     */
+    void signalEndOfInputStream();
+
+    /**
+     * Switches to callback mode. Must be called before the encoder is
+     * configured.
+     */
+    void setCallback(EncoderCallback callback);
+}
@@ -0,0 +1,73 @@
+package com.example.android.codec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The parts of an encoder's output format a muxer needs, without depending on
+ * {@code android.media.MediaFormat}: the mime type, the frame size and the
+ * codec specific data. For H.264, csd-0 holds the SPS and csd-1 the PPS, each
+ * with an Annex-B start code, as MediaCodec reports them.
+ */
+public class VideoFormat {
+    public static final String MIMETYPE_VIDEO_AVC = "video/avc";
+    private static final int MAX_CSD = 2;
+
+    private final String mMime;
+    private final int mWidth;
+    private final int mHeight;
+    private final ByteBuffer[] mCsd = new ByteBuffer[MAX_CSD];
+
+    public VideoFormat(String mime, int width, int height) {
+        mMime = mime;
+        mWidth = width;
+        mHeight = height;
+    }
+
+    public String getMime() {
+        return mMime;
+    }
+
+    public int getWidth() {
+        return mWidth;
+    }
+
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Keeps a copy of the remaining bytes of {@code data} as csd-{@code index}.
+     */
+    public void setCodecSpecificData(int index, ByteBuffer data) {
+        checkCsdIndex(index);
+        if (data == null) {
+            mCsd[index] = null;
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(data.remaining());
+        copy.put(data.duplicate());
+        copy.flip();
+        mCsd[index] = copy;
+    }
+
+    /**
+     * Returns a read-only view of csd-{@code index}, or null if there is none.
+     */
+    public ByteBuffer getCodecSpecificData(int index) {
+        checkCsdIndex(index);
+        return mCsd[index] == null ? null : mCsd[index].asReadOnlyBuffer();
+    }
+
+    private static void checkCsdIndex(int index) {
+        if (index < 0 || index >= MAX_CSD) {
+            throw new IllegalArgumentException("Invalid csd index " + index);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "VideoFormat{" + mMime + " " + mWidth + "x" + mHeight
+                + ", csd0=" + (mCsd[0] == null ? 0 : mCsd[0].remaining())
+                + ", csd1=" + (mCsd[1] == null ? 0 : mCsd[1].remaining()) + "}";
+    }
+}
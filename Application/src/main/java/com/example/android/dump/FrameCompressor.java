@@ -0,0 +1,233 @@
+package com.example.android.dump;
+
+import com.example.android.yuv.YuvConverter;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Lossless compression of raw frames for {@link RawDumpWriter}.
+ * <p>
+ * NV12 frames are filtered plane by plane before they are deflated: every
+ * byte is replaced by its difference to the average of its left and upper
+ * neighbors. In the interleaved chroma plane the neighbors are those of the
+ * same channel, two bytes apart. The residuals of a camera image cluster
+ * around zero, which Deflater codes in a fraction of the bytes it needs for
+ * the pixels. Other formats are deflated as they are.
+ * </p>
+ * <p>
+ * At the pixel level camera frames are mostly sensor noise, which the
+ * average of two neighbors predicts better than one neighbor or the median
+ * edge predictor of JPEG-LS, and for the same reason string matching finds
+ * little in the residuals: Huffman coding alone makes them smaller than
+ * {@link Deflater#BEST_SPEED} does, in less time. See
+ * {@code FrameCompressionBenchmark} in the Benchmark module.
+ * </p>
+ * <p>
+ * The zlib stream carries an Adler-32 checksum, so a damaged frame fails to
+ * decode instead of decoding wrong. Decoding reverses the filter in place, and
+ * frames read back bit-exactly. A compressor holds its own Deflater and
+ * scratch memory and is not thread-safe; use one per thread and
+ * {@link #release()} it when done.
+ * </p>
+ */
+public class FrameCompressor {
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+    public static final int CODEC_NV12_AVERAGE_DEFLATE = 2;
+
+    private final Deflater mDeflater;
+    private final int mFilteredStrategy;
+    private Inflater mInflater;
+    private byte[] mInput = new byte[0];
+    private byte[] mResidual = new byte[0];
+
+    /**
+     * Codes filtered frames with Huffman coding only.
+     *
+     * @param level Deflater level of unfiltered frames.
+     */
+    public FrameCompressor(int level) {
+        this(level, Deflater.HUFFMAN_ONLY);
+    }
+
+    /**
+     * @param level Deflater level, {@link Deflater#BEST_SPEED} to
+     *        {@link Deflater#BEST_COMPRESSION}.
+     * @param filteredStrategy Deflater strategy of filtered frames, such as
+     *        {@link Deflater#HUFFMAN_ONLY} or {@link Deflater#FILTERED}.
+     */
+    public FrameCompressor(int level, int filteredStrategy) {
+        mDeflater = new Deflater(level);
+        mFilteredStrategy = filteredStrategy;
+    }
+
+    /**
+     * Returns the codec {@link #compress} uses for a frame.
+     */
+    public static int codecFor(int format, int width, int height, int size) {
+        if (format == YuvConverter.COLOR_FormatNV12 && width > 0 && height > 0
+                && (width & 1) == 0 && (height & 1) == 0 && size == width * height * 3 / 2) {
+            return CODEC_NV12_AVERAGE_DEFLATE;
+        }
+        return CODEC_DEFLATE;
+    }
+
+    /**
+     * Compresses {@code size} bytes of {@code data} from its position into
+     * {@code output}, with the codec of {@link #codecFor}. The position of
+     * {@code data} is left unchanged.
+     *
+     * @return The compressed size, or -1 if the frame does not compress to
+     *         less than its size or to what fits into {@code output}.
+     */
+    public int compress(ByteBuffer data, int size, int format, int width, int height,
+                        byte[] output) {
+        byte[] input;
+        int offset;
+        if (data.hasArray()) {
+            input = data.array();
+            offset = data.arrayOffset() + data.position();
+        } else {
+            if (mInput.length < size) {
+                mInput = new byte[size];
+            }
+            data.duplicate().get(mInput, 0, size);
+            input = mInput;
+            offset = 0;
+        }
+        if (codecFor(format, width, height, size) == CODEC_NV12_AVERAGE_DEFLATE) {
+            if (mResidual.length < size) {
+                mResidual = new byte[size];
+            }
+            int lumaSize = width * height;
+            filterPlane(input, offset, mResidual, 0, width, height, 1);
+            filterPlane(input, offset + lumaSize, mResidual, lumaSize, width, height / 2, 2);
+            input = mResidual;
+            offset = 0;
+            mDeflater.setStrategy(mFilteredStrategy);
+        } else {
+            mDeflater.setStrategy(Deflater.DEFAULT_STRATEGY);
+        }
+        int limit = Math.min(output.length, size - 1);
+        mDeflater.reset();
+        mDeflater.setInput(input, offset, size);
+        mDeflater.finish();
+        int length = 0;
+        while (!mDeflater.finished()) {
+            if (length == limit) {
+                return -1;
+            }
+            length += mDeflater.deflate(output, length, limit - length);
+        }
+        return length;
+    }
+
+    /**
+     * Decodes a frame stored with {@code codec} into the first {@code size}
+     * bytes of {@code output}.
+     *
+     * @throws IOException If the data is damaged or does not decode to
+     *         {@code size} bytes.
+     */
+    public void decompress(byte[] input, int offset, int length, int codec, int width,
+                           int height, byte[] output, int size) throws IOException {
+        if (codec == CODEC_NONE) {
+            if (length != size) {
+                throw new IOException("Stored frame of " + length + " bytes, expected " + size);
+            }
+            System.arraycopy(input, offset, output, 0, size);
+            return;
+        }
+        if (codec != CODEC_DEFLATE && codec != CODEC_NV12_AVERAGE_DEFLATE) {
+            throw new IOException("Unknown frame codec " + codec);
+        }
+        if (mInflater == null) {
+            mInflater = new Inflater();
+        }
+        mInflater.reset();
+        mInflater.setInput(input, offset, length);
+        int decoded = 0;
+        try {
+            while (decoded < size && !mInflater.finished()) {
+                int n = mInflater.inflate(output, decoded, size - decoded);
+                if (n == 0 && (mInflater.needsInput() || mInflater.needsDictionary())) {
+                    break;
+                }
+                decoded += n;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Damaged frame", e);
+        }
+        if (decoded != size || !mInflater.finished()) {
+            throw new IOException("Frame decodes to " + decoded + " bytes, expected " + size);
+        }
+        if (codec == CODEC_NV12_AVERAGE_DEFLATE) {
+            int lumaSize = width * height;
+            unfilterPlane(output, 0, width, height, 1);
+            unfilterPlane(output, lumaSize, width, height / 2, 2);
+        }
+    }
+
+    /**
+     * Frees the native zlib state. The compressor must not be used afterwards.
+     */
+    public void release() {
+        mDeflater.end();
+        if (mInflater != null) {
+            mInflater.end();
+        }
+    }
+
+    /**
+     * Writes the prediction residuals of a plane of {@code rows} rows of
+     * {@code rowBytes} bytes. {@code step} is the distance to the left
+     * neighbor: 1 for luma, 2 for interleaved chroma. The first row is
+     * predicted from the left and the first pixel of the other rows from
+     * above.
+     */
+    static void filterPlane(byte[] src, int srcOffset, byte[] dst, int dstOffset, int rowBytes,
+                            int rows, int step) {
+        for (int i = 0; i < step; i++) {
+            dst[dstOffset + i] = src[srcOffset + i];
+        }
+        for (int i = step; i < rowBytes; i++) {
+            dst[dstOffset + i] = (byte) (src[srcOffset + i] - src[srcOffset + i - step]);
+        }
+        for (int row = 1; row < rows; row++) {
+            int s = srcOffset + row * rowBytes;
+            int d = dstOffset + row * rowBytes;
+            for (int i = 0; i < step; i++) {
+                dst[d + i] = (byte) (src[s + i] - src[s + i - rowBytes]);
+            }
+            for (int i = step; i < rowBytes; i++) {
+                int left = src[s + i - step] & 0xff;
+                int up = src[s + i - rowBytes] & 0xff;
+                dst[d + i] = (byte) (src[s + i] - ((left + up) >> 1));
+            }
+        }
+    }
+
+    /**
+     * Reverses {@link #filterPlane} in place.
+     */
+    static void unfilterPlane(byte[] data, int offset, int rowBytes, int rows, int step) {
+        for (int i = offset + step; i < offset + rowBytes; i++) {
+            data[i] += data[i - step];
+        }
+        for (int row = 1; row < rows; row++) {
+            int s = offset + row * rowBytes;
+            for (int i = 0; i < step; i++) {
+                data[s + i] += data[s + i - rowBytes];
+            }
+            for (int i = s + step; i < s + rowBytes; i++) {
+                int left = data[i - step] & 0xff;
+                int up = data[i - rowBytes] & 0xff;
+                data[i] += (byte) ((left + up) >> 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,491 @@
+package com.example.android.dump;
+
+import com.example.android.yuv.YuvConverter;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Random access to the frames of a raw dump: a container written by
+ * {@link RawDumpWriter}, or a folder of the per-frame
+ * {@code dumpImage_<timestamp>_<width>x<height>.nv12} files older versions
+ * of the app wrote.
+ * <p>
+ * Frames are looked up by their position in timestamp order or by the
+ * nearest timestamp, through an index sorted in memory. The container is
+ * memory-mapped in segments of up to 1 GB, mapped when first read, and a
+ * legacy file when its frame is read; uncompressed frames are returned as
+ * views of the mapping without copying. Compressed frames are decoded into
+ * a new array.
+ * </p>
+ * <p>
+ * The index of a container is read when it is opened. A container whose
+ * writer did not close it is indexed up to its first empty entry. The index
+ * of a folder is built from the file names on first use, without opening
+ * the files. The reader is safe to use from several threads; the buffers it
+ * returns are not, take a duplicate per thread.
+ * </p>
+ */
+public class RawDumpReader implements Closeable {
+    private static final long MAX_SEGMENT_SIZE = 1L << 30;
+    private static final String LEGACY_PREFIX = "dumpImage_";
+    private static final String LEGACY_SUFFIX = ".nv12";
+
+    // A folder of legacy dumps, or null for a container.
+    private final File mFolder;
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private boolean mClosedCleanly;
+
+    // Sorted by timestamp, null until a folder is indexed.
+    private FrameEntry[] mEntries;
+    private long[] mTimestamps;
+    private long[] mSegmentStarts;
+    private long[] mSegmentEnds;
+    private MappedByteBuffer[] mSegments;
+    private FrameCompressor mDecoder;
+
+    private static class FrameEntry {
+        long mTimestampNs;
+        long mOffset;
+        int mStoredSize;
+        int mFormat;
+        int mWidth;
+        int mHeight;
+        int mSize;
+        int mCodec;
+        int mSegment;
+        // The frame's own file in a legacy folder.
+        File mFile;
+    }
+
+    /**
+     * One frame. Its buffers view the mapped file, or the decoded frame.
+     */
+    public static class RawFrame {
+        private final long mTimestampNs;
+        private final int mFormat;
+        private final int mWidth;
+        private final int mHeight;
+        private final boolean mMapped;
+        private final ByteBuffer mData;
+
+        RawFrame(FrameEntry entry, ByteBuffer data, boolean mapped) {
+            mTimestampNs = entry.mTimestampNs;
+            mFormat = entry.mFormat;
+            mWidth = entry.mWidth;
+            mHeight = entry.mHeight;
+            mMapped = mapped;
+            mData = data;
+        }
+
+        public long getTimestampNs() {
+            return mTimestampNs;
+        }
+
+        /**
+         * The color format, such as {@link YuvConverter#COLOR_FormatNV12}.
+         */
+        public int getFormat() {
+            return mFormat;
+        }
+
+        public int getWidth() {
+            return mWidth;
+        }
+
+        public int getHeight() {
+            return mHeight;
+        }
+
+        /**
+         * Whether the buffers view the mapped file rather than a decoded
+         * copy.
+         */
+        public boolean isMapped() {
+            return mMapped;
+        }
+
+        /**
+         * The whole frame, from position 0 to its size.
+         */
+        public ByteBuffer getData() {
+            return mData.duplicate();
+        }
+
+        /**
+         * The luma plane of an NV12 frame, {@code width} bytes per row.
+         */
+        public ByteBuffer getY() {
+            checkNv12();
+            return slice(0, mWidth * mHeight);
+        }
+
+        /**
+         * The interleaved chroma plane of an NV12 frame, U first, at half
+         * the height and {@code width} bytes per row.
+         */
+        public ByteBuffer getUv() {
+            checkNv12();
+            return slice(mWidth * mHeight, mWidth * mHeight / 2);
+        }
+
+        private void checkNv12() {
+            if (mFormat != YuvConverter.COLOR_FormatNV12
+                    || mData.capacity() != mWidth * mHeight * 3 / 2) {
+                throw new IllegalStateException("Not an NV12 frame of " + mWidth + "x" + mHeight);
+            }
+        }
+
+        private ByteBuffer slice(int offset, int length) {
+            ByteBuffer data = mData.duplicate();
+            data.position(offset);
+            data.limit(offset + length);
+            return data.slice();
+        }
+    }
+
+    private RawDumpReader(File folder) {
+        mFolder = folder;
+        mFile = null;
+        mChannel = null;
+        mClosedCleanly = true;
+    }
+
+    private RawDumpReader(RandomAccessFile file) throws IOException {
+        mFolder = null;
+        mFile = file;
+        mChannel = file.getChannel();
+        try {
+            readContainerIndex();
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a container, or a folder of legacy dumps.
+     */
+    public static RawDumpReader open(String path) throws IOException {
+        File file = new File(path);
+        if (file.isDirectory()) {
+            return new RawDumpReader(file);
+        }
+        return new RawDumpReader(new RandomAccessFile(file, "r"));
+    }
+
+    public synchronized int getFrameCount() throws IOException {
+        return index().length;
+    }
+
+    /**
+     * Whether the container was closed by its writer. A folder counts as
+     * closed.
+     */
+    public boolean isClosedCleanly() {
+        return mClosedCleanly;
+    }
+
+    /**
+     * Returns the timestamp of the frame at {@code index} in timestamp
+     * order.
+     */
+    public synchronized long getTimestampNs(int index) throws IOException {
+        return index()[index].mTimestampNs;
+    }
+
+    /**
+     * Returns the index of the frame whose timestamp is nearest to
+     * {@code timestampNs}, the earlier one of a tie, or -1 if there are no
+     * frames.
+     */
+    public synchronized int findNearest(long timestampNs) throws IOException {
+        index();
+        long[] timestamps = mTimestamps;
+        if (timestamps.length == 0) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(timestamps, timestampNs);
+        if (i >= 0) {
+            return i;
+        }
+        int after = -i - 1;
+        if (after == 0) {
+            return 0;
+        }
+        if (after == timestamps.length) {
+            return after - 1;
+        }
+        return timestampNs - timestamps[after - 1] <= timestamps[after] - timestampNs
+                ? after - 1 : after;
+    }
+
+    /**
+     * Returns the frame at {@code index} in timestamp order.
+     *
+     * @throws IOException If the frame can not be mapped or decoded.
+     */
+    public RawFrame getFrame(int index) throws IOException {
+        FrameEntry entry;
+        ByteBuffer data;
+        synchronized (this) {
+            entry = index()[index];
+            data = mFolder != null ? mapLegacy(entry) : view(entry);
+        }
+        if (entry.mCodec == FrameCompressor.CODEC_NONE) {
+            return new RawFrame(entry, data, true);
+        }
+        byte[] compressed = new byte[entry.mStoredSize];
+        data.get(compressed);
+        byte[] decoded = new byte[entry.mSize];
+        synchronized (this) {
+            if (mDecoder == null) {
+                // Only decodes, the level does not matter.
+                mDecoder = new FrameCompressor(Deflater.BEST_SPEED);
+            }
+            mDecoder.decompress(compressed, 0, compressed.length, entry.mCodec, entry.mWidth,
+                    entry.mHeight, decoded, entry.mSize);
+        }
+        return new RawFrame(entry, ByteBuffer.wrap(decoded), false);
+    }
+
+    /**
+     * Returns the frame nearest to {@code timestampNs}, or null if there are
+     * no frames.
+     */
+    public RawFrame getNearestFrame(long timestampNs) throws IOException {
+        int index = findNearest(timestampNs);
+        return index < 0 ? null : getFrame(index);
+    }
+
+    /**
+     * Closes the file. Buffers already returned stay readable until they are
+     * collected, as mappings can not be released explicitly.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        mSegments = null;
+        if (mDecoder != null) {
+            mDecoder.release();
+            mDecoder = null;
+        }
+        if (mFile != null) {
+            mFile.close();
+        }
+    }
+
+    private FrameEntry[] index() throws IOException {
+        if (mEntries == null) {
+            readFolderIndex();
+        }
+        return mEntries;
+    }
+
+    private void readContainerIndex() throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RawDumpWriter.HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        readFully(header, 0);
+        if (header.getInt(0) != RawDumpWriter.MAGIC) {
+            throw new IOException("Not a raw dump");
+        }
+        int version = header.getInt(4);
+        int entrySize = header.getInt(12);
+        int capacity = header.getInt(16);
+        int frameCount = header.getInt(20);
+        long indexOffset = header.getLong(24);
+        int flags = header.getInt(48);
+        // Version 1 entries end with the height.
+        int minEntrySize = version == 1 ? 32 : RawDumpWriter.INDEX_ENTRY_SIZE;
+        if (version < 1 || version > RawDumpWriter.VERSION) {
+            throw new IOException("Unsupported raw dump version " + version);
+        }
+        if (entrySize < minEntrySize || capacity < 0 || indexOffset < RawDumpWriter.HEADER_SIZE
+                || indexOffset + (long) capacity * entrySize > mFile.length()) {
+            throw new IOException("Corrupt raw dump header");
+        }
+        mClosedCleanly = (flags & RawDumpWriter.FLAG_CLOSED) != 0;
+
+        long fileLength = mFile.length();
+        List<FrameEntry> entries = new ArrayList<>();
+        if (capacity > 0) {
+            ByteBuffer index = mChannel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                    (long) capacity * entrySize).order(ByteOrder.LITTLE_ENDIAN);
+            int count = mClosedCleanly ? Math.min(frameCount, capacity) : capacity;
+            for (int i = 0; i < count; i++) {
+                int position = i * entrySize;
+                FrameEntry entry = new FrameEntry();
+                entry.mTimestampNs = index.getLong(position);
+                entry.mOffset = index.getLong(position + 8);
+                entry.mStoredSize = index.getInt(position + 16);
+                entry.mFormat = index.getInt(position + 20);
+                entry.mWidth = index.getInt(position + 24);
+                entry.mHeight = index.getInt(position + 28);
+                if (version == 1) {
+                    entry.mSize = entry.mStoredSize;
+                    entry.mCodec = FrameCompressor.CODEC_NONE;
+                } else {
+                    entry.mSize = index.getInt(position + 32);
+                    entry.mCodec = index.getInt(position + 36);
+                }
+                // An entry is written after its frame, so the first empty
+                // one ends an unclosed container.
+                if (entry.mStoredSize <= 0 || entry.mOffset <= 0
+                        || entry.mOffset + entry.mStoredSize > fileLength) {
+                    if (mClosedCleanly) {
+                        throw new IOException("Bad raw dump index entry " + i);
+                    }
+                    break;
+                }
+                entries.add(entry);
+            }
+        }
+        buildSegments(entries);
+        setEntries(entries);
+    }
+
+    /**
+     * Groups the frames, in file order, into mappings of at most
+     * {@link #MAX_SEGMENT_SIZE}.
+     */
+    private void buildSegments(List<FrameEntry> entries) {
+        List<long[]> segments = new ArrayList<>();
+        long[] segment = null;
+        for (FrameEntry entry : entries) {
+            long end = entry.mOffset + entry.mStoredSize;
+            if (segment == null || entry.mOffset < segment[0]
+                    || end - segment[0] > MAX_SEGMENT_SIZE) {
+                segment = new long[] {entry.mOffset, end};
+                segments.add(segment);
+            } else {
+                segment[1] = Math.max(segment[1], end);
+            }
+            entry.mSegment = segments.size() - 1;
+        }
+        mSegmentStarts = new long[segments.size()];
+        mSegmentEnds = new long[segments.size()];
+        for (int i = 0; i < segments.size(); i++) {
+            mSegmentStarts[i] = segments.get(i)[0];
+            mSegmentEnds[i] = segments.get(i)[1];
+        }
+        mSegments = new MappedByteBuffer[segments.size()];
+    }
+
+    private void readFolderIndex() throws IOException {
+        String[] names = mFolder.list();
+        if (names == null) {
+            throw new IOException("Can not list " + mFolder);
+        }
+        List<FrameEntry> entries = new ArrayList<>();
+        for (String name : names) {
+            FrameEntry entry = parseLegacyName(name);
+            if (entry != null) {
+                entry.mFile = new File(mFolder, name);
+                entries.add(entry);
+            }
+        }
+        setEntries(entries);
+    }
+
+    /**
+     * Parses {@code dumpImage_<timestamp>_<width>x<height>.nv12}, or returns
+     * null for other names.
+     */
+    static FrameEntry parseLegacyName(String name) {
+        if (!name.startsWith(LEGACY_PREFIX) || !name.endsWith(LEGACY_SUFFIX)) {
+            return null;
+        }
+        int separator = name.indexOf('_', LEGACY_PREFIX.length());
+        int x = name.lastIndexOf('x');
+        if (separator < 0 || x < separator) {
+            return null;
+        }
+        FrameEntry entry = new FrameEntry();
+        try {
+            entry.mTimestampNs = Long.parseLong(name.substring(LEGACY_PREFIX.length(), separator));
+            entry.mWidth = Integer.parseInt(name.substring(separator + 1, x));
+            entry.mHeight = Integer.parseInt(
+                    name.substring(x + 1, name.length() - LEGACY_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (entry.mWidth <= 0 || entry.mHeight <= 0) {
+            return null;
+        }
+        entry.mFormat = YuvConverter.COLOR_FormatNV12;
+        entry.mSize = entry.mWidth * entry.mHeight * 3 / 2;
+        entry.mStoredSize = entry.mSize;
+        entry.mCodec = FrameCompressor.CODEC_NONE;
+        return entry;
+    }
+
+    private void setEntries(List<FrameEntry> entries) {
+        FrameEntry[] sorted = entries.toArray(new FrameEntry[entries.size()]);
+        // Stable, so frames with equal timestamps keep their file order.
+        Arrays.sort(sorted, new Comparator<FrameEntry>() {
+            @Override
+            public int compare(FrameEntry lhs, FrameEntry rhs) {
+                return lhs.mTimestampNs < rhs.mTimestampNs ? -1
+                        : lhs.mTimestampNs == rhs.mTimestampNs ? 0 : 1;
+            }
+        });
+        long[] timestamps = new long[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            timestamps[i] = sorted[i].mTimestampNs;
+        }
+        mTimestamps = timestamps;
+        mEntries = sorted;
+    }
+
+    private ByteBuffer view(FrameEntry entry) throws IOException {
+        if (mSegments == null) {
+            throw new IOException("Raw dump is closed");
+        }
+        int s = entry.mSegment;
+        MappedByteBuffer segment = mSegments[s];
+        if (segment == null) {
+            segment = mChannel.map(FileChannel.MapMode.READ_ONLY, mSegmentStarts[s],
+                    mSegmentEnds[s] - mSegmentStarts[s]);
+            mSegments[s] = segment;
+        }
+        ByteBuffer data = segment.duplicate();
+        int position = (int) (entry.mOffset - mSegmentStarts[s]);
+        data.position(position);
+        data.limit(position + entry.mStoredSize);
+        return data.slice();
+    }
+
+    private static ByteBuffer mapLegacy(FrameEntry entry) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(entry.mFile, "r");
+        try {
+            if (file.length() < entry.mSize) {
+                throw new IOException(entry.mFile + " is shorter than a frame");
+            }
+            // The mapping stays valid after the file is closed.
+            return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, entry.mSize);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = mChannel.read(buffer, position);
+            if (read < 0) {
+                throw new IOException("Raw dump is truncated");
+            }
+            position += read;
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package com.example.android.dump;
+
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Dumps raw camera frames into one indexed container file on a background
+ * thread, instead of one file per frame written on the camera thread.
+ * <p>
+ * {@link #dump} retains the pooled {@link FrameBuffer} and queues it; it
+ * never blocks or touches the file. When the bounded queue is full the frame
+ * is dropped and counted, so a slow card costs dumped frames, not camera
+ * frames. The writer thread appends each frame at the next aligned offset
+ * with a positional write, then records it in the index, and releases the
+ * buffer. Given a pool of its own, the writer copies every frame into it
+ * instead, so frames waiting for the card never hold the caller's pool.
+ * </p>
+ * <p>
+ * With compression threads, every queued frame is first compressed by one of
+ * them with a {@link FrameCompressor}, several frames at once, and its
+ * buffer is released as soon as it is compressed. The writer thread still
+ * writes the frames in the order they were dumped. Frames that do not get
+ * smaller are stored as they are, and so are frames whose compression
+ * throws; the compression thread goes on with the next frame.
+ * </p>
+ * <p>
+ * The file is grown in large preallocated steps and cut to its real length on
+ * {@link #close()}, which also writes the frame count into the header and a
+ * footer after the data. A file whose writer did not close still has a valid
+ * index up to its first empty entry, as an entry is only written once its
+ * frame is. All little-endian:
+ * </p>
+ * <pre>
+ * header (64 bytes): magic "RDMP", int32 version, int32 header size,
+ *     int32 index entry size, int32 index capacity, int32 frame count,
+ *     int64 index offset, int64 data offset, int64 data end, int32 flags,
+ *     12 reserved bytes
+ * index entry (40 bytes): int64 timestamp [ns], int64 offset, int32 stored
+ *     size, int32 color format, int32 width, int32 height, int32 frame size,
+ *     int32 codec, see {@link FrameCompressor}
+ * frames: at {@link #FRAME_ALIGNMENT} aligned offsets from the data offset
+ * footer (16 bytes, at data end): magic "RDMF", int32 frame count,
+ *     int64 data end
+ * </pre>
+ */
+public class RawDumpWriter implements Closeable {
+    static final int MAGIC = 0x504d4452; // "RDMP" read little-endian
+    static final int FOOTER_MAGIC = 0x464d4452; // "RDMF" read little-endian
+    // Version 1 had 32 byte index entries, without frame size and codec.
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int INDEX_ENTRY_SIZE = 40;
+    static final int FOOTER_SIZE = 16;
+    static final int FLAG_CLOSED = 1;
+    // Frames start on page boundaries, so they can be mapped and read
+    // without straddling more pages than needed.
+    public static final int FRAME_ALIGNMENT = 4096;
+    private static final long PREALLOCATION_STEP = 64L * 1024 * 1024;
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final int mIndexCapacity;
+    private final long mDataOffset;
+    private final ByteBuffer mEntry;
+    private final ArrayBlockingQueue<PendingFrame> mPending;
+    private final ArrayBlockingQueue<PendingFrame> mFree;
+    private final PendingFrame mStopMarker = new PendingFrame();
+    private final int mQueueCapacity;
+    // Null without compression.
+    private final ArrayBlockingQueue<PendingFrame> mCompressQueue;
+    private final FrameCompressor[] mCompressors;
+    private final Thread[] mCompressThreads;
+    // Null to retain the caller's frames.
+    private final FrameBufferPool mCopyPool;
+    private Thread mThread;
+    private volatile IOException mError;
+
+    // Owned by the writer thread until it stops.
+    private long mDataEnd;
+    private long mAllocatedEnd;
+    private int mFrameCount;
+
+    private final AtomicLong mFramesWritten = new AtomicLong();
+    private final AtomicLong mBytesWritten = new AtomicLong();
+    private final AtomicLong mFrameBytesWritten = new AtomicLong();
+    private final AtomicLong mWriteNanos = new AtomicLong();
+    private final AtomicLong mFramesCompressed = new AtomicLong();
+    private final AtomicLong mBytesCompressed = new AtomicLong();
+    private final AtomicLong mCompressNanos = new AtomicLong();
+    private final AtomicLong mCompressionFailures = new AtomicLong();
+    private final AtomicLong mDroppedQueueFull = new AtomicLong();
+    private final AtomicLong mDroppedPoolExhausted = new AtomicLong();
+    private final AtomicLong mDroppedIndexFull = new AtomicLong();
+    private final AtomicLong mDroppedError = new AtomicLong();
+    private volatile int mHighWaterMark;
+
+    private static class PendingFrame {
+        // Released once the frame is compressed.
+        FrameBuffer mFrame;
+        int mSize;
+        long mTimestampNs;
+        int mFormat;
+        int mWidth;
+        int mHeight;
+        // The compressed frame, grown to the frame size once.
+        byte[] mStored = new byte[0];
+        int mStoredSize;
+        int mCodec;
+        // Guarded by the frame itself.
+        boolean mCompressed;
+    }
+
+    /**
+     * Creates a container of uncompressed frames, replacing any file at
+     * {@code path}.
+     *
+     * @param indexCapacity Most frames the container can hold; later frames
+     *        are dropped. 30 minutes at 30 fps take 54000 entries, 2.1 MB.
+     * @param queueCapacity Most frames waiting to be written, each holding
+     *        a pooled buffer.
+     */
+    public RawDumpWriter(String path, int indexCapacity, int queueCapacity) throws IOException {
+        this(path, indexCapacity, queueCapacity, 0, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Creates the container, replacing any file at {@code path}.
+     *
+     * @param queueCapacity Most frames waiting to be compressed or written.
+     *        With compression, every slot also keeps a buffer as large as the
+     *        largest frame it held.
+     * @param compressionThreads Threads compressing frames, 0 to store them
+     *        uncompressed.
+     * @param compressionLevel Deflater level of the compression.
+     */
+    public RawDumpWriter(String path, int indexCapacity, int queueCapacity,
+                         int compressionThreads, int compressionLevel) throws IOException {
+        this(path, indexCapacity, queueCapacity, compressionThreads, compressionLevel, null);
+    }
+
+    /**
+     * Creates the container, replacing any file at {@code path}.
+     *
+     * @param copyPool Pool the frames are copied into by {@link #dump}, or
+     *        null to retain the caller's frames. Its cap bounds the memory of
+     *        the frames waiting; a frame that finds it exhausted is dropped.
+     */
+    public RawDumpWriter(String path, int indexCapacity, int queueCapacity,
+                         int compressionThreads, int compressionLevel,
+                         FrameBufferPool copyPool) throws IOException {
+        this(path, indexCapacity, queueCapacity,
+                createCompressors(compressionThreads, compressionLevel), copyPool);
+    }
+
+    /**
+     * @param compressors One per compression thread, or null to store frames
+     *        uncompressed. Released by the writer.
+     */
+    RawDumpWriter(String path, int indexCapacity, int queueCapacity,
+                  FrameCompressor[] compressors, FrameBufferPool copyPool) throws IOException {
+        if (indexCapacity < 1 || queueCapacity < 1) {
+            throw new IllegalArgumentException("Invalid raw dump capacity");
+        }
+        mIndexCapacity = indexCapacity;
+        mQueueCapacity = queueCapacity;
+        mCopyPool = copyPool;
+        if (compressors != null) {
+            mCompressQueue = new ArrayBlockingQueue<>(queueCapacity + compressors.length);
+            mCompressors = compressors;
+            mCompressThreads = new Thread[compressors.length];
+        } else {
+            mCompressQueue = null;
+            mCompressors = null;
+            mCompressThreads = null;
+        }
+        mDataOffset = align(HEADER_SIZE + (long) indexCapacity * INDEX_ENTRY_SIZE);
+        mDataEnd = mDataOffset;
+        mEntry = ByteBuffer.allocateDirect(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mPending = new ArrayBlockingQueue<>(queueCapacity + 1);
+        mFree = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            mFree.add(new PendingFrame());
+        }
+        mFile = new RandomAccessFile(path, "rw");
+        mChannel = mFile.getChannel();
+        try {
+            // Drops old contents, so the index reads as empty.
+            mFile.setLength(0);
+            preallocate(mDataOffset + PREALLOCATION_STEP);
+            writeHeader(0, 0);
+        } catch (IOException e) {
+            mFile.close();
+            releaseCompressors();
+            throw e;
+        }
+    }
+
+    private static FrameCompressor[] createCompressors(int threads, int level) {
+        if (threads < 0) {
+            throw new IllegalArgumentException("Invalid raw dump capacity");
+        }
+        if (threads == 0) {
+            return null;
+        }
+        FrameCompressor[] compressors = new FrameCompressor[threads];
+        for (int i = 0; i < threads; i++) {
+            compressors[i] = new FrameCompressor(level);
+        }
+        return compressors;
+    }
+
+    public void start() {
+        if (mCompressors != null) {
+            for (int i = 0; i < mCompressors.length; i++) {
+                final FrameCompressor compressor = mCompressors[i];
+                mCompressThreads[i] = new Thread("RawDumpCompressor" + i) {
+                    @Override
+                    public void run() {
+                        compressLoop(compressor);
+                    }
+                };
+                mCompressThreads[i].start();
+            }
+        }
+        mThread = new Thread("RawDumpWriter") {
+            @Override
+            public void run() {
+                writeLoop();
+            }
+        };
+        mThread.start();
+    }
+
+    /**
+     * Queues {@code size} bytes of {@code frame} from offset 0. The frame is
+     * retained until it is written, or copied right away with a copy pool;
+     * the caller keeps its own reference.
+     *
+     * @param format The color format of the data, such as
+     *        {@code YuvConverter.COLOR_FormatNV12}.
+     * @return false if the frame was dropped.
+     */
+    public boolean dump(FrameBuffer frame, int size, long timestampNs, int format, int width,
+                        int height) {
+        if (mError != null) {
+            mDroppedError.incrementAndGet();
+            return false;
+        }
+        if (size <= 0 || size > frame.capacity()) {
+            throw new IllegalArgumentException("Invalid frame size " + size);
+        }
+        PendingFrame pending = mFree.poll();
+        if (pending == null) {
+            mDroppedQueueFull.incrementAndGet();
+            return false;
+        }
+        if (mCopyPool != null) {
+            FrameBuffer copy = mCopyPool.acquire(size);
+            if (copy == null) {
+                mFree.add(pending);
+                mDroppedPoolExhausted.incrementAndGet();
+                return false;
+            }
+            ByteBuffer data = frame.buffer().duplicate();
+            data.clear();
+            data.limit(size);
+            ByteBuffer target = copy.buffer().duplicate();
+            target.clear();
+            target.put(data);
+            pending.mFrame = copy;
+        } else {
+            pending.mFrame = frame.retain();
+        }
+        pending.mSize = size;
+        pending.mTimestampNs = timestampNs;
+        pending.mFormat = format;
+        pending.mWidth = width;
+        pending.mHeight = height;
+        pending.mCodec = FrameCompressor.CODEC_NONE;
+        pending.mCompressed = false;
+        // Never full: there are fewer frames than slots besides the marker.
+        mPending.add(pending);
+        if (mCompressQueue != null) {
+            mCompressQueue.add(pending);
+        }
+        int depth = mPending.size();
+        if (depth > mHighWaterMark) {
+            mHighWaterMark = depth;
+        }
+        return true;
+    }
+
+    /**
+     * Writes what is queued, completes the container and closes it.
+     *
+     * @throws IOException The first error of the writer thread, if any.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            if (mThread != null) {
+                try {
+                    mPending.put(mStopMarker);
+                    mThread.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while stopping the raw dump", e);
+                }
+                mThread = null;
+            }
+            stopCompressThreads();
+            if (mError != null) {
+                throw mError;
+            }
+            mEntry.clear();
+            mEntry.putInt(FOOTER_MAGIC).putInt(mFrameCount).putLong(mDataEnd);
+            mEntry.flip();
+            writeFully(mEntry, mDataEnd);
+            mFile.setLength(mDataEnd + FOOTER_SIZE);
+            writeHeader(mFrameCount, FLAG_CLOSED);
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private void stopCompressThreads() throws IOException {
+        if (mCompressThreads == null || mCompressThreads[0] == null) {
+            releaseCompressors();
+            return;
+        }
+        try {
+            for (int i = 0; i < mCompressThreads.length; i++) {
+                mCompressQueue.put(mStopMarker);
+            }
+            for (int i = 0; i < mCompressThreads.length; i++) {
+                mCompressThreads[i].join();
+                mCompressThreads[i] = null;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the raw dump", e);
+        }
+    }
+
+    private void releaseCompressors() {
+        if (mCompressors != null) {
+            for (FrameCompressor compressor : mCompressors) {
+                compressor.release();
+            }
+        }
+    }
+
+    public long getFramesWritten() {
+        return mFramesWritten.get();
+    }
+
+    /**
+     * Bytes of frame data written to the file, compressed or not.
+     */
+    public long getBytesWritten() {
+        return mBytesWritten.get();
+    }
+
+    /**
+     * Uncompressed size of the frames written.
+     */
+    public long getFrameBytesWritten() {
+        return mFrameBytesWritten.get();
+    }
+
+    /**
+     * Uncompressed over written size of the frames written, 1 without
+     * compression.
+     */
+    public double getCompressionRatio() {
+        long bytes = mBytesWritten.get();
+        return bytes > 0 ? (double) mFrameBytesWritten.get() / bytes : 1;
+    }
+
+    /**
+     * Frames dropped because the queue, the copy pool, the index or an
+     * earlier write error did not allow them.
+     */
+    public long getFramesDropped() {
+        return mDroppedQueueFull.get() + mDroppedPoolExhausted.get() + mDroppedIndexFull.get()
+                + mDroppedError.get();
+    }
+
+    /**
+     * Frames stored uncompressed because their compression threw.
+     */
+    public long getCompressionFailures() {
+        return mCompressionFailures.get();
+    }
+
+    public int getQueueDepth() {
+        return mPending.size();
+    }
+
+    public int getHighWaterMark() {
+        return mHighWaterMark;
+    }
+
+    /**
+     * Write throughput of the writer thread, in bytes per second of writing.
+     */
+    public double getThroughput() {
+        long nanos = mWriteNanos.get();
+        return nanos > 0 ? mBytesWritten.get() * 1e9 / nanos : 0;
+    }
+
+    /**
+     * Uncompressed bytes per second of one compression thread.
+     */
+    public double getCompressionThroughput() {
+        long nanos = mCompressNanos.get();
+        return nanos > 0 ? mBytesCompressed.get() * 1e9 / nanos : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "RawDumpWriter{written=" + getFramesWritten()
+                + ", bytes=" + getBytesWritten()
+                + ", throughputKBps=" + (long) (getThroughput() / 1024)
+                + (mCompressors == null ? "" : ", compressionRatio="
+                        + Math.round(getCompressionRatio() * 100) / 100.0
+                        + ", compressed=" + mFramesCompressed.get()
+                        + ", compressKBpsPerThread=" + (long) (getCompressionThroughput() / 1024)
+                        + ", compressFailed=" + mCompressionFailures.get()
+                        + ", compressThreads=" + mCompressors.length)
+                + ", droppedQueueFull=" + mDroppedQueueFull.get()
+                + (mCopyPool == null ? "" : ", droppedPoolExhausted=" + mDroppedPoolExhausted.get())
+                + ", droppedIndexFull=" + mDroppedIndexFull.get()
+                + ", droppedError=" + mDroppedError.get()
+                + ", highWater=" + getHighWaterMark() + "/" + mQueueCapacity
+                + "}";
+    }
+
+    private void writeLoop() {
+        try {
+            while (true) {
+                PendingFrame pending = mPending.take();
+                if (pending == mStopMarker) {
+                    return;
+                }
+                try {
+                    if (mCompressQueue != null) {
+                        synchronized (pending) {
+                            while (!pending.mCompressed) {
+                                pending.wait();
+                            }
+                        }
+                    }
+                    if (mError != null) {
+                        mDroppedError.incrementAndGet();
+                    } else if (mFrameCount == mIndexCapacity) {
+                        mDroppedIndexFull.incrementAndGet();
+                    } else {
+                        writeFrame(pending);
+                    }
+                } catch (IOException e) {
+                    mError = e;
+                    mDroppedError.incrementAndGet();
+                } finally {
+                    if (pending.mFrame != null) {
+                        pending.mFrame.release();
+                        pending.mFrame = null;
+                    }
+                    mFree.add(pending);
+                }
+            }
+        } catch (InterruptedException e) {
+            mError = new IOException("Raw dump writer interrupted", e);
+        }
+    }
+
+    private void compressLoop(FrameCompressor compressor) {
+        try {
+            while (true) {
+                PendingFrame pending = mCompressQueue.take();
+                if (pending == mStopMarker) {
+                    return;
+                }
+                try {
+                    compressFrame(compressor, pending);
+                } catch (RuntimeException e) {
+                    // A frame the compressor chokes on is still worth keeping.
+                    pending.mCodec = FrameCompressor.CODEC_NONE;
+                    mCompressionFailures.incrementAndGet();
+                } finally {
+                    synchronized (pending) {
+                        pending.mCompressed = true;
+                        pending.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            mError = new IOException("Raw dump compressor interrupted", e);
+        } finally {
+            compressor.release();
+        }
+    }
+
+    private void compressFrame(FrameCompressor compressor, PendingFrame pending) {
+        long start = System.nanoTime();
+        if (pending.mStored.length < pending.mSize) {
+            pending.mStored = new byte[pending.mSize];
+        }
+        ByteBuffer data = pending.mFrame.buffer().duplicate();
+        data.clear();
+        int length = compressor.compress(data, pending.mSize, pending.mFormat, pending.mWidth,
+                pending.mHeight, pending.mStored);
+        if (length >= 0) {
+            pending.mStoredSize = length;
+            pending.mCodec = FrameCompressor.codecFor(pending.mFormat, pending.mWidth,
+                    pending.mHeight, pending.mSize);
+            pending.mFrame.release();
+            pending.mFrame = null;
+        }
+        // Otherwise the frame is written as it is.
+        mFramesCompressed.incrementAndGet();
+        mBytesCompressed.addAndGet(pending.mSize);
+        mCompressNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void writeFrame(PendingFrame pending) throws IOException {
+        long start = System.nanoTime();
+        ByteBuffer data;
+        if (pending.mFrame != null) {
+            // Other holders of the frame share the buffer's position and limit.
+            data = pending.mFrame.buffer().duplicate();
+            data.clear();
+            data.limit(pending.mSize);
+        } else {
+            data = ByteBuffer.wrap(pending.mStored, 0, pending.mStoredSize);
+        }
+        int storedSize = data.remaining();
+        long offset = mDataEnd;
+        long end = offset + storedSize;
+        if (end + FOOTER_SIZE > mAllocatedEnd) {
+            preallocate(Math.max(end + FOOTER_SIZE, mAllocatedEnd + PREALLOCATION_STEP));
+        }
+        writeFully(data, offset);
+
+        mEntry.clear();
+        mEntry.putLong(pending.mTimestampNs).putLong(offset).putInt(storedSize)
+                .putInt(pending.mFormat).putInt(pending.mWidth).putInt(pending.mHeight)
+                .putInt(pending.mSize).putInt(pending.mCodec);
+        mEntry.flip();
+        writeFully(mEntry, HEADER_SIZE + (long) mFrameCount * INDEX_ENTRY_SIZE);
+
+        mFrameCount++;
+        mDataEnd = align(end);
+        mFramesWritten.incrementAndGet();
+        mBytesWritten.addAndGet(storedSize);
+        mFrameBytesWritten.addAndGet(pending.mSize);
+        mWriteNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void writeHeader(int frameCount, int flags) throws IOException {
+        mEntry.clear();
+        mEntry.putInt(MAGIC).putInt(VERSION).putInt(HEADER_SIZE).putInt(INDEX_ENTRY_SIZE)
+                .putInt(mIndexCapacity).putInt(frameCount)
+                .putLong(HEADER_SIZE).putLong(mDataOffset).putLong(mDataEnd).putInt(flags)
+                .putInt(0).putLong(0);
+        mEntry.flip();
+        writeFully(mEntry, 0);
+    }
+
+    private void preallocate(long length) throws IOException {
+        mFile.setLength(length);
+        mAllocatedEnd = length;
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+
+    static long align(long offset) {
+        return (offset + FRAME_ALIGNMENT - 1) & -FRAME_ALIGNMENT;
+    }
+}
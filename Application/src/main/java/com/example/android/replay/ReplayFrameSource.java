@@ -0,0 +1,568 @@
+package com.example.android.replay;
+
+import com.example.android.buffer.BackpressurePolicies;
+import com.example.android.buffer.BackpressurePolicy;
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.buffer.FrameDropStats;
+import com.example.android.buffer.FrameRing;
+import com.example.android.buffer.ImageDataInfo;
+import com.example.android.codec.FrameSource;
+import com.example.android.dump.RawDumpReader;
+import com.example.android.sensor.ImuCompressedReader;
+import com.example.android.sensor.ImuCsvReader;
+import com.example.android.sensor.ImuRecordReader;
+import com.example.android.sensor.SensorSampleSink;
+import com.example.android.sensor.SensorSampleSource;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link FrameSource} that plays a recorded session back instead of the
+ * camera: the frames of a {@link RawDumpReader} and, optionally, the sensor
+ * log recorded with them, so conversion, encoding and sync stages can be
+ * run and measured without a device.
+ * <p>
+ * A prefetch thread copies frames out of the dump, decoding compressed ones,
+ * into pooled buffers a few frames ahead. A replay thread releases them
+ * at their recorded pace scaled by {@link #setSpeed}, or as fast as the
+ * consumer takes them at speed 0, and hands the sensor samples and frame
+ * timestamps of the log to a {@link SensorSampleSink} in timestamp order
+ * on the way. Paced frames go through a {@link BackpressurePolicy} like live
+ * ones, so a consumer that falls behind drops frames as it would on the
+ * device; at speed 0 the replay waits for the consumer instead and every
+ * frame arrives.
+ * </p>
+ * <p>
+ * Presentation times count from the first frame, as the fragment sets
+ * them. Frames are NV12 or whatever format was dumped, and must have the
+ * size the consumer was configured for.
+ * </p>
+ */
+public class ReplayFrameSource implements FrameSource, Closeable {
+    /** Speed at which frames are released as fast as they are consumed. */
+    public static final double MAX_SPEED = 0;
+
+    // The names the fragment writes a session with.
+    public static final String RAW_DUMP_FILE = "frames.rawdump";
+    public static final String IMU_LOG_FILE = "imu.bin";
+    public static final String IMU_COMPRESSED_LOG_FILE = "imu.imz";
+
+    // How long a blocked thread sleeps before it checks for close().
+    private static final long WAIT_MS = 10;
+    private static final long SINK_FLUSH_INTERVAL_NS = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Called on the replay thread.
+     */
+    public interface Listener {
+        /**
+         * A frame was queued for {@link #getImageData}.
+         */
+        void onFrameAvailable();
+
+        /**
+         * The last frame and sample were released, or the replay failed, see
+         * {@link #getError()}.
+         */
+        void onReplayFinished();
+    }
+
+    /**
+     * A frame with its capture timestamp, which the replay thread paces by.
+     */
+    private static class ReplayFrame extends ImageDataInfo {
+        long mTimestampNs;
+    }
+
+    /**
+     * The frames and sensor log of a session folder, opened together.
+     */
+    private static class Session {
+        RawDumpReader mFrames;
+        SensorSampleSource mSensors;
+    }
+
+    private final RawDumpReader mFrames;
+    private final SensorSampleSource mSensors;
+    private final FrameBufferPool mPool;
+    // Copied frames, prefetch thread -> replay thread.
+    private final FrameRing<ReplayFrame> mPrefetched;
+    // Released frames, replay thread -> consumer.
+    private final FrameRing<ImageDataInfo> mReady;
+    // Empty frame holders, consumer -> prefetch thread.
+    private final FrameRing<ReplayFrame> mIdle;
+    private final FrameDropStats mDropStats = new FrameDropStats();
+    private BackpressurePolicy<ImageDataInfo> mBackpressurePolicy =
+            BackpressurePolicies.dropOldest();
+    private SensorSampleSink mSensorSink;
+    private Listener mListener;
+    private double mSpeed = 1;
+
+    private Thread mPrefetchThread;
+    private Thread mReplayThread;
+    private volatile boolean mStopped;
+    private volatile boolean mPrefetchDone;
+    private volatile boolean mFinished;
+    private volatile IOException mError;
+
+    private volatile long mFramesPrefetched;
+    private volatile long mPoolWaits;
+    private volatile long mFramesReleased;
+    private volatile long mSamplesReleased;
+    private volatile long mTotalLatenessNs;
+    private volatile long mMaxLatenessNs;
+    private volatile long mReplayStartNs;
+    private volatile long mReplayEndNs;
+
+    /**
+     * Replays the session {@link #openFrames} and {@link #openSensorLog}
+     * find in {@code folder}.
+     */
+    public ReplayFrameSource(String folder, FrameBufferPool pool, int prefetchFrames)
+            throws IOException {
+        this(openSession(folder), pool, prefetchFrames);
+    }
+
+    private ReplayFrameSource(Session session, FrameBufferPool pool, int prefetchFrames) {
+        this(session.mFrames, session.mSensors, pool, prefetchFrames);
+    }
+
+    /**
+     * @param frames Closed by {@link #close()}.
+     * @param sensors Log replayed alongside the frames, or null. Closed by
+     *        {@link #close()}.
+     * @param pool Buffers of the prefetched and queued frames.
+     * @param prefetchFrames Frames copied ahead of the replay thread.
+     */
+    public ReplayFrameSource(RawDumpReader frames, SensorSampleSource sensors,
+                             FrameBufferPool pool, int prefetchFrames) {
+        mFrames = frames;
+        mSensors = sensors;
+        mPool = pool;
+        mPrefetched = new FrameRing<ReplayFrame>(prefetchFrames);
+        mReady = new FrameRing<ImageDataInfo>(prefetchFrames);
+        mIdle = new FrameRing<ReplayFrame>(2 * prefetchFrames + 2);
+    }
+
+    /**
+     * Opens the frames of a session folder: its {@link #RAW_DUMP_FILE}
+     * container, or else the legacy per-frame dumps in it.
+     */
+    public static RawDumpReader openFrames(String folder) throws IOException {
+        File container = new File(folder, RAW_DUMP_FILE);
+        return RawDumpReader.open(container.isFile() ? container.getPath() : folder);
+    }
+
+    /**
+     * Opens the sensor log of a session folder: {@link #IMU_COMPRESSED_LOG_FILE},
+     * {@link #IMU_LOG_FILE} or the CSV files, whichever is found first.
+     *
+     * @return null if the folder has no sensor log.
+     */
+    public static SensorSampleSource openSensorLog(String folder) throws IOException {
+        File compressed = new File(folder, IMU_COMPRESSED_LOG_FILE);
+        if (compressed.isFile()) {
+            return new ImuCompressedReader(compressed.getPath());
+        }
+        File records = new File(folder, IMU_LOG_FILE);
+        if (records.isFile()) {
+            return new ImuRecordReader(records.getPath());
+        }
+        if (ImuCsvReader.hasCsvLog(folder)) {
+            return new ImuCsvReader(folder);
+        }
+        return null;
+    }
+
+    /**
+     * Sets the replay speed relative to the recording: 1 for real time, 2
+     * for twice as fast, {@link #MAX_SPEED} to release frames as fast as
+     * they are consumed. Call before {@link #start()}.
+     */
+    public void setSpeed(double speed) {
+        if (speed < 0 || Double.isNaN(speed) || Double.isInfinite(speed)) {
+            throw new IllegalArgumentException("Invalid replay speed " + speed);
+        }
+        mSpeed = speed;
+    }
+
+    /**
+     * Sets what happens to paced frames the consumer does not keep up with,
+     * {@link BackpressurePolicies#dropOldest()} by default. Not used at
+     * {@link #MAX_SPEED}. Call before {@link #start()}.
+     */
+    public void setBackpressurePolicy(BackpressurePolicy<ImageDataInfo> policy) {
+        mBackpressurePolicy = policy;
+    }
+
+    /**
+     * Sets where the sensor log is replayed to, on the replay thread. Without
+     * a sink the log is not read. Flushed about once a second and at the
+     * end; not closed. Call before {@link #start()}.
+     */
+    public void setSensorSink(SensorSampleSink sink) {
+        mSensorSink = sink;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public void start() {
+        if (mPrefetchThread != null) {
+            throw new IllegalStateException("Replay already started");
+        }
+        mPrefetchThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                prefetch();
+            }
+        }, "ReplayPrefetch");
+        mReplayThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                replay();
+            }
+        }, "Replay");
+        mPrefetchThread.start();
+        mReplayThread.start();
+    }
+
+    @Override
+    public ImageDataInfo getImageData(long timeoutUs) {
+        return mReady.take(timeoutUs, TimeUnit.MICROSECONDS);
+    }
+
+    @Override
+    public void recycleImageData(ImageDataInfo data) {
+        if (data.mFrame != null) {
+            data.mFrame.release();
+            data.mFrame = null;
+        }
+        data.mPresentationTimeUs = -1;
+        if (data instanceof ReplayFrame) {
+            mIdle.tryOffer((ReplayFrame) data);
+        }
+    }
+
+    /**
+     * Whether every frame was released and taken, or the replay failed.
+     */
+    public boolean isFinished() {
+        return mFinished && mReady.isEmpty();
+    }
+
+    /**
+     * Returns what stopped the replay early, or null.
+     */
+    public IOException getError() {
+        return mError;
+    }
+
+    /**
+     * Stops the threads, frees the frames still queued and closes the dump
+     * and the sensor log.
+     */
+    @Override
+    public void close() throws IOException {
+        mStopped = true;
+        try {
+            join(mPrefetchThread);
+            join(mReplayThread);
+        } finally {
+            ImageDataInfo info;
+            while ((info = mPrefetched.poll()) != null) {
+                free(info);
+            }
+            while ((info = mReady.poll()) != null) {
+                free(info);
+            }
+            try {
+                mFrames.close();
+            } finally {
+                if (mSensors != null) {
+                    mSensors.close();
+                }
+            }
+        }
+    }
+
+    public long getFramesReleased() {
+        return mFramesReleased;
+    }
+
+    public long getSamplesReleased() {
+        return mSamplesReleased;
+    }
+
+    /**
+     * Frames dropped because the consumer fell behind.
+     */
+    public FrameDropStats getDropStats() {
+        return mDropStats;
+    }
+
+    /**
+     * Average time frames and samples were released after they were due.
+     */
+    public double getAverageLatenessMs() {
+        long released = mFramesReleased + mSamplesReleased;
+        return released == 0 ? 0 : mTotalLatenessNs * 1e-6 / released;
+    }
+
+    public double getMaxLatenessMs() {
+        return mMaxLatenessNs * 1e-6;
+    }
+
+    /**
+     * Frames released per second of replay so far.
+     */
+    public double getFrameRate() {
+        long start = mReplayStartNs;
+        if (start == 0) {
+            return 0;
+        }
+        long end = mFinished ? mReplayEndNs : System.nanoTime();
+        return end > start ? mFramesReleased * 1e9 / (end - start) : 0;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("speed %s, %d of %d frames released at %.1f fps, %d samples, "
+                        + "late %.2f ms on average, %.2f ms max, %d pool waits, %s",
+                mSpeed == MAX_SPEED ? "max" : String.valueOf(mSpeed), mFramesReleased,
+                mFramesPrefetched, getFrameRate(), mSamplesReleased, getAverageLatenessMs(),
+                getMaxLatenessMs(), mPoolWaits, mDropStats);
+    }
+
+    private static Session openSession(String folder) throws IOException {
+        Session session = new Session();
+        session.mFrames = openFrames(folder);
+        try {
+            session.mSensors = openSensorLog(folder);
+        } catch (IOException e) {
+            session.mFrames.close();
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Returns a frame's buffer to the pool and drops its holder: only the
+     * consumer hands holders back to the prefetch thread.
+     */
+    private static void free(ImageDataInfo data) {
+        if (data.mFrame != null) {
+            data.mFrame.release();
+            data.mFrame = null;
+        }
+    }
+
+    private static void join(Thread thread) throws IOException {
+        if (thread == null) {
+            return;
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while stopping the replay", e);
+        }
+    }
+
+    private void prefetch() {
+        try {
+            int count = mFrames.getFrameCount();
+            for (int i = 0; i < count && !mStopped; i++) {
+                RawDumpReader.RawFrame raw = mFrames.getFrame(i);
+                ByteBuffer data = raw.getData();
+                FrameBuffer buffer = acquire(data.remaining());
+                if (buffer == null) {
+                    break;
+                }
+                ByteBuffer target = buffer.buffer();
+                target.clear();
+                target.put(data.duplicate());
+                target.clear();
+                ReplayFrame frame = mIdle.poll();
+                if (frame == null) {
+                    frame = new ReplayFrame();
+                }
+                frame.mFrame = buffer;
+                frame.mTimestampNs = raw.getTimestampNs();
+                while (!mPrefetched.offer(frame, WAIT_MS, TimeUnit.MILLISECONDS)) {
+                    if (mStopped) {
+                        free(frame);
+                        return;
+                    }
+                }
+                mFramesPrefetched++;
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            mPrefetchDone = true;
+            LockSupport.unpark(mReplayThread);
+        }
+    }
+
+    /**
+     * Acquires a buffer, waiting for the consumer to return one while the
+     * pool is exhausted.
+     *
+     * @return null once the replay is closed.
+     */
+    private FrameBuffer acquire(int size) {
+        FrameBuffer buffer = mPool.acquire(size);
+        if (buffer != null) {
+            return buffer;
+        }
+        mPoolWaits++;
+        while (!mStopped) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            buffer = mPool.acquire(size);
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return null;
+    }
+
+    private void replay() {
+        SensorSampleSource sensors = mSensorSink != null ? mSensors : null;
+        try {
+            ReplayFrame frame = nextFrame();
+            boolean haveSample = sensors != null && sensors.next();
+            if (frame == null && !haveSample) {
+                return;
+            }
+            long firstFrameNs = frame != null ? frame.mTimestampNs : 0;
+            long originNs = frame != null ? frame.mTimestampNs : Long.MAX_VALUE;
+            if (haveSample) {
+                originNs = Math.min(originNs, sensors.getTimestampNs());
+            }
+            long startNs = System.nanoTime();
+            long nextFlushNs = startNs + SINK_FLUSH_INTERVAL_NS;
+            mReplayStartNs = startNs;
+            while (!mStopped && (frame != null || haveSample)) {
+                // Samples logged out of order are released as soon as they
+                // are read, as they were delivered late on the device too.
+                boolean sample = haveSample
+                        && (frame == null || sensors.getTimestampNs() <= frame.mTimestampNs);
+                long timestampNs = sample ? sensors.getTimestampNs() : frame.mTimestampNs;
+                long latenessNs = waitUntil(startNs, timestampNs - originNs);
+                if (latenessNs < 0) {
+                    break;
+                }
+                mTotalLatenessNs += latenessNs;
+                mMaxLatenessNs = Math.max(mMaxLatenessNs, latenessNs);
+                if (sample) {
+                    mSensorSink.write(sensors.getTag(), timestampNs, sensors.getX(),
+                            sensors.getY(), sensors.getZ());
+                    mSamplesReleased++;
+                    haveSample = sensors.next();
+                } else {
+                    frame.mPresentationTimeUs = (frame.mTimestampNs - firstFrameNs) / 1000;
+                    release(frame);
+                    frame = nextFrame();
+                }
+                if (sensors != null && System.nanoTime() >= nextFlushNs) {
+                    mSensorSink.flush();
+                    nextFlushNs += SINK_FLUSH_INTERVAL_NS;
+                }
+            }
+            if (frame != null) {
+                free(frame);
+            }
+            if (sensors != null) {
+                mSensorSink.flush();
+            }
+        } catch (IOException e) {
+            mError = e;
+        } finally {
+            mReplayEndNs = System.nanoTime();
+            mFinished = true;
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onReplayFinished();
+            }
+        }
+    }
+
+    /**
+     * Takes the next prefetched frame, waiting for the prefetch thread.
+     *
+     * @return null after the last frame, or once the replay is closed.
+     */
+    private ReplayFrame nextFrame() {
+        while (!mStopped) {
+            // Read the flag first, so a frame queued right before it was set
+            // is not missed.
+            boolean done = mPrefetchDone;
+            ReplayFrame frame = mPrefetched.take(WAIT_MS, TimeUnit.MILLISECONDS);
+            if (frame != null) {
+                return frame;
+            }
+            if (done) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Waits until {@code offsetNs} of recording, scaled by the speed, have
+     * passed since {@code startNs}.
+     *
+     * @return How late the wait ended, or -1 if the replay was closed.
+     */
+    private long waitUntil(long startNs, long offsetNs) {
+        if (mSpeed == MAX_SPEED) {
+            return 0;
+        }
+        long dueNs = startNs + (long) (offsetNs / mSpeed);
+        long remaining;
+        while ((remaining = dueNs - System.nanoTime()) > 0) {
+            if (mStopped) {
+                return -1;
+            }
+            LockSupport.parkNanos(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(WAIT_MS)));
+        }
+        return -remaining;
+    }
+
+    /**
+     * Queues a frame for the consumer: through the backpressure policy when
+     * paced, waiting for room at {@link #MAX_SPEED}.
+     */
+    private void release(ReplayFrame frame) {
+        if (mSpeed == MAX_SPEED) {
+            while (!mReady.offer(frame, WAIT_MS, TimeUnit.MILLISECONDS)) {
+                if (mStopped) {
+                    free(frame);
+                    return;
+                }
+            }
+            mDropStats.recordQueued();
+        } else {
+            ImageDataInfo dropped = mBackpressurePolicy.offer(mReady, frame, mDropStats);
+            if (dropped != null) {
+                free(dropped);
+                if (dropped == frame) {
+                    return;
+                }
+            }
+        }
+        mFramesReleased++;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onFrameAvailable();
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Locale;
+
+/**
+ * Renders numbers as ASCII text into a preallocated byte buffer, without
+ * the Strings, StringBuilders and Formatter objects that concatenation and
+ * {@code printf} create per value. One instance formats one line at a time
+ * and is reused; it is not thread-safe.
+ * <p>
+ * Floats are written either with a fixed number of decimals, which matches
+ * {@code String.format(Locale.US, "%.6f", value)}, or with the fewest digits
+ * that parse back to the same float. The latter never uses an exponent, so a
+ * value like {@code 4.1E-4} comes out as {@code 0.00041}; both parse to the
+ * same float.
+ * </p>
+ */
+public class CsvNumberFormatter {
+    private static final long[] POWERS_OF_TEN = new long[19];
+    // Scales from the largest float down to the smallest subnormal one.
+    private static final double[] DOUBLE_POWERS_OF_TEN = new double[55];
+    // Any normal float with at most 6 significant digits comes out of
+    // rounding it to 6 digits, plus trailing zeros; 9 digits always identify
+    // a float.
+    private static final int MIN_FLOAT_DIGITS = 6;
+    private static final int MAX_FLOAT_DIGITS = 9;
+    // Fixed precision values at or above this are formatted by the JDK.
+    private static final double MAX_FIXED = 1e12;
+    private static final byte[] NAN = {'N', 'a', 'N'};
+    private static final byte[] INFINITY = {'I', 'n', 'f', 'i', 'n', 'i', 't', 'y'};
+    private static final byte[] MIN_LONG = "-9223372036854775808".getBytes();
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+        for (int i = 0; i < DOUBLE_POWERS_OF_TEN.length; i++) {
+            DOUBLE_POWERS_OF_TEN[i] = Double.parseDouble("1e" + i);
+        }
+    }
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    public CsvNumberFormatter() {
+        this(128);
+    }
+
+    public CsvNumberFormatter(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public void clear() {
+        mLength = 0;
+    }
+
+    /**
+     * The formatted text is in {@code [0, length())}.
+     */
+    public byte[] array() {
+        return mBuffer;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(mBuffer, 0, mLength);
+    }
+
+    @Override
+    public String toString() {
+        return new String(mBuffer, 0, mLength);
+    }
+
+    /**
+     * Appends an ASCII character.
+     */
+    public CsvNumberFormatter append(char c) {
+        ensureCapacity(1);
+        mBuffer[mLength++] = (byte) c;
+        return this;
+    }
+
+    /**
+     * Appends an ASCII string, such as a header.
+     */
+    public CsvNumberFormatter append(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            mBuffer[mLength++] = (byte) s.charAt(i);
+        }
+        return this;
+    }
+
+    public CsvNumberFormatter append(long value) {
+        if (value == Long.MIN_VALUE) {
+            return append(MIN_LONG);
+        }
+        ensureCapacity(20);
+        if (value < 0) {
+            mBuffer[mLength++] = '-';
+            value = -value;
+        }
+        appendDigits(value, 1);
+        return this;
+    }
+
+    /**
+     * Appends {@code value} rounded half up to {@code decimals} digits after
+     * the point, like {@code %.<decimals>f}.
+     */
+    public CsvNumberFormatter appendFixed(float value, int decimals) {
+        if (decimals < 0 || decimals > 9) {
+            throw new IllegalArgumentException("Invalid number of decimals " + decimals);
+        }
+        if (appendSpecial(value)) {
+            return this;
+        }
+        double magnitude = Math.abs((double) value);
+        if (magnitude >= MAX_FIXED) {
+            // Too large for a long with that many decimals; not a sensor value.
+            return append(String.format(Locale.US, "%." + decimals + "f", value));
+        }
+        // Exact for a float scaled by up to 10^9, so this rounds like printf.
+        long scaled = Math.round(magnitude * POWERS_OF_TEN[decimals]);
+        // printf keeps the sign of values that round to zero.
+        if (Float.floatToRawIntBits(value) < 0) {
+            append('-');
+        }
+        appendScaled(scaled, decimals);
+        return this;
+    }
+
+    /**
+     * Appends {@code value} with the fewest significant digits that parse
+     * back to the same float, and at least one decimal. Of two that are
+     * equally close, the one ending in an even digit.
+     */
+    public CsvNumberFormatter appendShortest(float value) {
+        if (appendSpecial(value)) {
+            return this;
+        }
+        if (Float.floatToRawIntBits(value) < 0) {
+            append('-');
+        }
+        float magnitude = Math.abs(value);
+        if (magnitude == 0) {
+            return append('0').append('.').append('0');
+        }
+        int exponent = (int) Math.floor(Math.log10(magnitude));
+        // Subnormal floats are less precise, so try them from one digit up.
+        int minDigits = magnitude >= Float.MIN_NORMAL ? MIN_FLOAT_DIGITS : 1;
+        for (int digits = minDigits; digits <= MAX_FLOAT_DIGITS; digits++) {
+            // Decimals needed for that many significant digits.
+            int decimals = digits - 1 - exponent;
+            long scaled;
+            float candidate;
+            // Halfway cases go to the even digit, as in Float.toString.
+            if (decimals >= 0) {
+                scaled = (long) Math.rint(magnitude * power(decimals));
+                candidate = (float) (scaled / power(decimals));
+            } else {
+                scaled = (long) Math.rint(magnitude / power(-decimals));
+                candidate = (float) (scaled * power(-decimals));
+            }
+            if (candidate == magnitude || digits == MAX_FLOAT_DIGITS) {
+                // Zeros left by fewer digits than tried, or by log10() being
+                // off by one near powers of ten.
+                while (decimals > 1 && scaled % 10 == 0) {
+                    scaled /= 10;
+                    decimals--;
+                }
+                if (decimals > 0) {
+                    appendScaled(scaled, decimals);
+                } else {
+                    ensureCapacity(40 - decimals);
+                    appendDigits(scaled, 1);
+                    for (int i = decimals; i < 0; i++) {
+                        mBuffer[mLength++] = '0';
+                    }
+                    mBuffer[mLength++] = '.';
+                    mBuffer[mLength++] = '0';
+                }
+                break;
+            }
+        }
+        return this;
+    }
+
+    private static double power(int exponent) {
+        return DOUBLE_POWERS_OF_TEN[exponent];
+    }
+
+    private boolean appendSpecial(float value) {
+        if (Float.isNaN(value)) {
+            append(NAN);
+            return true;
+        }
+        if (Float.isInfinite(value)) {
+            if (value < 0) {
+                append('-');
+            }
+            append(INFINITY);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Appends {@code scaled / 10^decimals} with exactly {@code decimals}
+     * digits after the point; {@code scaled} is not negative.
+     */
+    private void appendScaled(long scaled, int decimals) {
+        ensureCapacity(22 + decimals);
+        if (decimals == 0) {
+            appendDigits(scaled, 1);
+            return;
+        }
+        long divisor = decimals < POWERS_OF_TEN.length ? POWERS_OF_TEN[decimals] : Long.MAX_VALUE;
+        appendDigits(scaled / divisor, 1);
+        mBuffer[mLength++] = '.';
+        if (divisor == Long.MAX_VALUE) {
+            // More decimals than a long has digits: leading zeros first.
+            for (int i = 19; i < decimals; i++) {
+                mBuffer[mLength++] = '0';
+            }
+            appendDigits(scaled, 19);
+        } else {
+            appendDigits(scaled % divisor, decimals);
+        }
+    }
+
+    /**
+     * Appends a non-negative value with at least {@code minDigits} digits,
+     * padded with leading zeros.
+     */
+    private void appendDigits(long value, int minDigits) {
+        int digits = 1;
+        while (digits < POWERS_OF_TEN.length && value >= POWERS_OF_TEN[digits]) {
+            digits++;
+        }
+        if (digits < minDigits) {
+            digits = minDigits;
+        }
+        int end = mLength + digits;
+        for (int i = end - 1; i >= mLength; i--) {
+            mBuffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        mLength = end;
+    }
+
+    private CsvNumberFormatter append(byte[] text) {
+        ensureCapacity(text.length);
+        System.arraycopy(text, 0, mBuffer, mLength, text.length);
+        mLength += text.length;
+        return this;
+    }
+
+    private void ensureCapacity(int extra) {
+        if (mLength + extra > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+
+/**
+ * Aligns camera frames with IMU samples while recording, replacing the
+ * offline pass over the CSV files: for every frame it emits a
+ * {@link FrameImuWindow} with each IMU stream interpolated to the frame time
+ * and the samples since the previous frame.
+ * <p>
+ * Samples and frame timestamps may arrive in any order across streams, as
+ * they do when a {@link SensorLogWriter} drains one ring after the other, but
+ * in order within a stream. A frame is emitted once every IMU stream has a
+ * sample at or after its timestamp, so the bracketing samples on both sides
+ * are known; the samples of all streams since the previous frame are then
+ * k-way merged by timestamp into the window.
+ * </p>
+ * <p>
+ * Memory is bounded and preallocated. Each stream keeps at most
+ * {@code sampleCapacity} samples, dropping its oldest ones when a frame is
+ * late, and at most {@code frameCapacity} frames wait for their samples,
+ * dropping the oldest frame if a stream stops. Frames that can not be
+ * bracketed any more, or that arrive out of order, are dropped as well; all
+ * drops are counted. Not thread-safe: use it as the sink of a
+ * {@link SensorLogWriter}, which calls it from its writer thread only.
+ * </p>
+ */
+public class FrameImuSynchronizer implements SensorSampleSink {
+    /**
+     * Receives the IMU window of each frame, in frame order.
+     */
+    public interface Listener {
+        /**
+         * @param window Only valid during the call.
+         * @throws IOException Passed on to the caller of {@link #write}.
+         */
+        void onFrameImu(FrameImuWindow window) throws IOException;
+    }
+
+    /**
+     * The samples of one IMU stream, in a ring of primitive arrays.
+     */
+    private static class Stream {
+        final byte mTag;
+        final long[] mTimestamps;
+        final float[] mValues;
+        int mFirst;
+        int mCount;
+        // Merge cursor, relative to mFirst.
+        int mCursor;
+
+        Stream(byte tag, int capacity) {
+            mTag = tag;
+            mTimestamps = new long[capacity];
+            mValues = new float[3 * capacity];
+        }
+
+        int slot(int i) {
+            int index = mFirst + i;
+            return index < mTimestamps.length ? index : index - mTimestamps.length;
+        }
+
+        long timestamp(int i) {
+            return mTimestamps[slot(i)];
+        }
+
+        long newest() {
+            return mTimestamps[slot(mCount - 1)];
+        }
+
+        void add(long timestampNs, float x, float y, float z) {
+            if (mCount == mTimestamps.length) {
+                removeFirst();
+            }
+            int index = slot(mCount++);
+            mTimestamps[index] = timestampNs;
+            mValues[3 * index] = x;
+            mValues[3 * index + 1] = y;
+            mValues[3 * index + 2] = z;
+        }
+
+        void removeFirst() {
+            mFirst = slot(1);
+            mCount--;
+        }
+    }
+
+    private final Stream[] mStreams;
+    private final Listener mListener;
+    private final FrameImuWindow mWindow;
+    private final long[] mFrames;
+    private int mFirstFrame;
+    private int mFrameCount;
+    private long mLastFrameNs = -1;
+
+    private long mFramesEmitted;
+    private long mFramesDropped;
+    private long mSamplesDropped;
+    private int mMaxPendingFrames;
+
+    /**
+     * Synchronizes frames with {@link ImuRecordWriter#TAG_GYROSCOPE} and
+     * {@link ImuRecordWriter#TAG_ACCELEROMETER}, in that stream order.
+     */
+    public FrameImuSynchronizer(int sampleCapacity, int frameCapacity, Listener listener) {
+        this(new byte[] {ImuRecordWriter.TAG_GYROSCOPE, ImuRecordWriter.TAG_ACCELEROMETER},
+                sampleCapacity, frameCapacity, listener);
+    }
+
+    /**
+     * @param streamTags The IMU streams to interpolate, by tag. Samples of
+     *        other tags are ignored.
+     * @param sampleCapacity Samples kept per stream; enough for the longest
+     *        delay of a frame timestamp behind the IMU samples.
+     * @param frameCapacity Frames that may wait for IMU samples.
+     */
+    public FrameImuSynchronizer(byte[] streamTags, int sampleCapacity, int frameCapacity,
+                                Listener listener) {
+        if (streamTags.length == 0 || sampleCapacity < 2 || frameCapacity < 1) {
+            throw new IllegalArgumentException("Invalid synchronizer size");
+        }
+        mStreams = new Stream[streamTags.length];
+        for (int i = 0; i < streamTags.length; i++) {
+            mStreams[i] = new Stream(streamTags[i], sampleCapacity);
+        }
+        mListener = listener;
+        mWindow = new FrameImuWindow(streamTags, streamTags.length * sampleCapacity);
+        mFrames = new long[frameCapacity];
+    }
+
+    public long getFramesEmitted() {
+        return mFramesEmitted;
+    }
+
+    /**
+     * Frames that were out of order, could not be bracketed or waited too
+     * long for IMU samples.
+     */
+    public long getFramesDropped() {
+        return mFramesDropped;
+    }
+
+    /**
+     * Samples that were out of order within their stream.
+     */
+    public long getSamplesDropped() {
+        return mSamplesDropped;
+    }
+
+    public int getMaxPendingFrames() {
+        return mMaxPendingFrames;
+    }
+
+    @Override
+    public void write(byte tag, long timestampNs, float x, float y, float z) throws IOException {
+        if (tag == ImuRecordWriter.TAG_IMAGE) {
+            addFrame(timestampNs);
+        } else {
+            Stream stream = findStream(tag);
+            if (stream == null) {
+                return;
+            }
+            if (stream.mCount > 0 && timestampNs <= stream.newest()) {
+                mSamplesDropped++;
+                return;
+            }
+            stream.add(timestampNs, x, y, z);
+        }
+        emitReadyFrames();
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public String toString() {
+        return "FrameImuSynchronizer{emitted=" + mFramesEmitted
+                + ", framesDropped=" + mFramesDropped
+                + ", samplesDropped=" + mSamplesDropped
+                + ", maxPendingFrames=" + mMaxPendingFrames
+                + "}";
+    }
+
+    private Stream findStream(byte tag) {
+        for (Stream stream : mStreams) {
+            if (stream.mTag == tag) {
+                return stream;
+            }
+        }
+        return null;
+    }
+
+    private void addFrame(long timestampNs) {
+        long newest = mFrameCount > 0 ? frame(mFrameCount - 1) : mLastFrameNs;
+        if (timestampNs <= newest) {
+            mFramesDropped++;
+            return;
+        }
+        if (mFrameCount == mFrames.length) {
+            // A stream stopped delivering; give up on the oldest frame.
+            mFirstFrame = (mFirstFrame + 1) % mFrames.length;
+            mFrameCount--;
+            mFramesDropped++;
+        }
+        mFrames[(mFirstFrame + mFrameCount) % mFrames.length] = timestampNs;
+        mFrameCount++;
+        if (mFrameCount > mMaxPendingFrames) {
+            mMaxPendingFrames = mFrameCount;
+        }
+    }
+
+    private long frame(int i) {
+        return mFrames[(mFirstFrame + i) % mFrames.length];
+    }
+
+    private void emitReadyFrames() throws IOException {
+        while (mFrameCount > 0) {
+            long frameNs = frame(0);
+            boolean ready = true;
+            boolean bracketed = true;
+            for (Stream stream : mStreams) {
+                if (stream.mCount == 0 || stream.newest() < frameNs) {
+                    ready = false;
+                } else if (stream.timestamp(0) > frameNs) {
+                    // The samples before the frame are gone.
+                    bracketed = false;
+                }
+            }
+            if (!ready) {
+                return;
+            }
+            mFirstFrame = (mFirstFrame + 1) % mFrames.length;
+            mFrameCount--;
+            if (bracketed) {
+                emit(frameNs);
+            } else {
+                mFramesDropped++;
+            }
+        }
+    }
+
+    private void emit(long frameNs) throws IOException {
+        FrameImuWindow window = mWindow;
+        window.previousFrameTimestampNs = mLastFrameNs;
+        window.frameTimestampNs = frameNs;
+        for (int s = 0; s < mStreams.length; s++) {
+            interpolate(mStreams[s], frameNs, window.values, 3 * s);
+        }
+        merge(window, mLastFrameNs, frameNs);
+        mLastFrameNs = frameNs;
+        mFramesEmitted++;
+        // Keep the last sample at or before the frame, the next frame's
+        // lower bracket if no sample comes in between.
+        for (Stream stream : mStreams) {
+            while (stream.mCount > 1 && stream.timestamp(1) <= frameNs) {
+                stream.removeFirst();
+            }
+        }
+        mListener.onFrameImu(window);
+    }
+
+    private static void interpolate(Stream stream, long frameNs, float[] out, int offset) {
+        // The first sample after the frame; the one before it is at or
+        // before the frame, as checked by emitReadyFrames().
+        int after = 1;
+        while (after < stream.mCount && stream.timestamp(after) < frameNs) {
+            after++;
+        }
+        int a = stream.slot(after - 1);
+        if (after == stream.mCount || stream.mTimestamps[a] == frameNs) {
+            System.arraycopy(stream.mValues, 3 * a, out, offset, 3);
+            return;
+        }
+        int b = stream.slot(after);
+        long ta = stream.mTimestamps[a];
+        float weight = (float) ((double) (frameNs - ta) / (stream.mTimestamps[b] - ta));
+        for (int axis = 0; axis < 3; axis++) {
+            float va = stream.mValues[3 * a + axis];
+            out[offset + axis] = va + (stream.mValues[3 * b + axis] - va) * weight;
+        }
+    }
+
+    /**
+     * Merges the samples in {@code (fromNs, toNs]} of all streams into the
+     * window, oldest first.
+     */
+    private void merge(FrameImuWindow window, long fromNs, long toNs) {
+        for (Stream stream : mStreams) {
+            int cursor = 0;
+            while (cursor < stream.mCount && stream.timestamp(cursor) <= fromNs) {
+                cursor++;
+            }
+            stream.mCursor = cursor;
+        }
+        int count = 0;
+        while (true) {
+            Stream next = null;
+            long nextNs = Long.MAX_VALUE;
+            for (Stream stream : mStreams) {
+                if (stream.mCursor < stream.mCount) {
+                    long timestamp = stream.timestamp(stream.mCursor);
+                    if (timestamp <= toNs && timestamp < nextNs) {
+                        next = stream;
+                        nextNs = timestamp;
+                    }
+                }
+            }
+            if (next == null) {
+                break;
+            }
+            int index = next.slot(next.mCursor++);
+            window.sampleTags[count] = next.mTag;
+            window.sampleTimestampsNs[count] = nextNs;
+            System.arraycopy(next.mValues, 3 * index, window.sampleValues, 3 * count, 3);
+            count++;
+        }
+        window.sampleCount = count;
+    }
+}
@@ -0,0 +1,54 @@
+package com.example.android.sensor;
+
+/**
+ * The IMU data of one camera frame, emitted by {@link FrameImuSynchronizer}:
+ * each IMU stream interpolated to the frame timestamp, and the raw samples of
+ * all streams since the previous frame merged in timestamp order.
+ * <p>
+ * One instance is reused for every frame and is only valid during the
+ * listener call. Streams are indexed in the order of {@link #streamTags}.
+ * </p>
+ */
+public class FrameImuWindow {
+    public long frameTimestampNs;
+    // Timestamp of the previous frame, or -1 for the first frame.
+    public long previousFrameTimestampNs = -1;
+    // The tags of the IMU streams, ImuRecordWriter.TAG_*.
+    public final byte[] streamTags;
+    // x, y and z of stream i interpolated to the frame time at 3 * i.
+    public final float[] values;
+
+    // Samples in (previousFrameTimestampNs, frameTimestampNs].
+    public int sampleCount;
+    public final byte[] sampleTags;
+    public final long[] sampleTimestampsNs;
+    // x, y and z of sample i at 3 * i.
+    public final float[] sampleValues;
+
+    FrameImuWindow(byte[] streamTags, int maxSamples) {
+        this.streamTags = streamTags.clone();
+        values = new float[3 * streamTags.length];
+        sampleTags = new byte[maxSamples];
+        sampleTimestampsNs = new long[maxSamples];
+        sampleValues = new float[3 * maxSamples];
+    }
+
+    /**
+     * Returns the stream index of {@code tag}, or -1.
+     */
+    public int indexOf(byte tag) {
+        for (int i = 0; i < streamTags.length; i++) {
+            if (streamTags[i] == tag) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Interpolated value of {@code axis} (0 to 2) of stream {@code stream}.
+     */
+    public float getValue(int stream, int axis) {
+        return values[3 * stream + axis];
+    }
+}
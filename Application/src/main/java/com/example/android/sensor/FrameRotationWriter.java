@@ -0,0 +1,87 @@
+package com.example.android.sensor;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the per-frame rotations of a {@link GyroPreintegrator} as fixed size
+ * binary records, in the manner of {@link ImuRecordWriter}.
+ * <p>
+ * The file is a 16 byte header followed by one record per frame, all
+ * little-endian, quaternions as {@code w, x, y, z}:
+ * </p>
+ * <pre>
+ * header: magic "ROTL", int32 version, int32 record size, int32 reserved
+ * record: int64 frame timestamp [ns], float32[4] rotation since the previous
+ *         frame, float32[4] orientation
+ * </pre>
+ */
+public class FrameRotationWriter implements GyroPreintegrator.Listener, Closeable {
+    static final int MAGIC = 0x4c544f52; // "ROTL" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 40;
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mRecords;
+
+    public FrameRotationWriter(String path) throws IOException {
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    @Override
+    public synchronized void onFrameRotation(long frameTimestampNs, double[] deltaRotation,
+                                             double[] orientation) throws IOException {
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        mBuffer.putLong(frameTimestampNs);
+        for (int i = 0; i < 4; i++) {
+            mBuffer.putFloat((float) deltaRotation[i]);
+        }
+        for (int i = 0; i < 4; i++) {
+            mBuffer.putFloat((float) orientation[i]);
+        }
+        mRecords++;
+    }
+
+    /**
+     * Writes out the buffered records. Records are otherwise only written
+     * when the buffer fills, about every 400 frames, or on {@link #close()};
+     * call this as often as the sensor log is flushed.
+     */
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeBuffer();
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,282 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+
+/**
+ * Integrates the gyroscope between consecutive frames and keeps an
+ * orientation estimate, from the windows of a {@link FrameImuSynchronizer}.
+ * <p>
+ * For every frame it reports the rotation since the previous frame, from the
+ * bias corrected gyroscope alone, and the orientation of the device in a
+ * gravity aligned world frame. The gyroscope is integrated over the exact
+ * frame interval: from the rate interpolated at the previous frame, through
+ * every sample of the window, to the rate interpolated at the frame, each
+ * step rotating by the mean rate of its ends. The orientation follows the
+ * gyroscope and is pulled towards the accelerometer's gravity direction by a
+ * complementary filter, which bounds the tilt drift; yaw is not observable
+ * and drifts with the gyroscope.
+ * </p>
+ * <p>
+ * Quaternions are {@code w, x, y, z}, Hamilton convention, rotating device
+ * coordinates into the reference frame: the previous frame for the delta
+ * rotation, the world for the orientation. The world's z axis points up and
+ * its yaw is the device's at the first frame. State is kept in doubles and in
+ * preallocated arrays, so nothing is allocated per sample or frame. Not
+ * thread-safe except {@link #setGyroBias}; it runs on the synchronizer's
+ * thread.
+ * </p>
+ */
+public class GyroPreintegrator implements FrameImuSynchronizer.Listener {
+    /**
+     * Receives the rotations of each frame, in frame order.
+     */
+    public interface Listener {
+        /**
+         * @param deltaRotation Rotation since the previous frame; identity
+         *        for the first frame.
+         * @param orientation Device orientation at the frame.
+         *        Both arrays are only valid during the call.
+         */
+        void onFrameRotation(long frameTimestampNs, double[] deltaRotation, double[] orientation)
+                throws IOException;
+    }
+
+    // Standard gravity, in m/s^2.
+    private static final double GRAVITY = 9.80665;
+    // Accelerometer readings this far off gravity are mostly motion.
+    private static final double MAX_GRAVITY_DEVIATION = 0.1 * GRAVITY;
+    private static final double DEFAULT_TIME_CONSTANT_S = 2;
+
+    private final Listener mListener;
+    private final double mTimeConstantS;
+    private final byte mGyroTag;
+    private final byte mAccelTag;
+    private volatile float[] mGyroBias = new float[3];
+
+    private final double[] mDelta = new double[4];
+    private final double[] mOrientation = new double[4];
+    private final double[] mStep = new double[4];
+    private final double[] mRate = new double[3];
+    private boolean mInitialized;
+
+    private long mFrames;
+    private long mAccelCorrections;
+
+    public GyroPreintegrator(Listener listener) {
+        this(listener, DEFAULT_TIME_CONSTANT_S);
+    }
+
+    /**
+     * @param timeConstantS Time over which the accelerometer takes over the
+     *        tilt from the gyroscope; longer trusts the gyroscope more.
+     */
+    public GyroPreintegrator(Listener listener, double timeConstantS) {
+        this(listener, timeConstantS, ImuRecordWriter.TAG_GYROSCOPE,
+                ImuRecordWriter.TAG_ACCELEROMETER);
+    }
+
+    /**
+     * @param gyroTag The window stream to integrate, such as
+     *        {@link ImuRecordWriter#TAG_GYROSCOPE_UNCALIBRATED} with its bias
+     *        given to {@link #setGyroBias}.
+     * @param accelTag The window stream giving gravity.
+     */
+    public GyroPreintegrator(Listener listener, double timeConstantS, byte gyroTag,
+                             byte accelTag) {
+        if (timeConstantS <= 0) {
+            throw new IllegalArgumentException("Invalid time constant " + timeConstantS);
+        }
+        mListener = listener;
+        mTimeConstantS = timeConstantS;
+        mGyroTag = gyroTag;
+        mAccelTag = accelTag;
+        identity(mOrientation);
+    }
+
+    /**
+     * Sets the gyroscope bias in rad/s, subtracted from every sample. May be
+     * called from any thread; it applies from the next frame on.
+     */
+    public void setGyroBias(float x, float y, float z) {
+        mGyroBias = new float[] {x, y, z};
+    }
+
+    public long getFrameCount() {
+        return mFrames;
+    }
+
+    /**
+     * Frames whose tilt was corrected by the accelerometer.
+     */
+    public long getAccelCorrectionCount() {
+        return mAccelCorrections;
+    }
+
+    @Override
+    public String toString() {
+        return "GyroPreintegrator{frames=" + mFrames
+                + ", accelCorrections=" + mAccelCorrections
+                + "}";
+    }
+
+    @Override
+    public void onFrameImu(FrameImuWindow window) throws IOException {
+        int gyro = window.indexOf(mGyroTag);
+        int accel = window.indexOf(mAccelTag);
+        if (gyro < 0) {
+            throw new IllegalStateException("No gyroscope stream in the window");
+        }
+        identity(mDelta);
+        if (!mInitialized || window.previousFrameTimestampNs < 0) {
+            // Nothing to integrate yet; start level with the accelerometer.
+            identity(mOrientation);
+            if (accel >= 0) {
+                correctTilt(window, accel, 1);
+            }
+            mInitialized = true;
+        } else {
+            integrate(window, gyro);
+            multiply(mOrientation, mDelta, mOrientation);
+            if (accel >= 0) {
+                double dt = (window.frameTimestampNs - window.previousFrameTimestampNs) * 1e-9;
+                correctTilt(window, accel, dt / (mTimeConstantS + dt));
+            }
+        }
+        // Interpolation for the next frame starts from this frame's rate.
+        mRate[0] = window.values[3 * gyro];
+        mRate[1] = window.values[3 * gyro + 1];
+        mRate[2] = window.values[3 * gyro + 2];
+        mFrames++;
+        mListener.onFrameRotation(window.frameTimestampNs, mDelta, mOrientation);
+    }
+
+    private void integrate(FrameImuWindow window, int gyro) {
+        float[] bias = mGyroBias;
+        double[] rate = mRate;
+        long lastNs = window.previousFrameTimestampNs;
+        byte tag = window.streamTags[gyro];
+        for (int i = 0; i <= window.sampleCount; i++) {
+            long timestampNs;
+            double x;
+            double y;
+            double z;
+            if (i < window.sampleCount) {
+                if (window.sampleTags[i] != tag) {
+                    continue;
+                }
+                timestampNs = window.sampleTimestampsNs[i];
+                x = window.sampleValues[3 * i];
+                y = window.sampleValues[3 * i + 1];
+                z = window.sampleValues[3 * i + 2];
+            } else {
+                timestampNs = window.frameTimestampNs;
+                x = window.values[3 * gyro];
+                y = window.values[3 * gyro + 1];
+                z = window.values[3 * gyro + 2];
+            }
+            double dt = (timestampNs - lastNs) * 1e-9;
+            if (dt > 0) {
+                double half = 0.5 * dt;
+                rotationVector((rate[0] + x) * half - bias[0] * dt,
+                        (rate[1] + y) * half - bias[1] * dt,
+                        (rate[2] + z) * half - bias[2] * dt, mStep);
+                multiply(mDelta, mStep, mDelta);
+            }
+            rate[0] = x;
+            rate[1] = y;
+            rate[2] = z;
+            lastNs = timestampNs;
+        }
+        normalize(mDelta);
+    }
+
+    /**
+     * Rotates the orientation by {@code gain} of the angle between its up
+     * axis and the measured gravity, unless the device is accelerating.
+     */
+    private void correctTilt(FrameImuWindow window, int accel, double gain) {
+        // The value at the frame; a mean over the window would lag behind
+        // while the device turns.
+        double ax = window.values[3 * accel];
+        double ay = window.values[3 * accel + 1];
+        double az = window.values[3 * accel + 2];
+        double norm = Math.sqrt(ax * ax + ay * ay + az * az);
+        if (Math.abs(norm - GRAVITY) > MAX_GRAVITY_DEVIATION) {
+            return;
+        }
+        ax /= norm;
+        ay /= norm;
+        az /= norm;
+        // The world's up axis in device coordinates: the third row of the
+        // orientation's rotation matrix.
+        double[] q = mOrientation;
+        double ux = 2 * (q[1] * q[3] - q[0] * q[2]);
+        double uy = 2 * (q[2] * q[3] + q[0] * q[1]);
+        double uz = q[0] * q[0] - q[1] * q[1] - q[2] * q[2] + q[3] * q[3];
+        // Turning the device by a x u moves u towards a.
+        double cx = ay * uz - az * uy;
+        double cy = az * ux - ax * uz;
+        double cz = ax * uy - ay * ux;
+        double sin = Math.sqrt(cx * cx + cy * cy + cz * cz);
+        if (sin < 1e-12) {
+            return;
+        }
+        double angle = Math.atan2(sin, ax * ux + ay * uy + az * uz) * gain / sin;
+        rotationVector(cx * angle, cy * angle, cz * angle, mStep);
+        multiply(mOrientation, mStep, mOrientation);
+        normalize(mOrientation);
+        mAccelCorrections++;
+    }
+
+    private static void identity(double[] q) {
+        q[0] = 1;
+        q[1] = 0;
+        q[2] = 0;
+        q[3] = 0;
+    }
+
+    /**
+     * The quaternion rotating by {@code |(x, y, z)|} radians about
+     * {@code (x, y, z)}.
+     */
+    private static void rotationVector(double x, double y, double z, double[] out) {
+        double angle2 = x * x + y * y + z * z;
+        double w;
+        double s;
+        if (angle2 < 1e-8) {
+            // Taylor series, exact to double precision at these angles.
+            w = 1 - angle2 / 8 + angle2 * angle2 / 384;
+            s = 0.5 - angle2 / 48;
+        } else {
+            double angle = Math.sqrt(angle2);
+            w = Math.cos(0.5 * angle);
+            s = Math.sin(0.5 * angle) / angle;
+        }
+        out[0] = w;
+        out[1] = x * s;
+        out[2] = y * s;
+        out[3] = z * s;
+    }
+
+    /**
+     * {@code out = a * b}; {@code out} may be either operand.
+     */
+    private static void multiply(double[] a, double[] b, double[] out) {
+        double w = a[0] * b[0] - a[1] * b[1] - a[2] * b[2] - a[3] * b[3];
+        double x = a[0] * b[1] + a[1] * b[0] + a[2] * b[3] - a[3] * b[2];
+        double y = a[0] * b[2] - a[1] * b[3] + a[2] * b[0] + a[3] * b[1];
+        double z = a[0] * b[3] + a[1] * b[2] - a[2] * b[1] + a[3] * b[0];
+        out[0] = w;
+        out[1] = x;
+        out[2] = y;
+        out[3] = z;
+    }
+
+    private static void normalize(double[] q) {
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        q[0] /= norm;
+        q[1] /= norm;
+        q[2] /= norm;
+        q[3] /= norm;
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.android.sensor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Streams the samples of a log written by {@link ImuCompressedWriter}. Call
+ * {@link #next()} to advance, then read the current sample with the getters.
+ * <p>
+ * Blocks are checked before they are decoded. A block with a bad checksum
+ * is skipped by searching for the next block header, and a block cut short
+ * at the end of the file is ignored; {@link #getSkippedBytes()} counts what
+ * was lost.
+ * </p>
+ */
+public class ImuCompressedReader implements SensorSampleSource {
+    private static final int READ_SIZE = 64 * 1024;
+
+    private final InputStream mStream;
+    private final int mMaxBlockSize;
+    private final CRC32 mCrc = new CRC32();
+    private byte[] mBuffer;
+    private int mPosition;
+    private int mLimit;
+    private boolean mEndOfFile;
+
+    private final float[] mSteps = new float[ImuCompressedWriter.TAGS];
+    private final boolean[] mStarted = new boolean[ImuCompressedWriter.TAGS];
+    private final long[] mLastTimestamps = new long[ImuCompressedWriter.TAGS];
+    private final long[] mLastDeltas = new long[ImuCompressedWriter.TAGS];
+    private final long[] mLastValues = new long[3 * ImuCompressedWriter.TAGS];
+    private int mBlockEnd;
+    private int mBlockRemaining;
+    private long mBlocks;
+    private long mSkippedBytes;
+
+    private byte mTag;
+    private long mTimestampNs;
+    private float mX;
+    private float mY;
+    private float mZ;
+
+    public ImuCompressedReader(String path) throws IOException {
+        this(new FileInputStream(path));
+    }
+
+    /**
+     * @param stream Closed by {@link #close()}.
+     */
+    public ImuCompressedReader(InputStream stream) throws IOException {
+        mStream = stream;
+        mBuffer = new byte[READ_SIZE];
+        try {
+            if (!fill(ImuCompressedWriter.HEADER_SIZE)
+                    || getInt(mPosition) != ImuCompressedWriter.MAGIC) {
+                throw new IOException("Not a compressed IMU log");
+            }
+            int version = getInt(mPosition + 4);
+            mMaxBlockSize = getInt(mPosition + 8);
+            if (version != ImuCompressedWriter.VERSION || mMaxBlockSize <= 0) {
+                throw new IOException("Unsupported compressed IMU log version " + version);
+            }
+            mPosition += ImuCompressedWriter.HEADER_SIZE;
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether the file at {@code path} starts like a compressed log.
+     */
+    public static boolean isCompressedLog(String path) throws IOException {
+        FileInputStream stream = new FileInputStream(path);
+        try {
+            int magic = 0;
+            for (int i = 0; i < 4; i++) {
+                int b = stream.read();
+                if (b < 0) {
+                    return false;
+                }
+                magic |= b << (8 * i);
+            }
+            return magic == ImuCompressedWriter.MAGIC;
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Moves to the next sample.
+     *
+     * @return false at the end of the file.
+     */
+    @Override
+    public boolean next() throws IOException {
+        while (mBlockRemaining == 0) {
+            if (!nextBlock()) {
+                return false;
+            }
+        }
+        int t = mBuffer[mPosition++] & 0xff;
+        long delta = unzigzag(readVarLong());
+        if (mStarted[t]) {
+            delta += mLastDeltas[t];
+            mTimestampNs = mLastTimestamps[t] + delta;
+        } else {
+            mStarted[t] = true;
+            mLastValues[3 * t] = 0;
+            mLastValues[3 * t + 1] = 0;
+            mLastValues[3 * t + 2] = 0;
+            mTimestampNs = delta;
+        }
+        mLastTimestamps[t] = mTimestampNs;
+        mLastDeltas[t] = delta;
+        float step = mSteps[t];
+        mTag = (byte) t;
+        mX = readValue(3 * t, step);
+        mY = readValue(3 * t + 1, step);
+        mZ = readValue(3 * t + 2, step);
+        if (--mBlockRemaining == 0 && mPosition != mBlockEnd) {
+            throw new IOException("Corrupt block " + mBlocks);
+        }
+        return true;
+    }
+
+    /**
+     * Writes the remaining samples to {@code sink}.
+     *
+     * @return The number of samples.
+     */
+    public long copyTo(SensorSampleSink sink) throws IOException {
+        long samples = 0;
+        while (next()) {
+            sink.write(mTag, mTimestampNs, mX, mY, mZ);
+            samples++;
+        }
+        return samples;
+    }
+
+    @Override
+    public byte getTag() {
+        return mTag;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public float getX() {
+        return mX;
+    }
+
+    @Override
+    public float getY() {
+        return mY;
+    }
+
+    @Override
+    public float getZ() {
+        return mZ;
+    }
+
+    public long getBlockCount() {
+        return mBlocks;
+    }
+
+    /**
+     * Bytes of damaged or truncated blocks skipped so far.
+     */
+    public long getSkippedBytes() {
+        return mSkippedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    /**
+     * Finds and checks the next block, and reads its quantization steps.
+     */
+    private boolean nextBlock() throws IOException {
+        while (true) {
+            if (!fill(ImuCompressedWriter.BLOCK_HEADER_SIZE)) {
+                mSkippedBytes += mLimit - mPosition;
+                mPosition = mLimit;
+                return false;
+            }
+            int size = getInt(mPosition + 4);
+            if (getInt(mPosition) == ImuCompressedWriter.BLOCK_MAGIC
+                    && size > 0 && size <= mMaxBlockSize) {
+                if (!fill(ImuCompressedWriter.BLOCK_HEADER_SIZE + size)) {
+                    mSkippedBytes += mLimit - mPosition;
+                    mPosition = mLimit;
+                    return false;
+                }
+                int start = mPosition + ImuCompressedWriter.BLOCK_HEADER_SIZE;
+                mCrc.reset();
+                mCrc.update(mBuffer, start, size);
+                if ((int) mCrc.getValue() == getInt(mPosition + 8)) {
+                    mBlockRemaining = getInt(mPosition + 12);
+                    mBlockEnd = start + size;
+                    mPosition = start;
+                    startBlock();
+                    return true;
+                }
+            }
+            // Not a good block; look for the next one a byte further.
+            mPosition++;
+            mSkippedBytes++;
+        }
+    }
+
+    private void startBlock() throws IOException {
+        mBlocks++;
+        Arrays.fill(mStarted, false);
+        Arrays.fill(mSteps, 0);
+        long quantized = readVarLong();
+        for (long i = 0; i < quantized; i++) {
+            checkBlock(5);
+            int t = mBuffer[mPosition] & 0xff;
+            mSteps[t] = Float.intBitsToFloat(getInt(mPosition + 1));
+            mPosition += 5;
+        }
+        if (mBlockRemaining < 0) {
+            throw new IOException("Corrupt block " + mBlocks);
+        }
+    }
+
+    private float readValue(int index, float step) throws IOException {
+        long encoded = mLastValues[index] + unzigzag(readVarLong());
+        mLastValues[index] = encoded;
+        return step > 0 ? (float) (encoded * (double) step) : Float.intBitsToFloat((int) encoded);
+    }
+
+    private long readVarLong() throws IOException {
+        byte[] buffer = mBuffer;
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            checkBlock(1);
+            byte b = buffer[mPosition++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupt block " + mBlocks);
+    }
+
+    private void checkBlock(int size) throws IOException {
+        if (mPosition + size > mBlockEnd) {
+            throw new IOException("Corrupt block " + mBlocks);
+        }
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private int getInt(int offset) {
+        byte[] buffer = mBuffer;
+        return (buffer[offset] & 0xff) | (buffer[offset + 1] & 0xff) << 8
+                | (buffer[offset + 2] & 0xff) << 16 | (buffer[offset + 3] & 0xff) << 24;
+    }
+
+    /**
+     * Makes sure {@code size} bytes are buffered from the current position,
+     * growing the buffer for large blocks.
+     */
+    private boolean fill(int size) throws IOException {
+        if (mLimit - mPosition >= size) {
+            return true;
+        }
+        if (size > mBuffer.length) {
+            mBuffer = Arrays.copyOf(mBuffer, Math.max(size, 2 * mBuffer.length));
+        }
+        System.arraycopy(mBuffer, mPosition, mBuffer, 0, mLimit - mPosition);
+        mLimit -= mPosition;
+        mPosition = 0;
+        while (mLimit < size && !mEndOfFile) {
+            int read = mStream.read(mBuffer, mLimit, mBuffer.length - mLimit);
+            if (read < 0) {
+                mEndOfFile = true;
+            } else {
+                mLimit += read;
+            }
+        }
+        return mLimit >= size;
+    }
+}
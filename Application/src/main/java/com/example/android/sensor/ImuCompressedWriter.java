@@ -0,0 +1,262 @@
+package com.example.android.sensor;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Writes IMU samples and frame timestamps as a compressed log, a smaller
+ * alternative to {@link ImuRecordWriter} for long captures.
+ * <p>
+ * Every sensor is encoded against its own previous sample: the timestamp as
+ * the change of its delta, the values as the difference of their float bits,
+ * or of their multiples of a quantization step set with
+ * {@link #setQuantization}. The differences are zigzag encoded and packed
+ * as base 128 varints, so slowly changing values take a byte or two.
+ * Samples are grouped in blocks, ended by {@link #flush()} or when the
+ * buffer fills up; each block starts from scratch and carries its own
+ * quantization steps and checksum, so it decodes on its own and a damaged
+ * or truncated block only loses itself. {@link ImuCompressedReader} reads
+ * the log back.
+ * </p>
+ * <p>
+ * Encoding works in a preallocated buffer, so nothing is allocated per
+ * sample. All methods are synchronized, like {@link ImuRecordWriter}'s.
+ * </p>
+ * <pre>
+ * header: magic "IMUZ", int32 version, int32 max block size, int32 reserved
+ * block:  magic "BLK1", int32 payload size, int32 CRC32 of the payload,
+ *         int32 sample count, payload
+ * payload: varint n, n * (int8 tag, float32 step), then per sample:
+ *         int8 tag, zigzag varint timestamp delta change [ns],
+ *         3 * zigzag varint value change
+ * </pre>
+ * <p>
+ * Integers in headers and steps are little-endian. The first sample of a
+ * sensor in a block is encoded against zero.
+ * </p>
+ */
+public class ImuCompressedWriter implements SensorSampleSink, Closeable {
+    static final int MAGIC = 0x5a554d49; // "IMUZ" read little-endian
+    static final int BLOCK_MAGIC = 0x314b4c42; // "BLK1" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int BLOCK_HEADER_SIZE = 16;
+    // A tag, a timestamp and three values of up to ten varint bytes each.
+    static final int MAX_SAMPLE_SIZE = 1 + 4 * 10;
+    static final int DEFAULT_BLOCK_SIZE = 64 * 1024;
+    static final int TAGS = 256;
+
+    private final OutputStream mStream;
+    private final byte[] mBlock;
+    private final CRC32 mCrc = new CRC32();
+    private final float[] mSteps = new float[TAGS];
+    // The steps the current block was started with.
+    private final float[] mBlockSteps = new float[TAGS];
+    // Per tag state, reset at every block.
+    private final boolean[] mStarted = new boolean[TAGS];
+    private final long[] mLastTimestamps = new long[TAGS];
+    private final long[] mLastDeltas = new long[TAGS];
+    private final long[] mLastValues = new long[3 * TAGS];
+
+    private int mLength;
+    private int mBlockSamples;
+    private long mSamples;
+    private long mBlocks;
+    private long mBytesWritten;
+
+    public ImuCompressedWriter(String path) throws IOException {
+        this(new FileOutputStream(path), DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param stream Receives one write per block; closed by {@link #close()}.
+     * @param blockSize Largest block payload, in bytes.
+     */
+    public ImuCompressedWriter(OutputStream stream, int blockSize) throws IOException {
+        if (blockSize < 2 * (MAX_SAMPLE_SIZE + 5 * TAGS)) {
+            throw new IllegalArgumentException("Block size too small: " + blockSize);
+        }
+        mStream = stream;
+        mBlock = new byte[BLOCK_HEADER_SIZE + blockSize];
+        putInt(mBlock, 0, MAGIC);
+        putInt(mBlock, 4, VERSION);
+        putInt(mBlock, 8, blockSize);
+        putInt(mBlock, 12, 0);
+        try {
+            stream.write(mBlock, 0, HEADER_SIZE);
+        } catch (IOException e) {
+            stream.close();
+            throw e;
+        }
+        mBytesWritten = HEADER_SIZE;
+    }
+
+    /**
+     * Quantizes the values of {@code tag} to multiples of {@code step},
+     * losing up to half a step, or stores them exactly if {@code step} is
+     * 0, the default. Applies from the next block on; {@link #flush()} to
+     * apply it right away. Only finite values can be quantized.
+     */
+    public synchronized void setQuantization(byte tag, float step) {
+        if (!(step >= 0) || Float.isInfinite(step)) {
+            throw new IllegalArgumentException("Invalid quantization step " + step);
+        }
+        mSteps[tag & 0xff] = step;
+    }
+
+    public synchronized long getSampleCount() {
+        return mSamples;
+    }
+
+    public synchronized long getBlockCount() {
+        return mBlocks;
+    }
+
+    /**
+     * Bytes written so far, not counting the current block until it is
+     * flushed.
+     */
+    public synchronized long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ImuCompressedWriter{samples=" + mSamples
+                + ", blocks=" + mBlocks
+                + ", bytes=" + mBytesWritten
+                + "}";
+    }
+
+    @Override
+    public synchronized void write(byte tag, long timestampNs, float x, float y, float z)
+            throws IOException {
+        if (mLength == 0) {
+            startBlock();
+        } else if (mLength + MAX_SAMPLE_SIZE > mBlock.length) {
+            writeBlock();
+            startBlock();
+        }
+        int t = tag & 0xff;
+        long delta;
+        if (mStarted[t]) {
+            delta = timestampNs - mLastTimestamps[t];
+        } else {
+            mStarted[t] = true;
+            mLastTimestamps[t] = 0;
+            mLastDeltas[t] = 0;
+            mLastValues[3 * t] = 0;
+            mLastValues[3 * t + 1] = 0;
+            mLastValues[3 * t + 2] = 0;
+            delta = timestampNs;
+        }
+        mBlock[mLength++] = tag;
+        putVarLong(zigzag(delta - mLastDeltas[t]));
+        mLastTimestamps[t] = timestampNs;
+        mLastDeltas[t] = delta;
+        float step = mBlockSteps[t];
+        putValue(3 * t, x, step);
+        putValue(3 * t + 1, y, step);
+        putValue(3 * t + 2, z, step);
+        mBlockSamples++;
+        mSamples++;
+    }
+
+    /**
+     * Writes a sample that only has a timestamp, such as
+     * {@link ImuRecordWriter#TAG_IMAGE}.
+     */
+    public void writeTimestamp(byte tag, long timestampNs) throws IOException {
+        write(tag, timestampNs, 0, 0, 0);
+    }
+
+    /**
+     * Ends the current block and writes it out.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        if (mLength > 0) {
+            writeBlock();
+        }
+        mStream.flush();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            if (mLength > 0) {
+                writeBlock();
+            }
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private void startBlock() {
+        Arrays.fill(mStarted, false);
+        System.arraycopy(mSteps, 0, mBlockSteps, 0, TAGS);
+        mLength = BLOCK_HEADER_SIZE;
+        mBlockSamples = 0;
+        int quantized = 0;
+        for (int t = 0; t < TAGS; t++) {
+            if (mBlockSteps[t] > 0) {
+                quantized++;
+            }
+        }
+        putVarLong(quantized);
+        for (int t = 0; t < TAGS; t++) {
+            if (mBlockSteps[t] > 0) {
+                mBlock[mLength++] = (byte) t;
+                putInt(mBlock, mLength, Float.floatToRawIntBits(mBlockSteps[t]));
+                mLength += 4;
+            }
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        int payload = mLength - BLOCK_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(mBlock, BLOCK_HEADER_SIZE, payload);
+        putInt(mBlock, 0, BLOCK_MAGIC);
+        putInt(mBlock, 4, payload);
+        putInt(mBlock, 8, (int) mCrc.getValue());
+        putInt(mBlock, 12, mBlockSamples);
+        mStream.write(mBlock, 0, mLength);
+        mBytesWritten += mLength;
+        mBlocks++;
+        mLength = 0;
+    }
+
+    private void putValue(int index, float value, float step) {
+        long encoded = step > 0 ? Math.round(value / (double) step)
+                : Float.floatToRawIntBits(value);
+        putVarLong(zigzag(encoded - mLastValues[index]));
+        mLastValues[index] = encoded;
+    }
+
+    private void putVarLong(long value) {
+        byte[] block = mBlock;
+        int length = mLength;
+        while ((value & ~0x7fL) != 0) {
+            block[length++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        block[length++] = (byte) value;
+        mLength = length;
+    }
+
+    static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    static void putInt(byte[] buffer, int offset, int value) {
+        buffer[offset] = (byte) value;
+        buffer[offset + 1] = (byte) (value >> 8);
+        buffer[offset + 2] = (byte) (value >> 16);
+        buffer[offset + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,63 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+
+/**
+ * Converts an {@link ImuRecordWriter} or {@link ImuCompressedWriter} file
+ * into the per-sensor CSV files the app used to write, with the same names
+ * and headers, for the tools that read them. The records are streamed
+ * through an {@link ImuCsvWriter}, so files of any length can be converted.
+ * The Benchmark module runs it on a desktop as {@code ImuCsvConversion}.
+ */
+public class ImuCsvConverter {
+    public static final String ACCELEROMETER_FILE = "accelerometer.csv";
+    public static final String ACCELEROMETER_UNCALIBRATED_FILE = "accelerometerUncalibrated.csv";
+    public static final String GYROSCOPE_FILE = "gyroscope.csv";
+    public static final String GYROSCOPE_UNCALIBRATED_FILE = "gyroscopeUncalibrated.csv";
+    public static final String IMAGE_TIMESTAMP_FILE = "image_timestamp.csv";
+
+    public static final String ACCELEROMETER_HEADER =
+            "#timestamp [ns], a_RS_S_x [m s^-2], a_RS_S_y [m s^-2], a_RS_S_z [m s^-2]";
+    public static final String GYROSCOPE_HEADER =
+            "#timestamp [ns], w_RS_S_x [rad s^-1], w_RS_S_y [rad s^-1], w_RS_S_z [rad s^-1]";
+    public static final String IMAGE_TIMESTAMP_HEADER = "#timestamp [ns]";
+
+    /**
+     * Writes the CSV files of {@code imuPath}, an {@link ImuRecordWriter} or
+     * {@link ImuCompressedWriter} file, into {@code folder}.
+     *
+     * @return The number of records converted.
+     */
+    public static long convert(String imuPath, String folder) throws IOException {
+        if (ImuCompressedReader.isCompressedLog(imuPath)) {
+            ImuCompressedReader reader = new ImuCompressedReader(imuPath);
+            try {
+                ImuCsvWriter writer = new ImuCsvWriter(folder, false);
+                try {
+                    return reader.copyTo(writer);
+                } finally {
+                    writer.close();
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        ImuRecordReader reader = new ImuRecordReader(imuPath);
+        long records = 0;
+        try {
+            ImuCsvWriter writer = new ImuCsvWriter(folder, false);
+            try {
+                while (reader.next()) {
+                    writer.write(reader.getTag(), reader.getTimestampNs(),
+                            reader.getX(), reader.getY(), reader.getZ());
+                    records++;
+                }
+            } finally {
+                writer.close();
+            }
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+}
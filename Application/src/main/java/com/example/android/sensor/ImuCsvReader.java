@@ -0,0 +1,161 @@
+package com.example.android.sensor;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+
+/**
+ * Streams the per-sensor CSV files of a session folder, as written by
+ * {@link ImuCsvWriter}, as one log. The files do not record the order in
+ * which samples of different sensors were logged, so they are merged by
+ * timestamp. Missing files are left out, header and comment lines starting
+ * with {@code #} are skipped, and a row that does not parse ends its file,
+ * as a row cut short at the end of a file would.
+ */
+public class ImuCsvReader implements SensorSampleSource {
+    private static final int FILE_BUFFER_SIZE = 16 * 1024;
+
+    private final BufferedReader[] mReaders = new BufferedReader[ImuRecordWriter.TAG_IMAGE + 1];
+    // The next row of every file, valid while mPending is set.
+    private final boolean[] mPending = new boolean[ImuRecordWriter.TAG_IMAGE + 1];
+    private final long[] mTimestamps = new long[ImuRecordWriter.TAG_IMAGE + 1];
+    private final float[] mValues = new float[3 * (ImuRecordWriter.TAG_IMAGE + 1)];
+
+    private byte mTag;
+    private long mTimestampNs;
+    private float mX;
+    private float mY;
+    private float mZ;
+
+    public ImuCsvReader(String folder) throws IOException {
+        try {
+            open(folder, ImuRecordWriter.TAG_ACCELEROMETER, ImuCsvConverter.ACCELEROMETER_FILE);
+            open(folder, ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED,
+                    ImuCsvConverter.ACCELEROMETER_UNCALIBRATED_FILE);
+            open(folder, ImuRecordWriter.TAG_GYROSCOPE, ImuCsvConverter.GYROSCOPE_FILE);
+            open(folder, ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED,
+                    ImuCsvConverter.GYROSCOPE_UNCALIBRATED_FILE);
+            open(folder, ImuRecordWriter.TAG_IMAGE, ImuCsvConverter.IMAGE_TIMESTAMP_FILE);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns whether {@code folder} holds any of the files this reader reads.
+     */
+    public static boolean hasCsvLog(String folder) {
+        return new File(folder, ImuCsvConverter.ACCELEROMETER_FILE).isFile()
+                || new File(folder, ImuCsvConverter.ACCELEROMETER_UNCALIBRATED_FILE).isFile()
+                || new File(folder, ImuCsvConverter.GYROSCOPE_FILE).isFile()
+                || new File(folder, ImuCsvConverter.GYROSCOPE_UNCALIBRATED_FILE).isFile()
+                || new File(folder, ImuCsvConverter.IMAGE_TIMESTAMP_FILE).isFile();
+    }
+
+    @Override
+    public boolean next() throws IOException {
+        int next = -1;
+        for (int tag = 0; tag < mPending.length; tag++) {
+            if (mPending[tag] && (next < 0 || mTimestamps[tag] < mTimestamps[next])) {
+                next = tag;
+            }
+        }
+        if (next < 0) {
+            return false;
+        }
+        mTag = (byte) next;
+        mTimestampNs = mTimestamps[next];
+        mX = mValues[3 * next];
+        mY = mValues[3 * next + 1];
+        mZ = mValues[3 * next + 2];
+        readRow(next);
+        return true;
+    }
+
+    @Override
+    public byte getTag() {
+        return mTag;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public float getX() {
+        return mX;
+    }
+
+    @Override
+    public float getY() {
+        return mY;
+    }
+
+    @Override
+    public float getZ() {
+        return mZ;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (int tag = 0; tag < mReaders.length; tag++) {
+            if (mReaders[tag] != null) {
+                try {
+                    mReaders[tag].close();
+                } catch (IOException e) {
+                    error = e;
+                }
+                mReaders[tag] = null;
+            }
+            mPending[tag] = false;
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void open(String folder, int tag, String name) throws IOException {
+        File file = new File(folder, name);
+        if (!file.isFile()) {
+            return;
+        }
+        mReaders[tag] = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                "US-ASCII"), FILE_BUFFER_SIZE);
+        readRow(tag);
+    }
+
+    /**
+     * Reads the next row of the file of {@code tag} into the pending row.
+     */
+    private void readRow(int tag) throws IOException {
+        mPending[tag] = false;
+        BufferedReader reader = mReaders[tag];
+        String line;
+        do {
+            line = reader.readLine();
+            if (line == null) {
+                return;
+            }
+            line = line.trim();
+        } while (line.isEmpty() || line.charAt(0) == '#');
+        String[] fields = line.split(",");
+        int values = tag == ImuRecordWriter.TAG_IMAGE ? 0 : 3;
+        if (fields.length < 1 + values) {
+            return;
+        }
+        try {
+            mTimestamps[tag] = Long.parseLong(fields[0].trim());
+            for (int i = 0; i < 3; i++) {
+                mValues[3 * tag + i] = i < values ? Float.parseFloat(fields[1 + i].trim()) : 0;
+            }
+        } catch (NumberFormatException e) {
+            return;
+        }
+        mPending[tag] = true;
+    }
+}
@@ -0,0 +1,113 @@
+package com.example.android.sensor;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * A {@link SensorSampleSink} writing one CSV file per sensor plus one for
+ * the frame timestamps, with the names and headers listed in
+ * {@link ImuCsvConverter}. Samples with an unknown tag are skipped.
+ * <p>
+ * Rows are rendered by a {@link CsvNumberFormatter}, so writing a sample
+ * allocates nothing. The gyroscope keeps the six fixed decimals of the
+ * {@code printf} it was written with; the other sensors use the shortest
+ * text that parses back to the same float.
+ * </p>
+ */
+public class ImuCsvWriter implements SensorSampleSink, Closeable {
+    private static final int GYROSCOPE_DECIMALS = 6;
+    private static final int FILE_BUFFER_SIZE = 16 * 1024;
+
+    private final OutputStream[] mWriters = new OutputStream[ImuRecordWriter.TAG_IMAGE + 1];
+    private final CsvNumberFormatter mFormatter = new CsvNumberFormatter();
+    private final String mFolder;
+
+    /**
+     * @param append Adds to existing files instead of replacing them.
+     */
+    public ImuCsvWriter(String folder, boolean append) throws IOException {
+        mFolder = folder;
+        try {
+            mWriters[ImuRecordWriter.TAG_ACCELEROMETER] = open(ImuCsvConverter.ACCELEROMETER_FILE,
+                    ImuCsvConverter.ACCELEROMETER_HEADER, append);
+            mWriters[ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED] = open(
+                    ImuCsvConverter.ACCELEROMETER_UNCALIBRATED_FILE,
+                    ImuCsvConverter.ACCELEROMETER_HEADER, append);
+            mWriters[ImuRecordWriter.TAG_GYROSCOPE] = open(ImuCsvConverter.GYROSCOPE_FILE,
+                    ImuCsvConverter.GYROSCOPE_HEADER, append);
+            mWriters[ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED] = open(
+                    ImuCsvConverter.GYROSCOPE_UNCALIBRATED_FILE,
+                    ImuCsvConverter.GYROSCOPE_HEADER, append);
+            mWriters[ImuRecordWriter.TAG_IMAGE] = open(ImuCsvConverter.IMAGE_TIMESTAMP_FILE,
+                    ImuCsvConverter.IMAGE_TIMESTAMP_HEADER, append);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void write(byte tag, long timestampNs, float x, float y, float z) throws IOException {
+        if (tag <= 0 || tag >= mWriters.length) {
+            return;
+        }
+        CsvNumberFormatter row = mFormatter;
+        row.clear();
+        row.append(timestampNs);
+        switch (tag) {
+            case ImuRecordWriter.TAG_IMAGE:
+                break;
+            case ImuRecordWriter.TAG_GYROSCOPE:
+                row.append(',').appendFixed(x, GYROSCOPE_DECIMALS)
+                        .append(',').appendFixed(y, GYROSCOPE_DECIMALS)
+                        .append(',').appendFixed(z, GYROSCOPE_DECIMALS);
+                break;
+            default:
+                row.append(',').appendShortest(x)
+                        .append(',').appendShortest(y)
+                        .append(',').appendShortest(z);
+                break;
+        }
+        row.append('\n');
+        row.writeTo(mWriters[tag]);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (OutputStream writer : mWriters) {
+            if (writer != null) {
+                writer.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (OutputStream writer : mWriters) {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private OutputStream open(String name, String header, boolean append) throws IOException {
+        OutputStream writer = new BufferedOutputStream(
+                new FileOutputStream(new File(mFolder, name), append), FILE_BUFFER_SIZE);
+        mFormatter.clear();
+        mFormatter.append(header).append('\n');
+        mFormatter.writeTo(writer);
+        return writer;
+    }
+}
@@ -0,0 +1,116 @@
+package com.example.android.sensor;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams the records of a file written by {@link ImuRecordWriter}. Call
+ * {@link #next()} to advance, then read the current record with the getters.
+ * A record cut short at the end of the file is ignored.
+ */
+public class ImuRecordReader implements SensorSampleSource {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final FileInputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private final int mRecordSize;
+    private boolean mEndOfFile;
+
+    private byte mTag;
+    private long mTimestampNs;
+    private float mX;
+    private float mY;
+    private float mZ;
+
+    public ImuRecordReader(String path) throws IOException {
+        mStream = new FileInputStream(path);
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.limit(0);
+        try {
+            if (!fill(ImuRecordWriter.HEADER_SIZE) || mBuffer.getInt() != ImuRecordWriter.MAGIC) {
+                throw new IOException("Not an IMU record file: " + path);
+            }
+            int version = mBuffer.getInt();
+            mRecordSize = mBuffer.getInt();
+            mBuffer.getInt();
+            if (version != ImuRecordWriter.VERSION || mRecordSize < ImuRecordWriter.RECORD_SIZE) {
+                throw new IOException("Unsupported IMU record version " + version);
+            }
+        } catch (IOException e) {
+            mStream.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next record.
+     *
+     * @return false at the end of the file.
+     */
+    @Override
+    public boolean next() throws IOException {
+        if (!fill(mRecordSize)) {
+            return false;
+        }
+        int start = mBuffer.position();
+        mTag = mBuffer.get();
+        mTimestampNs = mBuffer.getLong();
+        mX = mBuffer.getFloat();
+        mY = mBuffer.getFloat();
+        mZ = mBuffer.getFloat();
+        mBuffer.position(start + mRecordSize);
+        return true;
+    }
+
+    @Override
+    public byte getTag() {
+        return mTag;
+    }
+
+    @Override
+    public long getTimestampNs() {
+        return mTimestampNs;
+    }
+
+    @Override
+    public float getX() {
+        return mX;
+    }
+
+    @Override
+    public float getY() {
+        return mY;
+    }
+
+    @Override
+    public float getZ() {
+        return mZ;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mStream.close();
+    }
+
+    /**
+     * Makes sure {@code size} bytes are buffered, reading more if needed.
+     */
+    private boolean fill(int size) throws IOException {
+        while (mBuffer.remaining() < size) {
+            if (mEndOfFile) {
+                return false;
+            }
+            mBuffer.compact();
+            if (mChannel.read(mBuffer) < 0) {
+                mEndOfFile = true;
+            }
+            mBuffer.flip();
+        }
+        return true;
+    }
+}
@@ -0,0 +1,109 @@
+package com.example.android.sensor;
+
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes IMU samples and frame timestamps as fixed size binary records, a
+ * compact and garbage free replacement for one CSV file per sensor.
+ * <p>
+ * Records are collected in a reusable direct buffer and written to the file
+ * channel when it is full, so nothing is allocated per sample. All methods
+ * are synchronized, so it can be written from callbacks directly, though it
+ * is usually the sink of a {@link SensorLogWriter}. {@link ImuRecordReader}
+ * reads the file back and {@link ImuCsvConverter} turns it into CSV files.
+ * </p>
+ * <p>
+ * The file is a 16 byte header followed by the records, all little-endian:
+ * </p>
+ * <pre>
+ * header: magic "IMUL", int32 version, int32 record size, int32 reserved
+ * record: int8 tag, int64 timestamp [ns], float32 x, float32 y, float32 z
+ * </pre>
+ */
+public class ImuRecordWriter implements SensorSampleSink, Closeable {
+    public static final byte TAG_ACCELEROMETER = 1;
+    public static final byte TAG_ACCELEROMETER_UNCALIBRATED = 2;
+    public static final byte TAG_GYROSCOPE = 3;
+    public static final byte TAG_GYROSCOPE_UNCALIBRATED = 4;
+    // A camera frame; only the timestamp is used.
+    public static final byte TAG_IMAGE = 5;
+
+    static final int MAGIC = 0x4c554d49; // "IMUL" read little-endian
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 21;
+    private static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mBuffer;
+    private long mRecords;
+
+    public ImuRecordWriter(String path) throws IOException {
+        this(path, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * @param bufferSize Bytes collected before they are written out.
+     */
+    public ImuRecordWriter(String path, int bufferSize) throws IOException {
+        if (bufferSize < HEADER_SIZE + RECORD_SIZE) {
+            throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+        }
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+        mBuffer = ByteBuffer.allocateDirect(bufferSize).order(ByteOrder.LITTLE_ENDIAN);
+        mBuffer.putInt(MAGIC).putInt(VERSION).putInt(RECORD_SIZE).putInt(0);
+    }
+
+    public synchronized long getRecordCount() {
+        return mRecords;
+    }
+
+    @Override
+    public synchronized void write(byte tag, long timestampNs, float x, float y, float z)
+            throws IOException {
+        if (mBuffer.remaining() < RECORD_SIZE) {
+            writeBuffer();
+        }
+        mBuffer.put(tag).putLong(timestampNs).putFloat(x).putFloat(y).putFloat(z);
+        mRecords++;
+    }
+
+    /**
+     * Writes a record that only has a timestamp, such as {@link #TAG_IMAGE}.
+     */
+    public void writeTimestamp(byte tag, long timestampNs) throws IOException {
+        write(tag, timestampNs, 0, 0, 0);
+    }
+
+    /**
+     * Writes out the buffered records.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        writeBuffer();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try {
+            writeBuffer();
+        } finally {
+            mStream.close();
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        mBuffer.flip();
+        while (mBuffer.hasRemaining()) {
+            mChannel.write(mBuffer);
+        }
+        mBuffer.clear();
+    }
+}
@@ -0,0 +1,175 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves sensor logging off the callback threads: callbacks put primitive
+ * samples into {@link SensorSampleRing}s, and a writer thread drains them in
+ * batches into a {@link SensorSampleSink}.
+ * <p>
+ * Each producer thread gets its own ring from {@link #addRing(int)}. The
+ * writer wakes up every few milliseconds, writes whatever the rings hold and
+ * flushes the sink once per flush interval, which bounds what a crash of the
+ * app can lose. A full ring rejects samples instead of blocking its callback;
+ * those are reported by {@link #getOverflowCount()}. An error of the sink
+ * stops the writer and is rethrown by {@link #stop()}.
+ * </p>
+ */
+public class SensorLogWriter {
+    // Samples written from one ring before the next ring gets its turn.
+    private static final int BATCH_SIZE = 256;
+    private static final long POLL_INTERVAL_MS = 10;
+
+    private final SensorSampleSink mSink;
+    private final long mFlushIntervalNanos;
+    private final List<SensorSampleRing> mRings = new ArrayList<>();
+    private Thread mThread;
+    private volatile boolean mRunning;
+    private volatile IOException mError;
+
+    private volatile long mSamplesWritten;
+    private volatile long mFlushes;
+    private volatile int mMaxBatch;
+    private volatile long mMaxFlushNanos;
+
+    /**
+     * @param flushIntervalMs How often the sink is flushed while logging.
+     */
+    public SensorLogWriter(SensorSampleSink sink, long flushIntervalMs) {
+        if (flushIntervalMs <= 0) {
+            throw new IllegalArgumentException("Invalid flush interval " + flushIntervalMs);
+        }
+        mSink = sink;
+        mFlushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMs);
+    }
+
+    /**
+     * Creates a ring for one producer thread. Only before {@link #start()}.
+     */
+    public synchronized SensorSampleRing addRing(int capacity) {
+        if (mThread != null) {
+            throw new IllegalStateException("Rings must be added before start");
+        }
+        SensorSampleRing ring = new SensorSampleRing(capacity);
+        mRings.add(ring);
+        return ring;
+    }
+
+    public synchronized void start() {
+        if (mThread != null) {
+            throw new IllegalStateException("Already started");
+        }
+        final SensorSampleRing[] rings = mRings.toArray(new SensorSampleRing[mRings.size()]);
+        mRunning = true;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeLoop(rings);
+            }
+        }, "SensorLogWriter");
+        mThread.start();
+    }
+
+    /**
+     * Writes what the rings still hold, flushes the sink and stops the
+     * writer thread. The sink is not closed.
+     *
+     * @throws IOException The error that stopped the writer, if any.
+     */
+    public void stop() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = mThread;
+            mThread = null;
+        }
+        if (thread == null) {
+            return;
+        }
+        mRunning = false;
+        LockSupport.unpark(thread);
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (mError != null) {
+            throw mError;
+        }
+    }
+
+    public long getSamplesWritten() {
+        return mSamplesWritten;
+    }
+
+    /**
+     * Samples rejected by full rings, over all rings.
+     */
+    public synchronized long getOverflowCount() {
+        long overflows = 0;
+        for (SensorSampleRing ring : mRings) {
+            overflows += ring.getOverflowCount();
+        }
+        return overflows;
+    }
+
+    @Override
+    public String toString() {
+        return "SensorLogWriter{written=" + mSamplesWritten
+                + ", overflows=" + getOverflowCount()
+                + ", maxBatch=" + mMaxBatch
+                + ", flushes=" + mFlushes
+                + ", maxFlushUs=" + mMaxFlushNanos / 1000
+                + "}";
+    }
+
+    private void writeLoop(SensorSampleRing[] rings) {
+        long lastFlush = System.nanoTime();
+        try {
+            while (true) {
+                // Read before draining, so the last pass sees every sample
+                // offered before stop().
+                boolean running = mRunning;
+                int batch = 0;
+                for (SensorSampleRing ring : rings) {
+                    int drained;
+                    do {
+                        drained = ring.drain(mSink, BATCH_SIZE);
+                        batch += drained;
+                    } while (drained == BATCH_SIZE);
+                }
+                if (batch > 0) {
+                    mSamplesWritten += batch;
+                    if (batch > mMaxBatch) {
+                        mMaxBatch = batch;
+                    }
+                }
+                long now = System.nanoTime();
+                if (!running || now - lastFlush >= mFlushIntervalNanos) {
+                    mSink.flush();
+                    long flushNanos = System.nanoTime() - now;
+                    if (flushNanos > mMaxFlushNanos) {
+                        mMaxFlushNanos = flushNanos;
+                    }
+                    mFlushes++;
+                    lastFlush = now;
+                }
+                if (!running) {
+                    return;
+                }
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MS));
+            }
+        } catch (IOException e) {
+            mError = e;
+        }
+    }
+}
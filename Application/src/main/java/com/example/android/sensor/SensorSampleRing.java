@@ -0,0 +1,107 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded single-producer/single-consumer ring of sensor samples, stored in
+ * preallocated primitive arrays so that neither side allocates.
+ * <p>
+ * The producer is a sensor or camera callback; it never waits. A sample that
+ * finds the ring full is rejected and counted as an overflow. The consumer
+ * takes samples in batches with {@link #drain}. {@code head} and {@code tail}
+ * are ever-increasing sequence numbers, each only advanced by one side.
+ * </p>
+ */
+public class SensorSampleRing {
+    private final int mMask;
+    private final int mCapacity;
+    private final byte[] mTags;
+    private final long[] mTimestamps;
+    // x, y and z of slot i at 3 * i.
+    private final float[] mValues;
+    // Sequence of the oldest sample, only advanced by the consumer.
+    private final AtomicLong mHead = new AtomicLong();
+    // Sequence of the next sample to write, only advanced by the producer.
+    private final AtomicLong mTail = new AtomicLong();
+    private final AtomicLong mOverflows = new AtomicLong();
+
+    public SensorSampleRing(int capacity) {
+        if (capacity < 1 || capacity > (1 << 28)) {
+            throw new IllegalArgumentException("Invalid ring capacity " + capacity);
+        }
+        int slots = Integer.highestOneBit(capacity);
+        if (slots < capacity) {
+            slots <<= 1;
+        }
+        mMask = slots - 1;
+        mCapacity = capacity;
+        mTags = new byte[slots];
+        mTimestamps = new long[slots];
+        mValues = new float[3 * slots];
+    }
+
+    /**
+     * Adds a sample if there is room. Producer thread only.
+     *
+     * @return false if the ring is full; the sample is counted as overflow.
+     */
+    public boolean offer(byte tag, long timestampNs, float x, float y, float z) {
+        long tail = mTail.get();
+        if (tail - mHead.get() >= mCapacity) {
+            mOverflows.incrementAndGet();
+            return false;
+        }
+        int index = (int) tail & mMask;
+        mTags[index] = tag;
+        mTimestamps[index] = timestampNs;
+        mValues[3 * index] = x;
+        mValues[3 * index + 1] = y;
+        mValues[3 * index + 2] = z;
+        // Publishes the slot to the consumer.
+        mTail.lazySet(tail + 1);
+        return true;
+    }
+
+    /**
+     * Hands up to {@code maxSamples} samples, oldest first, to {@code sink}.
+     * Consumer thread only. If the sink throws, the samples written so far
+     * are consumed.
+     *
+     * @return The number of samples written.
+     */
+    public int drain(SensorSampleSink sink, int maxSamples) throws IOException {
+        long head = mHead.get();
+        long end = Math.min(mTail.get(), head + maxSamples);
+        long sequence = head;
+        try {
+            for (; sequence < end; sequence++) {
+                int index = (int) sequence & mMask;
+                sink.write(mTags[index], mTimestamps[index],
+                        mValues[3 * index], mValues[3 * index + 1], mValues[3 * index + 2]);
+            }
+        } finally {
+            // Frees the slots for the producer.
+            mHead.lazySet(sequence);
+        }
+        return (int) (sequence - head);
+    }
+
+    /**
+     * Approximate number of queued samples.
+     */
+    public int size() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * Samples rejected because the ring was full.
+     */
+    public long getOverflowCount() {
+        return mOverflows.get();
+    }
+}
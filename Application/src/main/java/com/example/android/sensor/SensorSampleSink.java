@@ -0,0 +1,18 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+
+/**
+ * Receives sensor samples and frame timestamps on the {@link SensorLogWriter}
+ * thread, typically a log file. The tags are the {@code TAG_*} constants of
+ * {@link ImuRecordWriter}.
+ */
+public interface SensorSampleSink {
+    void write(byte tag, long timestampNs, float x, float y, float z) throws IOException;
+
+    /**
+     * Writes out what is buffered; called about once per flush interval and
+     * when logging stops.
+     */
+    void flush() throws IOException;
+}
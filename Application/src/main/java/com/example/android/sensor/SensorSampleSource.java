@@ -0,0 +1,29 @@
+package com.example.android.sensor;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Streams logged sensor samples and frame timestamps in the order they were
+ * logged. Call {@link #next()} to advance, then read the current sample with
+ * the getters. The tags are the {@code TAG_*} constants of
+ * {@link ImuRecordWriter}.
+ */
+public interface SensorSampleSource extends Closeable {
+    /**
+     * Moves to the next sample.
+     *
+     * @return false at the end of the log.
+     */
+    boolean next() throws IOException;
+
+    byte getTag();
+
+    long getTimestampNs();
+
+    float getX();
+
+    float getY();
+
+    float getZ();
+}
@@ -0,0 +1,29 @@
+package com.example.android.sensor;
+
+import java.io.IOException;
+
+/**
+ * A {@link SensorSampleSink} that hands every sample to several sinks in
+ * turn, such as a log file and a {@link FrameImuSynchronizer}.
+ */
+public class SensorSampleTee implements SensorSampleSink {
+    private final SensorSampleSink[] mSinks;
+
+    public SensorSampleTee(SensorSampleSink... sinks) {
+        mSinks = sinks.clone();
+    }
+
+    @Override
+    public void write(byte tag, long timestampNs, float x, float y, float z) throws IOException {
+        for (SensorSampleSink sink : mSinks) {
+            sink.write(tag, timestampNs, x, y, z);
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        for (SensorSampleSink sink : mSinks) {
+            sink.flush();
+        }
+    }
+}
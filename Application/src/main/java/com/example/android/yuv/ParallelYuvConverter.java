@@ -0,0 +1,164 @@
+package com.example.android.yuv;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * A {@link YuvConverter} that splits large frames into horizontal stripes and
+ * converts them concurrently on a private {@link ForkJoinPool}.
+ * <p>
+ * Every stripe covers an even number of luma rows together with the chroma rows
+ * under them, so stripes never write to the same output bytes. Frames with
+ * fewer pixels than the configured threshold, or a parallelism of 1, take the
+ * serial path because the hand-off costs more than it saves there.
+ * </p>
+ * <p>
+ * Stripe tasks and their scratch rows are allocated once. Each stripe reads
+ * through its own duplicates of the plane buffers, since ByteBuffer bulk reads
+ * are relative and stripes cannot share buffer positions. The duplicates are
+ * only taken again when a plane comes in a different buffer object, so a
+ * producer that recycles its buffers converts without allocating.
+ * Call {@link #release()} when the converter is no longer needed.
+ * </p>
+ */
+public class ParallelYuvConverter extends YuvConverter {
+    public static final int DEFAULT_MIN_PARALLEL_PIXELS = 1920 * 1080;
+
+    private final ForkJoinPool mPool;
+    private final int mParallelism;
+    private final int mMinParallelPixels;
+    private final StripeTask[] mStripes;
+    private final RootTask mRootTask = new RootTask();
+
+    public ParallelYuvConverter(int parallelism) {
+        this(parallelism, DEFAULT_MIN_PARALLEL_PIXELS);
+    }
+
+    /**
+     * @param parallelism Number of stripes and pool threads, at least 1.
+     * @param minParallelPixels Frames with fewer pixels are converted serially.
+     */
+    public ParallelYuvConverter(int parallelism, int minParallelPixels) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be at least 1, was " + parallelism);
+        }
+        mParallelism = parallelism;
+        mMinParallelPixels = minParallelPixels;
+        mPool = new ForkJoinPool(parallelism);
+        mStripes = new StripeTask[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            mStripes[i] = new StripeTask();
+        }
+    }
+
+    public int getParallelism() {
+        return mParallelism;
+    }
+
+    @Override
+    public void convert(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                        int colorFormat, byte[] outputData) {
+        if (mParallelism == 1 || height < 4 || (long) width * height < mMinParallelPixels) {
+            super.convert(planes, cropLeft, cropTop, width, height, colorFormat, outputData);
+            return;
+        }
+        checkArguments(planes, width, height, colorFormat, outputData);
+        int layout = colorFormat == COLOR_FormatI420
+                ? CHROMA_LAYOUT_PLANAR : detectChromaLayout(planes[1], planes[2]);
+        int scratchSize = getScratchSize(planes, width);
+        int stripeCount = Math.min(mParallelism, height / 2);
+        int rowStart = 0;
+        for (int i = 0; i < stripeCount; i++) {
+            // Round stripe boundaries down to even rows so chroma rows split cleanly.
+            int rowEnd = i == stripeCount - 1 ? height : (int) ((long) height * (i + 1) / stripeCount) & ~1;
+            mStripes[i].prepare(planes, cropLeft, cropTop, width, height, colorFormat, layout,
+                    rowStart, rowEnd, outputData, scratchSize);
+            rowStart = rowEnd;
+        }
+        mRootTask.mStripeCount = stripeCount;
+        mRootTask.reinitialize();
+        mPool.invoke(mRootTask);
+    }
+
+    /**
+     * Shuts down the worker pool. The converter must not be used afterwards.
+     */
+    public void release() {
+        mPool.shutdown();
+    }
+
+    private class RootTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        int mStripeCount;
+
+        @Override
+        protected void compute() {
+            for (int i = 0; i < mStripeCount; i++) {
+                mStripes[i].reinitialize();
+            }
+            // Fork all stripes but the first and run that one on this worker.
+            for (int i = 1; i < mStripeCount; i++) {
+                mStripes[i].fork();
+            }
+            mStripes[0].invoke();
+            for (int i = 1; i < mStripeCount; i++) {
+                mStripes[i].join();
+            }
+        }
+    }
+
+    private static class StripeTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final YuvPlane[] mPlanes = {new YuvPlane(), new YuvPlane(), new YuvPlane()};
+        // The buffers mPlanes duplicate.
+        private final ByteBuffer[] mSources = new ByteBuffer[3];
+        private byte[] mScratch = new byte[0];
+        private int mCropLeft;
+        private int mCropTop;
+        private int mWidth;
+        private int mHeight;
+        private int mColorFormat;
+        private int mChromaLayout;
+        private int mRowStart;
+        private int mRowEnd;
+        private byte[] mOutputData;
+
+        void prepare(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                     int colorFormat, int chromaLayout, int rowStart, int rowEnd,
+                     byte[] outputData, int scratchSize) {
+            for (int i = 0; i < planes.length; i++) {
+                ByteBuffer source = planes[i].getBuffer();
+                ByteBuffer buffer = mPlanes[i].getBuffer();
+                if (source != mSources[i]) {
+                    buffer = source.duplicate();
+                    mSources[i] = source;
+                } else {
+                    buffer.limit(source.limit());
+                }
+                mPlanes[i].set(buffer, planes[i].getRowStride(), planes[i].getPixelStride());
+            }
+            if (mScratch.length < scratchSize) {
+                mScratch = new byte[scratchSize];
+            }
+            mCropLeft = cropLeft;
+            mCropTop = cropTop;
+            mWidth = width;
+            mHeight = height;
+            mColorFormat = colorFormat;
+            mChromaLayout = chromaLayout;
+            mRowStart = rowStart;
+            mRowEnd = rowEnd;
+            mOutputData = outputData;
+        }
+
+        @Override
+        protected void compute() {
+            convertRows(mPlanes, mCropLeft, mCropTop, mWidth, mHeight, mColorFormat, mChromaLayout,
+                    mRowStart, mRowEnd, mOutputData, mScratch);
+            mOutputData = null;
+        }
+    }
+}
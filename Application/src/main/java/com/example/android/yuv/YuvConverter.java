@@ -0,0 +1,410 @@
+package com.example.android.yuv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts YUV_420_888 planes into packed I420, NV12 or NV21 frames.
+ * <p>
+ * Rows are moved with bulk {@link ByteBuffer#get(byte[], int, int)} copies. When
+ * the two chroma planes have a pixel stride of 2 and already overlap as NV12 or
+ * NV21 (the usual layout produced by camera HALs), each chroma row is copied in
+ * one piece instead of sample by sample.
+ * </p>
+ * <p>
+ * A converter keeps a row scratch buffer that is only reallocated when a wider
+ * frame shows up, so converting a stream of same-sized frames does not allocate.
+ * It is not thread-safe; use one instance per producer thread.
+ * </p>
+ * <p>
+ * The source planes are only ever read. Whether the chroma planes overlap is
+ * not known up front, so an interleaved row is copied from one plane and every
+ * sample of the other plane is checked against it in the same pass. The first
+ * row that does not match sends the rest of the frame down the planar path.
+ * </p>
+ */
+public class YuvConverter {
+    public static final int COLOR_FormatI420 = 1;
+    public static final int COLOR_FormatNV21 = 2;
+    public static final int COLOR_FormatNV12 = 3;
+
+    // Chroma planes are unrelated, or their layout could not be established.
+    static final int CHROMA_LAYOUT_PLANAR = 0;
+    // U plane followed by V in the same memory, i.e. the source is NV12.
+    static final int CHROMA_LAYOUT_NV12 = 1;
+    // V plane followed by U in the same memory, i.e. the source is NV21.
+    static final int CHROMA_LAYOUT_NV21 = 2;
+
+    private byte[] mRowScratch = new byte[0];
+    // Assembled output row, used when a row cannot be moved into a ByteBuffer in one put.
+    private byte[] mOutputRow = new byte[0];
+
+    /**
+     * Returns the number of bytes a packed 4:2:0 frame of the given size takes.
+     */
+    public static int getFrameSize(int width, int height) {
+        return width * height * 3 / 2;
+    }
+
+    public static boolean isSupportedColorFormat(int colorFormat) {
+        return colorFormat == COLOR_FormatI420 || colorFormat == COLOR_FormatNV21
+                || colorFormat == COLOR_FormatNV12;
+    }
+
+    /**
+     * Converts the cropped area of a YUV_420_888 image into {@code outputData}.
+     *
+     * @param planes Y, U and V plane descriptors, in that order.
+     * @param cropLeft Left edge of the crop rectangle.
+     * @param cropTop Top edge of the crop rectangle.
+     * @param width Width of the crop rectangle.
+     * @param height Height of the crop rectangle.
+     * @param colorFormat One of {@link #COLOR_FormatI420}, {@link #COLOR_FormatNV21}
+     * or {@link #COLOR_FormatNV12}.
+     * @param outputData Destination, at least {@link #getFrameSize(int, int)} bytes.
+     */
+    public void convert(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                        int colorFormat, byte[] outputData) {
+        checkArguments(planes, width, height, colorFormat, outputData);
+        int layout = colorFormat == COLOR_FormatI420
+                ? CHROMA_LAYOUT_PLANAR : detectChromaLayout(planes[1], planes[2]);
+        ensureScratch(getScratchSize(planes, width));
+        convertRows(planes, cropLeft, cropTop, width, height, colorFormat, layout, 0, height,
+                outputData, mRowScratch);
+    }
+
+    /**
+     * Validates the arguments shared by every convert entry point.
+     */
+    static void checkArguments(YuvPlane[] planes, int width, int height, int colorFormat,
+                               byte[] outputData) {
+        if (!isSupportedColorFormat(colorFormat)) {
+            throw new IllegalArgumentException("only support COLOR_FormatI420, COLOR_FormatNV21 "
+                    + "and COLOR_FormatNV12");
+        }
+        if (planes == null || planes.length != 3) {
+            throw new IllegalArgumentException("YUV_420_888 image must have 3 planes");
+        }
+        int size = getFrameSize(width, height);
+        if (outputData == null || outputData.length < size) {
+            throw new IllegalArgumentException("Output data bytes is null or shorter than " + size);
+        }
+    }
+
+    /**
+     * Returns the scratch row length {@link #convertRows} needs for these planes.
+     */
+    static int getScratchSize(YuvPlane[] planes, int width) {
+        int chromaWidth = width >> 1;
+        return Math.max(rowSpan(planes[0], width),
+                Math.max(rowSpan(planes[1], chromaWidth), rowSpan(planes[2], chromaWidth)));
+    }
+
+    /**
+     * Converts luma rows {@code [rowStart, rowEnd)} of the crop rectangle and the
+     * chroma rows that belong to them. {@code rowStart} must be even so that
+     * adjacent ranges split the chroma rows cleanly. The plane buffers' positions
+     * are moved, so concurrent callers each need their own buffer views.
+     */
+    static void convertRows(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                            int colorFormat, int chromaLayout, int rowStart, int rowEnd,
+                            byte[] outputData, byte[] scratch) {
+        YuvPlane y = planes[0];
+        YuvPlane u = planes[1];
+        YuvPlane v = planes[2];
+        int lumaSize = width * height;
+        int chromaWidth = width >> 1;
+        int chromaLeft = cropLeft >> 1;
+        int chromaRowStart = rowStart >> 1;
+        int chromaRowEnd = rowEnd == height ? height >> 1 : rowEnd >> 1;
+        int chromaRows = chromaRowEnd - chromaRowStart;
+        int chromaTop = (cropTop >> 1) + chromaRowStart;
+
+        copyPlaneRows(y.getBuffer(), planeOffset(y, cropLeft, cropTop + rowStart), y.getRowStride(),
+                y.getPixelStride(), width, rowEnd - rowStart, outputData, rowStart * width, 1,
+                width, scratch);
+
+        if (colorFormat == COLOR_FormatI420) {
+            // Same offsets as the original per-pixel loop, V starts at 1.25 * width * height.
+            int rowOffset = chromaRowStart * chromaWidth;
+            copyPlaneRows(u.getBuffer(), planeOffset(u, chromaLeft, chromaTop), u.getRowStride(),
+                    u.getPixelStride(), chromaWidth, chromaRows, outputData, lumaSize + rowOffset,
+                    1, chromaWidth, scratch);
+            copyPlaneRows(v.getBuffer(), planeOffset(v, chromaLeft, chromaTop), v.getRowStride(),
+                    v.getPixelStride(), chromaWidth, chromaRows, outputData,
+                    lumaSize + (lumaSize >> 2) + rowOffset, 1, chromaWidth, scratch);
+            return;
+        }
+
+        boolean nv12 = colorFormat == COLOR_FormatNV12;
+        int chromaOffset = lumaSize + chromaRowStart * chromaWidth * 2;
+        int done = 0;
+        if (chromaLayout == CHROMA_LAYOUT_NV12) {
+            done = copyInterleavedRows(u.getBuffer(), v.getBuffer(),
+                    planeOffset(u, chromaLeft, chromaTop), u.getRowStride(), chromaWidth,
+                    chromaRows, outputData, chromaOffset, chromaWidth * 2, !nv12, scratch);
+        } else if (chromaLayout == CHROMA_LAYOUT_NV21) {
+            done = copyInterleavedRows(v.getBuffer(), u.getBuffer(),
+                    planeOffset(v, chromaLeft, chromaTop), v.getRowStride(), chromaWidth,
+                    chromaRows, outputData, chromaOffset, chromaWidth * 2, nv12, scratch);
+        }
+        if (done < chromaRows) {
+            // Planar chroma, or planes that turned out not to be interleaved.
+            chromaTop += done;
+            chromaRows -= done;
+            chromaOffset += done * chromaWidth * 2;
+            copyPlaneRows(u.getBuffer(), planeOffset(u, chromaLeft, chromaTop), u.getRowStride(),
+                    u.getPixelStride(), chromaWidth, chromaRows, outputData,
+                    nv12 ? chromaOffset : chromaOffset + 1, 2, chromaWidth * 2, scratch);
+            copyPlaneRows(v.getBuffer(), planeOffset(v, chromaLeft, chromaTop), v.getRowStride(),
+                    v.getPixelStride(), chromaWidth, chromaRows, outputData,
+                    nv12 ? chromaOffset + 1 : chromaOffset, 2, chromaWidth * 2, scratch);
+        }
+    }
+
+    /**
+     * Returns the number of bytes a strided 4:2:0 frame occupies in an encoder
+     * input buffer: a luma plane of {@code stride * sliceHeight} bytes followed
+     * by half as much chroma.
+     */
+    public static int getFrameSize(int stride, int sliceHeight, int colorFormat) {
+        int lumaSize = stride * sliceHeight;
+        if (colorFormat == COLOR_FormatI420) {
+            return lumaSize + (stride / 2) * (sliceHeight / 2) * 2;
+        }
+        return lumaSize + stride * (sliceHeight / 2);
+    }
+
+    /**
+     * Converts the cropped area of a YUV_420_888 image straight into a buffer laid
+     * out the way a MediaCodec encoder describes its input: luma rows
+     * {@code outputStride} bytes apart, chroma starting after
+     * {@code outputSliceHeight} luma rows. For I420 the chroma planes use half
+     * the stride; NV12 and NV21 use the full stride.
+     * <p>
+     * Rows are written at absolute offsets from index 0. On return the buffer's
+     * position is 0 and its limit is the end of the last written byte. This path
+     * is always serial.
+     * </p>
+     *
+     * @return Number of bytes from the start of the buffer to the end of the frame.
+     */
+    public int convert(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                       int colorFormat, ByteBuffer output, int outputStride, int outputSliceHeight) {
+        if (!isSupportedColorFormat(colorFormat)) {
+            throw new IllegalArgumentException("only support COLOR_FormatI420, COLOR_FormatNV21 "
+                    + "and COLOR_FormatNV12");
+        }
+        if (planes == null || planes.length != 3) {
+            throw new IllegalArgumentException("YUV_420_888 image must have 3 planes");
+        }
+        if (outputStride < width || outputSliceHeight < height) {
+            throw new IllegalArgumentException("Output layout " + outputStride + "x"
+                    + outputSliceHeight + " is smaller than the frame " + width + "x" + height);
+        }
+        YuvPlane y = planes[0];
+        YuvPlane u = planes[1];
+        YuvPlane v = planes[2];
+        int chromaWidth = width >> 1;
+        int chromaHeight = height >> 1;
+        int chromaLeft = cropLeft >> 1;
+        int chromaTop = cropTop >> 1;
+        boolean planar = colorFormat == COLOR_FormatI420;
+        int lumaSize = outputStride * outputSliceHeight;
+        int chromaStride = planar ? outputStride / 2 : outputStride;
+        int secondChromaOffset = lumaSize + chromaStride * (outputSliceHeight / 2);
+        int extent = outputStride * (height - 1) + width;
+        if (chromaHeight > 0 && chromaWidth > 0) {
+            extent = planar
+                    ? secondChromaOffset + chromaStride * (chromaHeight - 1) + chromaWidth
+                    : lumaSize + chromaStride * (chromaHeight - 1) + chromaWidth * 2;
+        }
+        if (output.capacity() < extent) {
+            throw new IllegalArgumentException("Output buffer holds " + output.capacity()
+                    + " bytes, the frame needs " + extent);
+        }
+        ensureScratch(getScratchSize(planes, width));
+        if (mOutputRow.length < width) {
+            mOutputRow = new byte[width];
+        }
+        output.clear();
+
+        transferPlaneRows(y.getBuffer(), planeOffset(y, cropLeft, cropTop), y.getRowStride(),
+                y.getPixelStride(), width, height, output, 0, outputStride, mRowScratch, mOutputRow);
+        if (planar) {
+            transferPlaneRows(u.getBuffer(), planeOffset(u, chromaLeft, chromaTop), u.getRowStride(),
+                    u.getPixelStride(), chromaWidth, chromaHeight, output, lumaSize, chromaStride,
+                    mRowScratch, mOutputRow);
+            transferPlaneRows(v.getBuffer(), planeOffset(v, chromaLeft, chromaTop), v.getRowStride(),
+                    v.getPixelStride(), chromaWidth, chromaHeight, output, secondChromaOffset,
+                    chromaStride, mRowScratch, mOutputRow);
+        } else {
+            boolean nv12 = colorFormat == COLOR_FormatNV12;
+            int layout = detectChromaLayout(u, v);
+            int rowLength = chromaWidth * 2;
+            for (int row = 0; row < chromaHeight; row++) {
+                int out = lumaSize + row * chromaStride;
+                if (layout == CHROMA_LAYOUT_NV12 && copyInterleavedRows(u.getBuffer(),
+                        v.getBuffer(), planeOffset(u, chromaLeft, chromaTop + row),
+                        u.getRowStride(), chromaWidth, 1, mOutputRow, 0, rowLength, !nv12,
+                        mRowScratch) == 0) {
+                    layout = CHROMA_LAYOUT_PLANAR;
+                } else if (layout == CHROMA_LAYOUT_NV21 && copyInterleavedRows(v.getBuffer(),
+                        u.getBuffer(), planeOffset(v, chromaLeft, chromaTop + row),
+                        v.getRowStride(), chromaWidth, 1, mOutputRow, 0, rowLength, nv12,
+                        mRowScratch) == 0) {
+                    layout = CHROMA_LAYOUT_PLANAR;
+                }
+                if (layout == CHROMA_LAYOUT_PLANAR) {
+                    copyPlaneRows(u.getBuffer(), planeOffset(u, chromaLeft, chromaTop + row),
+                            u.getRowStride(), u.getPixelStride(), chromaWidth, 1, mOutputRow,
+                            nv12 ? 0 : 1, 2, rowLength, mRowScratch);
+                    copyPlaneRows(v.getBuffer(), planeOffset(v, chromaLeft, chromaTop + row),
+                            v.getRowStride(), v.getPixelStride(), chromaWidth, 1, mOutputRow,
+                            nv12 ? 1 : 0, 2, rowLength, mRowScratch);
+                }
+                output.position(out);
+                output.put(mOutputRow, 0, rowLength);
+            }
+        }
+        output.position(0);
+        output.limit(extent);
+        return extent;
+    }
+
+    private void ensureScratch(int length) {
+        if (mRowScratch.length < length) {
+            mRowScratch = new byte[length];
+        }
+    }
+
+    static void transferPlaneRows(ByteBuffer src, int srcOffset, int srcRowStride,
+                                  int srcPixelStride, int width, int rowCount, ByteBuffer dst,
+                                  int dstOffset, int dstRowStride, byte[] scratch, byte[] row) {
+        for (int i = 0; i < rowCount; i++) {
+            if (srcPixelStride == 1) {
+                transfer(src, srcOffset + i * srcRowStride, dst, dstOffset + i * dstRowStride, width);
+            } else {
+                copyPlaneRows(src, srcOffset + i * srcRowStride, srcRowStride, srcPixelStride,
+                        width, 1, row, 0, 1, width, scratch);
+                dst.position(dstOffset + i * dstRowStride);
+                dst.put(row, 0, width);
+            }
+        }
+    }
+
+    // Bulk copy between two buffers at absolute offsets, leaving the source limit as it was.
+    private static void transfer(ByteBuffer src, int srcOffset, ByteBuffer dst, int dstOffset,
+                                 int length) {
+        if (length <= 0) {
+            return;
+        }
+        int srcLimit = src.limit();
+        src.limit(srcOffset + length);
+        src.position(srcOffset);
+        dst.position(dstOffset);
+        dst.put(src);
+        src.limit(srcLimit);
+    }
+
+    // Number of source bytes spanned by one row of 'width' samples.
+    static int rowSpan(YuvPlane plane, int width) {
+        return width <= 0 ? 0 : (width - 1) * plane.getPixelStride() + 1;
+    }
+
+    static int planeOffset(YuvPlane plane, int left, int top) {
+        return plane.getRowStride() * top + plane.getPixelStride() * left;
+    }
+
+    /**
+     * Guesses whether the U and V planes are two views of one interleaved
+     * chroma plane, one byte apart, from the first samples of each. The guess
+     * only picks the path to try; {@link #copyInterleavedRows} checks every
+     * sample, so planes that merely look interleaved still convert correctly.
+     */
+    static int detectChromaLayout(YuvPlane u, YuvPlane v) {
+        if (u.getPixelStride() != 2 || v.getPixelStride() != 2
+                || u.getRowStride() != v.getRowStride()) {
+            return CHROMA_LAYOUT_PLANAR;
+        }
+        ByteBuffer uBuffer = u.getBuffer();
+        ByteBuffer vBuffer = v.getBuffer();
+        if (uBuffer.limit() < 2 || vBuffer.limit() < 2) {
+            return CHROMA_LAYOUT_PLANAR;
+        }
+        if (uBuffer.get(1) == vBuffer.get(0)) {
+            return CHROMA_LAYOUT_NV12;
+        }
+        if (vBuffer.get(1) == uBuffer.get(0)) {
+            return CHROMA_LAYOUT_NV21;
+        }
+        return CHROMA_LAYOUT_PLANAR;
+    }
+
+    static void copyPlaneRows(ByteBuffer src, int srcOffset, int srcRowStride, int srcPixelStride,
+                              int width, int rowCount, byte[] dst, int dstOffset,
+                              int dstPixelStride, int dstRowStride, byte[] scratch) {
+        if (width <= 0 || rowCount <= 0) {
+            return;
+        }
+        if (srcPixelStride == 1 && dstPixelStride == 1) {
+            for (int row = 0; row < rowCount; row++) {
+                src.position(srcOffset + row * srcRowStride);
+                src.get(dst, dstOffset + row * dstRowStride, width);
+            }
+            return;
+        }
+        int length = (width - 1) * srcPixelStride + 1;
+        for (int row = 0; row < rowCount; row++) {
+            src.position(srcOffset + row * srcRowStride);
+            src.get(scratch, 0, length);
+            int out = dstOffset + row * dstRowStride;
+            for (int in = 0; in < length; in += srcPixelStride) {
+                dst[out] = scratch[in];
+                out += dstPixelStride;
+            }
+        }
+    }
+
+    /**
+     * Copies rows of an interleaved chroma plane. {@code first} is the plane
+     * whose samples come first in memory. Each row is copied from
+     * {@code first} in one piece, and the same row of {@code second} is read
+     * into {@code scratch} to check every sample the copy took for one of
+     * {@code second}'s; the final byte of the row is taken from there too.
+     *
+     * @return Number of rows copied. A smaller number than {@code rowCount}
+     * means the planes do not overlap from that row on, and that row and the
+     * ones after it must be converted as planar.
+     */
+    static int copyInterleavedRows(ByteBuffer first, ByteBuffer second, int srcOffset,
+                                   int srcRowStride, int chromaWidth, int rowCount, byte[] dst,
+                                   int dstOffset, int dstRowStride, boolean swapPairs,
+                                   byte[] scratch) {
+        if (chromaWidth <= 0 || rowCount <= 0) {
+            return rowCount;
+        }
+        int length = chromaWidth * 2 - 1;
+        for (int row = 0; row < rowCount; row++) {
+            int in = srcOffset + row * srcRowStride;
+            int out = dstOffset + row * dstRowStride;
+            first.position(in);
+            first.get(dst, out, length);
+            second.position(in);
+            second.get(scratch, 0, length);
+            for (int i = 0; i < length - 1; i += 2) {
+                if (dst[out + i + 1] != scratch[i]) {
+                    return row;
+                }
+            }
+            dst[out + length] = scratch[length - 1];
+            if (swapPairs) {
+                for (int end = out + length; out < end; out += 2) {
+                    byte tmp = dst[out];
+                    dst[out] = dst[out + 1];
+                    dst[out + 1] = tmp;
+                }
+            }
+        }
+        return rowCount;
+    }
+}
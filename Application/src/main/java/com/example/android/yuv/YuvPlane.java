@@ -0,0 +1,44 @@
+package com.example.android.yuv;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Describes one plane of a YUV_420_888 image: its backing buffer, row stride
+ * and pixel stride. Instances are mutable so that callers can keep one array of
+ * descriptors and refill it for every frame instead of allocating new ones.
+ */
+public class YuvPlane {
+    private ByteBuffer mBuffer;
+    private int mRowStride;
+    private int mPixelStride;
+
+    public YuvPlane() {
+    }
+
+    public YuvPlane(ByteBuffer buffer, int rowStride, int pixelStride) {
+        set(buffer, rowStride, pixelStride);
+    }
+
+    public YuvPlane set(ByteBuffer buffer, int rowStride, int pixelStride) {
+        if (rowStride <= 0 || pixelStride <= 0) {
+            throw new IllegalArgumentException("Invalid plane strides, row " + rowStride
+                    + " pixel " + pixelStride);
+        }
+        mBuffer = buffer;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+        return this;
+    }
+
+    public ByteBuffer getBuffer() {
+        return mBuffer;
+    }
+
+    public int getRowStride() {
+        return mRowStride;
+    }
+
+    public int getPixelStride() {
+        return mPixelStride;
+    }
+}
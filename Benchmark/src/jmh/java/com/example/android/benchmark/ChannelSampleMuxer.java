@@ -0,0 +1,75 @@
+package com.example.android.benchmark;
+
+import com.example.android.codec.EncodedSampleInfo;
+import com.example.android.codec.SampleMuxer;
+import com.example.android.codec.VideoFormat;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A minimal {@link SampleMuxer} for the pipeline harness: every sample is
+ * written to a file behind a 16 byte header (presentation time, size, flags),
+ * so the harness pays for real disk writes without depending on MediaMuxer.
+ */
+public class ChannelSampleMuxer implements SampleMuxer {
+    private final FileOutputStream mStream;
+    private final FileChannel mChannel;
+    private final ByteBuffer mHeader = ByteBuffer.allocateDirect(16).order(ByteOrder.LITTLE_ENDIAN);
+    private long mBytesWritten;
+    private int mTracks;
+
+    public ChannelSampleMuxer(String path) throws IOException {
+        mStream = new FileOutputStream(path);
+        mChannel = mStream.getChannel();
+    }
+
+    public long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    @Override
+    public int addTrack(VideoFormat format) {
+        return mTracks++;
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+        mHeader.clear();
+        mHeader.putLong(info.presentationTimeUs).putInt(data.remaining()).putInt(info.flags);
+        mHeader.flip();
+        try {
+            mBytesWritten += write(mHeader) + write(data);
+        } catch (IOException e) {
+            throw new IllegalStateException("Writing sample failed", e);
+        }
+    }
+
+    private int write(ByteBuffer buffer) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining()) {
+            written += mChannel.write(buffer);
+        }
+        return written;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        try {
+            mStream.close();
+        } catch (IOException e) {
+            throw new IllegalStateException("Closing muxer output failed", e);
+        }
+    }
+}
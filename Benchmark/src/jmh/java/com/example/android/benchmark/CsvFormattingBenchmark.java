@@ -0,0 +1,114 @@
+package com.example.android.benchmark;
+
+import com.example.android.sensor.CsvNumberFormatter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Random;
+
+/**
+ * Cost of rendering one sensor CSV row: {@link CsvNumberFormatter} against
+ * the String concatenation and the {@code printf} the fragment used before.
+ * Rows go to writers that discard them, so only the formatting is measured;
+ * see gc.alloc.rate.norm for the garbage per row.
+ */
+@State(Scope.Thread)
+public class CsvFormattingBenchmark {
+    private static final int SAMPLES = 1024;
+
+    private final long[] mTimestamps = new long[SAMPLES];
+    private final float[] mValues = new float[3 * SAMPLES];
+    private final CsvNumberFormatter mFormatter = new CsvNumberFormatter();
+    private PrintWriter mPrintWriter;
+    private OutputStream mStream;
+    private int mNext;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        long timestamp = 123456789000000L;
+        for (int i = 0; i < SAMPLES; i++) {
+            timestamp += 2000000 + random.nextInt(10000);
+            mTimestamps[i] = timestamp;
+            // Accelerometer-like values around gravity and small rates.
+            mValues[3 * i] = (random.nextFloat() - 0.5f) * 2;
+            mValues[3 * i + 1] = 9.81f + (random.nextFloat() - 0.5f);
+            mValues[3 * i + 2] = (random.nextFloat() - 0.5f) * 0.01f;
+        }
+        mPrintWriter = new PrintWriter(new Writer() {
+            @Override
+            public void write(char[] buffer, int offset, int length) {
+            }
+
+            @Override
+            public void write(String s, int offset, int length) {
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        mStream = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+            }
+        };
+    }
+
+    private int next() {
+        int i = mNext;
+        mNext = i == SAMPLES - 1 ? 0 : i + 1;
+        return i;
+    }
+
+    @Benchmark
+    public void legacyConcat() {
+        int i = next();
+        mPrintWriter.println(mTimestamps[i] + "," + mValues[3 * i] + "," + mValues[3 * i + 1]
+                + "," + mValues[3 * i + 2]);
+    }
+
+    @Benchmark
+    public void legacyPrintf() {
+        int i = next();
+        mPrintWriter.printf("%d,%f,%f,%f", mTimestamps[i], mValues[3 * i], mValues[3 * i + 1],
+                mValues[3 * i + 2]);
+        mPrintWriter.println();
+    }
+
+    @Benchmark
+    public void formatterShortest() throws Exception {
+        int i = next();
+        CsvNumberFormatter row = mFormatter;
+        row.clear();
+        row.append(mTimestamps[i]).append(',').appendShortest(mValues[3 * i])
+                .append(',').appendShortest(mValues[3 * i + 1])
+                .append(',').appendShortest(mValues[3 * i + 2]).append('\n');
+        row.writeTo(mStream);
+    }
+
+    @Benchmark
+    public void formatterFixed() throws Exception {
+        int i = next();
+        CsvNumberFormatter row = mFormatter;
+        row.clear();
+        row.append(mTimestamps[i]).append(',').appendFixed(mValues[3 * i], 6)
+                .append(',').appendFixed(mValues[3 * i + 1], 6)
+                .append(',').appendFixed(mValues[3 * i + 2], 6).append('\n');
+        row.writeTo(mStream);
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.benchmark;
+
+import com.example.android.dump.FrameCompressor;
+import com.example.android.yuv.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Deflater;
+
+/**
+ * Cost per frame of {@link FrameCompressor} on a {@link SyntheticNv12Scene}
+ * frame: Deflater at {@link Deflater#BEST_SPEED} on the raw frame, on the
+ * filtered frame, and Huffman coding of the filtered frame, which the
+ * fragment uses.
+ */
+@State(Scope.Thread)
+public class FrameCompressionBenchmark {
+    @Param({"1920x1080"})
+    public String resolution;
+
+    @Param({"plain", "filtered", "huffman"})
+    public String mode;
+
+    @Param({"2"})
+    public double noise;
+
+    private int mWidth;
+    private int mHeight;
+    private int mFormat;
+    private int mCodec;
+    private ByteBuffer mFrame;
+    private byte[] mCompressed;
+    private int mCompressedSize;
+    private byte[] mDecoded;
+    private FrameCompressor mCompressor;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticYuvFrame.parseResolution(resolution);
+        mWidth = size[0];
+        mHeight = size[1];
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(mWidth, mHeight, noise, 7);
+        byte[] frame = new byte[scene.size];
+        scene.render(0, frame);
+        mFrame = ByteBuffer.wrap(frame);
+        mCompressed = new byte[scene.size];
+        mDecoded = new byte[scene.size];
+        // A format other than NV12 leaves out the filter.
+        mFormat = mode.equals("plain") ? -1 : YuvConverter.COLOR_FormatNV12;
+        mCodec = FrameCompressor.codecFor(mFormat, mWidth, mHeight, scene.size);
+        mCompressor = new FrameCompressor(Deflater.BEST_SPEED,
+                mode.equals("huffman") ? Deflater.HUFFMAN_ONLY : Deflater.FILTERED);
+        mCompressedSize = compress();
+    }
+
+    @TearDown
+    public void tearDown() {
+        mCompressor.release();
+    }
+
+    @Benchmark
+    public int compress() {
+        return mCompressor.compress(mFrame, mFrame.capacity(), mFormat, mWidth, mHeight,
+                mCompressed);
+    }
+
+    @Benchmark
+    public byte[] decompress() throws IOException {
+        mCompressor.decompress(mCompressed, 0, mCompressedSize, mCodec, mWidth, mHeight, mDecoded,
+                mDecoded.length);
+        return mDecoded;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.android.benchmark;
+
+import com.example.android.buffer.FrameRing;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Frame hand-off between the camera thread and the recording thread:
+ * {@link FrameRing} against the drop-oldest {@link LinkedBlockingQueue} loop the
+ * fragment used before.
+ * <p>
+ * The {@code *Handoff} benchmarks offer and poll on one thread, which isolates
+ * the per-frame cost and allocation (see gc.alloc.rate.norm). The grouped
+ * benchmarks run a producer and a consumer concurrently on a queue that is
+ * usually full, so most offers also drop a frame.
+ * </p>
+ */
+public class FrameHandoffBenchmark {
+    private static final int CAPACITY = 15;
+
+    @State(Scope.Group)
+    public static class Queues {
+        FrameRing<Object> mRing;
+        LinkedBlockingQueue<Object> mQueue;
+
+        @Setup(Level.Iteration)
+        public void setUp() {
+            mRing = new FrameRing<>(CAPACITY);
+            mQueue = new LinkedBlockingQueue<>(CAPACITY);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Frames {
+        // A handful of preallocated frames, cycled like the pooled holders.
+        final Object[] mFrames = new Object[CAPACITY + 1];
+        int mNext;
+
+        public Frames() {
+            for (int i = 0; i < mFrames.length; i++) {
+                mFrames[i] = new Object();
+            }
+        }
+
+        Object next() {
+            Object frame = mFrames[mNext];
+            mNext = mNext == mFrames.length - 1 ? 0 : mNext + 1;
+            return frame;
+        }
+    }
+
+    private static Object offerDropOldest(LinkedBlockingQueue<Object> queue, Object frame) {
+        Object dropped = null;
+        while (!queue.offer(frame)) {
+            dropped = queue.poll();
+        }
+        return dropped;
+    }
+
+    @Benchmark
+    public Object ringHandoff(Queues queues, Frames frames) {
+        queues.mRing.offer(frames.next());
+        return queues.mRing.poll();
+    }
+
+    @Benchmark
+    public Object queueHandoff(Queues queues, Frames frames) {
+        queues.mQueue.offer(frames.next());
+        return queues.mQueue.poll();
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public Object ringProducer(Queues queues, Frames frames) {
+        return queues.mRing.offer(frames.next());
+    }
+
+    @Benchmark
+    @Group("ring")
+    @GroupThreads(1)
+    public Object ringConsumer(Queues queues) {
+        return queues.mRing.poll();
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public Object queueProducer(Queues queues, Frames frames) {
+        return offerDropOldest(queues.mQueue, frames.next());
+    }
+
+    @Benchmark
+    @Group("queue")
+    @GroupThreads(1)
+    public Object queueConsumer(Queues queues) {
+        return queues.mQueue.poll();
+    }
+}
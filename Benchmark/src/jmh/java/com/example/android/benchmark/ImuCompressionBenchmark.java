@@ -0,0 +1,98 @@
+package com.example.android.benchmark;
+
+import com.example.android.sensor.ImuCompressedReader;
+import com.example.android.sensor.ImuCompressedWriter;
+import com.example.android.sensor.ImuRecordWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Cost per sample of {@link ImuCompressedWriter} and
+ * {@link ImuCompressedReader} on a {@link SyntheticImuLog}, exact or
+ * quantized to the sensor resolution. Each operation codes one block of
+ * {@link #SAMPLES} samples, about 10s of the fragment's sensors; the
+ * encoded blocks go to a stream that discards them.
+ */
+@State(Scope.Thread)
+public class ImuCompressionBenchmark {
+    private static final int SAMPLES = 16384;
+
+    @Param({"false", "true"})
+    public boolean quantized;
+
+    private SyntheticImuLog mLog;
+    private ImuCompressedWriter mWriter;
+    private byte[] mEncoded;
+
+    @Setup
+    public void setUp() throws IOException {
+        mLog = new SyntheticImuLog(SAMPLES * 0.00065, 3);
+        mWriter = createWriter(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] buffer, int offset, int length) {
+            }
+        });
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = createWriter(bytes);
+        writeSamples(writer);
+        writer.close();
+        mEncoded = bytes.toByteArray();
+    }
+
+    private ImuCompressedWriter createWriter(OutputStream stream) throws IOException {
+        ImuCompressedWriter writer = new ImuCompressedWriter(stream, 1024 * 1024);
+        if (quantized) {
+            writer.setQuantization(ImuRecordWriter.TAG_ACCELEROMETER,
+                    SyntheticImuLog.ACCELEROMETER_RESOLUTION);
+            writer.setQuantization(ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED,
+                    SyntheticImuLog.ACCELEROMETER_RESOLUTION);
+            writer.setQuantization(ImuRecordWriter.TAG_GYROSCOPE,
+                    SyntheticImuLog.GYROSCOPE_RESOLUTION);
+            writer.setQuantization(ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED,
+                    SyntheticImuLog.GYROSCOPE_RESOLUTION);
+        }
+        return writer;
+    }
+
+    private void writeSamples(ImuCompressedWriter writer) throws IOException {
+        SyntheticImuLog log = mLog;
+        int count = Math.min(SAMPLES, log.count);
+        for (int i = 0; i < count; i++) {
+            writer.write(log.tags[i], log.timestampsNs[i], log.values[3 * i],
+                    log.values[3 * i + 1], log.values[3 * i + 2]);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long encode() throws IOException {
+        writeSamples(mWriter);
+        mWriter.flush();
+        return mWriter.getBytesWritten();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(SAMPLES)
+    public long decode() throws IOException {
+        ImuCompressedReader reader = new ImuCompressedReader(new ByteArrayInputStream(mEncoded));
+        long sum = 0;
+        while (reader.next()) {
+            sum += reader.getTimestampNs() + Float.floatToRawIntBits(reader.getX());
+        }
+        return sum;
+    }
+}
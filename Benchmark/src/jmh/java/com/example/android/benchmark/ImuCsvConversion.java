@@ -0,0 +1,28 @@
+package com.example.android.benchmark;
+
+import com.example.android.sensor.ImuCsvConverter;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Converts a sensor log pulled off the device into its CSV files with
+ * {@link ImuCsvConverter}, next to the log unless another folder is given.
+ * <p>
+ * Run it from the jmh jar: {@code java -cp Benchmark/build/libs/Benchmark-jmh.jar
+ * com.example.android.benchmark.ImuCsvConversion <imu log> [output folder]}
+ * </p>
+ */
+public class ImuCsvConversion {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.out.println("usage: ImuCsvConversion <imu log> [output folder]");
+            return;
+        }
+        String folder = args.length > 1 ? args[1] : new File(args[0]).getAbsoluteFile().getParent();
+        long start = System.nanoTime();
+        long records = ImuCsvConverter.convert(args[0], folder);
+        System.out.println(records + " records converted to " + folder + " in "
+                + (System.nanoTime() - start) / 1000000 + "ms");
+    }
+}
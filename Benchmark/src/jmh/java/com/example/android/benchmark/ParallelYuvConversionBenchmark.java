@@ -0,0 +1,56 @@
+package com.example.android.benchmark;
+
+import com.example.android.yuv.ParallelYuvConverter;
+import com.example.android.yuv.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Scaling of stripe-parallel conversion with the number of worker threads.
+ * The serial fallback is disabled so that parallelism 1 shows the cost of
+ * going through the pool with a single stripe.
+ */
+@State(Scope.Thread)
+public class ParallelYuvConversionBenchmark {
+    @Param({"1920x1080", "3840x2160"})
+    public String resolution;
+
+    @Param({"1", "2"})
+    public int chromaPixelStride;
+
+    @Param({"NV12"})
+    public String outputFormat;
+
+    @Param({"1", "2", "4", "8"})
+    public int parallelism;
+
+    private SyntheticYuvFrame mFrame;
+    private ParallelYuvConverter mConverter;
+    private int mColorFormat;
+    private byte[] mOutput;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticYuvFrame.parseResolution(resolution);
+        mFrame = new SyntheticYuvFrame(size[0], size[1], chromaPixelStride, 256);
+        mConverter = new ParallelYuvConverter(parallelism, 0);
+        mColorFormat = YuvConversionBenchmark.colorFormatOf(outputFormat);
+        mOutput = new byte[YuvConverter.getFrameSize(mFrame.width, mFrame.height)];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mConverter.release();
+    }
+
+    @Benchmark
+    public byte[] striped() {
+        mConverter.convert(mFrame.planes, 0, 0, mFrame.width, mFrame.height, mColorFormat, mOutput);
+        return mOutput;
+    }
+}
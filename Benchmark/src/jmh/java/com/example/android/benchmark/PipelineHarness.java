@@ -0,0 +1,457 @@
+package com.example.android.benchmark;
+
+import com.example.android.buffer.BackpressurePolicies;
+import com.example.android.buffer.BackpressurePolicy;
+import com.example.android.buffer.DropReason;
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.buffer.FrameDropStats;
+import com.example.android.buffer.FrameRing;
+import com.example.android.buffer.ImageDataInfo;
+import com.example.android.codec.AnnexBFileReader;
+import com.example.android.codec.AnnexBFileWriter;
+import com.example.android.codec.AsyncSampleMuxer;
+import com.example.android.codec.DirectInputWriter;
+import com.example.android.codec.EncodedSampleInfo;
+import com.example.android.codec.EncoderInputLayout;
+import com.example.android.codec.EncodingSession;
+import com.example.android.codec.FragmentedMp4Writer;
+import com.example.android.codec.FrameSource;
+import com.example.android.codec.PreRollBuffer;
+import com.example.android.codec.SampleMuxer;
+import com.example.android.codec.SegmentingMuxer;
+import com.example.android.codec.VideoFormat;
+import com.example.android.yuv.YuvConverter;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs the recording pipeline headless: a synthetic camera at a fixed frame
+ * rate, YUV_420_888 to NV12 conversion into pooled buffers, the frame ring with
+ * a backpressure policy, an {@link EncodingSession} with a
+ * {@link FakeVideoEncoder} and a {@link ChannelSampleMuxer} writing to disk,
+ * behind an {@link AsyncSampleMuxer} unless {@code muxQueue=0}. Storage stalls
+ * can be simulated with {@code stallMs} every {@code stallEvery} samples.
+ * With {@code clips=N} it records N clips in a row, either reusing one flushed
+ * encoder ({@code warm=true}) or paying {@code startupUs} for a new one per
+ * clip, and reports the start latency from record press to first sample
+ * written. {@code segmentSec} or {@code segmentMB} split each clip with a
+ * {@link SegmentingMuxer}. {@code container=fmp4} writes fragmented MP4 with
+ * {@link FragmentedMp4Writer} instead of the raw sample dump, and
+ * {@code container=annexb} an indexed .h264 stream with
+ * {@link AnnexBFileWriter}, whose index is checked with a seek afterwards.
+ * {@code preRollSec} runs each clip into a {@link PreRollBuffer} that is
+ * triggered {@code triggerSec} into the clip, and reports how much video
+ * before the trigger made it into the file.
+ * <p>
+ * Prints the end-to-end throughput, the capture-to-disk latency percentiles,
+ * the conversion time and the drops per reason. Options are {@code key=value}
+ * arguments, see {@link #main(String[])} for the keys and defaults. This is
+ * not a JMH benchmark. Run it from the jmh jar:
+ * {@code java -cp Benchmark/build/libs/Benchmark-jmh.jar
+ * com.example.android.benchmark.PipelineHarness resolution=3840x2160 fps=30}
+ * </p>
+ */
+public class PipelineHarness {
+    private static final long TIMEOUT_US = 10000;
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        options.put("resolution", "1920x1080");
+        options.put("fps", "30");
+        options.put("frames", "300");
+        options.put("mode", "callback");
+        options.put("policy", "dropOldest");
+        options.put("queue", "15");
+        options.put("poolMB", "64");
+        options.put("encodeUs", "8000");
+        options.put("buffers", "4");
+        options.put("keySize", "200000");
+        options.put("deltaSize", "35000");
+        options.put("gop", "30");
+        options.put("clips", "1");
+        options.put("warm", "true");
+        options.put("startupUs", "200000");
+        options.put("container", "bin");
+        options.put("fragmentMs", "1000");
+        options.put("segmentSec", "0");
+        options.put("segmentMB", "0");
+        options.put("preRollSec", "0");
+        options.put("triggerSec", "5");
+        options.put("muxQueue", "90");
+        options.put("stallMs", "0");
+        options.put("stallEvery", "60");
+        options.put("out", new File(System.getProperty("java.io.tmpdir"), "pipeline.bin").getPath());
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split <= 0 || !options.containsKey(arg.substring(0, split))) {
+                throw new IllegalArgumentException("Unknown option " + arg + ", known: " + options.keySet());
+            }
+            options.put(arg.substring(0, split), arg.substring(split + 1));
+        }
+        System.out.println(options);
+        new PipelineHarness(options).run();
+    }
+
+    private final int mWidth;
+    private final int mHeight;
+    private final int mFps;
+    private final int mFrames;
+    private final boolean mCallbackMode;
+    private final String mOutputPath;
+    private final int mMuxQueue;
+    private final long mStallMs;
+    private final int mStallEvery;
+    private final long mSegmentUs;
+    private final String mContainer;
+    private final long mFragmentUs;
+    private final long mPreRollUs;
+    private final long mTriggerUs;
+    private final long mSegmentBytes;
+    private final SyntheticYuvFrame mCamera;
+    private final YuvConverter mConverter = new YuvConverter();
+    private final FrameBufferPool mPool;
+    private final FrameRing<ImageDataInfo> mQueue;
+    private final BackpressurePolicy<ImageDataInfo> mPolicy;
+    private final FrameDropStats mDropStats = new FrameDropStats();
+    private final FakeVideoEncoder.Config mEncoderConfig;
+    private final int mClips;
+    private final boolean mWarm;
+    private final long[] mLatenciesUs;
+    private final long[] mStartLatenciesUs;
+    private FakeVideoEncoder mEncoder;
+    private EncodingSession mSession;
+    private int mSamples;
+    private volatile long mFirstSampleUs;
+    private volatile long mFirstWrittenPtsUs;
+    private volatile boolean mFirstWrittenKeyFrame;
+    private long mConversionNs;
+    private long mBytesWritten;
+
+    private PipelineHarness(Map<String, String> options) {
+        int[] size = SyntheticYuvFrame.parseResolution(options.get("resolution"));
+        mWidth = size[0];
+        mHeight = size[1];
+        mFps = Integer.parseInt(options.get("fps"));
+        mFrames = Integer.parseInt(options.get("frames"));
+        mCallbackMode = "callback".equals(options.get("mode"));
+        mOutputPath = options.get("out");
+        mMuxQueue = Integer.parseInt(options.get("muxQueue"));
+        mStallMs = Long.parseLong(options.get("stallMs"));
+        mStallEvery = Integer.parseInt(options.get("stallEvery"));
+        mContainer = options.get("container");
+        mFragmentUs = Long.parseLong(options.get("fragmentMs")) * 1000;
+        mPreRollUs = (long) (Double.parseDouble(options.get("preRollSec")) * 1e6);
+        mTriggerUs = (long) (Double.parseDouble(options.get("triggerSec")) * 1e6);
+        mSegmentUs = (long) (Double.parseDouble(options.get("segmentSec")) * 1e6);
+        mSegmentBytes = (long) (Double.parseDouble(options.get("segmentMB")) * 1024 * 1024);
+        mCamera = new SyntheticYuvFrame(mWidth, mHeight, 2, 256);
+        mPool = new FrameBufferPool(false, Long.parseLong(options.get("poolMB")) * 1024 * 1024);
+        mQueue = new FrameRing<>(Integer.parseInt(options.get("queue")));
+        mPolicy = createPolicy(options.get("policy"), mFps);
+        FakeVideoEncoder.Config config = new FakeVideoEncoder.Config();
+        config.width = mWidth;
+        config.height = mHeight;
+        config.bufferCount = Integer.parseInt(options.get("buffers"));
+        config.encodeUs = Long.parseLong(options.get("encodeUs"));
+        config.keyFrameSize = Integer.parseInt(options.get("keySize"));
+        config.deltaFrameSize = Integer.parseInt(options.get("deltaSize"));
+        config.keyFrameInterval = Integer.parseInt(options.get("gop"));
+        config.startupUs = Long.parseLong(options.get("startupUs"));
+        mEncoderConfig = config;
+        mClips = Integer.parseInt(options.get("clips"));
+        mWarm = Boolean.parseBoolean(options.get("warm"));
+        mLatenciesUs = new long[mFrames * mClips];
+        mStartLatenciesUs = new long[mClips];
+    }
+
+    private static BackpressurePolicy<ImageDataInfo> createPolicy(String name, int fps) {
+        if ("dropOldest".equals(name)) {
+            return BackpressurePolicies.dropOldest();
+        } else if ("dropNewest".equals(name)) {
+            return BackpressurePolicies.dropNewest();
+        } else if ("block".equals(name)) {
+            // Never block the camera for longer than half a frame.
+            return BackpressurePolicies.blockWithTimeout(500000 / fps, TimeUnit.MICROSECONDS);
+        } else if ("decimate".equals(name)) {
+            return BackpressurePolicies.decimate(4);
+        }
+        throw new IllegalArgumentException("Unknown policy " + name);
+    }
+
+    private void run() throws Exception {
+        if (mWarm) {
+            // Like the app's pre-warm: the encoder is ready before the first press.
+            createSession();
+        }
+        long start = System.nanoTime();
+        for (int clip = 0; clip < mClips; clip++) {
+            recordClip(clip);
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        if (mSession != null) {
+            mEncoder.stop();
+            mEncoder.release();
+        }
+
+        int frames = mFrames * mClips;
+        long[] latencies = Arrays.copyOf(mLatenciesUs, mSamples);
+        Arrays.sort(latencies);
+        long[] startLatencies = mStartLatenciesUs.clone();
+        Arrays.sort(startLatencies);
+        System.out.println(String.format("mode=%s encoded=%d/%d throughput=%.1f fps written=%.1f MB (%.1f MB/s)",
+                mCallbackMode ? "callback" : "sync", mSamples, frames, mSamples / seconds,
+                mBytesWritten / 1e6, mBytesWritten / 1e6 / seconds));
+        System.out.println(String.format("latencyUs p50=%d p90=%d p99=%d max=%d conversionUs avg=%.0f",
+                percentile(latencies, 0.5), percentile(latencies, 0.9), percentile(latencies, 0.99),
+                percentile(latencies, 1), mConversionNs / 1e3 / Math.max(1, frames)));
+        System.out.println(String.format("clips=%d warm=%b startLatencyMs p50=%.1f max=%.1f %s",
+                mClips, mWarm, percentile(startLatencies, 0.5) / 1e3,
+                percentile(startLatencies, 1) / 1e3, Arrays.toString(mStartLatenciesUs)));
+        System.out.println(mDropStats + " " + mPool);
+    }
+
+    /**
+     * Creates and starts the encoder and the session, which is what a record
+     * press costs without a warm encoder.
+     */
+    private void createSession() {
+        mEncoder = new FakeVideoEncoder(mEncoderConfig);
+        mSession = new EncodingSession(mEncoder, null, true,
+                YuvConverter.COLOR_FormatNV12, TIMEOUT_US,
+                mCallbackMode ? mEncoder.getCallbackExecutor() : null);
+        mSession.setFrameSource(new FrameSource() {
+            @Override
+            public ImageDataInfo getImageData(long timeoutUs) {
+                return mQueue.take(timeoutUs, TimeUnit.MICROSECONDS);
+            }
+
+            @Override
+            public void recycleImageData(ImageDataInfo data) {
+                data.mFrame.release();
+                data.mFrame = null;
+            }
+        });
+        mEncoder.start();
+        mSession.setInputWriter(new DirectInputWriter(mEncoder, new EncoderInputLayout(
+                YuvConverter.COLOR_FormatNV12, mWidth, mHeight, mWidth, mHeight)));
+    }
+
+    private void recordClip(int clip) throws Exception {
+        long pressUs = nowUs();
+        mFirstSampleUs = -1;
+        String path = mClips > 1 ? mOutputPath + "." + clip : mOutputPath;
+        if (mSession == null) {
+            createSession();
+        }
+        SegmentingMuxer segmenter = null;
+        final SampleMuxer fileMuxer;
+        if (mSegmentUs > 0 || mSegmentBytes > 0) {
+            segmenter = new SegmentingMuxer(new SegmentingMuxer.SegmentFactory() {
+                @Override
+                public SampleMuxer createSegment(String segmentPath) throws IOException {
+                    return createFileMuxer(segmentPath);
+                }
+            }, path, getExtension(), mSegmentUs, mSegmentBytes, 200000, mEncoder);
+            fileMuxer = segmenter;
+        } else {
+            fileMuxer = createFileMuxer(path);
+        }
+        SampleMuxer fileWriter = new SampleMuxer() {
+            @Override
+            public int addTrack(VideoFormat format) {
+                return fileMuxer.addTrack(format);
+            }
+
+            @Override
+            public void start() {
+                fileMuxer.start();
+            }
+
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+                if (mStallMs > 0 && mSamples > 0 && mSamples % mStallEvery == 0) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(mStallMs));
+                }
+                mBytesWritten += data.remaining();
+                fileMuxer.writeSampleData(trackIndex, data, info);
+                long now = nowUs();
+                if (mFirstSampleUs < 0) {
+                    mFirstSampleUs = now;
+                    mFirstWrittenPtsUs = info.presentationTimeUs;
+                    mFirstWrittenKeyFrame = info.isKeyFrame();
+                }
+                if (mSamples < mLatenciesUs.length) {
+                    mLatenciesUs[mSamples++] = now - info.presentationTimeUs;
+                }
+            }
+
+            @Override
+            public void stop() {
+                fileMuxer.stop();
+            }
+
+            @Override
+            public void release() {
+                fileMuxer.release();
+            }
+        };
+        PreRollBuffer preRoll = null;
+        SampleMuxer muxer = fileWriter;
+        if (mPreRollUs > 0) {
+            // Room for a GOP more than asked for and twice the nominal size.
+            long gopUs = mEncoderConfig.keyFrameInterval * 1000000L / mFps;
+            long gopBytes = mEncoderConfig.keyFrameSize
+                    + (long) (mEncoderConfig.keyFrameInterval - 1) * mEncoderConfig.deltaFrameSize;
+            long maxBytes = 2 * gopBytes * ((mPreRollUs + gopUs) / gopUs + 1);
+            int maxSamples = (int) ((mPreRollUs + gopUs) * mFps / 1000000L);
+            preRoll = new PreRollBuffer(mPreRollUs, (int) Math.min(maxBytes, Integer.MAX_VALUE),
+                    maxSamples);
+            muxer = preRoll;
+        }
+        AsyncSampleMuxer asyncMuxer = null;
+        if (mMuxQueue > 0) {
+            asyncMuxer = new AsyncSampleMuxer(muxer, mMuxQueue, 32L * 1024 * 1024);
+            muxer = asyncMuxer;
+        }
+        mSession.setMuxer(muxer);
+        mSession.start();
+
+        int frameSize = YuvConverter.getFrameSize(mWidth, mHeight);
+        long intervalNs = TimeUnit.SECONDS.toNanos(1) / mFps;
+        long next = System.nanoTime();
+        int triggerFrame = (int) (mTriggerUs * mFps / 1000000L);
+        long triggerUs = -1;
+        for (int i = 0; i < mFrames; i++) {
+            long captureUs = nowUs();
+            if (preRoll != null && i == triggerFrame) {
+                triggerUs = captureUs;
+                preRoll.trigger(fileWriter);
+            }
+            // Frames the policy drops are not converted, as in the fragment.
+            FrameBuffer frame = null;
+            if (mPolicy.admit(mQueue, mDropStats)) {
+                frame = mPool.acquire(frameSize);
+                if (frame == null) {
+                    mDropStats.recordDrop(DropReason.POOL_EXHAUSTED);
+                }
+            }
+            if (frame != null) {
+                long convertStart = System.nanoTime();
+                mConverter.convert(mCamera.planes, 0, 0, mWidth, mHeight,
+                        YuvConverter.COLOR_FormatNV12, frame.array());
+                mConversionNs += System.nanoTime() - convertStart;
+                ImageDataInfo info = new ImageDataInfo();
+                info.mFrame = frame;
+                info.mPresentationTimeUs = captureUs;
+                ImageDataInfo dropped = mPolicy.offer(mQueue, info, mDropStats);
+                if (dropped != null) {
+                    dropped.mFrame.release();
+                }
+                mSession.notifyFrameAvailable();
+            }
+            next += intervalNs;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+        }
+        if (!mSession.stop(5000)) {
+            System.out.println("Encoder did not reach end of stream");
+        }
+        // Each clip starts from a fresh policy, like each recording in the app.
+        mPolicy.reset();
+        if (mWarm) {
+            // Keep the encoder configured for the next clip.
+            mSession.reset();
+        } else {
+            mEncoder.stop();
+            mEncoder.release();
+            mSession = null;
+        }
+        muxer.release();
+        if (preRoll != null && !preRoll.isTriggered()) {
+            fileWriter.release();
+        }
+        mStartLatenciesUs[clip] = mFirstSampleUs - pressUs;
+        if (preRoll != null) {
+            System.out.println("clip " + clip + ": " + preRoll);
+            if (triggerUs >= 0) {
+                System.out.println("clip " + clip + ": file starts "
+                        + (triggerUs - mFirstWrittenPtsUs) / 1000 + "ms before the trigger"
+                        + (mFirstWrittenKeyFrame ? " on a key frame" : " WITHOUT a key frame")
+                        + ", flush written in " + preRoll.getFlushWriteNanos() / 1000 + "us");
+            }
+        }
+        if (segmenter == null && "annexb".equals(mContainer)) {
+            checkAnnexBIndex(path);
+        }
+        if (segmenter != null) {
+            System.out.println("clip " + clip + ": " + segmenter.getSegmentCount()
+                    + " segments, manifest " + segmenter.getManifestPath());
+        }
+        if (asyncMuxer != null) {
+            System.out.println("clip " + clip + ": " + asyncMuxer);
+        }
+    }
+
+    private SampleMuxer createFileMuxer(String path) throws IOException {
+        if ("fmp4".equals(mContainer)) {
+            return new FragmentedMp4Writer(path, mFragmentUs);
+        }
+        if ("annexb".equals(mContainer)) {
+            return new AnnexBFileWriter(path);
+        }
+        return new ChannelSampleMuxer(path);
+    }
+
+    private String getExtension() {
+        if ("fmp4".equals(mContainer)) {
+            return ".mp4";
+        }
+        return "annexb".equals(mContainer) ? ".h264" : ".bin";
+    }
+
+    /**
+     * Seeks to the key frame before the middle of an Annex-B file through its
+     * index and checks that decoding could start there.
+     */
+    private static void checkAnnexBIndex(String path) throws IOException {
+        AnnexBFileReader reader = new AnnexBFileReader(path);
+        try {
+            long startNs = System.nanoTime();
+            long middleUs = reader.getPresentationTimeUs(reader.size() / 2);
+            int keyFrame = reader.findKeyFrame(middleUs);
+            long seekNs = System.nanoTime() - startNs;
+            ByteBuffer unit = ByteBuffer.allocate(reader.getSize(keyFrame));
+            reader.readAccessUnit(keyFrame, unit);
+            // The parameter sets come first: start code, then an SPS NAL unit.
+            boolean decodable = unit.getInt(0) == 1 && (unit.get(4) & 0x1f) == 7;
+            System.out.println("index: " + reader.size() + " access units, "
+                    + reader.getKeyFrameCount() + " key frames, seek to " + middleUs
+                    + "us -> key frame " + keyFrame + " at offset " + reader.getOffset(keyFrame)
+                    + " in " + seekNs / 1000 + "us, starts with SPS " + decodable);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static long nowUs() {
+        return System.nanoTime() / 1000;
+    }
+}
@@ -0,0 +1,80 @@
+package com.example.android.benchmark;
+
+import com.example.android.sensor.ImuRecordWriter;
+
+import java.util.Random;
+
+/**
+ * The samples the fragment logs at SENSOR_DELAY_FASTEST, in timestamp
+ * order: accelerometer and gyroscope, calibrated and uncalibrated, at about
+ * 400 Hz with jittered timestamps, and 30 fps frame timestamps. The device
+ * moves slowly, the readings carry sensor noise and are multiples of a
+ * typical sensor resolution, as real readings are.
+ */
+public class SyntheticImuLog {
+    // Resolutions of common 16 bit IMUs at +-8g and +-2000 deg/s.
+    public static final float ACCELEROMETER_RESOLUTION = 0.0023956299f;
+    public static final float GYROSCOPE_RESOLUTION = 0.0010652645f;
+
+    public final byte[] tags;
+    public final long[] timestampsNs;
+    // x, y and z of sample i at 3 * i.
+    public final float[] values;
+    public final int count;
+
+    public SyntheticImuLog(double seconds, long seed) {
+        Random random = new Random(seed);
+        long startNs = 123456789000000L;
+        long endNs = startNs + (long) (seconds * 1e9);
+        long spanNs = endNs - startNs;
+        int capacity = (int) (spanNs / 2400000L * 4 + spanNs / 33000000L + 16);
+        tags = new byte[capacity];
+        timestampsNs = new long[capacity];
+        values = new float[3 * capacity];
+        byte[] streams = {ImuRecordWriter.TAG_ACCELEROMETER, ImuRecordWriter.TAG_GYROSCOPE,
+                ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED,
+                ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED, ImuRecordWriter.TAG_IMAGE};
+        long[] next = {startNs, startNs + 100000, startNs + 200000, startNs + 300000,
+                startNs + 5000000};
+        int n = 0;
+        while (true) {
+            int s = 0;
+            for (int i = 1; i < next.length; i++) {
+                if (next[i] < next[s]) {
+                    s = i;
+                }
+            }
+            long timestampNs = next[s];
+            if (timestampNs >= endNs) {
+                break;
+            }
+            byte tag = streams[s];
+            double t = (timestampNs - startNs) * 1e-9;
+            tags[n] = tag;
+            timestampsNs[n] = timestampNs;
+            if (tag == ImuRecordWriter.TAG_IMAGE) {
+                next[s] += 33333333L;
+            } else {
+                boolean accelerometer = tag == ImuRecordWriter.TAG_ACCELEROMETER
+                        || tag == ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED;
+                for (int axis = 0; axis < 3; axis++) {
+                    double value;
+                    float resolution;
+                    if (accelerometer) {
+                        value = (axis == 2 ? 9.81 : 0) + 0.8 * Math.sin(0.7 * t + axis)
+                                + 0.02 * random.nextGaussian();
+                        resolution = ACCELEROMETER_RESOLUTION;
+                    } else {
+                        value = 0.5 * Math.sin(1.1 * t + 2 * axis) + 0.003 * random.nextGaussian()
+                                + (tag == ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED ? 0.01 : 0);
+                        resolution = GYROSCOPE_RESOLUTION;
+                    }
+                    values[3 * n + axis] = Math.round(value / resolution) * resolution;
+                }
+                next[s] += 2500000 + random.nextInt(20000) - 10000;
+            }
+            n++;
+        }
+        count = n;
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.android.benchmark;
+
+import com.example.android.yuv.YuvConverter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Cost of turning one YUV_420_888 camera frame into the packed buffer that is
+ * handed to the encoder, for the current converter and the old per-pixel loop.
+ */
+@State(Scope.Thread)
+public class YuvConversionBenchmark {
+    @Param({"640x480", "1280x720", "1920x1080", "3840x2160"})
+    public String resolution;
+
+    @Param({"1", "2"})
+    public int chromaPixelStride;
+
+    @Param({"I420", "NV12", "NV21"})
+    public String outputFormat;
+
+    @Param({"256"})
+    public int rowAlignment;
+
+    private SyntheticYuvFrame mFrame;
+    private YuvConverter mConverter;
+    private int mColorFormat;
+    private byte[] mOutput;
+
+    @Setup
+    public void setUp() {
+        int[] size = SyntheticYuvFrame.parseResolution(resolution);
+        mFrame = new SyntheticYuvFrame(size[0], size[1], chromaPixelStride, rowAlignment);
+        mConverter = new YuvConverter();
+        mColorFormat = colorFormatOf(outputFormat);
+        mOutput = new byte[YuvConverter.getFrameSize(mFrame.width, mFrame.height)];
+    }
+
+    static int colorFormatOf(String name) {
+        if ("I420".equals(name)) {
+            return YuvConverter.COLOR_FormatI420;
+        } else if ("NV21".equals(name)) {
+            return YuvConverter.COLOR_FormatNV21;
+        } else if ("NV12".equals(name)) {
+            return YuvConverter.COLOR_FormatNV12;
+        }
+        throw new IllegalArgumentException("Unknown output format " + name);
+    }
+
+    @Benchmark
+    public byte[] rowBulk() {
+        mConverter.convert(mFrame.planes, 0, 0, mFrame.width, mFrame.height, mColorFormat, mOutput);
+        return mOutput;
+    }
+
+    @Benchmark
+    public byte[] legacyPerPixel() {
+        LegacyYuvConversion.convert(mFrame.planes, 0, 0, mFrame.width, mFrame.height, mColorFormat,
+                mOutput);
+        return mOutput;
+    }
+}
@@ -0,0 +1,374 @@
+package com.example.android.benchmark;
+
+import com.example.android.codec.EncodedSampleInfo;
+import com.example.android.codec.EncoderCallback;
+import com.example.android.codec.VideoEncoder;
+import com.example.android.codec.VideoFormat;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A {@link VideoEncoder} that behaves like MediaCodec from the caller's point
+ * of view, without encoding anything: a worker thread takes queued input
+ * buffers, spends a fixed time per frame and emits a fixed-size sample.
+ * <p>
+ * Output is deterministic. The first output is preceded by an output format
+ * change with a constant H.264 SPS and PPS as csd-0 and csd-1, every
+ * {@code keyFrameInterval}-th sample is a key frame, and each sample is a
+ * single Annex-B NAL unit (IDR or non-IDR slice) whose payload only depends on
+ * its sequence number. End of stream is passed through. In callback mode
+ * events are delivered on one callback thread, which stands in for the handler
+ * thread on Android; use {@link #getCallbackExecutor()} to run code on it.
+ * </p>
+ * <p>
+ * The constructor waits {@code startupUs}, standing in for creating and
+ * configuring a hardware codec. {@link #flush()} drops everything in flight
+ * and restarts the worker, like MediaCodec, without a new format change.
+ * </p>
+ */
+public class FakeVideoEncoder implements VideoEncoder {
+    private static final Job STOP = new Job();
+    private static final byte[] SPS = {0, 0, 0, 1, 0x67, 0x42, (byte) 0xc0, 0x1e,
+            (byte) 0xda, 0x02, (byte) 0x80, (byte) 0xf6, (byte) 0x80, 0x6d, 0x0a, 0x13, 0x50};
+    private static final byte[] PPS = {0, 0, 0, 1, 0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final int NAL_IDR_SLICE = 0x65;
+    private static final int NAL_NON_IDR_SLICE = 0x41;
+
+    /**
+     * What the fake encoder simulates. The defaults roughly match a 1080p
+     * hardware encoder at 10 Mbit/s.
+     */
+    public static class Config {
+        public int width = 1920;
+        public int height = 1080;
+        /** Number of input and of output buffers. */
+        public int bufferCount = 4;
+        /** Capacity of each input buffer, 0 for a packed YUV 4:2:0 frame. */
+        public int inputSize;
+        /** Busy time spent per frame. */
+        public long encodeUs = 8000;
+        public int keyFrameSize = 200000;
+        public int deltaFrameSize = 35000;
+        public int keyFrameInterval = 30;
+        /** Time spent in the constructor, like codec creation and configure. */
+        public long startupUs;
+    }
+
+    private final Config mConfig;
+    private final ByteBuffer[] mInputBuffers;
+    private final ByteBuffer[] mOutputBuffers;
+    private final long mEncodeNanos;
+    private final LinkedBlockingQueue<Integer> mFreeInputs = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Integer> mFreeOutputs = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Job> mQueuedInputs = new LinkedBlockingQueue<>();
+    private final LinkedBlockingQueue<Job> mReadyOutputs = new LinkedBlockingQueue<>();
+    private final ExecutorService mCallbackExecutor = Executors.newSingleThreadExecutor();
+    private EncoderCallback mCallback;
+    private Thread mWorker;
+    private volatile boolean mFormatPending;
+    // Sync mode: an output held back while the format change is reported.
+    private Job mPendingOutput;
+    private long mSamples;
+    // Samples since the last key frame, -1 for a key frame next.
+    private long mSinceKeyFrame = -1;
+    private volatile boolean mSyncFrameRequested;
+
+    private static class Job {
+        int mIndex;
+        int mSize;
+        long mPresentationTimeUs;
+        int mFlags;
+    }
+
+    public FakeVideoEncoder(Config config) {
+        mConfig = config;
+        int inputSize = config.inputSize > 0
+                ? config.inputSize : config.width * config.height * 3 / 2 + config.width;
+        int outputSize = Math.max(config.keyFrameSize, config.deltaFrameSize);
+        mInputBuffers = new ByteBuffer[config.bufferCount];
+        mOutputBuffers = new ByteBuffer[config.bufferCount];
+        for (int i = 0; i < config.bufferCount; i++) {
+            mInputBuffers[i] = ByteBuffer.allocateDirect(inputSize);
+            mOutputBuffers[i] = ByteBuffer.allocateDirect(outputSize);
+        }
+        mEncodeNanos = TimeUnit.MICROSECONDS.toNanos(config.encodeUs);
+        if (config.startupUs > 0) {
+            LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(config.startupUs));
+        }
+    }
+
+    public ExecutorService getCallbackExecutor() {
+        return mCallbackExecutor;
+    }
+
+    public Thread getWorkerThread() {
+        return mWorker;
+    }
+
+    @Override
+    public void start() {
+        mFormatPending = true;
+        startWorker();
+    }
+
+    private void startWorker() {
+        mWorker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                encodeLoop();
+            }
+        }, "FakeVideoEncoder");
+        mWorker.start();
+        for (int i = 0; i < mOutputBuffers.length; i++) {
+            mFreeOutputs.add(i);
+        }
+        for (int i = 0; i < mInputBuffers.length; i++) {
+            releaseInput(i);
+        }
+    }
+
+    @Override
+    public void stop() {
+        try {
+            stopWorker();
+            mCallbackExecutor.shutdown();
+            mCallbackExecutor.awaitTermination(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void release() {
+        mCallbackExecutor.shutdownNow();
+    }
+
+    /**
+     * Drops queued input and unclaimed output and restarts with all buffers
+     * free. In callback mode call it on the callback thread, so that no
+     * announcement of a buffer from before the flush is still queued.
+     */
+    @Override
+    public void flush() {
+        try {
+            stopWorker();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        mQueuedInputs.clear();
+        mReadyOutputs.clear();
+        mFreeInputs.clear();
+        mFreeOutputs.clear();
+        mPendingOutput = null;
+        startWorker();
+    }
+
+    @Override
+    public void requestSyncFrame() {
+        mSyncFrameRequested = true;
+    }
+
+    @Override
+    public VideoFormat getOutputFormat() {
+        VideoFormat format = new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, mConfig.width,
+                mConfig.height);
+        format.setCodecSpecificData(0, ByteBuffer.wrap(SPS));
+        format.setCodecSpecificData(1, ByteBuffer.wrap(PPS));
+        return format;
+    }
+
+    @Override
+    public void setCallback(EncoderCallback callback) {
+        mCallback = callback;
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        checkSyncMode();
+        Integer index = poll(mFreeInputs, timeoutUs);
+        return index == null ? INFO_TRY_AGAIN_LATER : index;
+    }
+
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        ByteBuffer buffer = mInputBuffers[index];
+        buffer.clear();
+        return buffer;
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                 int flags) {
+        Job job = new Job();
+        job.mIndex = index;
+        job.mSize = size;
+        job.mPresentationTimeUs = presentationTimeUs;
+        job.mFlags = flags;
+        mQueuedInputs.add(job);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(EncodedSampleInfo info, long timeoutUs) {
+        checkSyncMode();
+        Job job = mPendingOutput != null ? mPendingOutput : poll(mReadyOutputs, timeoutUs);
+        if (job == null) {
+            return INFO_TRY_AGAIN_LATER;
+        }
+        if (mFormatPending) {
+            // Report the format first and hand out the sample on the next call.
+            mFormatPending = false;
+            mPendingOutput = job;
+            return INFO_OUTPUT_FORMAT_CHANGED;
+        }
+        mPendingOutput = null;
+        info.set(0, job.mSize, job.mPresentationTimeUs, job.mFlags);
+        return job.mIndex;
+    }
+
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return mOutputBuffers[index];
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index) {
+        mFreeOutputs.add(index);
+    }
+
+    @Override
+    public void signalEndOfInputStream() {
+        // Like MediaCodec, which only takes it with an input surface.
+        throw new IllegalStateException("no input surface, queue an end-of-stream buffer");
+    }
+
+    private void encodeLoop() {
+        try {
+            while (true) {
+                Job input = mQueuedInputs.take();
+                if (input == STOP) {
+                    return;
+                }
+                releaseInput(input.mIndex);
+                boolean endOfStream = (input.mFlags & EncodedSampleInfo.FLAG_END_OF_STREAM) != 0;
+                if (input.mSize > 0) {
+                    spin(mEncodeNanos);
+                }
+                Job output = new Job();
+                output.mIndex = mFreeOutputs.take();
+                output.mPresentationTimeUs = input.mPresentationTimeUs;
+                ByteBuffer buffer = mOutputBuffers[output.mIndex];
+                buffer.clear();
+                if (input.mSize > 0) {
+                    if (mSyncFrameRequested) {
+                        mSyncFrameRequested = false;
+                        mSinceKeyFrame = -1;
+                    }
+                    mSinceKeyFrame++;
+                    if (mSinceKeyFrame == mConfig.keyFrameInterval) {
+                        mSinceKeyFrame = 0;
+                    }
+                    boolean keyFrame = mSinceKeyFrame == 0;
+                    output.mSize = keyFrame ? mConfig.keyFrameSize : mConfig.deltaFrameSize;
+                    if (keyFrame) {
+                        output.mFlags |= EncodedSampleInfo.FLAG_KEY_FRAME;
+                    }
+                    fillSample(buffer, output.mSize, keyFrame, mSamples);
+                    mSamples++;
+                }
+                if (endOfStream) {
+                    output.mFlags |= EncodedSampleInfo.FLAG_END_OF_STREAM;
+                }
+                buffer.position(0);
+                buffer.limit(output.mSize);
+                deliverOutput(output);
+                if (endOfStream) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void stopWorker() throws InterruptedException {
+        if (mWorker != null) {
+            // The worker may already have ended at end of stream.
+            mQueuedInputs.add(STOP);
+            mWorker.join();
+            mWorker = null;
+        }
+    }
+
+    private void releaseInput(final int index) {
+        final EncoderCallback callback = mCallback;
+        if (callback == null) {
+            mFreeInputs.add(index);
+            return;
+        }
+        mCallbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onInputBufferAvailable(index);
+            }
+        });
+    }
+
+    private void deliverOutput(final Job output) {
+        final EncoderCallback callback = mCallback;
+        if (callback == null) {
+            mReadyOutputs.add(output);
+            return;
+        }
+        final boolean formatChanged = mFormatPending;
+        mFormatPending = false;
+        mCallbackExecutor.execute(new Runnable() {
+            private final EncodedSampleInfo mInfo = new EncodedSampleInfo();
+
+            @Override
+            public void run() {
+                if (formatChanged) {
+                    callback.onOutputFormatChanged();
+                }
+                mInfo.set(0, output.mSize, output.mPresentationTimeUs, output.mFlags);
+                callback.onOutputBufferAvailable(output.mIndex, mInfo);
+            }
+        });
+    }
+
+    private static void fillSample(ByteBuffer buffer, int size, boolean keyFrame, long sequence) {
+        buffer.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 1);
+        buffer.put((byte) (keyFrame ? NAL_IDR_SLICE : NAL_NON_IDR_SLICE));
+        for (int i = 5; i < size; i++) {
+            // Never 0, so the payload contains no start code emulation.
+            buffer.put((byte) (1 + (sequence + i) % 255));
+        }
+    }
+
+    private void checkSyncMode() {
+        if (mCallback != null) {
+            throw new IllegalStateException("dequeue calls are not allowed in callback mode");
+        }
+    }
+
+    private static <T> T poll(LinkedBlockingQueue<T> queue, long timeoutUs) {
+        try {
+            return queue.poll(timeoutUs, TimeUnit.MICROSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        }
+    }
+
+    private static void spin(long nanos) {
+        long end = System.nanoTime() + nanos;
+        while (System.nanoTime() < end) {
+            // Busy wait, like a software encoder.
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.example.android.benchmark;
+
+import com.example.android.yuv.YuvConverter;
+import com.example.android.yuv.YuvPlane;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The per-pixel conversion loop Camera2VideoFragment.getDataFromImage used
+ * before YuvConverter, kept as the reference the tests and benchmarks compare
+ * against.
+ * Only the Image accessors have been replaced by plane descriptors.
+ */
+public final class LegacyYuvConversion {
+    private LegacyYuvConversion() {
+    }
+
+    public static void convert(YuvPlane[] planes, int cropLeft, int cropTop, int width, int height,
+                               int colorFormat, byte[] outputData) {
+        byte[] rowData = new byte[planes[0].getRowStride()];
+        int channelOffset = 0;
+        int outputStride = 1;
+        for (int i = 0; i < planes.length; i++) {
+            switch (i) {
+                case 0:
+                    channelOffset = 0;
+                    outputStride = 1;
+                    break;
+                case 1:
+                    if (colorFormat == YuvConverter.COLOR_FormatI420) {
+                        channelOffset = width * height;
+                        outputStride = 1;
+                    } else if (colorFormat == YuvConverter.COLOR_FormatNV21) {
+                        channelOffset = width * height + 1;
+                        outputStride = 2;
+                    } else if (colorFormat == YuvConverter.COLOR_FormatNV12) {
+                        channelOffset = width * height;
+                        outputStride = 2;
+                    }
+                    break;
+                case 2:
+                    if (colorFormat == YuvConverter.COLOR_FormatI420) {
+                        channelOffset = (int) (width * height * 1.25);
+                        outputStride = 1;
+                    } else if (colorFormat == YuvConverter.COLOR_FormatNV21) {
+                        channelOffset = width * height;
+                        outputStride = 2;
+                    } else if (colorFormat == YuvConverter.COLOR_FormatNV12) {
+                        channelOffset = width * height + 1;
+                        outputStride = 2;
+                    }
+                    break;
+            }
+            ByteBuffer buffer = planes[i].getBuffer();
+            int rowStride = planes[i].getRowStride();
+            int pixelStride = planes[i].getPixelStride();
+            int shift = (i == 0) ? 0 : 1;
+            int w = width >> shift;
+            int h = height >> shift;
+            buffer.position(rowStride * (cropTop >> shift) + pixelStride * (cropLeft >> shift));
+            for (int row = 0; row < h; row++) {
+                int length;
+                if (pixelStride == 1 && outputStride == 1) {
+                    length = w;
+                    buffer.get(outputData, channelOffset, length);
+                    channelOffset += length;
+                } else {
+                    length = (w - 1) * pixelStride + 1;
+                    buffer.get(rowData, 0, length);
+                    for (int col = 0; col < w; col++) {
+                        outputData[channelOffset] = rowData[col * pixelStride];
+                        channelOffset += outputStride;
+                    }
+                }
+                if (row < h - 1) {
+                    buffer.position(buffer.position() + rowStride - length);
+                }
+            }
+        }
+    }
+}
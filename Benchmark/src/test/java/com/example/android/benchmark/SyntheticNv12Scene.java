@@ -0,0 +1,77 @@
+package com.example.android.benchmark;
+
+import java.util.Random;
+
+/**
+ * Tightly packed NV12 frames of a camera panning over a scene, as the
+ * fragment dumps them: smooth shading, a few hard edges and fine texture,
+ * plus Gaussian sensor noise of a given standard deviation. Camera frames
+ * compress about as well as these at a noise of 1.5 to 3 levels, in good
+ * and in dim light.
+ */
+public class SyntheticNv12Scene {
+    private static final int NOISE_TABLE_SIZE = 1 << 16;
+
+    public final int width;
+    public final int height;
+    public final int size;
+    private final byte[] mNoise = new byte[NOISE_TABLE_SIZE];
+    private final Random mRandom;
+
+    public SyntheticNv12Scene(int width, int height, double noise, long seed) {
+        this.width = width;
+        this.height = height;
+        size = width * height * 3 / 2;
+        mRandom = new Random(seed);
+        for (int i = 0; i < NOISE_TABLE_SIZE; i++) {
+            mNoise[i] = (byte) Math.round(noise * mRandom.nextGaussian());
+        }
+    }
+
+    /**
+     * Renders frame {@code index} into the first {@link #size} bytes of
+     * {@code frame}.
+     */
+    public void render(int index, byte[] frame) {
+        int panX = 3 * index;
+        int panY = index;
+        // A random start into the noise table, so frames do not repeat it.
+        int noise = mRandom.nextInt(NOISE_TABLE_SIZE);
+        int mask = NOISE_TABLE_SIZE - 1;
+        for (int y = 0; y < height; y++) {
+            int sy = y + panY;
+            double shadeY = Math.cos(sy * 0.0041);
+            int row = y * width;
+            for (int x = 0; x < width; x++) {
+                int sx = x + panX;
+                double value = 110 + 70 * Math.sin(sx * 0.0023 + 0.5) * shadeY;
+                // Bright panels with hard edges.
+                if (((sx >> 8) + (sy >> 7) & 3) == 0) {
+                    value += 45;
+                }
+                // Fine texture on part of the scene.
+                if ((sy >> 9 & 1) == 1) {
+                    value += 12 * Math.sin(sx * 0.9) * Math.sin(sy * 0.7);
+                }
+                frame[row + x] = clamp(value + mNoise[noise++ & mask]);
+            }
+        }
+        int chroma = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            int sy = 2 * y + panY;
+            int row = chroma + y * width;
+            for (int x = 0; x < width; x += 2) {
+                int sx = x + panX;
+                double u = 128 + 25 * Math.sin(sx * 0.0031 + sy * 0.0017);
+                double v = 128 + 20 * Math.cos(sx * 0.0019 - sy * 0.0029);
+                frame[row + x] = clamp(u + (mNoise[noise++ & mask] >> 1));
+                frame[row + x + 1] = clamp(v + (mNoise[noise++ & mask] >> 1));
+            }
+        }
+    }
+
+    private static byte clamp(double value) {
+        long rounded = Math.round(value);
+        return (byte) (rounded < 0 ? 0 : rounded > 255 ? 255 : rounded);
+    }
+}
@@ -0,0 +1,74 @@
+package com.example.android.benchmark;
+
+import com.example.android.yuv.YuvPlane;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A YUV_420_888 frame laid out the way camera HALs hand it out: direct buffers,
+ * rows padded to an alignment boundary, and for pixel stride 2 a single
+ * interleaved chroma allocation that the U and V planes view at offsets 0 and 1.
+ */
+public class SyntheticYuvFrame {
+    public final int width;
+    public final int height;
+    public final YuvPlane[] planes;
+
+    public SyntheticYuvFrame(int width, int height, int chromaPixelStride, int rowAlignment) {
+        this.width = width;
+        this.height = height;
+        Random random = new Random(width * 31 + height);
+        int lumaStride = align(width, rowAlignment);
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        ByteBuffer y = randomBuffer(random, lumaStride * (height - 1) + width);
+        YuvPlane u;
+        YuvPlane v;
+        if (chromaPixelStride == 1) {
+            int chromaStride = align(chromaWidth, rowAlignment / 2);
+            int chromaSize = chromaStride * (chromaHeight - 1) + chromaWidth;
+            u = new YuvPlane(randomBuffer(random, chromaSize), chromaStride, 1);
+            v = new YuvPlane(randomBuffer(random, chromaSize), chromaStride, 1);
+        } else if (chromaPixelStride == 2) {
+            int chromaStride = lumaStride;
+            ByteBuffer chroma = randomBuffer(random,
+                    chromaStride * (chromaHeight - 1) + chromaWidth * 2);
+            u = new YuvPlane(view(chroma, 0, chroma.capacity() - 1), chromaStride, 2);
+            v = new YuvPlane(view(chroma, 1, chroma.capacity()), chromaStride, 2);
+        } else {
+            throw new IllegalArgumentException(
+                    "Unsupported chroma pixel stride " + chromaPixelStride);
+        }
+        planes = new YuvPlane[] {new YuvPlane(y, lumaStride, 1), u, v};
+    }
+
+    /**
+     * Parses a "WIDTHxHEIGHT" string as used by the benchmark parameters.
+     */
+    public static int[] parseResolution(String resolution) {
+        int separator = resolution.indexOf('x');
+        return new int[] {Integer.parseInt(resolution.substring(0, separator)),
+                Integer.parseInt(resolution.substring(separator + 1))};
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    private static ByteBuffer view(ByteBuffer buffer, int start, int end) {
+        ByteBuffer duplicate = buffer.duplicate();
+        duplicate.position(start);
+        duplicate.limit(end);
+        return duplicate.slice();
+    }
+}
@@ -0,0 +1,256 @@
+package com.example.android.buffer;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives the policies with a synthetic producer against a consumer that
+ * keeps up with only part of the frames.
+ */
+public class BackpressurePoliciesTest {
+    private static final int CAPACITY = 8;
+    private static final int MAX_FACTOR = 4;
+
+    @Test
+    public void decimationKeepsEvenlySpacedFramesForSlowConsumer() {
+        BackpressurePolicy<Integer> policy = BackpressurePolicies.decimate(MAX_FACTOR);
+        FrameRing<Integer> ring = new FrameRing<Integer>(CAPACITY);
+        FrameDropStats stats = new FrameDropStats();
+        // The consumer takes one frame for every three produced.
+        List<Integer> consumed = produce(policy, ring, stats, 600, 3, false);
+
+        assertEquals(600, stats.getQueuedCount() + stats.getDropCount(DropReason.DECIMATED));
+        assertTrue(stats.getDropCount(DropReason.DECIMATED) > 0);
+        assertEquals(0, stats.getDropCount(DropReason.EVICTED_OLDEST));
+        // Once settled, no gap is wider than the largest factor and on average
+        // the kept frames are spaced as far apart as the consumer needs.
+        List<Integer> tail = consumed.subList(consumed.size() - 50, consumed.size());
+        for (int i = 1; i < tail.size(); i++) {
+            int gap = tail.get(i) - tail.get(i - 1);
+            assertTrue("frames " + tail, gap >= 1 && gap <= MAX_FACTOR);
+        }
+        double averageGap = (tail.get(tail.size() - 1) - tail.get(0)) / (tail.size() - 1.0);
+        assertEquals(3, averageGap, 0.25);
+    }
+
+    @Test
+    public void admitBeforeOfferKeepsTheSameFrames() {
+        FrameDropStats offerStats = new FrameDropStats();
+        FrameDropStats admitStats = new FrameDropStats();
+        List<Integer> offerOnly = produce(BackpressurePolicies.<Integer>decimate(MAX_FACTOR),
+                new FrameRing<Integer>(CAPACITY), offerStats, 400, 3, false);
+        List<Integer> admitted = produce(BackpressurePolicies.<Integer>decimate(MAX_FACTOR),
+                new FrameRing<Integer>(CAPACITY), admitStats, 400, 3, true);
+
+        assertEquals(offerOnly, admitted);
+        assertEquals(offerStats.toString(), admitStats.toString());
+    }
+
+    @Test
+    public void resetStartsTheNextStreamUndecimated() {
+        BackpressurePolicy<Integer> policy = BackpressurePolicies.decimate(MAX_FACTOR);
+        produce(policy, new FrameRing<Integer>(CAPACITY), new FrameDropStats(), 400, 4, true);
+
+        policy.reset();
+        FrameRing<Integer> ring = new FrameRing<Integer>(CAPACITY);
+        FrameDropStats stats = new FrameDropStats();
+        for (int i = 0; i < CAPACITY; i++) {
+            assertTrue("frame " + i, policy.admit(ring, stats));
+            assertNull(policy.offer(ring, i, stats));
+        }
+        assertEquals(0, stats.getTotalDropCount());
+    }
+
+    @Test
+    public void dropNewestRejectsBeforeTheFrameIsBuilt() {
+        BackpressurePolicy<Integer> policy = BackpressurePolicies.dropNewest();
+        FrameRing<Integer> ring = new FrameRing<Integer>(2);
+        FrameDropStats stats = new FrameDropStats();
+        for (int i = 0; i < 2; i++) {
+            assertTrue(policy.admit(ring, stats));
+            assertNull(policy.offer(ring, i, stats));
+        }
+        assertFalse(policy.admit(ring, stats));
+        assertEquals(1, stats.getDropCount(DropReason.REJECTED_NEWEST));
+        assertEquals(Integer.valueOf(0), ring.poll());
+        assertTrue(policy.admit(ring, stats));
+    }
+
+    @Test
+    public void dropOldestKeepsTheNewestFrames() {
+        FrameRing<Integer> ring = new FrameRing<Integer>(CAPACITY);
+        FrameDropStats stats = new FrameDropStats();
+        List<Integer> consumed = produce(BackpressurePolicies.<Integer>dropOldest(), ring, stats,
+                120, 3, false);
+        List<Integer> queued = drain(ring);
+
+        assertEquals(120, stats.getQueuedCount());
+        assertEquals(120, consumed.size() + queued.size()
+                + stats.getDropCount(DropReason.EVICTED_OLDEST));
+        // The ring ends with the latest frames, and the consumer never goes
+        // back in time.
+        assertEquals(Integer.valueOf(119), queued.get(queued.size() - 1));
+        for (int i = 1; i < queued.size(); i++) {
+            assertEquals(queued.get(i - 1) + 1, (int) queued.get(i));
+        }
+        assertIncreasing(consumed);
+    }
+
+    @Test
+    public void dropNewestKeepsTheQueuedFrames() {
+        FrameRing<Integer> ring = new FrameRing<Integer>(CAPACITY);
+        FrameDropStats stats = new FrameDropStats();
+        List<Integer> consumed = produce(BackpressurePolicies.<Integer>dropNewest(), ring, stats,
+                120, 3, true);
+        List<Integer> queued = drain(ring);
+
+        assertEquals(120, consumed.size() + queued.size()
+                + stats.getDropCount(DropReason.REJECTED_NEWEST));
+        assertEquals(consumed.size() + queued.size(), stats.getQueuedCount());
+        // Every frame survives until the ring fills up; after that each slot
+        // the consumer frees goes to the next frame, one in three.
+        List<Integer> kept = new ArrayList<Integer>(consumed);
+        kept.addAll(queued);
+        int full = 0;
+        while (kept.get(full + 1) == full + 1) {
+            full++;
+        }
+        assertTrue("frames " + kept, full >= CAPACITY);
+        for (int i = full + 2; i < kept.size(); i++) {
+            assertEquals("frames " + kept, 3, kept.get(i) - kept.get(i - 1));
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void blockWithTimeoutWaitsForRoomThenGivesUp() throws InterruptedException {
+        final FrameRing<Integer> ring = new FrameRing<Integer>(2);
+        BackpressurePolicy<Integer> policy =
+                BackpressurePolicies.blockWithTimeout(5, TimeUnit.SECONDS);
+        FrameDropStats stats = new FrameDropStats();
+        assertNull(policy.offer(ring, 0, stats));
+        assertNull(policy.offer(ring, 1, stats));
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                ring.poll();
+            }
+        });
+        consumer.start();
+        // Parks until the consumer takes frame 0.
+        assertNull(policy.offer(ring, 2, stats));
+        consumer.join();
+        assertEquals(3, stats.getQueuedCount());
+        assertEquals(0, stats.getTotalDropCount());
+
+        // Nobody takes the next one, so it is handed back after the timeout.
+        policy = BackpressurePolicies.blockWithTimeout(20, TimeUnit.MILLISECONDS);
+        long start = System.nanoTime();
+        assertEquals(Integer.valueOf(3), policy.offer(ring, 3, stats));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(1, stats.getDropCount(DropReason.TIMED_OUT));
+        assertEquals(2, ring.size());
+    }
+
+    @Test
+    public void everyFrameIsAccountedForWithAConsumerThread() throws InterruptedException {
+        final FrameRing<Integer> ring = new FrameRing<Integer>(CAPACITY);
+        BackpressurePolicy<Integer> policy = BackpressurePolicies.decimate(MAX_FACTOR);
+        FrameDropStats stats = new FrameDropStats();
+        final AtomicInteger consumed = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final int frames = 2000;
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int last = -1;
+                while (true) {
+                    Integer frame = ring.take(100, TimeUnit.MILLISECONDS);
+                    if (frame == null) {
+                        return;
+                    }
+                    if (frame <= last) {
+                        outOfOrder.incrementAndGet();
+                    }
+                    last = frame;
+                    consumed.incrementAndGet();
+                    if (frame == frames - 1) {
+                        return;
+                    }
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        consumer.start();
+        int evicted = 0;
+        for (int i = 0; i < frames; i++) {
+            if (policy.admit(ring, stats) && policy.offer(ring, i, stats) != null) {
+                evicted++;
+            }
+            if (i % 16 == 0) {
+                Thread.sleep(1);
+            }
+        }
+        consumer.join(10000);
+
+        assertFalse(consumer.isAlive());
+        assertEquals(0, outOfOrder.get());
+        assertTrue(stats.getDropCount(DropReason.DECIMATED) > 0);
+        assertEquals(evicted, stats.getDropCount(DropReason.EVICTED_OLDEST));
+        assertEquals(frames, consumed.get() + stats.getTotalDropCount() + ring.size());
+    }
+
+    private static List<Integer> drain(FrameRing<Integer> ring) {
+        List<Integer> frames = new ArrayList<Integer>();
+        Integer frame;
+        while ((frame = ring.poll()) != null) {
+            frames.add(frame);
+        }
+        return frames;
+    }
+
+    private static void assertIncreasing(List<Integer> frames) {
+        for (int i = 1; i < frames.size(); i++) {
+            assertTrue("frames " + frames, frames.get(i) > frames.get(i - 1));
+        }
+    }
+
+    /**
+     * Offers {@code frames} numbered frames and lets the consumer take one
+     * every {@code period} of them.
+     */
+    private static List<Integer> produce(BackpressurePolicy<Integer> policy,
+                                         FrameRing<Integer> ring, FrameDropStats stats,
+                                         int frames, int period, boolean admitFirst) {
+        List<Integer> consumed = new ArrayList<Integer>();
+        for (int i = 0; i < frames; i++) {
+            if (!admitFirst || policy.admit(ring, stats)) {
+                policy.offer(ring, i, stats);
+            }
+            if (i % period == period - 1) {
+                Integer frame = ring.poll();
+                if (frame != null) {
+                    consumed.add(frame);
+                }
+            }
+        }
+        return consumed;
+    }
+}
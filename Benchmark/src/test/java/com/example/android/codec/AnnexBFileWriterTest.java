@@ -0,0 +1,175 @@
+package com.example.android.codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes access units with {@link AnnexBFileWriter} and reads them back with
+ * {@link AnnexBFileReader}, also from a recording that never got to stop.
+ */
+public class AnnexBFileWriterTest {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final int KEY_FRAME_INTERVAL = 10;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("stream", ".h264");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        new File(mFile.getPath() + AnnexBFileWriter.INDEX_EXTENSION).delete();
+    }
+
+    @Test
+    public void readsBackEveryAccessUnit() throws IOException {
+        AnnexBFileWriter writer = newWriter();
+        int frames = 45;
+        for (int i = 0; i < frames; i++) {
+            write(writer, i);
+        }
+        writer.stop();
+        writer.release();
+
+        AnnexBFileReader reader = new AnnexBFileReader(mFile.getPath());
+        try {
+            assertEquals(frames, reader.size());
+            assertEquals(5, reader.getKeyFrameCount());
+            assertEquals(writer.getBytesWritten(), mFile.length());
+            for (int i = 0; i < frames; i++) {
+                assertAccessUnit(reader, i);
+            }
+            assertEquals(20, reader.findKeyFrame(27 * FRAME_INTERVAL_US));
+            assertEquals(27, reader.findAccessUnit(27 * FRAME_INTERVAL_US + 1));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void indexOnDiskCoversEveryGroupBeforeTheLastKeyFrame() throws IOException {
+        AnnexBFileWriter writer = newWriter();
+        // Key frames at 0, 10 and 20; the recording dies before it is stopped.
+        for (int i = 0; i < 25; i++) {
+            write(writer, i);
+        }
+
+        AnnexBFileReader reader = new AnnexBFileReader(mFile.getPath());
+        try {
+            assertEquals(20, reader.size());
+            for (int i = 0; i < reader.size(); i++) {
+                assertAccessUnit(reader, i);
+            }
+        } finally {
+            reader.close();
+            writer.release();
+        }
+    }
+
+    @Test
+    public void readsIndexWrittenWithoutSizes() throws IOException {
+        byte[] first = concat(START_CODE, SPS, START_CODE, PPS, frame(0));
+        byte[] second = frame(1);
+        FileOutputStream stream = new FileOutputStream(mFile);
+        stream.write(concat(first, second));
+        stream.close();
+        ByteBuffer index = ByteBuffer.allocate(AnnexBFileWriter.INDEX_HEADER_SIZE
+                + 2 * AnnexBFileWriter.INDEX_RECORD_SIZE_WITHOUT_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        index.putInt(AnnexBFileWriter.INDEX_MAGIC).putInt(AnnexBFileWriter.INDEX_VERSION)
+                .putInt(AnnexBFileWriter.INDEX_RECORD_SIZE_WITHOUT_SIZE).putInt(0);
+        index.putLong(0).putLong(0).putInt(EncodedSampleInfo.FLAG_KEY_FRAME);
+        index.putLong(FRAME_INTERVAL_US).putLong(first.length).putInt(0);
+        stream = new FileOutputStream(mFile.getPath() + AnnexBFileWriter.INDEX_EXTENSION);
+        stream.write(index.array());
+        stream.close();
+
+        AnnexBFileReader reader = new AnnexBFileReader(mFile.getPath());
+        try {
+            assertEquals(2, reader.size());
+            assertEquals(first.length, reader.getSize(0));
+            assertEquals(second.length, reader.getSize(1));
+            assertAccessUnit(reader, 0);
+            assertAccessUnit(reader, 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    private AnnexBFileWriter newWriter() throws IOException {
+        // A small buffer, so the stream is also written out between key frames.
+        AnnexBFileWriter writer = new AnnexBFileWriter(mFile.getPath(), 256);
+        VideoFormat format = new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 64, 48);
+        format.setCodecSpecificData(0, ByteBuffer.wrap(concat(START_CODE, SPS)));
+        format.setCodecSpecificData(1, ByteBuffer.wrap(concat(START_CODE, PPS)));
+        writer.addTrack(format);
+        writer.start();
+        return writer;
+    }
+
+    private static void write(AnnexBFileWriter writer, int index) {
+        EncodedSampleInfo info = new EncodedSampleInfo();
+        byte[] data = frame(index);
+        info.set(0, data.length, index * FRAME_INTERVAL_US,
+                isKeyFrame(index) ? EncodedSampleInfo.FLAG_KEY_FRAME : 0);
+        writer.writeSampleData(0, ByteBuffer.wrap(data), info);
+    }
+
+    private static void assertAccessUnit(AnnexBFileReader reader, int index) throws IOException {
+        byte[] expected = isKeyFrame(index)
+                ? concat(START_CODE, SPS, START_CODE, PPS, frame(index)) : frame(index);
+        assertEquals(index * FRAME_INTERVAL_US, reader.getPresentationTimeUs(index));
+        assertEquals(isKeyFrame(index), reader.isKeyFrame(index));
+        assertEquals("unit " + index, expected.length, reader.getSize(index));
+        ByteBuffer data = ByteBuffer.allocate(reader.getSize(index));
+        reader.readAccessUnit(index, data);
+        assertTrue(!data.hasRemaining());
+        assertArrayEquals("unit " + index, expected, data.array());
+    }
+
+    private static boolean isKeyFrame(int index) {
+        return index % KEY_FRAME_INTERVAL == 0;
+    }
+
+    /**
+     * A slice NAL unit whose size and contents depend on the index.
+     */
+    private static byte[] frame(int index) {
+        byte[] nal = new byte[isKeyFrame(index) ? 90 + index : 20 + index % 7];
+        Arrays.fill(nal, (byte) (index + 1));
+        nal[0] = (byte) (isKeyFrame(index) ? 0x65 : 0x41);
+        return concat(START_CODE, nal);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        byte[] all = new byte[size];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+}
@@ -0,0 +1,148 @@
+package com.example.android.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link AsyncSampleMuxer} hands copies of every sample to the
+ * wrapped muxer in order, and that a producer never waits forever: not for a
+ * sample larger than the memory cap and not for a muxer thread that failed.
+ */
+public class AsyncSampleMuxerTest {
+    // The smallest size class of the pool, so one small sample fills it.
+    private static final long MAX_QUEUED_BYTES = 4096;
+
+    @Test(timeout = 5000)
+    public void writesCopiesOfEverySampleInOrder() {
+        RecordingMuxer recording = new RecordingMuxer();
+        AsyncSampleMuxer muxer = new AsyncSampleMuxer(recording, 2, MAX_QUEUED_BYTES);
+        muxer.addTrack(new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 64, 48));
+        muxer.start();
+        // The encoder reuses its output buffers, so the muxer must copy.
+        ByteBuffer data = ByteBuffer.allocate(1000);
+        for (int i = 0; i < 50; i++) {
+            write(muxer, data, i, 100 + i);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(50, recording.samples.size());
+        for (int i = 0; i < 50; i++) {
+            assertEquals(i, recording.timestamps.get(i).longValue());
+            assertArrayEquals("sample " + i, sample(i, 100 + i), recording.samples.get(i));
+        }
+    }
+
+    @Test(timeout = 5000)
+    public void letsAnOversizedSampleThroughAlone() {
+        RecordingMuxer recording = new RecordingMuxer();
+        AsyncSampleMuxer muxer = new AsyncSampleMuxer(recording, 4, MAX_QUEUED_BYTES);
+        muxer.start();
+        ByteBuffer data = ByteBuffer.allocate(100000);
+        write(muxer, data, 0, 1000);
+        write(muxer, data, 1, 100000);
+        write(muxer, data, 2, 1000);
+        muxer.stop();
+
+        assertEquals(3, recording.samples.size());
+        assertArrayEquals(sample(1, 100000), recording.samples.get(1));
+        assertArrayEquals(sample(2, 1000), recording.samples.get(2));
+    }
+
+    @Test(timeout = 5000)
+    public void rethrowsMuxerErrorToWaitingProducer() {
+        final IllegalStateException failure = new IllegalStateException("disk full");
+        AsyncSampleMuxer muxer = new AsyncSampleMuxer(new RecordingMuxer() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+                throw failure;
+            }
+        }, 1, MAX_QUEUED_BYTES);
+        muxer.start();
+        ByteBuffer data = ByteBuffer.allocate(1000);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                write(muxer, data, i, 1000);
+            }
+            fail("muxer error not reported");
+        } catch (IllegalStateException e) {
+            assertEquals(failure, e);
+        }
+        muxer.release();
+    }
+
+    @Test(timeout = 5000)
+    public void failsFastWhenMuxerThreadDies() {
+        AsyncSampleMuxer muxer = new AsyncSampleMuxer(new RecordingMuxer() {
+            @Override
+            public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+                // Not a RuntimeException, so it ends the muxer thread.
+                throw new StackOverflowError("muxer thread dies");
+            }
+        }, 1, MAX_QUEUED_BYTES);
+        muxer.start();
+        ByteBuffer data = ByteBuffer.allocate(1000);
+        try {
+            for (int i = 0; i < 1000; i++) {
+                write(muxer, data, i, 1000);
+            }
+            fail("dead muxer thread not reported");
+        } catch (IllegalStateException expected) {
+            // The producer is told instead of waiting for room forever.
+        }
+    }
+
+    private static void write(AsyncSampleMuxer muxer, ByteBuffer data, int index, int size) {
+        data.clear();
+        data.put(sample(index, size));
+        data.flip();
+        EncodedSampleInfo info = new EncodedSampleInfo();
+        info.set(0, size, index, 0);
+        muxer.writeSampleData(0, data, info);
+    }
+
+    private static byte[] sample(int index, int size) {
+        byte[] bytes = new byte[size];
+        Arrays.fill(bytes, (byte) index);
+        bytes[0] = (byte) size;
+        return bytes;
+    }
+
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<byte[]> samples = new ArrayList<byte[]>();
+        final List<Long> timestamps = new ArrayList<Long>();
+
+        @Override
+        public int addTrack(VideoFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+            byte[] bytes = new byte[data.remaining()];
+            data.get(bytes);
+            samples.add(bytes);
+            timestamps.add(info.presentationTimeUs);
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.example.android.codec;
+
+import com.example.android.benchmark.LegacyYuvConversion;
+import com.example.android.benchmark.SyntheticYuvFrame;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Writes frames into the buffers of a fake codec whose input layout has a
+ * row stride and slice height larger than the frame, and checks every row
+ * against the packed reference conversion.
+ */
+public class DirectInputWriterTest {
+    private static final int[] FORMATS = {YuvConverter.COLOR_FormatI420,
+            YuvConverter.COLOR_FormatNV12, YuvConverter.COLOR_FormatNV21};
+    private static final int WIDTH = 96;
+    private static final int HEIGHT = 64;
+    private static final int STRIDE = 128;
+    private static final int SLICE_HEIGHT = 80;
+    private static final byte FILL = 0x5a;
+
+    @Test
+    public void writesPlanesWithEncoderStrideAndSliceHeight() {
+        SyntheticYuvFrame frame = new SyntheticYuvFrame(WIDTH, HEIGHT, 2, 16);
+        for (int format : FORMATS) {
+            EncoderInputLayout layout = new EncoderInputLayout(format, WIDTH, HEIGHT, STRIDE,
+                    SLICE_HEIGHT);
+            FakeEncoderInput input = new FakeEncoderInput(layout.getFrameSize());
+            DirectInputWriter writer = new DirectInputWriter(input, layout);
+            assertTrue(writer.writeFrame(frame.planes, 0, 0, 1234, 0, 7));
+
+            assertEquals(layout.getFrameSize(), input.queuedSize);
+            assertEquals(1234, input.queuedPresentationTimeUs);
+            assertEquals(7, input.queuedFlags);
+            assertEquals(1, writer.getFramesWritten());
+            byte[] packed = new byte[YuvConverter.getFrameSize(WIDTH, HEIGHT)];
+            LegacyYuvConversion.convert(frame.planes, 0, 0, WIDTH, HEIGHT, format, packed);
+            assertStrided(layout, packed, input.buffer);
+        }
+    }
+
+    @Test
+    public void writesPackedFramesWithEncoderStrideAndSliceHeight() {
+        SyntheticYuvFrame frame = new SyntheticYuvFrame(WIDTH, HEIGHT, 2, 16);
+        for (int packedFormat : FORMATS) {
+            byte[] packed = new byte[YuvConverter.getFrameSize(WIDTH, HEIGHT)];
+            LegacyYuvConversion.convert(frame.planes, 0, 0, WIDTH, HEIGHT, packedFormat, packed);
+            for (int format : FORMATS) {
+                EncoderInputLayout layout = new EncoderInputLayout(format, WIDTH, HEIGHT, STRIDE,
+                        SLICE_HEIGHT);
+                FakeEncoderInput input = new FakeEncoderInput(layout.getFrameSize());
+                DirectInputWriter writer = new DirectInputWriter(input, layout);
+                writer.writePackedFrame(0, ByteBuffer.wrap(packed), packedFormat, 0, 0);
+
+                byte[] expected = new byte[packed.length];
+                LegacyYuvConversion.convert(frame.planes, 0, 0, WIDTH, HEIGHT, format, expected);
+                assertStrided(layout, expected, input.buffer);
+            }
+        }
+    }
+
+    @Test
+    public void leavesPackedFrameCursorsAlone() {
+        EncoderInputLayout layout = new EncoderInputLayout(YuvConverter.COLOR_FormatNV12, WIDTH,
+                HEIGHT, STRIDE, SLICE_HEIGHT);
+        DirectInputWriter writer = new DirectInputWriter(
+                new FakeEncoderInput(layout.getFrameSize()), layout);
+        // A pooled frame another thread is reading through its shared cursors.
+        ByteBuffer data = ByteBuffer.allocateDirect(YuvConverter.getFrameSize(WIDTH, HEIGHT) + 8);
+        data.position(5);
+        data.limit(data.capacity() - 3);
+        for (int i = 0; i < 2; i++) {
+            writer.writePackedFrame(0, data, YuvConverter.COLOR_FormatNV12, i, 0);
+            assertEquals(5, data.position());
+            assertEquals(data.capacity() - 3, data.limit());
+        }
+    }
+
+    @Test
+    public void dropsFrameWhenNoInputBufferIsFree() {
+        EncoderInputLayout layout = new EncoderInputLayout(YuvConverter.COLOR_FormatNV12, WIDTH,
+                HEIGHT, WIDTH, HEIGHT);
+        FakeEncoderInput input = new FakeEncoderInput(layout.getFrameSize());
+        input.available = false;
+        DirectInputWriter writer = new DirectInputWriter(input, layout);
+        assertFalse(writer.writeFrame(new SyntheticYuvFrame(WIDTH, HEIGHT, 2, 16).planes, 0, 0,
+                0, 0, 0));
+        assertEquals(1, writer.getFramesDropped());
+        assertEquals(0, writer.getFramesWritten());
+        assertEquals(-1, input.queuedSize);
+    }
+
+    @Test
+    public void writesEndOfStreamAsAnEmptyBuffer() {
+        EncoderInputLayout layout = new EncoderInputLayout(YuvConverter.COLOR_FormatNV12, WIDTH,
+                HEIGHT, WIDTH, HEIGHT);
+        FakeEncoderInput input = new FakeEncoderInput(layout.getFrameSize());
+        DirectInputWriter writer = new DirectInputWriter(input, layout);
+        input.available = false;
+        assertFalse(writer.tryWriteEndOfStream(1000, 0));
+        assertEquals(-1, input.queuedSize);
+
+        input.available = true;
+        assertTrue(writer.tryWriteEndOfStream(1000, 0));
+        assertEquals(0, input.queuedSize);
+        assertEquals(1000, input.queuedPresentationTimeUs);
+        assertEquals(EncodedSampleInfo.FLAG_END_OF_STREAM, input.queuedFlags);
+        // Not a frame, and not a dropped one either.
+        assertEquals(0, writer.getFramesWritten());
+        assertEquals(0, writer.getFramesDropped());
+    }
+
+    /**
+     * Checks the visible rows of a strided frame against a packed one and that
+     * the padding was left alone.
+     */
+    private static void assertStrided(EncoderInputLayout layout, byte[] packed,
+                                      ByteBuffer strided) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int stride = layout.getStride();
+        int lumaSize = stride * layout.getSliceHeight();
+        byte[] expected = new byte[layout.getFrameSize()];
+        Arrays.fill(expected, FILL);
+        for (int row = 0; row < height; row++) {
+            System.arraycopy(packed, row * width, expected, row * stride, width);
+        }
+        int packedLuma = width * height;
+        if (layout.getColorFormat() == YuvConverter.COLOR_FormatI420) {
+            int chromaStride = stride / 2;
+            int vOffset = lumaSize + chromaStride * (layout.getSliceHeight() / 2);
+            for (int row = 0; row < height / 2; row++) {
+                System.arraycopy(packed, packedLuma + row * width / 2, expected,
+                        lumaSize + row * chromaStride, width / 2);
+                System.arraycopy(packed, packedLuma + packedLuma / 4 + row * width / 2, expected,
+                        vOffset + row * chromaStride, width / 2);
+            }
+        } else {
+            for (int row = 0; row < height / 2; row++) {
+                System.arraycopy(packed, packedLuma + row * width, expected,
+                        lumaSize + row * stride, width);
+            }
+        }
+        byte[] actual = new byte[expected.length];
+        ByteBuffer source = strided.duplicate();
+        source.clear();
+        source.get(actual);
+        assertArrayEquals("format " + layout.getColorFormat(), expected, actual);
+    }
+
+    /**
+     * One direct input buffer, filled with a marker so that bytes the writer
+     * should not touch can be told apart.
+     */
+    static class FakeEncoderInput implements EncoderInput {
+        final ByteBuffer buffer;
+        boolean available = true;
+        int queuedSize = -1;
+        long queuedPresentationTimeUs;
+        int queuedFlags;
+
+        FakeEncoderInput(int capacity) {
+            buffer = ByteBuffer.allocateDirect(capacity);
+            for (int i = 0; i < capacity; i++) {
+                buffer.put(i, FILL);
+            }
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            return available ? 0 : -1;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return buffer;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                     int flags) {
+            assertEquals(0, offset);
+            queuedSize = size;
+            queuedPresentationTimeUs = presentationTimeUs;
+            queuedFlags = flags;
+        }
+    }
+}
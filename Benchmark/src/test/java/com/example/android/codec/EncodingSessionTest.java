@@ -0,0 +1,312 @@
+package com.example.android.codec;
+
+import com.example.android.benchmark.FakeVideoEncoder;
+import com.example.android.benchmark.SyntheticYuvFrame;
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.buffer.FrameRing;
+import com.example.android.buffer.ImageDataInfo;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Records the same frames through an {@link EncodingSession} in sync and in
+ * callback mode against a {@link FakeVideoEncoder}, and checks what reaches
+ * the muxer.
+ */
+public class EncodingSessionTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAMES = 20;
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long TIMEOUT_US = 10000;
+
+    @Test
+    public void bothModesMuxEveryFrameInOrder() throws InterruptedException {
+        RecordingMuxer sync = record(false, 200, 5000);
+        RecordingMuxer callback = record(true, 200, 5000);
+
+        for (RecordingMuxer muxer : new RecordingMuxer[] {sync, callback}) {
+            assertEquals(1, muxer.starts);
+            assertEquals(1, muxer.stops);
+            assertEquals(FRAMES, muxer.samples.size());
+            for (int i = 0; i < FRAMES; i++) {
+                assertEquals(i * FRAME_INTERVAL_US, muxer.samples.get(i)[0]);
+            }
+            // The first sample of a file has to be a key frame.
+            assertTrue((muxer.samples.get(0)[1] & EncodedSampleInfo.FLAG_KEY_FRAME) != 0);
+        }
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals("sample " + i, sync.samples.get(i)[1], callback.samples.get(i)[1]);
+            assertEquals("sample " + i, sync.samples.get(i)[2], callback.samples.get(i)[2]);
+        }
+    }
+
+    @Test
+    public void callbackStopTimeoutStopsWritingBeforeMuxerStops() throws InterruptedException {
+        // End of stream comes out long after stop() gives up, once before the
+        // first output and once in the middle of the stream.
+        for (long stopTimeoutMs : new long[] {1, 100}) {
+            RecordingMuxer muxer = record(true, 20000, stopTimeoutMs);
+
+            assertFalse(muxer.reachedEnd);
+            assertEquals("stop after " + stopTimeoutMs + " ms", muxer.starts, muxer.stops);
+            assertEquals("stop after " + stopTimeoutMs + " ms", 0, muxer.writesAfterStop);
+            assertTrue(muxer.samples.size() < FRAMES);
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void directInputLeavesEveryInputBufferToTheWriter() throws InterruptedException {
+        // A single input buffer: if the pump held it, no frame would get in.
+        FakeVideoEncoder encoder = newEncoder(200, 1);
+        RecordingMuxer muxer = new RecordingMuxer();
+        EncodingSession session = new EncodingSession(encoder, muxer, false,
+                YuvConverter.COLOR_FormatNV12, TIMEOUT_US, null);
+        // The stream keeps its frame queue attached; nothing arrives on it.
+        session.setFrameSource(new QueueFrameSource());
+        encoder.start();
+        try {
+            DirectInputWriter writer = new DirectInputWriter(encoder, new EncoderInputLayout(
+                    YuvConverter.COLOR_FormatNV12, WIDTH, HEIGHT, WIDTH, HEIGHT));
+            session.setInputWriter(writer);
+            session.start();
+            SyntheticYuvFrame frame = new SyntheticYuvFrame(WIDTH, HEIGHT, 2, 4);
+            // Written on this thread, as the camera thread does.
+            for (int i = 0; i < FRAMES; i++) {
+                long presentationTimeUs = i * FRAME_INTERVAL_US;
+                assertTrue("frame " + i, writer.writeFrame(frame.planes, 0, 0,
+                        presentationTimeUs, TimeUnit.SECONDS.toMicros(5), 0));
+                session.getPump().setLastPresentationTimeUs(presentationTimeUs);
+            }
+            // End of stream goes into an input buffer too; the fake encoder,
+            // like MediaCodec, refuses signalEndOfInputStream() without a surface.
+            assertTrue(session.stop(5000));
+        } finally {
+            encoder.stop();
+            encoder.release();
+        }
+
+        assertEquals(FRAMES, muxer.samples.size());
+        for (int i = 0; i < FRAMES; i++) {
+            assertEquals(i * FRAME_INTERVAL_US, muxer.samples.get(i)[0]);
+        }
+        assertEquals(1, muxer.stops);
+    }
+
+    @Test(timeout = 10000)
+    public void callbackStopGivesUpOnStuckCallbackThread() throws InterruptedException {
+        FakeVideoEncoder encoder = newEncoder(200);
+        QueueFrameSource source = new QueueFrameSource();
+        StuckMuxer muxer = new StuckMuxer();
+        EncodingSession session = new EncodingSession(encoder, muxer, true,
+                YuvConverter.COLOR_FormatNV12, TIMEOUT_US, encoder.getCallbackExecutor());
+        session.setFrameSource(source);
+        encoder.start();
+        try {
+            session.setInputWriter(new DirectInputWriter(encoder, new EncoderInputLayout(
+                    YuvConverter.COLOR_FormatNV12, WIDTH, HEIGHT, WIDTH, HEIGHT)));
+            session.start();
+            for (int i = 0; i < FRAMES; i++) {
+                source.queue(i * FRAME_INTERVAL_US);
+                session.notifyFrameAvailable();
+            }
+            assertTrue(muxer.entered.await(5, TimeUnit.SECONDS));
+
+            // The callback thread is stuck in the muxer, so neither end of
+            // stream nor the hand-off after it can come.
+            long start = System.nanoTime();
+            assertFalse(session.stop(100));
+            long stopMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("stop took " + stopMs + " ms", stopMs < 1000);
+            assertTrue(session.isAbandoned());
+            assertTrue(muxer.stopped);
+            try {
+                session.reset();
+                fail("abandoned session reset");
+            } catch (IllegalStateException expected) {
+                // The encoder has to be released instead.
+            }
+
+            muxer.release.countDown();
+            Thread.sleep(TimeUnit.MICROSECONDS.toMillis(200 * FRAMES) + 100);
+            // Only the write that was stuck; later output never reaches the muxer.
+            assertEquals(1, muxer.writes.get());
+        } finally {
+            muxer.release.countDown();
+            encoder.stop();
+            encoder.release();
+        }
+    }
+
+    /**
+     * Queues {@link #FRAMES} frames, records them and stops with
+     * {@code stopTimeoutMs}. In callback mode the encoder keeps running for a
+     * while after the stop, so late output would be caught.
+     */
+    private static RecordingMuxer record(boolean callbackMode, long encodeUs, long stopTimeoutMs)
+            throws InterruptedException {
+        FakeVideoEncoder encoder = newEncoder(encodeUs);
+        QueueFrameSource source = new QueueFrameSource();
+        RecordingMuxer muxer = new RecordingMuxer();
+        EncodingSession session = new EncodingSession(encoder, muxer, true,
+                YuvConverter.COLOR_FormatNV12, TIMEOUT_US,
+                callbackMode ? encoder.getCallbackExecutor() : null);
+        session.setFrameSource(source);
+        encoder.start();
+        try {
+            session.setInputWriter(new DirectInputWriter(encoder, new EncoderInputLayout(
+                    YuvConverter.COLOR_FormatNV12, WIDTH, HEIGHT, WIDTH, HEIGHT)));
+            session.start();
+            for (int i = 0; i < FRAMES; i++) {
+                source.queue(i * FRAME_INTERVAL_US);
+                session.notifyFrameAvailable();
+            }
+            muxer.reachedEnd = session.stop(stopTimeoutMs);
+            if (callbackMode) {
+                // Give output still in flight time to reach the muxer.
+                Thread.sleep(TimeUnit.MICROSECONDS.toMillis(encodeUs * FRAMES) + 50);
+            }
+        } finally {
+            encoder.stop();
+            encoder.release();
+        }
+        return muxer;
+    }
+
+    private static FakeVideoEncoder newEncoder(long encodeUs) {
+        return newEncoder(encodeUs, new FakeVideoEncoder.Config().bufferCount);
+    }
+
+    private static FakeVideoEncoder newEncoder(long encodeUs, int bufferCount) {
+        FakeVideoEncoder.Config config = new FakeVideoEncoder.Config();
+        config.width = WIDTH;
+        config.height = HEIGHT;
+        config.bufferCount = bufferCount;
+        config.encodeUs = encodeUs;
+        config.keyFrameSize = 1000;
+        config.deltaFrameSize = 300;
+        config.keyFrameInterval = 8;
+        return new FakeVideoEncoder(config);
+    }
+
+    private static class QueueFrameSource implements FrameSource {
+        private final FrameBufferPool mPool = new FrameBufferPool(false, 16L * 1024 * 1024);
+        private final FrameRing<ImageDataInfo> mQueue = new FrameRing<ImageDataInfo>(FRAMES);
+
+        void queue(long presentationTimeUs) {
+            FrameBuffer frame = mPool.acquire(YuvConverter.getFrameSize(WIDTH, HEIGHT));
+            ImageDataInfo info = new ImageDataInfo();
+            info.mFrame = frame;
+            info.mPresentationTimeUs = presentationTimeUs;
+            mQueue.offer(info);
+        }
+
+        @Override
+        public ImageDataInfo getImageData(long timeoutUs) {
+            return mQueue.take(timeoutUs, TimeUnit.MICROSECONDS);
+        }
+
+        @Override
+        public void recycleImageData(ImageDataInfo data) {
+            data.mFrame.release();
+        }
+    }
+
+    /**
+     * Records {presentationTimeUs, flags, size} of every sample and counts
+     * samples written after the muxer was stopped.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<long[]> samples = new ArrayList<long[]>();
+        volatile int starts;
+        volatile int stops;
+        volatile int writesAfterStop;
+        boolean reachedEnd;
+
+        @Override
+        public int addTrack(VideoFormat format) {
+            assertEquals(WIDTH, format.getWidth());
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            starts++;
+        }
+
+        @Override
+        public synchronized void writeSampleData(int trackIndex, ByteBuffer data,
+                                                 EncodedSampleInfo info) {
+            if (stops > 0) {
+                writesAfterStop++;
+            }
+            samples.add(new long[] {info.presentationTimeUs, info.flags, data.remaining()});
+        }
+
+        @Override
+        public void stop() {
+            stops++;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+
+    /**
+     * Blocks the first write until released, like a muxer waiting for room
+     * behind a storage stall, and fails writes once stopped.
+     */
+    private static class StuckMuxer implements SampleMuxer {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger writes = new AtomicInteger();
+        volatile boolean stopped;
+
+        @Override
+        public int addTrack(VideoFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+            writes.incrementAndGet();
+            entered.countDown();
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (stopped) {
+                throw new IllegalStateException("muxer is stopped");
+            }
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.example.android.codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Feeds {@link FragmentedMp4Writer} canned H.264 NAL units, as an encoder
+ * hands them out in Annex-B form, and reads the boxes of the file back.
+ */
+public class FragmentedMp4WriterTest {
+    private static final byte[] START_CODE = {0, 0, 0, 1};
+    private static final byte[] SHORT_START_CODE = {0, 0, 1};
+    // Baseline profile level 3.0, 640x480.
+    private static final byte[] SPS = {0x67, 0x42, (byte) 0xc0, 0x1e, (byte) 0xda, 0x02,
+            (byte) 0x80, (byte) 0xf6, (byte) 0x80, 0x6d, 0x0a, 0x13, 0x50};
+    private static final byte[] PPS = {0x68, (byte) 0xce, 0x3c, (byte) 0x80};
+    private static final byte[] AUD = {0x09, (byte) 0xf0};
+    private static final byte[] IDR = {0x65, (byte) 0x88, (byte) 0x84, 0x21, 0x7f, 0x3a, 0x11};
+    private static final byte[] NON_IDR = {0x41, (byte) 0x9a, 0x02, 0x44, 0x19};
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final int TIMESCALE = 90000;
+
+    private File mFile;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("fragmented", ".mp4");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void initSegmentCarriesParameterSetsFromTheFormat() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000000, true);
+        writer.stop();
+        writer.release();
+
+        byte[] file = readFile();
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals("ftyp", top.get(0).type);
+        assertEquals("moov", top.get(1).type);
+        assertEquals(2, top.size());
+        assertAvcC(file, top.get(1));
+    }
+
+    @Test
+    public void writesLengthPrefixedSlicesWithoutParameterSets() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000000, true);
+        // A key frame the way encoders often emit it: delimiter, parameter
+        // sets and slice, with both start code lengths.
+        writer.writeSampleData(0, annexB(START_CODE, AUD, START_CODE, SPS, SHORT_START_CODE, PPS,
+                START_CODE, IDR), sample(0, true));
+        writer.writeSampleData(0, annexB(SHORT_START_CODE, NON_IDR),
+                sample(FRAME_INTERVAL_US, false));
+        writer.stop();
+        writer.release();
+
+        byte[] file = readFile();
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals(4, top.size());
+        Box moof = top.get(2);
+        Box mdat = top.get(3);
+        assertEquals("moof", moof.type);
+        assertEquals("mdat", mdat.type);
+        assertArrayEquals(concat(length(IDR), IDR, length(NON_IDR), NON_IDR),
+                Arrays.copyOfRange(file, mdat.payload, mdat.end));
+
+        ByteBuffer trun = moof.find(file, "traf", "trun").fullBoxPayload(file);
+        assertEquals(2, trun.getInt());
+        // The data offset is counted from the start of the moof.
+        assertEquals(mdat.payload - moof.start, trun.getInt());
+        assertEquals(FRAME_INTERVAL_US * TIMESCALE / 1000000, trun.getInt());
+        assertEquals(4 + IDR.length, trun.getInt());
+        assertEquals(0x02000000, trun.getInt());
+        // The last sample repeats the duration before it.
+        assertEquals(FRAME_INTERVAL_US * TIMESCALE / 1000000, trun.getInt());
+        assertEquals(4 + NON_IDR.length, trun.getInt());
+        assertEquals(0x01010000, trun.getInt());
+    }
+
+    @Test
+    public void cutsFragmentsAtTheFirstKeyFrameAfterTheDuration() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000000, true);
+        int frames = 90;
+        for (int i = 0; i < frames; i++) {
+            boolean key = i % 15 == 0;
+            writer.writeSampleData(0, annexB(START_CODE, key ? IDR : NON_IDR),
+                    sample(i * FRAME_INTERVAL_US, key));
+        }
+        writer.stop();
+        writer.release();
+        assertEquals(3, writer.getFragmentsWritten());
+
+        byte[] file = readFile();
+        assertEquals(file.length, writer.getBytesWritten());
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals(2 + 2 * 3, top.size());
+        for (int fragment = 0; fragment < 3; fragment++) {
+            Box moof = top.get(2 + 2 * fragment);
+            ByteBuffer mfhd = moof.find(file, "mfhd").fullBoxPayload(file);
+            assertEquals(fragment + 1, mfhd.getInt());
+            ByteBuffer tfdt = moof.find(file, "traf", "tfdt").fullBoxPayload(file);
+            assertEquals(fragment * 30 * FRAME_INTERVAL_US * TIMESCALE / 1000000, tfdt.getLong());
+            ByteBuffer trun = moof.find(file, "traf", "trun").fullBoxPayload(file);
+            assertEquals(30, trun.getInt());
+            trun.getInt();
+            trun.getInt();
+            trun.getInt();
+            // Every fragment starts with a sync sample.
+            assertEquals(0x02000000, trun.getInt());
+        }
+    }
+
+    @Test
+    public void takesParameterSetsFromTheFirstKeyFrameWithoutCsd() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000000, false);
+        assertEquals(0, writer.getBytesWritten());
+        writer.writeSampleData(0, annexB(START_CODE, SPS, START_CODE, PPS, START_CODE, IDR),
+                sample(0, true));
+        writer.stop();
+        writer.release();
+
+        byte[] file = readFile();
+        List<Box> top = Box.parse(file, 0, file.length);
+        assertEquals("moov", top.get(1).type);
+        assertAvcC(file, top.get(1));
+        assertArrayEquals(concat(length(IDR), IDR),
+                Arrays.copyOfRange(file, top.get(3).payload, top.get(3).end));
+    }
+
+    @Test
+    public void rejectsFirstSampleWithoutParameterSets() throws IOException {
+        FragmentedMp4Writer writer = newWriter(1000000, false);
+        try {
+            writer.writeSampleData(0, annexB(START_CODE, IDR), sample(0, true));
+            fail("sample without SPS/PPS accepted");
+        } catch (IllegalStateException expected) {
+            // There is nothing to build the avcC from.
+        } finally {
+            writer.release();
+        }
+    }
+
+    private FragmentedMp4Writer newWriter(long fragmentDurationUs, boolean csd)
+            throws IOException {
+        FragmentedMp4Writer writer = new FragmentedMp4Writer(mFile.getPath(), fragmentDurationUs);
+        VideoFormat format = new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 640, 480);
+        if (csd) {
+            format.setCodecSpecificData(0, annexB(START_CODE, SPS));
+            format.setCodecSpecificData(1, annexB(START_CODE, PPS));
+        }
+        writer.addTrack(format);
+        writer.start();
+        return writer;
+    }
+
+    private static void assertAvcC(byte[] file, Box moov) {
+        Box avc1 = moov.find(file, "trak", "mdia", "minf", "stbl", "stsd");
+        // stsd: full box header and entry count, then the avc1 sample entry
+        // with 78 bytes of fields before its child boxes.
+        Box entry = Box.parse(file, avc1.payload + 8, avc1.end).get(0);
+        assertEquals("avc1", entry.type);
+        Box avcC = Box.parse(file, entry.payload + 78, entry.end).get(0);
+        assertEquals("avcC", avcC.type);
+        ByteBuffer config = ByteBuffer.wrap(file, avcC.payload, avcC.end - avcC.payload);
+        assertEquals(1, config.get());
+        assertEquals(SPS[1], config.get());
+        assertEquals(SPS[2], config.get());
+        assertEquals(SPS[3], config.get());
+        assertEquals((byte) 0xff, config.get());
+        assertEquals((byte) 0xe1, config.get());
+        assertArrayEquals(SPS, readUnit(config));
+        assertEquals(1, config.get());
+        assertArrayEquals(PPS, readUnit(config));
+        assertTrue(!config.hasRemaining());
+    }
+
+    private static byte[] readUnit(ByteBuffer config) {
+        byte[] unit = new byte[config.getShort()];
+        config.get(unit);
+        return unit;
+    }
+
+    private static EncodedSampleInfo sample(long presentationTimeUs, boolean keyFrame) {
+        EncodedSampleInfo info = new EncodedSampleInfo();
+        info.set(0, 0, presentationTimeUs, keyFrame ? EncodedSampleInfo.FLAG_KEY_FRAME : 0);
+        return info;
+    }
+
+    private static ByteBuffer annexB(byte[]... parts) {
+        return ByteBuffer.wrap(concat(parts));
+    }
+
+    private static byte[] length(byte[] unit) {
+        return ByteBuffer.allocate(4).putInt(unit.length).array();
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        int size = 0;
+        for (byte[] part : parts) {
+            size += part.length;
+        }
+        byte[] all = new byte[size];
+        int offset = 0;
+        for (byte[] part : parts) {
+            System.arraycopy(part, 0, all, offset, part.length);
+            offset += part.length;
+        }
+        return all;
+    }
+
+    private byte[] readFile() throws IOException {
+        byte[] bytes = new byte[(int) mFile.length()];
+        FileInputStream in = new FileInputStream(mFile);
+        try {
+            int read = 0;
+            while (read < bytes.length) {
+                read += in.read(bytes, read, bytes.length - read);
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    /**
+     * One ISO BMFF box: its type and where its header and contents are.
+     */
+    private static class Box {
+        final String type;
+        final int start;
+        final int payload;
+        final int end;
+
+        Box(String type, int start, int payload, int end) {
+            this.type = type;
+            this.start = start;
+            this.payload = payload;
+            this.end = end;
+        }
+
+        /**
+         * Parses the boxes between {@code from} and {@code to}, which must be
+         * covered exactly.
+         */
+        static List<Box> parse(byte[] file, int from, int to) {
+            List<Box> boxes = new ArrayList<Box>();
+            ByteBuffer buffer = ByteBuffer.wrap(file);
+            int position = from;
+            while (position < to) {
+                int size = buffer.getInt(position);
+                String type = new String(file, position + 4, 4);
+                assertTrue(type + " size " + size, size >= 8 && position + size <= to);
+                boxes.add(new Box(type, position, position + 8, position + size));
+                position += size;
+            }
+            assertEquals(to, position);
+            return boxes;
+        }
+
+        /**
+         * Returns the box found by following {@code path} through child boxes.
+         */
+        Box find(byte[] file, String... path) {
+            Box box = this;
+            for (String type : path) {
+                Box child = null;
+                for (Box candidate : parse(file, box.payload, box.end)) {
+                    if (candidate.type.equals(type)) {
+                        child = candidate;
+                    }
+                }
+                assertNotNull("no " + type + " in " + box.type, child);
+                box = child;
+            }
+            return box;
+        }
+
+        /**
+         * Returns the contents after the version and flags of a full box.
+         */
+        ByteBuffer fullBoxPayload(byte[] file) {
+            return ByteBuffer.wrap(file, payload + 4, end - payload - 4).slice();
+        }
+    }
+}
@@ -0,0 +1,235 @@
+package com.example.android.codec;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds synthetic GOPs through a {@link PreRollBuffer}, triggers it, and
+ * checks what reaches the output: a key frame first, at least the pre-roll
+ * duration, every sample intact and no gap before the live samples.
+ */
+public class PreRollBufferTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final long SECOND_US = 1000000;
+
+    @Test
+    public void flushCoversDurationFromKeyFrameAndLiveSamplesFollow() {
+        // Room for far more than a second, so only the duration evicts.
+        PreRollBuffer buffer = newBuffer(SECOND_US, 256 * 1024, 200);
+        RecordingMuxer output = new RecordingMuxer();
+        Random random = new Random(15);
+        for (int i = 0; i < 300; i++) {
+            write(buffer, i, 15, 300 + random.nextInt(400));
+        }
+        buffer.trigger(output);
+        for (int i = 300; i < 360; i++) {
+            write(buffer, i, 15, 300 + random.nextInt(400));
+        }
+        buffer.stop();
+        buffer.release();
+
+        assertTrue(output.started && output.stopped && output.released);
+        assertContiguousFromKeyFrame(output, 15, 359);
+        long flushedUs = 299 * FRAME_INTERVAL_US - output.timestamps.get(0);
+        assertTrue("flushed " + flushedUs + " us", flushedUs >= SECOND_US);
+        // Dropping the oldest GOP would have left less than the duration.
+        assertTrue(flushedUs - 15 * FRAME_INTERVAL_US < SECOND_US);
+        assertEquals(300 - output.indices.get(0), buffer.getFlushedSamples());
+        assertEquals(flushedUs, buffer.getFlushedDurationUs());
+        assertEquals(output.indices.get(0).longValue(), buffer.getEvictedSamples());
+        assertEquals(0, buffer.getDroppedSamples());
+        assertEquals(0, buffer.getBufferedBytes());
+    }
+
+    @Test
+    public void ringWrapsAroundAndFlushesOnStopWithoutLaterSample() {
+        // Ten seconds do not fit, so whole GOPs are evicted for room, and
+        // sizes that do not divide the capacity leave holes at the end.
+        int capacity = 10007;
+        PreRollBuffer buffer = newBuffer(10 * SECOND_US, capacity, 64);
+        RecordingMuxer output = new RecordingMuxer();
+        Random random = new Random(3);
+        int frames = 500;
+        for (int i = 0; i < frames; i++) {
+            write(buffer, i, 10, 100 + random.nextInt(800));
+            assertTrue(buffer.getBufferedBytes() <= capacity);
+        }
+        assertTrue(buffer.getPeakBytes() > capacity / 2);
+        buffer.trigger(output);
+        // No sample follows the trigger; stop() has to write out the ring.
+        buffer.stop();
+        buffer.release();
+
+        assertTrue(output.started && output.stopped);
+        assertContiguousFromKeyFrame(output, 10, frames - 1);
+        assertTrue(buffer.getEvictedSamples() > frames / 2);
+        assertEquals(0, buffer.getDroppedSamples());
+    }
+
+    @Test
+    public void singleGopLargerThanRingIsDroppedUntilNextKeyFrame() {
+        // Ten samples fit, a GOP has twenty: the ring holds one GOP only and
+        // can not evict part of it.
+        PreRollBuffer buffer = newBuffer(10 * SECOND_US, 10500, 64);
+        RecordingMuxer output = new RecordingMuxer();
+        for (int i = 0; i < 26; i++) {
+            write(buffer, i, 20, 1000);
+        }
+        // Samples 0 to 9 were evicted, 10 to 19 dropped, 20 starts again.
+        assertEquals(10, buffer.getEvictedSamples());
+        assertEquals(10, buffer.getDroppedSamples());
+        buffer.trigger(output);
+        for (int i = 26; i < 30; i++) {
+            write(buffer, i, 20, 1000);
+        }
+        buffer.stop();
+
+        assertContiguousFromKeyFrame(output, 20, 29);
+        assertEquals(20, output.indices.get(0).intValue());
+    }
+
+    @Test
+    public void oversizedSampleDropsItsGopUntilNextKeyFrame() {
+        PreRollBuffer buffer = newBuffer(10 * SECOND_US, 10000, 64);
+        RecordingMuxer output = new RecordingMuxer();
+        for (int i = 0; i < 46; i++) {
+            write(buffer, i, 10, i == 35 ? 20000 : 200);
+        }
+        assertEquals(5, buffer.getDroppedSamples());
+        buffer.trigger(output);
+        for (int i = 46; i < 50; i++) {
+            write(buffer, i, 10, 200);
+        }
+        buffer.stop();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 50; i++) {
+            if (i < 35 || i >= 40) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, output.indices);
+        assertTrue(output.keyFrames.get(0));
+    }
+
+    @Test
+    public void triggerWhileDroppingWaitsForKeyFrameInLiveSamples() {
+        PreRollBuffer buffer = newBuffer(10 * SECOND_US, 10000, 64);
+        RecordingMuxer output = new RecordingMuxer();
+        for (int i = 0; i < 37; i++) {
+            write(buffer, i, 10, i == 35 ? 20000 : 200);
+        }
+        // Triggered in the middle of the GOP that lost sample 35: the live
+        // samples up to the next key frame can not be decoded either.
+        buffer.trigger(output);
+        for (int i = 37; i < 45; i++) {
+            write(buffer, i, 10, 200);
+        }
+        buffer.stop();
+
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int i = 0; i < 45; i++) {
+            if (i < 35 || i >= 40) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, output.indices);
+        assertEquals(5, buffer.getDroppedSamples());
+    }
+
+    private static PreRollBuffer newBuffer(long durationUs, int maxBytes, int maxSamples) {
+        PreRollBuffer buffer = new PreRollBuffer(durationUs, maxBytes, maxSamples);
+        buffer.addTrack(new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 64, 48));
+        buffer.start();
+        return buffer;
+    }
+
+    /**
+     * Writes sample {@code index} with a key frame every
+     * {@code keyFrameInterval} samples; its bytes are derived from the index.
+     */
+    private static void write(PreRollBuffer buffer, int index, int keyFrameInterval, int size) {
+        ByteBuffer data = ByteBuffer.allocate(size + 3);
+        data.position(3);
+        for (int i = 0; i < size; i++) {
+            data.put((byte) (index * 31 + i));
+        }
+        data.position(3);
+        EncodedSampleInfo info = new EncodedSampleInfo();
+        info.set(3, size, index * FRAME_INTERVAL_US,
+                index % keyFrameInterval == 0 ? EncodedSampleInfo.FLAG_KEY_FRAME : 0);
+        buffer.writeSampleData(0, data, info);
+    }
+
+    /**
+     * Checks that the output starts on a key frame and holds every sample up
+     * to {@code lastIndex} without a gap, each with its own bytes.
+     */
+    private static void assertContiguousFromKeyFrame(RecordingMuxer output, int keyFrameInterval,
+                                                     int lastIndex) {
+        assertTrue(output.keyFrames.get(0));
+        int first = output.indices.get(0);
+        assertEquals(0, first % keyFrameInterval);
+        assertEquals(lastIndex - first + 1, output.indices.size());
+        for (int i = 0; i < output.indices.size(); i++) {
+            int index = output.indices.get(i);
+            assertEquals(first + i, index);
+            assertEquals(index % keyFrameInterval == 0, output.keyFrames.get(i));
+        }
+    }
+
+    /**
+     * Records the samples written to it and checks that each one's bytes are
+     * the ones {@link #write} made for its timestamp.
+     */
+    private static class RecordingMuxer implements SampleMuxer {
+        final List<Integer> indices = new ArrayList<Integer>();
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Boolean> keyFrames = new ArrayList<Boolean>();
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        @Override
+        public int addTrack(VideoFormat format) {
+            assertEquals(64, format.getWidth());
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+            assertTrue(started && !stopped);
+            int index = (int) (info.presentationTimeUs / FRAME_INTERVAL_US);
+            assertEquals(info.size, data.remaining());
+            for (int i = 0; i < info.size; i++) {
+                assertEquals("sample " + index + " byte " + i, (byte) (index * 31 + i),
+                        data.get(data.position() + i));
+            }
+            indices.add(index);
+            timestamps.add(info.presentationTimeUs);
+            keyFrames.add(info.isKeyFrame());
+        }
+
+        @Override
+        public void stop() {
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
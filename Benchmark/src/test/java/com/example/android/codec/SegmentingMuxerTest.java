@@ -0,0 +1,163 @@
+package com.example.android.codec;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Splits synthetic sample streams with {@link SegmentingMuxer} into segment
+ * muxers that, like MediaMuxer, refuse to stop without samples.
+ */
+public class SegmentingMuxerTest {
+    private static final long FRAME_INTERVAL_US = 33333;
+    private static final int KEY_FRAME_INTERVAL = 15;
+
+    private File mFolder;
+    private final List<SegmentMuxer> mSegments = new ArrayList<SegmentMuxer>();
+    private final SegmentingMuxer.SegmentFactory mFactory = new SegmentingMuxer.SegmentFactory() {
+        @Override
+        public SampleMuxer createSegment(String path) {
+            SegmentMuxer segment = new SegmentMuxer(path);
+            mSegments.add(segment);
+            return segment;
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("segments", "");
+        assertTrue(mFolder.delete() && mFolder.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFolder.delete();
+    }
+
+    @Test
+    public void stopWithoutSamplesLeavesNoSegment() throws IOException {
+        SegmentingMuxer muxer = newMuxer();
+        muxer.addTrack(new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 64, 48));
+        muxer.start();
+        muxer.stop();
+        muxer.release();
+
+        assertEquals(0, mSegments.size());
+        assertEquals(0, muxer.getSegmentCount());
+        assertEquals(1, readManifest(muxer).size());
+    }
+
+    @Test
+    public void rollsOverAtKeyFramesWithoutLosingSamples() throws IOException {
+        SegmentingMuxer muxer = newMuxer();
+        muxer.addTrack(new VideoFormat(VideoFormat.MIMETYPE_VIDEO_AVC, 64, 48));
+        muxer.start();
+        int frames = 100;
+        ByteBuffer data = ByteBuffer.allocate(100);
+        EncodedSampleInfo info = new EncodedSampleInfo();
+        for (int i = 0; i < frames; i++) {
+            data.clear();
+            info.set(0, data.remaining(), i * FRAME_INTERVAL_US,
+                    i % KEY_FRAME_INTERVAL == 0 ? EncodedSampleInfo.FLAG_KEY_FRAME : 0);
+            muxer.writeSampleData(0, data, info);
+        }
+        muxer.stop();
+        muxer.release();
+
+        assertTrue(mSegments.size() > 1);
+        assertEquals(mSegments.size(), muxer.getSegmentCount());
+        long next = 0;
+        for (SegmentMuxer segment : mSegments) {
+            assertTrue(segment.stopped && segment.released);
+            assertTrue(segment.path, segment.keyFrames.get(0));
+            for (long pts : segment.timestamps) {
+                assertEquals(next, pts);
+                next += FRAME_INTERVAL_US;
+            }
+        }
+        assertEquals(frames * FRAME_INTERVAL_US, next);
+        // The header and one row per segment.
+        assertEquals(mSegments.size() + 1, readManifest(muxer).size());
+    }
+
+    private SegmentingMuxer newMuxer() {
+        // One second segments, with a sync frame requested a frame early.
+        return new SegmentingMuxer(mFactory, new File(mFolder, "clip").getPath(), ".mp4",
+                1000000, 0, FRAME_INTERVAL_US, null);
+    }
+
+    private static List<String> readManifest(SegmentingMuxer muxer) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(new FileReader(muxer.getManifestPath()));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        assertEquals(SegmentingMuxer.MANIFEST_HEADER, lines.get(0));
+        return lines;
+    }
+
+    private static class SegmentMuxer implements SampleMuxer {
+        final String path;
+        final List<Long> timestamps = new ArrayList<Long>();
+        final List<Boolean> keyFrames = new ArrayList<Boolean>();
+        boolean started;
+        boolean stopped;
+        boolean released;
+
+        SegmentMuxer(String path) {
+            this.path = path;
+        }
+
+        @Override
+        public int addTrack(VideoFormat format) {
+            return 0;
+        }
+
+        @Override
+        public void start() {
+            started = true;
+        }
+
+        @Override
+        public void writeSampleData(int trackIndex, ByteBuffer data, EncodedSampleInfo info) {
+            timestamps.add(info.presentationTimeUs);
+            keyFrames.add(info.isKeyFrame());
+        }
+
+        @Override
+        public void stop() {
+            if (!started || timestamps.isEmpty()) {
+                // What MediaMuxer does when stopped without samples.
+                throw new IllegalStateException("Failed to stop the muxer");
+            }
+            stopped = true;
+        }
+
+        @Override
+        public void release() {
+            released = true;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package com.example.android.dump;
+
+import com.example.android.benchmark.SyntheticNv12Scene;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compresses frames with {@link FrameCompressor} and checks that they decode
+ * bit-exactly, and that damage is reported instead of decoded.
+ */
+public class FrameCompressorTest {
+    private static final int NV12 = YuvConverter.COLOR_FormatNV12;
+
+    private final FrameCompressor mCompressor = new FrameCompressor(Deflater.BEST_SPEED);
+
+    @After
+    public void tearDown() {
+        mCompressor.release();
+    }
+
+    @Test
+    public void cameraScenesDecodeBitExactly() throws IOException {
+        int[][] sizes = {{640, 480}, {66, 34}, {2, 2}};
+        for (int[] size : sizes) {
+            for (double noise : new double[] {0, 2, 6}) {
+                SyntheticNv12Scene scene = new SyntheticNv12Scene(size[0], size[1], noise, 3);
+                byte[] frame = new byte[scene.size];
+                for (int index = 0; index < 3; index++) {
+                    scene.render(index, frame);
+                    String name = size[0] + "x" + size[1] + " noise " + noise + " #" + index;
+                    int length = assertRoundTrip(name, ByteBuffer.wrap(frame), size[0], size[1]);
+                    if (size[0] > 2) {
+                        assertTrue(name + " did not compress", length > 0);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void filteredHuffmanCodingIsSmallestForNoisyScenes() {
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(640, 480, 2, 3);
+        byte[] frame = new byte[scene.size];
+        scene.render(0, frame);
+        FrameCompressor deflate = new FrameCompressor(Deflater.BEST_SPEED, Deflater.FILTERED);
+        try {
+            // A format other than NV12 leaves out the filter.
+            int plain = compressedSize(deflate, frame, -1);
+            int filtered = compressedSize(deflate, frame, NV12);
+            int huffman = compressedSize(mCompressor, frame, NV12);
+            String sizes = "plain " + plain + ", filtered " + filtered + ", huffman " + huffman;
+            assertTrue(sizes, plain > 0 && filtered < plain);
+            assertTrue(sizes, huffman > 0 && huffman < filtered);
+        } finally {
+            deflate.release();
+        }
+    }
+
+    @Test
+    public void extremeFramesDecodeBitExactly() throws IOException {
+        int width = 32;
+        int height = 16;
+        int size = width * height * 3 / 2;
+        byte[] black = new byte[size];
+        byte[] white = new byte[size];
+        Arrays.fill(white, (byte) 0xff);
+        // Neighbors as far apart as possible, for residuals that wrap around.
+        byte[] checker = new byte[size];
+        for (int i = 0; i < size; i++) {
+            checker[i] = (byte) (((i / width + i) & 1) == 0 ? 0 : 0xff);
+        }
+        byte[] ramp = new byte[size];
+        for (int i = 0; i < size; i++) {
+            ramp[i] = (byte) (i * 37);
+        }
+        assertTrue(assertRoundTrip("black", ByteBuffer.wrap(black), width, height) > 0);
+        assertTrue(assertRoundTrip("white", ByteBuffer.wrap(white), width, height) > 0);
+        assertRoundTrip("checker", ByteBuffer.wrap(checker), width, height);
+        assertRoundTrip("ramp", ByteBuffer.wrap(ramp), width, height);
+    }
+
+    @Test
+    public void readsFromBufferPositionOfHeapAndDirectBuffers() throws IOException {
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(64, 48, 2, 5);
+        byte[] frame = new byte[scene.size];
+        scene.render(0, frame);
+        ByteBuffer heap = ByteBuffer.allocate(scene.size + 100);
+        heap.position(100);
+        heap.slice().put(frame);
+        ByteBuffer direct = ByteBuffer.allocateDirect(scene.size + 7);
+        direct.position(7);
+        direct.slice().put(frame);
+        ByteBuffer sliced = ByteBuffer.wrap(new byte[scene.size + 50], 50, scene.size).slice();
+        sliced.put(frame).clear();
+
+        for (ByteBuffer data : new ByteBuffer[] {heap, direct, sliced}) {
+            int position = data.position();
+            assertRoundTrip("buffer " + data, data, 64, 48);
+            assertEquals(position, data.position());
+        }
+    }
+
+    @Test
+    public void otherLayoutsAreDeflatedAsTheyAre() throws IOException {
+        byte[] frame = new byte[33 * 20 * 3 / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i / 7);
+        }
+        // NV21, an odd width, and a size that is not a whole NV12 frame.
+        int[][] cases = {{YuvConverter.COLOR_FormatNV21, 32, 20}, {NV12, 33, 20}, {NV12, 30, 20}};
+        for (int[] c : cases) {
+            assertEquals(FrameCompressor.CODEC_DEFLATE,
+                    FrameCompressor.codecFor(c[0], c[1], c[2], frame.length));
+            byte[] output = new byte[frame.length];
+            int length = mCompressor.compress(ByteBuffer.wrap(frame), frame.length, c[0], c[1],
+                    c[2], output);
+            assertTrue(length > 0);
+            byte[] decoded = new byte[frame.length];
+            mCompressor.decompress(output, 0, length, FrameCompressor.CODEC_DEFLATE, c[1], c[2],
+                    decoded, frame.length);
+            assertArrayEquals(frame, decoded);
+        }
+    }
+
+    @Test
+    public void refusesFramesThatDoNotGetSmaller() {
+        byte[] noise = new byte[64 * 48 * 3 / 2];
+        new Random(8).nextBytes(noise);
+        assertEquals(-1, mCompressor.compress(ByteBuffer.wrap(noise), noise.length, NV12, 64, 48,
+                new byte[noise.length]));
+
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(64, 48, 2, 5);
+        byte[] frame = new byte[scene.size];
+        scene.render(0, frame);
+        assertEquals(-1, mCompressor.compress(ByteBuffer.wrap(frame), frame.length, NV12, 64, 48,
+                new byte[16]));
+    }
+
+    @Test
+    public void damagedFramesFailToDecode() throws IOException {
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(64, 48, 2, 5);
+        byte[] frame = new byte[scene.size];
+        scene.render(0, frame);
+        byte[] output = new byte[frame.length];
+        int length = mCompressor.compress(ByteBuffer.wrap(frame), frame.length, NV12, 64, 48,
+                output);
+        int codec = FrameCompressor.CODEC_NV12_AVERAGE_DEFLATE;
+        byte[] decoded = new byte[frame.length];
+
+        for (int position = 2; position < length; position += Math.max(1, length / 13)) {
+            byte[] damaged = Arrays.copyOf(output, length);
+            damaged[position] ^= 0x04;
+            assertDecodeFails("flipped bit at " + position, damaged, length, codec, decoded);
+        }
+        assertDecodeFails("truncated", output, length - 5, codec, decoded);
+        assertDecodeFails("unknown codec", output, length, 7, decoded);
+        assertDecodeFails("stored size", frame, frame.length - 1, FrameCompressor.CODEC_NONE,
+                decoded);
+    }
+
+    @Test
+    public void filterIsReversedForAnyPlane() {
+        Random random = new Random(12);
+        for (int i = 0; i < 200; i++) {
+            int step = 1 + random.nextInt(2);
+            int rowBytes = step * (1 + random.nextInt(40));
+            int rows = 1 + random.nextInt(20);
+            byte[] plane = new byte[rowBytes * rows];
+            random.nextBytes(plane);
+            byte[] residual = new byte[plane.length + 3];
+            FrameCompressor.filterPlane(plane, 0, residual, 3, rowBytes, rows, step);
+            FrameCompressor.unfilterPlane(residual, 3, rowBytes, rows, step);
+            assertArrayEquals(plane, Arrays.copyOfRange(residual, 3, residual.length));
+        }
+    }
+
+    /**
+     * Compresses the frame at the position of {@code data} and decodes it
+     * again; returns the compressed size, or -1 if it was not compressed.
+     */
+    private int assertRoundTrip(String name, ByteBuffer data, int width, int height)
+            throws IOException {
+        int size = width * height * 3 / 2;
+        byte[] frame = new byte[size];
+        data.duplicate().get(frame);
+        byte[] output = new byte[size];
+        int length = mCompressor.compress(data, size, NV12, width, height, output);
+        if (length < 0) {
+            return length;
+        }
+        byte[] decoded = new byte[size];
+        mCompressor.decompress(output, 0, length,
+                FrameCompressor.codecFor(NV12, width, height, size), width, height, decoded, size);
+        assertArrayEquals(name, frame, decoded);
+        return length;
+    }
+
+    private static int compressedSize(FrameCompressor compressor, byte[] frame, int format) {
+        return compressor.compress(ByteBuffer.wrap(frame), frame.length, format, 640, 480,
+                new byte[frame.length]);
+    }
+
+    private void assertDecodeFails(String name, byte[] input, int length, int codec,
+                                   byte[] output) {
+        try {
+            mCompressor.decompress(input, 0, length, codec, 64, 48, output, output.length);
+            fail(name + " decoded");
+        } catch (IOException expected) {
+            // Reported, not decoded into garbage.
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.example.android.dump;
+
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads containers written by {@link RawDumpWriter}, damaged copies of them,
+ * a hand-made version 1 container and a folder of legacy per-frame dumps with
+ * {@link RawDumpReader}.
+ */
+public class RawDumpReaderTest {
+    private static final int NV12 = YuvConverter.COLOR_FormatNV12;
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+
+    private File mFile;
+    private File mFolder;
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("frames", ".rawdump");
+        mFolder = File.createTempFile("legacy", "");
+        assertTrue(mFolder.delete() && mFolder.mkdir());
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFolder.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void unclosedContainerIsIndexedUpToFirstEmptyEntry() throws IOException {
+        writeContainer(10, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10);
+        // As the writer leaves it when it dies after six frames: no frame
+        // count, no closed flag, empty entries after the sixth and no footer.
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            ByteBuffer header = readHeader(file);
+            header.putInt(20, 0);
+            header.putInt(48, 0);
+            file.getChannel().write(header, 0);
+            file.getChannel().write(ByteBuffer.allocate(4 * RawDumpWriter.INDEX_ENTRY_SIZE),
+                    RawDumpWriter.HEADER_SIZE + 6L * RawDumpWriter.INDEX_ENTRY_SIZE);
+            file.setLength(file.length() - RawDumpWriter.FOOTER_SIZE);
+        } finally {
+            file.close();
+        }
+
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertFalse(reader.isClosedCleanly());
+            assertEquals(6, reader.getFrameCount());
+            for (int i = 0; i < 6; i++) {
+                assertArrayEquals("frame " + i, contents(i + 1),
+                        bytes(reader.getFrame(i).getData()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void emptyEntryOfClosedContainerIsAnError() throws IOException {
+        writeContainer(4, 1, 2, 3);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.getChannel().write(ByteBuffer.allocate(RawDumpWriter.INDEX_ENTRY_SIZE),
+                    RawDumpWriter.HEADER_SIZE + RawDumpWriter.INDEX_ENTRY_SIZE);
+        } finally {
+            file.close();
+        }
+        assertOpenFails("Bad raw dump index entry 1");
+    }
+
+    @Test(timeout = 10000)
+    public void corruptHeaderIsReportedAsSuch() throws IOException {
+        writeContainer(4, 1, 2, 3);
+        // Entries smaller than the version's, then more than the file holds.
+        patchHeader(12, 16);
+        assertOpenFails("Corrupt raw dump header");
+        patchHeader(12, RawDumpWriter.INDEX_ENTRY_SIZE);
+        patchHeader(16, 1 << 30);
+        assertOpenFails("Corrupt raw dump header");
+        patchHeader(16, 4);
+        patchHeader(4, RawDumpWriter.VERSION + 1);
+        assertOpenFails("Unsupported raw dump version " + (RawDumpWriter.VERSION + 1));
+    }
+
+    @Test(timeout = 10000)
+    public void readsVersion1Entries() throws IOException {
+        // Version 1 entries have 32 bytes, without frame size and codec.
+        int count = 3;
+        int entrySize = 32;
+        long dataOffset = RawDumpWriter.FRAME_ALIGNMENT;
+        long dataEnd = dataOffset + count * (long) RawDumpWriter.FRAME_ALIGNMENT * 2;
+        ByteBuffer header = ByteBuffer.allocate(RawDumpWriter.HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(RawDumpWriter.MAGIC).putInt(1).putInt(RawDumpWriter.HEADER_SIZE)
+                .putInt(entrySize).putInt(count).putInt(count)
+                .putLong(RawDumpWriter.HEADER_SIZE).putLong(dataOffset).putLong(dataEnd)
+                .putInt(RawDumpWriter.FLAG_CLOSED);
+        header.clear();
+        ByteBuffer index = ByteBuffer.allocate(count * entrySize).order(ByteOrder.LITTLE_ENDIAN);
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            file.getChannel().write(header, 0);
+            for (int i = 0; i < count; i++) {
+                long offset = dataOffset + i * 2L * RawDumpWriter.FRAME_ALIGNMENT;
+                index.putLong(1000L * (count - i)).putLong(offset).putInt(FRAME_SIZE)
+                        .putInt(NV12).putInt(WIDTH).putInt(HEIGHT);
+                file.getChannel().write(ByteBuffer.wrap(contents(count - i)), offset);
+            }
+            index.flip();
+            file.getChannel().write(index, RawDumpWriter.HEADER_SIZE);
+            file.setLength(dataEnd);
+        } finally {
+            file.close();
+        }
+
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertTrue(reader.isClosedCleanly());
+            assertEquals(count, reader.getFrameCount());
+            for (int i = 0; i < count; i++) {
+                RawDumpReader.RawFrame frame = reader.getFrame(i);
+                // Sorted by timestamp, the reverse of the file order.
+                assertEquals(1000L * (i + 1), frame.getTimestampNs());
+                assertEquals(NV12, frame.getFormat());
+                assertEquals(WIDTH, frame.getWidth());
+                assertEquals(HEIGHT, frame.getHeight());
+                assertTrue(frame.isMapped());
+                assertArrayEquals("frame " + i, contents(i + 1), bytes(frame.getData()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void findNearestPrefersEarlierFrameOfTie() throws IOException {
+        // Dumped out of order; the index is sorted.
+        writeContainer(8, 300, 100, 200, 400);
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertEquals(100, reader.getTimestampNs(0));
+            assertEquals(400, reader.getTimestampNs(3));
+            assertEquals(0, reader.findNearest(Long.MIN_VALUE));
+            assertEquals(0, reader.findNearest(100));
+            assertEquals(0, reader.findNearest(149));
+            assertEquals(0, reader.findNearest(150));
+            assertEquals(1, reader.findNearest(151));
+            assertEquals(1, reader.findNearest(200));
+            assertEquals(2, reader.findNearest(350));
+            assertEquals(3, reader.findNearest(Long.MAX_VALUE));
+            RawDumpReader.RawFrame frame = reader.getNearestFrame(260);
+            assertEquals(300, frame.getTimestampNs());
+            assertArrayEquals(contents(300), bytes(frame.getData()));
+        } finally {
+            reader.close();
+        }
+
+        writeContainer(8);
+        reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertEquals(0, reader.getFrameCount());
+            assertEquals(-1, reader.findNearest(0));
+            assertNull(reader.getNearestFrame(0));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void indexesLegacyFileNames() throws IOException {
+        long[] timestamps = {52000000000L, 51966666667L, 52033333333L};
+        for (long timestampNs : timestamps) {
+            writeFile("dumpImage_" + timestampNs + "_" + WIDTH + "x" + HEIGHT + ".nv12",
+                    contents((int) (timestampNs % 1000)));
+        }
+        // Not frames of the legacy naming scheme.
+        writeFile("notes.txt", new byte[1]);
+        writeFile("dumpImage_52000000000_64x48.yuv", new byte[1]);
+        writeFile("dumpImage_later_64x48.nv12", new byte[1]);
+        writeFile("dumpImage_52000000000_0x48.nv12", new byte[1]);
+        writeFile("dumpImage_52000000000.nv12", new byte[1]);
+
+        RawDumpReader reader = RawDumpReader.open(mFolder.getPath());
+        try {
+            assertTrue(reader.isClosedCleanly());
+            assertEquals(3, reader.getFrameCount());
+            long previous = Long.MIN_VALUE;
+            for (int i = 0; i < 3; i++) {
+                RawDumpReader.RawFrame frame = reader.getFrame(i);
+                assertTrue(frame.getTimestampNs() > previous);
+                previous = frame.getTimestampNs();
+                assertEquals(NV12, frame.getFormat());
+                assertEquals(WIDTH, frame.getWidth());
+                assertEquals(HEIGHT, frame.getHeight());
+                assertArrayEquals(contents((int) (previous % 1000)), bytes(frame.getData()));
+            }
+            assertEquals(52000000000L, reader.getNearestFrame(52010000000L).getTimestampNs());
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void planesViewTheMappedFile() throws IOException {
+        writeContainer(4, 7, 8);
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            RawDumpReader.RawFrame frame = reader.getFrame(1);
+            byte[] expected = contents(8);
+            assertTrue(frame.isMapped());
+            ByteBuffer y = frame.getY();
+            ByteBuffer uv = frame.getUv();
+            // Slices of the read-only mapping, not copies.
+            assertTrue(y.isDirect() && y.isReadOnly());
+            assertTrue(uv.isDirect() && uv.isReadOnly());
+            assertEquals(0, y.position());
+            assertEquals(WIDTH * HEIGHT, y.capacity());
+            assertEquals(WIDTH * HEIGHT / 2, uv.capacity());
+            byte[] planes = new byte[FRAME_SIZE];
+            y.get(planes, 0, WIDTH * HEIGHT);
+            uv.get(planes, WIDTH * HEIGHT, WIDTH * HEIGHT / 2);
+            assertArrayEquals(expected, planes);
+            // Reading one view leaves the others where they were.
+            assertEquals(0, frame.getY().position());
+            assertEquals(FRAME_SIZE, frame.getData().remaining());
+        } finally {
+            reader.close();
+        }
+
+        writeContainer(4, YuvConverter.COLOR_FormatNV21, new long[] {1});
+        reader = RawDumpReader.open(mFile.getPath());
+        try {
+            reader.getFrame(0).getY();
+            fail("NV21 frame has no NV12 planes");
+        } catch (IllegalStateException expected) {
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes a closed container of uncompressed NV12 frames whose contents
+     * derive from their timestamps.
+     */
+    private void writeContainer(int indexCapacity, long... timestamps) throws IOException {
+        writeContainer(indexCapacity, NV12, timestamps);
+    }
+
+    private void writeContainer(int indexCapacity, int format, long[] timestamps)
+            throws IOException {
+        FrameBufferPool pool = new FrameBufferPool(false, 1024 * 1024);
+        RawDumpWriter writer = new RawDumpWriter(mFile.getPath(), indexCapacity, 2);
+        writer.start();
+        for (long timestampNs : timestamps) {
+            FrameBuffer frame = pool.acquire(FRAME_SIZE);
+            System.arraycopy(contents((int) timestampNs), 0, frame.array(), 0, FRAME_SIZE);
+            while (!writer.dump(frame, FRAME_SIZE, timestampNs, format, WIDTH, HEIGHT)) {
+                sleep(1);
+            }
+            frame.release();
+        }
+        writer.close();
+        assertEquals(timestamps.length, writer.getFramesWritten());
+    }
+
+    private void writeFile(String name, byte[] data) throws IOException {
+        FileOutputStream stream = new FileOutputStream(new File(mFolder, name));
+        try {
+            stream.write(data);
+        } finally {
+            stream.close();
+        }
+    }
+
+    private ByteBuffer readHeader(RandomAccessFile file) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(RawDumpWriter.HEADER_SIZE)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        file.getChannel().read(header, 0);
+        header.clear();
+        return header;
+    }
+
+    private void patchHeader(int offset, int value) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+        try {
+            ByteBuffer header = readHeader(file);
+            header.putInt(offset, value);
+            file.getChannel().write(header, 0);
+        } finally {
+            file.close();
+        }
+    }
+
+    private void assertOpenFails(String message) {
+        try {
+            RawDumpReader.open(mFile.getPath()).close();
+            fail("Opened a damaged container");
+        } catch (IOException e) {
+            assertEquals(message, e.getMessage());
+        }
+    }
+
+    /**
+     * A smooth NV12 gradient, shifted by {@code index}.
+     */
+    private static byte[] contents(int index) {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) (i % WIDTH + i / WIDTH + index);
+        }
+        for (int i = WIDTH * HEIGHT; i < FRAME_SIZE; i++) {
+            data[i] = (byte) (128 + (i & 1) * index);
+        }
+        return data;
+    }
+
+    private static byte[] bytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package com.example.android.dump;
+
+import com.example.android.benchmark.SyntheticNv12Scene;
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Dumps small NV12 frames with {@link RawDumpWriter} and reads them back with
+ * {@link RawDumpReader}, with compressors that fail or stall.
+ */
+public class RawDumpWriterTest {
+    private static final int NV12 = YuvConverter.COLOR_FormatNV12;
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+    // FRAME_SIZE rounded up to its pool size class.
+    private static final int POOLED_FRAME_SIZE = 5120;
+    private static final int INDEX_CAPACITY = 100;
+
+    private File mFile;
+    private final FrameBufferPool mCameraPool = new FrameBufferPool(false, 1024 * 1024);
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("frames", ".rawdump");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test(timeout = 30000)
+    public void compressedContainerDecodesBitExactly() throws IOException {
+        SyntheticNv12Scene scene = new SyntheticNv12Scene(320, 240, 2, 9);
+        FrameBufferPool pool = new FrameBufferPool(true, 16L * 1024 * 1024);
+        RawDumpWriter writer = new RawDumpWriter(mFile.getPath(), INDEX_CAPACITY, 6, 3,
+                Deflater.BEST_SPEED);
+        writer.start();
+        Random random = new Random(6);
+        List<byte[]> frames = new ArrayList<byte[]>();
+        List<Integer> formats = new ArrayList<Integer>();
+        for (int i = 0; i < 60; i++) {
+            byte[] contents = new byte[scene.size];
+            int format = NV12;
+            if (i % 10 == 7) {
+                // Noise that does not compress is stored as it is.
+                random.nextBytes(contents);
+            } else if (i % 10 == 3) {
+                // Another format, deflated without the NV12 filter.
+                scene.render(i, contents);
+                format = YuvConverter.COLOR_FormatNV21;
+            } else {
+                scene.render(i, contents);
+            }
+            FrameBuffer frame = pool.acquire(scene.size);
+            frame.buffer().put(contents);
+            while (!writer.dump(frame, scene.size, 1000L * i, format, scene.width,
+                    scene.height)) {
+                sleep(1);
+            }
+            frame.release();
+            frames.add(contents);
+            formats.add(format);
+        }
+        writer.close();
+
+        assertEquals(0, writer.getFramesDropped());
+        assertTrue(writer.getCompressionRatio() > 1.5);
+        assertEquals(0, pool.getBytesOutstanding());
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertTrue(reader.isClosedCleanly());
+            assertEquals(frames.size(), reader.getFrameCount());
+            for (int i = 0; i < frames.size(); i++) {
+                RawDumpReader.RawFrame frame = reader.getFrame(i);
+                assertEquals(1000L * i, frame.getTimestampNs());
+                assertEquals(formats.get(i).intValue(), frame.getFormat());
+                assertEquals(scene.width, frame.getWidth());
+                assertEquals("frame " + i, i % 10 == 7, frame.isMapped());
+                assertArrayEquals("frame " + i, frames.get(i), bytes(frame.getData()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void storesFramesWhoseCompressionThrows() throws IOException {
+        // Every third frame makes the only compressor throw.
+        FrameCompressor failing = new FrameCompressor(Deflater.BEST_SPEED) {
+            private int mCalls;
+
+            @Override
+            public int compress(ByteBuffer data, int size, int format, int width, int height,
+                                byte[] output) {
+                if (mCalls++ % 3 == 1) {
+                    throw new IllegalStateException("compressor bug");
+                }
+                return super.compress(data, size, format, width, height, output);
+            }
+        };
+        RawDumpWriter writer = new RawDumpWriter(mFile.getPath(), INDEX_CAPACITY, 4,
+                new FrameCompressor[] {failing}, null);
+        writer.start();
+        int frames = 12;
+        int dumped = 0;
+        for (int i = 0; i < frames; i++) {
+            FrameBuffer frame = frame(i);
+            while (!writer.dump(frame, FRAME_SIZE, i, YuvConverter.COLOR_FormatNV12, WIDTH,
+                    HEIGHT)) {
+                // The queue is full; the compressor thread must still drain it.
+                sleep(1);
+            }
+            dumped++;
+            frame.release();
+        }
+        writer.close();
+
+        assertEquals(frames, dumped);
+        assertEquals(frames, writer.getFramesWritten());
+        assertEquals(frames / 3, writer.getCompressionFailures());
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertEquals(frames, reader.getFrameCount());
+            for (int i = 0; i < frames; i++) {
+                RawDumpReader.RawFrame frame = reader.getFrame(i);
+                // Failed frames are stored as they are, and mapped on reading.
+                assertEquals("frame " + i, i % 3 == 1, frame.isMapped());
+                assertArrayEquals("frame " + i, contents(i), bytes(frame.getData()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void copyPoolKeepsCameraPoolFree() throws IOException, InterruptedException {
+        final CountDownLatch stalled = new CountDownLatch(1);
+        final CountDownLatch resume = new CountDownLatch(1);
+        FrameCompressor stalling = new FrameCompressor(Deflater.BEST_SPEED) {
+            @Override
+            public int compress(ByteBuffer data, int size, int format, int width, int height,
+                                byte[] output) {
+                stalled.countDown();
+                await(resume);
+                return super.compress(data, size, format, width, height, output);
+            }
+        };
+        // Room for three frames.
+        FrameBufferPool copyPool = new FrameBufferPool(false, 3 * POOLED_FRAME_SIZE);
+        RawDumpWriter writer = new RawDumpWriter(mFile.getPath(), INDEX_CAPACITY, 8,
+                new FrameCompressor[] {stalling}, copyPool);
+        writer.start();
+        for (int i = 0; i < 5; i++) {
+            FrameBuffer frame = frame(i);
+            assertEquals("frame " + i, i < 3, writer.dump(frame, FRAME_SIZE, i,
+                    YuvConverter.COLOR_FormatNV12, WIDTH, HEIGHT));
+            assertEquals(1, frame.refCount());
+            // The camera reuses its buffer for the next frame right away.
+            Arrays.fill(frame.array(), (byte) 0);
+            frame.release();
+            if (i == 0) {
+                assertTrue(stalled.await(5, TimeUnit.SECONDS));
+            }
+        }
+        assertEquals(0, mCameraPool.getBytesOutstanding());
+        assertEquals(3 * POOLED_FRAME_SIZE, copyPool.getBytesOutstanding());
+        assertEquals(2, writer.getFramesDropped());
+        resume.countDown();
+        writer.close();
+
+        assertEquals(0, copyPool.getBytesOutstanding());
+        RawDumpReader reader = RawDumpReader.open(mFile.getPath());
+        try {
+            assertEquals(3, reader.getFrameCount());
+            for (int i = 0; i < 3; i++) {
+                assertArrayEquals("frame " + i, contents(i), bytes(reader.getFrame(i).getData()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * A smooth NV12 gradient that compresses, shifted by {@code index}.
+     */
+    private static byte[] contents(int index) {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) (i % WIDTH + i / WIDTH + index);
+        }
+        for (int i = WIDTH * HEIGHT; i < FRAME_SIZE; i++) {
+            data[i] = (byte) (128 + (i & 1) * index);
+        }
+        return data;
+    }
+
+    private FrameBuffer frame(int index) {
+        FrameBuffer frame = mCameraPool.acquire(FRAME_SIZE);
+        System.arraycopy(contents(index), 0, frame.array(), 0, FRAME_SIZE);
+        return frame;
+    }
+
+    private static byte[] bytes(ByteBuffer data) {
+        byte[] bytes = new byte[data.remaining()];
+        data.get(bytes);
+        return bytes;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            assertTrue("stalled too long", latch.await(5, TimeUnit.SECONDS));
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
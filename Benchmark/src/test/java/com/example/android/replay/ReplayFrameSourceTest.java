@@ -0,0 +1,229 @@
+package com.example.android.replay;
+
+import com.example.android.buffer.FrameBuffer;
+import com.example.android.buffer.FrameBufferPool;
+import com.example.android.buffer.ImageDataInfo;
+import com.example.android.dump.RawDumpWriter;
+import com.example.android.sensor.ImuRecordWriter;
+import com.example.android.sensor.SensorSampleSink;
+import com.example.android.yuv.YuvConverter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Records a small session the way the fragment names it, a raw dump and an
+ * IMU record log, and replays it with a {@link ReplayFrameSource} at
+ * {@link ReplayFrameSource#MAX_SPEED}.
+ */
+public class ReplayFrameSourceTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final int FRAME_SIZE = WIDTH * HEIGHT * 3 / 2;
+    private static final int FRAMES = 30;
+    private static final long FIRST_FRAME_NS = 5000000000L;
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+    private static final long SAMPLE_INTERVAL_NS = 2500000L;
+    private static final long TIMEOUT_US = 10000;
+
+    private File mFolder;
+    private final FrameBufferPool mPool = new FrameBufferPool(false, 1024 * 1024);
+    // The log as written, one {tag, timestamp, x} per record.
+    private final List<long[]> mLog = new ArrayList<long[]>();
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("session", "");
+        assertTrue(mFolder.delete() && mFolder.mkdir());
+        writeSession();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFolder.delete();
+    }
+
+    @Test(timeout = 10000)
+    public void replaysEveryFrameAndSampleInOrder() throws IOException {
+        RecordingSink sink = new RecordingSink();
+        ReplayFrameSource source = new ReplayFrameSource(mFolder.getPath(), mPool, 4);
+        source.setSpeed(ReplayFrameSource.MAX_SPEED);
+        source.setSensorSink(sink);
+        source.start();
+        int frames = 0;
+        try {
+            while (true) {
+                ImageDataInfo info = source.getImageData(TIMEOUT_US);
+                if (info == null) {
+                    if (source.isFinished()) {
+                        break;
+                    }
+                    continue;
+                }
+                // Counted from the first frame, as the fragment sets them.
+                assertEquals((timestampNs(frames) - FIRST_FRAME_NS) / 1000,
+                        info.mPresentationTimeUs);
+                ByteBuffer data = info.mFrame.buffer().duplicate();
+                data.limit(FRAME_SIZE);
+                byte[] bytes = new byte[FRAME_SIZE];
+                data.get(bytes);
+                assertArrayEquals("frame " + frames, contents(frames), bytes);
+                source.recycleImageData(info);
+                frames++;
+            }
+        } finally {
+            source.close();
+        }
+
+        assertNull(source.getError());
+        assertEquals(FRAMES, frames);
+        assertEquals(FRAMES, source.getFramesReleased());
+        assertEquals(0, source.getDropStats().getTotalDropCount());
+        assertEquals(FRAMES, source.getDropStats().getQueuedCount());
+        assertEquals(mLog.size(), source.getSamplesReleased());
+        assertEquals(mLog.size(), sink.mRecords.size());
+        for (int i = 0; i < mLog.size(); i++) {
+            assertArrayEquals("record " + i, mLog.get(i), sink.mRecords.get(i));
+        }
+        assertTrue(sink.mFlushes > 0);
+        assertEquals(0, mPool.getBytesOutstanding());
+    }
+
+    @Test(timeout = 10000)
+    public void closeFreesPrefetchedFrames() throws IOException, InterruptedException {
+        ReplayFrameSource source = new ReplayFrameSource(mFolder.getPath(), mPool, 4);
+        source.setSpeed(ReplayFrameSource.MAX_SPEED);
+        source.start();
+        ImageDataInfo info;
+        while ((info = source.getImageData(TIMEOUT_US)) == null) {
+            assertNull(source.getError());
+        }
+        source.recycleImageData(info);
+        // The replay fills the queue and the prefetch thread runs ahead of
+        // it, both waiting for room.
+        while (source.getFramesReleased() < 5) {
+            Thread.sleep(1);
+        }
+        assertTrue(mPool.getBytesOutstanding() > 0);
+        source.close();
+
+        assertNull(source.getError());
+        assertEquals(0, mPool.getBytesOutstanding());
+    }
+
+    private static long timestampNs(int index) {
+        // A little jitter, as camera timestamps have.
+        return FIRST_FRAME_NS + index * FRAME_INTERVAL_NS + (index % 3) * 1000;
+    }
+
+    /**
+     * Writes {@link #FRAMES} frames and a log of gyroscope and accelerometer
+     * samples around them, with the frame timestamps, under the names the
+     * fragment uses.
+     */
+    private void writeSession() throws IOException {
+        RawDumpWriter dump = new RawDumpWriter(
+                new File(mFolder, ReplayFrameSource.RAW_DUMP_FILE).getPath(), FRAMES, 2);
+        dump.start();
+        for (int i = 0; i < FRAMES; i++) {
+            FrameBuffer frame = mPool.acquire(FRAME_SIZE);
+            System.arraycopy(contents(i), 0, frame.array(), 0, FRAME_SIZE);
+            while (!dump.dump(frame, FRAME_SIZE, timestampNs(i), YuvConverter.COLOR_FormatNV12,
+                    WIDTH, HEIGHT)) {
+                sleep(1);
+            }
+            frame.release();
+        }
+        dump.close();
+        assertEquals(FRAMES, dump.getFramesWritten());
+
+        ImuRecordWriter log = new ImuRecordWriter(
+                new File(mFolder, ReplayFrameSource.IMU_LOG_FILE).getPath());
+        try {
+            long sampleNs = FIRST_FRAME_NS - 10000000L;
+            long endNs = timestampNs(FRAMES - 1) + 10000000L;
+            int frame = 0;
+            int sample = 0;
+            while (sampleNs < endNs) {
+                if (frame < FRAMES && timestampNs(frame) < sampleNs) {
+                    log(log, ImuRecordWriter.TAG_IMAGE, timestampNs(frame), 0);
+                    frame++;
+                } else {
+                    byte tag = sample % 2 == 0 ? ImuRecordWriter.TAG_GYROSCOPE
+                            : ImuRecordWriter.TAG_ACCELEROMETER;
+                    log(log, tag, sampleNs, sample);
+                    sample++;
+                    sampleNs += SAMPLE_INTERVAL_NS / 2;
+                }
+            }
+        } finally {
+            log.close();
+        }
+    }
+
+    private void log(ImuRecordWriter log, byte tag, long timestampNs, int x) throws IOException {
+        log.write(tag, timestampNs, x, 0, 0);
+        mLog.add(new long[] {tag, timestampNs, x});
+    }
+
+    /**
+     * A smooth NV12 gradient, shifted by {@code index}.
+     */
+    private static byte[] contents(int index) {
+        byte[] data = new byte[FRAME_SIZE];
+        for (int i = 0; i < WIDTH * HEIGHT; i++) {
+            data[i] = (byte) (i % WIDTH + i / WIDTH + index);
+        }
+        for (int i = WIDTH * HEIGHT; i < FRAME_SIZE; i++) {
+            data[i] = (byte) (128 + (i & 1) * index);
+        }
+        return data;
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * Records what reaches it, and checks that it arrives in timestamp order.
+     */
+    private static class RecordingSink implements SensorSampleSink {
+        final List<long[]> mRecords = new ArrayList<long[]>();
+        int mFlushes;
+
+        @Override
+        public void write(byte tag, long timestampNs, float x, float y, float z) {
+            if (!mRecords.isEmpty()) {
+                assertTrue(timestampNs >= mRecords.get(mRecords.size() - 1)[1]);
+            }
+            mRecords.add(new long[] {tag, timestampNs, (long) x});
+        }
+
+        @Override
+        public void flush() {
+            mFlushes++;
+        }
+    }
+}
@@ -0,0 +1,182 @@
+package com.example.android.sensor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link CsvNumberFormatter} with the JDK formatting it replaces:
+ * {@code String.format(Locale.US, "%.6f")} for fixed decimals,
+ * {@link Float#toString} for the shortest form and {@link Long#toString}.
+ */
+public class CsvNumberFormatterTest {
+    private static final float[] EDGE_VALUES = {0f, -0f, Float.NaN, Float.POSITIVE_INFINITY,
+            Float.NEGATIVE_INFINITY, Float.MIN_VALUE, -Float.MIN_VALUE, Float.MIN_NORMAL,
+            Float.intBitsToFloat(0x007fffff), Float.MAX_VALUE, -Float.MAX_VALUE, 1f, -1f,
+            0.1f, 9.80665f, 1e-3f, 9.999999e-4f, 0.0000005f, 0.0000015f, 0.0078125f,
+            -0.0000004f, 999999.94f, 1e7f, 123456789f, 1e12f, 16777216f, 4.1e-4f};
+    private static final long[] LONG_VALUES = {0, 1, -1, 9, 10, 99, 100,
+            999999999999999999L, 1000000000000000000L, Long.MAX_VALUE, Long.MIN_VALUE,
+            Long.MIN_VALUE + 1, 1234567890123456789L, -1234567890123456789L};
+
+    private final CsvNumberFormatter mFormatter = new CsvNumberFormatter(4);
+
+    @Test
+    public void longsMatchLongToString() {
+        for (long value : LONG_VALUES) {
+            assertEquals(Long.toString(value), format(value));
+        }
+        Random random = new Random(18);
+        for (int i = 0; i < 100000; i++) {
+            long value = random.nextLong() >> random.nextInt(64);
+            assertEquals(Long.toString(value), format(value));
+        }
+    }
+
+    @Test
+    public void fixedDecimalsMatchPrintf() {
+        for (float value : EDGE_VALUES) {
+            assertFixedMatchesPrintf(value);
+        }
+        Random random = new Random(18);
+        for (int i = 0; i < 200000; i++) {
+            // Any bit pattern, and the range sensors report in.
+            assertFixedMatchesPrintf(Float.intBitsToFloat(random.nextInt()));
+            assertFixedMatchesPrintf((random.nextFloat() - 0.5f) * 70);
+        }
+        // Halfway cases, which printf rounds up.
+        for (int i = 0; i < 1000; i++) {
+            assertFixedMatchesPrintf((2 * i + 1) / 128f);
+            assertFixedMatchesPrintf(-(2 * i + 1) / 2048f);
+        }
+        for (int decimals = 0; decimals <= 9; decimals++) {
+            mFormatter.clear();
+            mFormatter.appendFixed(2.5f, decimals);
+            assertEquals(String.format(Locale.US, "%." + decimals + "f", 2.5f),
+                    mFormatter.toString());
+        }
+    }
+
+    @Test
+    public void shortestParsesBackWithNoMoreDigitsThanFloatToString() {
+        for (float value : EDGE_VALUES) {
+            assertShortest(value);
+        }
+        Random random = new Random(18);
+        for (int i = 0; i < 200000; i++) {
+            assertShortest(Float.intBitsToFloat(random.nextInt()));
+            assertShortest((random.nextFloat() - 0.5f) * 70);
+        }
+    }
+
+    @Test
+    public void shortestMatchesFloatToStringWithoutExponent() {
+        assertEquals("NaN", shortest(Float.NaN));
+        assertEquals("Infinity", shortest(Float.POSITIVE_INFINITY));
+        assertEquals("-Infinity", shortest(Float.NEGATIVE_INFINITY));
+        assertEquals("0.0", shortest(0f));
+        assertEquals("-0.0", shortest(-0f));
+        assertEquals("1.0", shortest(1f));
+        assertEquals("9.80665", shortest(9.80665f));
+        assertEquals("-0.001", shortest(-1e-3f));
+        // Exactly between two 8 digit candidates; the even one wins.
+        assertEquals("17.195312", shortest(17.1953125f));
+        assertEquals("0.028320312", shortest(0.0283203125f));
+        assertEquals("1.6777216E7", Float.toString(16777216f));
+        assertEquals("16777216.0", shortest(16777216f));
+        assertEquals("4.1E-4", Float.toString(4.1e-4f));
+        assertEquals("0.00041", shortest(4.1e-4f));
+        assertEquals("1.4E-45", Float.toString(Float.MIN_VALUE));
+        // One digit is enough; Float.toString is not always shortest.
+        assertEquals("0." + repeat('0', 44) + "1", shortest(Float.MIN_VALUE));
+        Random random = new Random(18);
+        for (int i = 0; i < 200000; i++) {
+            float value = (random.nextFloat() - 0.5f) * 70;
+            if (Math.abs(value) >= 1e-3f) {
+                assertEquals(Float.toString(value), shortest(value));
+            }
+        }
+    }
+
+    @Test
+    public void rowsGrowTheBufferAndWriteOut() throws IOException {
+        mFormatter.clear();
+        mFormatter.append(Long.MIN_VALUE).append(',').appendFixed(-0f, 6).append(',')
+                .appendShortest(Float.MIN_VALUE).append('\n');
+        String expected = Long.MIN_VALUE + ",-0.000000,0." + repeat('0', 44) + "1\n";
+        assertEquals(expected, mFormatter.toString());
+        assertEquals(expected.length(), mFormatter.length());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mFormatter.writeTo(out);
+        assertEquals(expected, out.toString("US-ASCII"));
+    }
+
+    private void assertFixedMatchesPrintf(float value) {
+        mFormatter.clear();
+        mFormatter.appendFixed(value, 6);
+        assertEquals("bits " + Integer.toHexString(Float.floatToRawIntBits(value)),
+                String.format(Locale.US, "%.6f", value), mFormatter.toString());
+    }
+
+    /**
+     * Checks that the text parses back to the same float, and has at most as
+     * many significant digits as {@link Float#toString}, which does not
+     * always find the shortest.
+     */
+    private void assertShortest(float value) {
+        String text = shortest(value);
+        String message = Float.toString(value) + " as " + text;
+        assertEquals(message, Float.floatToIntBits(value),
+                Float.floatToIntBits(Float.parseFloat(text)));
+        if (Float.isNaN(value) || Float.isInfinite(value)) {
+            return;
+        }
+        assertTrue(message, text.indexOf('E') < 0 && text.indexOf('.') > 0);
+        assertTrue(message, significantDigits(text) <= significantDigits(Float.toString(value)));
+    }
+
+    private String shortest(float value) {
+        mFormatter.clear();
+        mFormatter.appendShortest(value);
+        return mFormatter.toString();
+    }
+
+    private String format(long value) {
+        mFormatter.clear();
+        mFormatter.append(value);
+        return mFormatter.toString();
+    }
+
+    /**
+     * Digits from the first non-zero one to the last non-zero one, ignoring
+     * sign, point and exponent.
+     */
+    private static int significantDigits(String text) {
+        int exponent = text.indexOf('E');
+        String mantissa = (exponent < 0 ? text : text.substring(0, exponent)).replace("-", "")
+                .replace(".", "");
+        int first = 0;
+        while (first < mantissa.length() && mantissa.charAt(first) == '0') {
+            first++;
+        }
+        int last = mantissa.length();
+        while (last > first && mantissa.charAt(last - 1) == '0') {
+            last--;
+        }
+        return Math.max(1, last - first);
+    }
+
+    private static String repeat(char c, int count) {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            builder.append(c);
+        }
+        return builder.toString();
+    }
+}
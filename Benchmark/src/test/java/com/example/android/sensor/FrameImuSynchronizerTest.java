@@ -0,0 +1,304 @@
+package com.example.android.sensor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays IMU recordings through a {@link FrameImuSynchronizer} and compares
+ * every window with an offline alignment of the whole recording.
+ */
+public class FrameImuSynchronizerTest {
+    private static final byte GYRO = ImuRecordWriter.TAG_GYROSCOPE;
+    private static final byte ACCEL = ImuRecordWriter.TAG_ACCELEROMETER;
+    private static final byte IMAGE = ImuRecordWriter.TAG_IMAGE;
+    private static final long MS = 1000000L;
+
+    private File mFile;
+    private final List<Window> mWindows = new ArrayList<Window>();
+    private final FrameImuSynchronizer.Listener mListener = new FrameImuSynchronizer.Listener() {
+        @Override
+        public void onFrameImu(FrameImuWindow window) {
+            mWindows.add(new Window(window));
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        mFile = File.createTempFile("imu", ".bin");
+    }
+
+    @After
+    public void tearDown() {
+        mFile.delete();
+    }
+
+    @Test
+    public void replayedRecordingMatchesOfflineAlignment() throws IOException {
+        List<Sample> recording = record(new Random(19), 3000 * MS, 60 * MS);
+        writeRecording(recording);
+        FrameImuSynchronizer synchronizer = new FrameImuSynchronizer(512, 32, mListener);
+        replay(synchronizer);
+
+        List<Sample> samples = new ArrayList<Sample>();
+        List<Long> frames = new ArrayList<Long>();
+        for (Sample sample : recording) {
+            if (sample.tag == IMAGE) {
+                frames.add(sample.timestampNs);
+            } else {
+                samples.add(sample);
+            }
+        }
+        // What an offline pass over the whole recording does: sort all
+        // samples by time, the gyroscope first on a tie like the merge.
+        Collections.sort(samples, new Comparator<Sample>() {
+            @Override
+            public int compare(Sample a, Sample b) {
+                if (a.timestampNs != b.timestampNs) {
+                    return a.timestampNs < b.timestampNs ? -1 : 1;
+                }
+                return a.tag == b.tag ? 0 : (a.tag == GYRO ? -1 : 1);
+            }
+        });
+        assertEquals(frames.size(), mWindows.size());
+        assertEquals(0, synchronizer.getFramesDropped());
+        assertEquals(0, synchronizer.getSamplesDropped());
+        long previous = -1;
+        for (int f = 0; f < frames.size(); f++) {
+            long frameNs = frames.get(f);
+            Window window = mWindows.get(f);
+            assertEquals(frameNs, window.frameNs);
+            assertEquals(previous, window.previousNs);
+            float[] expected = new float[6];
+            interpolate(samples, GYRO, frameNs, expected, 0);
+            interpolate(samples, ACCEL, frameNs, expected, 3);
+            assertArrayEquals("frame " + f, expected, window.values, 1e-4f);
+            List<Sample> between = new ArrayList<Sample>();
+            for (Sample sample : samples) {
+                if (sample.timestampNs > previous && sample.timestampNs <= frameNs) {
+                    between.add(sample);
+                }
+            }
+            assertEquals("frame " + f, between, window.samples);
+            previous = frameNs;
+        }
+    }
+
+    @Test
+    public void dropsOutOfOrderFramesAndSamples() throws IOException {
+        FrameImuSynchronizer synchronizer = new FrameImuSynchronizer(16, 4, mListener);
+        for (long t = 0; t <= 10 * MS; t += MS) {
+            synchronizer.write(GYRO, t, t, 0, 0);
+            synchronizer.write(ACCEL, t, 0, t, 0);
+        }
+        synchronizer.write(IMAGE, 5 * MS, 0, 0, 0);
+        synchronizer.write(IMAGE, 4 * MS, 0, 0, 0);
+        synchronizer.write(GYRO, 9 * MS, 0, 0, 0);
+
+        assertEquals(1, synchronizer.getFramesEmitted());
+        assertEquals(1, synchronizer.getFramesDropped());
+        assertEquals(1, synchronizer.getSamplesDropped());
+        assertEquals(5 * MS, mWindows.get(0).frameNs);
+        assertEquals(5 * MS, mWindows.get(0).values[0], 0);
+        assertEquals(5 * MS, mWindows.get(0).values[4], 0);
+    }
+
+    @Test
+    public void dropsFrameWhoseSamplesAreGone() throws IOException {
+        // Eight samples per stream cover 7 ms, the frame arrives 12 ms late.
+        FrameImuSynchronizer synchronizer = new FrameImuSynchronizer(8, 4, mListener);
+        for (long t = 0; t <= 14 * MS; t += MS) {
+            synchronizer.write(GYRO, t, 1, 2, 3);
+            synchronizer.write(ACCEL, t, 4, 5, 6);
+        }
+        synchronizer.write(IMAGE, 2 * MS, 0, 0, 0);
+        synchronizer.write(IMAGE, 10 * MS, 0, 0, 0);
+
+        assertEquals(1, synchronizer.getFramesDropped());
+        assertEquals(1, mWindows.size());
+        assertEquals(10 * MS, mWindows.get(0).frameNs);
+    }
+
+    @Test
+    public void waitsForStalledStreamUpToFrameCapacity() throws IOException {
+        FrameImuSynchronizer synchronizer = new FrameImuSynchronizer(64, 4, mListener);
+        synchronizer.write(ACCEL, 0, 0, 0, 0);
+        // The accelerometer stalls while six frames come in.
+        for (long t = 0; t <= 60 * MS; t += MS) {
+            synchronizer.write(GYRO, t, 0, 0, 0);
+            if (t > 0 && t % (10 * MS) == 0) {
+                synchronizer.write(IMAGE, t, 0, 0, 0);
+            }
+        }
+        assertEquals(0, mWindows.size());
+        assertEquals(4, synchronizer.getMaxPendingFrames());
+        assertEquals(2, synchronizer.getFramesDropped());
+
+        synchronizer.write(ACCEL, 61 * MS, 1, 1, 1);
+        assertEquals(4, mWindows.size());
+        assertEquals(30 * MS, mWindows.get(0).frameNs);
+        assertEquals(60 * MS, mWindows.get(3).frameNs);
+        assertEquals(2, synchronizer.getFramesDropped());
+    }
+
+    /**
+     * Builds a recording like the app's: a 400 Hz gyroscope and a 500 Hz
+     * accelerometer with jittered timestamps and noisy values, each written
+     * 1 to 5 ms after the sample and in order, and 30 fps frames written
+     * {@code frameDelayNs} after their timestamp.
+     */
+    private static List<Sample> record(Random random, long durationNs, long frameDelayNs) {
+        List<long[]> arrivals = new ArrayList<long[]>();
+        List<Sample> events = new ArrayList<Sample>();
+        long start = 1000 * MS;
+        long[] periods = {2500000, 2000000};
+        byte[] tags = {GYRO, ACCEL};
+        for (int s = 0; s < 2; s++) {
+            long arrival = 0;
+            for (long t = start + s * 300000; t < start + durationNs;
+                    t += periods[s] + random.nextInt(100000) - 50000) {
+                arrival = Math.max(arrival, t + MS + random.nextInt(4000000));
+                arrivals.add(new long[] {arrival, events.size()});
+                events.add(new Sample(tags[s], t, random.nextFloat(), random.nextFloat() - 1,
+                        9.81f + random.nextFloat()));
+            }
+        }
+        for (long t = start + 5 * MS; t < start + durationNs - 100 * MS; t += 33333333L) {
+            arrivals.add(new long[] {t + frameDelayNs, events.size()});
+            events.add(new Sample(IMAGE, t, 0, 0, 0));
+        }
+        // A stable sort, so equal arrival times keep the order of each stream.
+        Collections.sort(arrivals, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[0] < b[0] ? -1 : (a[0] == b[0] ? 0 : 1);
+            }
+        });
+        List<Sample> recording = new ArrayList<Sample>();
+        for (long[] arrival : arrivals) {
+            recording.add(events.get((int) arrival[1]));
+        }
+        return recording;
+    }
+
+    private void writeRecording(List<Sample> recording) throws IOException {
+        ImuRecordWriter writer = new ImuRecordWriter(mFile.getPath());
+        try {
+            for (Sample sample : recording) {
+                if (sample.tag == IMAGE) {
+                    writer.writeTimestamp(IMAGE, sample.timestampNs);
+                } else {
+                    writer.write(sample.tag, sample.timestampNs, sample.x, sample.y, sample.z);
+                }
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private void replay(FrameImuSynchronizer synchronizer) throws IOException {
+        ImuRecordReader reader = new ImuRecordReader(mFile.getPath());
+        try {
+            while (reader.next()) {
+                synchronizer.write(reader.getTag(), reader.getTimestampNs(),
+                        reader.getX(), reader.getY(), reader.getZ());
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Linear interpolation between the samples of {@code tag} around
+     * {@code frameNs}, in double precision.
+     */
+    private static void interpolate(List<Sample> samples, byte tag, long frameNs, float[] out,
+                                    int offset) {
+        Sample before = null;
+        for (Sample sample : samples) {
+            if (sample.tag != tag) {
+                continue;
+            }
+            if (sample.timestampNs <= frameNs) {
+                before = sample;
+            } else {
+                double weight = (double) (frameNs - before.timestampNs)
+                        / (sample.timestampNs - before.timestampNs);
+                out[offset] = (float) (before.x + (sample.x - before.x) * weight);
+                out[offset + 1] = (float) (before.y + (sample.y - before.y) * weight);
+                out[offset + 2] = (float) (before.z + (sample.z - before.z) * weight);
+                return;
+            }
+        }
+        throw new AssertionError("frame " + frameNs + " is not bracketed");
+    }
+
+    private static class Sample {
+        final byte tag;
+        final long timestampNs;
+        final float x;
+        final float y;
+        final float z;
+
+        Sample(byte tag, long timestampNs, float x, float y, float z) {
+            this.tag = tag;
+            this.timestampNs = timestampNs;
+            this.x = x;
+            this.y = y;
+            this.z = z;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Sample)) {
+                return false;
+            }
+            Sample other = (Sample) o;
+            return tag == other.tag && timestampNs == other.timestampNs && x == other.x
+                    && y == other.y && z == other.z;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (timestampNs ^ (timestampNs >>> 32)) * 31 + tag;
+        }
+
+        @Override
+        public String toString() {
+            return tag + "@" + timestampNs;
+        }
+    }
+
+    /**
+     * A copy of a window, which is only valid during the listener call.
+     */
+    private static class Window {
+        final long frameNs;
+        final long previousNs;
+        final float[] values;
+        final List<Sample> samples = new ArrayList<Sample>();
+
+        Window(FrameImuWindow window) {
+            frameNs = window.frameTimestampNs;
+            previousNs = window.previousFrameTimestampNs;
+            values = Arrays.copyOf(window.values, window.values.length);
+            for (int i = 0; i < window.sampleCount; i++) {
+                samples.add(new Sample(window.sampleTags[i], window.sampleTimestampsNs[i],
+                        window.sampleValues[3 * i], window.sampleValues[3 * i + 1],
+                        window.sampleValues[3 * i + 2]));
+            }
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package com.example.android.sensor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link GyroPreintegrator} against an offline reference.
+ * <p>
+ * The device turns with a known angular velocity; the reference orientation
+ * is integrated from it in double precision with RK4 steps of at most 50us.
+ * The gyroscope and accelerometer samples are taken from the reference and
+ * fed through a {@link FrameImuSynchronizer} with 30 fps frames. The
+ * per-frame rotations are compared with the reference's: the delta rotation
+ * as a whole, the orientation by its tilt, as yaw is not observable.
+ * </p>
+ */
+public class GyroPreintegratorTest {
+    private static final double GRAVITY = 9.80665;
+    private static final long FRAME_INTERVAL_NS = 33333333L;
+    private static final long MAX_REFERENCE_STEP_NS = 50000L;
+    private static final long GYRO_INTERVAL_NS = 2500000L;
+    private static final long ACCEL_INTERVAL_NS = 2500000L;
+    private static final double SECONDS = 20;
+
+    @Test
+    public void matchesReferenceWithExactRates() throws IOException {
+        Recording recording = new Recording(SECONDS, 0);
+        Check check = replay(recording, null);
+
+        // About 1.6e-7 and 2.9e-6 rad, from float samples and the
+        // trapezoidal steps between them.
+        assertTrue("delta error " + check.mMaxDeltaError, check.mMaxDeltaError < 1e-6);
+        assertTrue("tilt error " + check.mMaxTiltError, check.mMaxTiltError < 1e-5);
+    }
+
+    @Test
+    public void subtractsTheGyroBiasItIsGiven() throws IOException {
+        float bias = 0.05f;
+        Recording recording = new Recording(SECONDS, bias);
+        Check check = replay(recording, new float[] {bias, -bias, bias});
+
+        assertTrue("delta error " + check.mMaxDeltaError, check.mMaxDeltaError < 1e-6);
+        assertTrue("tilt error " + check.mMaxTiltError, check.mMaxTiltError < 1e-5);
+    }
+
+    @Test
+    public void accelerometerBoundsTiltDriftOfUnknownBias() throws IOException {
+        float bias = 0.01f;
+        Recording recording = new Recording(SECONDS, bias);
+        Check check = replay(recording, null);
+
+        // Each delta is off by the bias over one frame interval...
+        double biasPerFrame = bias * Math.sqrt(3) * FRAME_INTERVAL_NS * 1e-9;
+        assertEquals(biasPerFrame, check.mMaxDeltaError, biasPerFrame * 0.1);
+        // ...which adds up to 0.35 rad over 20 s without the accelerometer.
+        assertTrue("tilt error " + check.mMaxTiltError, check.mMaxTiltError < 0.05);
+    }
+
+    /**
+     * Feeds the recording through a synchronizer into a preintegrator and
+     * returns the comparison with the reference.
+     */
+    private static Check replay(Recording recording, float[] bias) throws IOException {
+        Check check = new Check(recording.timestamps, recording.reference);
+        GyroPreintegrator preintegrator = new GyroPreintegrator(check, 2);
+        if (bias != null) {
+            preintegrator.setGyroBias(bias[0], bias[1], bias[2]);
+        }
+        FrameImuSynchronizer synchronizer = new FrameImuSynchronizer(512, 32, preintegrator);
+        for (int i = 0; i < recording.count; i++) {
+            synchronizer.write(recording.tags[i], recording.timestamps[i],
+                    recording.values[3 * i], recording.values[3 * i + 1],
+                    recording.values[3 * i + 2]);
+        }
+        // Only the last frames wait for samples after them.
+        assertTrue(recording.frames - check.mFrames <= 2);
+        assertEquals(check.mFrames, preintegrator.getFrameCount());
+        assertTrue(preintegrator.getAccelCorrectionCount() > check.mFrames / 2);
+        return check;
+    }
+
+    /**
+     * Angular velocity in device coordinates at {@code t} seconds.
+     */
+    private static void angularVelocity(double t, double[] out) {
+        out[0] = 0.8 * Math.sin(2 * Math.PI * 0.5 * t);
+        out[1] = 0.5 * Math.cos(2 * Math.PI * 0.3 * t);
+        out[2] = 1.2 * Math.sin(2 * Math.PI * 0.2 * t + 1);
+    }
+
+    /**
+     * Gyroscope, accelerometer and frame events in timestamp order, with the
+     * reference orientation at every frame. The gyroscope reads
+     * {@code gyroBias} too much on x and z and too little on y.
+     */
+    private static class Recording {
+        final byte[] tags;
+        final long[] timestamps;
+        final float[] values;
+        final double[] reference;
+        int count;
+        int frames;
+
+        Recording(double seconds, double gyroBias) {
+            long startNs = 1000000000L;
+            long endNs = startNs + (long) (seconds * 1e9);
+            long spanNs = endNs - startNs;
+            int capacity = (int) (spanNs / GYRO_INTERVAL_NS + spanNs / ACCEL_INTERVAL_NS
+                    + spanNs / FRAME_INTERVAL_NS + 16);
+            tags = new byte[capacity];
+            timestamps = new long[capacity];
+            values = new float[3 * capacity];
+            reference = new double[4 * capacity];
+            Random random = new Random(11);
+            Reference orientation = new Reference(startNs);
+            double[] rate = new double[3];
+            double[] bias = {gyroBias, -gyroBias, gyroBias};
+            long gyroNs = startNs;
+            long accelNs = startNs + 300000;
+            long frameNs = startNs + 5000000;
+            while (true) {
+                long next = Math.min(gyroNs, Math.min(accelNs, frameNs));
+                if (next >= endNs) {
+                    break;
+                }
+                orientation.advance(next);
+                timestamps[count] = next;
+                if (next == gyroNs) {
+                    tags[count] = ImuRecordWriter.TAG_GYROSCOPE;
+                    angularVelocity(next * 1e-9, rate);
+                    for (int axis = 0; axis < 3; axis++) {
+                        values[3 * count + axis] = (float) (rate[axis] + bias[axis]);
+                    }
+                    gyroNs += GYRO_INTERVAL_NS + random.nextInt(100000) - 50000;
+                } else if (next == accelNs) {
+                    tags[count] = ImuRecordWriter.TAG_ACCELEROMETER;
+                    double[] q = orientation.q;
+                    // Gravity's reaction, the world's up axis in device coordinates.
+                    values[3 * count] = (float) (GRAVITY * 2 * (q[1] * q[3] - q[0] * q[2]));
+                    values[3 * count + 1] = (float) (GRAVITY * 2 * (q[2] * q[3] + q[0] * q[1]));
+                    values[3 * count + 2] = (float) (GRAVITY
+                            * (q[0] * q[0] - q[1] * q[1] - q[2] * q[2] + q[3] * q[3]));
+                    accelNs += ACCEL_INTERVAL_NS + random.nextInt(100000) - 50000;
+                } else {
+                    tags[count] = ImuRecordWriter.TAG_IMAGE;
+                    System.arraycopy(orientation.q, 0, reference, 4 * count, 4);
+                    frameNs += FRAME_INTERVAL_NS;
+                    frames++;
+                }
+                count++;
+            }
+        }
+    }
+
+    /**
+     * The reference orientation, integrated forward in time.
+     */
+    private static class Reference {
+        final double[] q = {Math.cos(0.15), Math.sin(0.15), 0, 0};
+        long mTimeNs;
+        private final double[] mK = new double[16];
+        private final double[] mTmp = new double[4];
+        private final double[] mRate = new double[3];
+
+        Reference(long startNs) {
+            mTimeNs = startNs;
+        }
+
+        void advance(long timeNs) {
+            while (mTimeNs < timeNs) {
+                long step = Math.min(MAX_REFERENCE_STEP_NS, timeNs - mTimeNs);
+                double t = mTimeNs * 1e-9;
+                double h = step * 1e-9;
+                derivative(t, h / 2, 0);
+                derivative(t + h / 2, h / 2, 4);
+                derivative(t + h / 2, h, 8);
+                derivative(t + h, 0, 12);
+                for (int i = 0; i < 4; i++) {
+                    q[i] += h / 6 * (mK[i] + 2 * mK[4 + i] + 2 * mK[8 + i] + mK[12 + i]);
+                }
+                normalize(q);
+                mTimeNs += step;
+            }
+        }
+
+        /**
+         * k = 0.5 * (q + h * previous k) * (0, w(t)).
+         */
+        private void derivative(double t, double h, int k) {
+            for (int i = 0; i < 4; i++) {
+                mTmp[i] = q[i] + (k == 0 ? 0 : h * mK[k - 4 + i]);
+            }
+            angularVelocity(t, mRate);
+            double[] a = mTmp;
+            double[] w = mRate;
+            mK[k] = 0.5 * (-a[1] * w[0] - a[2] * w[1] - a[3] * w[2]);
+            mK[k + 1] = 0.5 * (a[0] * w[0] + a[2] * w[2] - a[3] * w[1]);
+            mK[k + 2] = 0.5 * (a[0] * w[1] - a[1] * w[2] + a[3] * w[0]);
+            mK[k + 3] = 0.5 * (a[0] * w[2] + a[1] * w[1] - a[2] * w[0]);
+        }
+    }
+
+    /**
+     * Compares every reported frame with the reference: the largest delta
+     * rotation error, and the largest tilt error after the first 10 s, which
+     * the filter needs to settle.
+     */
+    private static class Check implements GyroPreintegrator.Listener {
+        private final long[] mTimestamps;
+        private final double[] mReference;
+        private final double[] mPrevious = new double[4];
+        private final double[] mExpected = new double[4];
+        private int mIndex;
+        private long mFirstFrameNs = -1;
+        int mFrames;
+        double mMaxDeltaError;
+        double mMaxTiltError;
+
+        Check(long[] timestamps, double[] reference) {
+            mTimestamps = timestamps;
+            mReference = reference;
+        }
+
+        @Override
+        public void onFrameRotation(long frameTimestampNs, double[] deltaRotation,
+                                    double[] orientation) {
+            while (mTimestamps[mIndex] != frameTimestampNs) {
+                mIndex++;
+            }
+            int r = 4 * mIndex;
+            mFrames++;
+            if (mFirstFrameNs < 0) {
+                mFirstFrameNs = frameTimestampNs;
+                assertEquals(1, deltaRotation[0], 0);
+            } else {
+                // Expected delta: conjugate(previous) * current.
+                double[] p = mPrevious;
+                double[] c = mReference;
+                mExpected[0] = p[0] * c[r] + p[1] * c[r + 1] + p[2] * c[r + 2] + p[3] * c[r + 3];
+                mExpected[1] = p[0] * c[r + 1] - p[1] * c[r] - p[2] * c[r + 3] + p[3] * c[r + 2];
+                mExpected[2] = p[0] * c[r + 2] + p[1] * c[r + 3] - p[2] * c[r] - p[3] * c[r + 1];
+                mExpected[3] = p[0] * c[r + 3] - p[1] * c[r + 2] + p[2] * c[r + 1] - p[3] * c[r];
+                double dot = 0;
+                for (int i = 0; i < 4; i++) {
+                    dot += mExpected[i] * deltaRotation[i];
+                }
+                mMaxDeltaError = Math.max(mMaxDeltaError,
+                        2 * Math.acos(Math.min(1, Math.abs(dot))));
+            }
+            System.arraycopy(mReference, r, mPrevious, 0, 4);
+            // Tilt: the angle between the up axes in device coordinates.
+            double tilt = Math.acos(Math.min(1, upDot(mReference, r, orientation)));
+            if (frameTimestampNs - mFirstFrameNs > 10000000000L) {
+                mMaxTiltError = Math.max(mMaxTiltError, tilt);
+            }
+        }
+
+        private static double upDot(double[] a, int offset, double[] b) {
+            double ax = 2 * (a[offset + 1] * a[offset + 3] - a[offset] * a[offset + 2]);
+            double ay = 2 * (a[offset + 2] * a[offset + 3] + a[offset] * a[offset + 1]);
+            double az = a[offset] * a[offset] - a[offset + 1] * a[offset + 1]
+                    - a[offset + 2] * a[offset + 2] + a[offset + 3] * a[offset + 3];
+            double bx = 2 * (b[1] * b[3] - b[0] * b[2]);
+            double by = 2 * (b[2] * b[3] + b[0] * b[1]);
+            double bz = b[0] * b[0] - b[1] * b[1] - b[2] * b[2] + b[3] * b[3];
+            return ax * bx + ay * by + az * bz;
+        }
+    }
+
+    private static void normalize(double[] q) {
+        double norm = Math.sqrt(q[0] * q[0] + q[1] * q[1] + q[2] * q[2] + q[3] * q[3]);
+        for (int i = 0; i < 4; i++) {
+            q[i] /= norm;
+        }
+    }
+}
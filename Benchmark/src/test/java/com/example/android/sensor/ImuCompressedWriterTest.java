@@ -0,0 +1,249 @@
+package com.example.android.sensor;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes IMU logs with {@link ImuCompressedWriter} into memory and reads them
+ * back with {@link ImuCompressedReader}, also after damaging them.
+ */
+public class ImuCompressedWriterTest {
+    private static final byte GYRO = ImuRecordWriter.TAG_GYROSCOPE;
+    private static final byte ACCEL = ImuRecordWriter.TAG_ACCELEROMETER;
+    private static final byte IMAGE = ImuRecordWriter.TAG_IMAGE;
+    // The smallest block size the writer accepts, so logs span many blocks.
+    private static final int BLOCK_SIZE = 2 * (ImuCompressedWriter.MAX_SAMPLE_SIZE
+            + 5 * ImuCompressedWriter.TAGS);
+
+    @Test
+    public void roundTripKeepsEveryBit() throws IOException {
+        float[] special = {0f, -0f, Float.NaN, Float.intBitsToFloat(0x7fc12345),
+                Float.intBitsToFloat(0xffa00001), Float.POSITIVE_INFINITY,
+                Float.NEGATIVE_INFINITY, Float.MIN_VALUE, -Float.MIN_NORMAL, Float.MAX_VALUE,
+                -Float.MAX_VALUE};
+        Random random = new Random(21);
+        List<long[]> samples = new ArrayList<long[]>();
+        long[] timestamps = {1000000000L, 1000300000L, 1000005000L};
+        byte[] tags = {GYRO, ACCEL, IMAGE};
+        for (int i = 0; i < 5000; i++) {
+            int s = i % 3;
+            // Jittered rates, a stall and a clock jump backwards.
+            timestamps[s] += i == 3000 ? 4000000000L : i == 4000 ? -7000000L
+                    : 2000000 + random.nextInt(200000) - 100000;
+            float x = s == 2 ? 0 : random.nextFloat() * 20 - 10;
+            float y = s == 2 ? 0 : (float) random.nextGaussian();
+            float z = s == 2 ? 0 : special[i % special.length];
+            samples.add(sample(tags[s], timestamps[s], x, y, z));
+        }
+        samples.add(sample(GYRO, Long.MAX_VALUE, 1, 2, 3));
+        samples.add(sample(GYRO, Long.MIN_VALUE, 1, 2, 3));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = new ImuCompressedWriter(out, BLOCK_SIZE);
+        write(samples, writer);
+        writer.close();
+        byte[] log = out.toByteArray();
+        assertTrue(writer.getBlockCount() > 10);
+        assertEquals(samples.size(), writer.getSampleCount());
+        assertEquals(log.length, writer.getBytesWritten());
+
+        ImuCompressedReader reader = new ImuCompressedReader(new ByteArrayInputStream(log));
+        assertSamples(samples, readAll(reader));
+        assertEquals(writer.getBlockCount(), reader.getBlockCount());
+        assertEquals(0, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void sensorLogsAreSmallerThanRecords() throws IOException {
+        // Smooth signals in sensor resolution steps, with jittered timestamps.
+        Random random = new Random(21);
+        float step = 1.0e-3f;
+        List<long[]> samples = new ArrayList<long[]>();
+        long timestampNs = 1000000000L;
+        for (int i = 0; i < 20000; i++) {
+            timestampNs += 1250000 + random.nextInt(20000) - 10000;
+            double t = timestampNs / 1e9;
+            float[] values = new float[3];
+            for (int axis = 0; axis < 3; axis++) {
+                double signal = Math.sin(2 * Math.PI * (0.5 + axis) * t)
+                        + 0.01 * random.nextGaussian() + (i % 2 == 0 ? 0 : 9.81);
+                values[axis] = Math.round(signal / step) * step;
+            }
+            samples.add(sample(i % 2 == 0 ? GYRO : ACCEL, timestampNs, values[0], values[1],
+                    values[2]));
+        }
+        long recordBytes = ImuRecordWriter.HEADER_SIZE
+                + (long) samples.size() * ImuRecordWriter.RECORD_SIZE;
+
+        ByteArrayOutputStream exact = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = new ImuCompressedWriter(exact, 64 * 1024);
+        write(samples, writer);
+        writer.close();
+        ByteArrayOutputStream quantized = new ByteArrayOutputStream();
+        writer = new ImuCompressedWriter(quantized, 64 * 1024);
+        writer.setQuantization(GYRO, step);
+        writer.setQuantization(ACCEL, step);
+        write(samples, writer);
+        writer.close();
+
+        String sizes = "records " + recordBytes + ", exact " + exact.size() + ", quantized "
+                + quantized.size();
+        assertTrue(sizes, exact.size() < recordBytes);
+        assertTrue(sizes, quantized.size() < exact.size());
+    }
+
+    @Test
+    public void quantizedValuesStayWithinHalfAStep() throws IOException {
+        float step = 1e-4f;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = new ImuCompressedWriter(out, BLOCK_SIZE);
+        writer.setQuantization(GYRO, step);
+        Random random = new Random(4);
+        List<long[]> samples = new ArrayList<long[]>();
+        for (int i = 0; i < 2000; i++) {
+            byte tag = i % 2 == 0 ? GYRO : ACCEL;
+            samples.add(sample(tag, 1000000000L + i * 1250000L, random.nextFloat() * 8 - 4,
+                    (float) Math.sin(i / 50.0), 9.81f + random.nextFloat()));
+        }
+        write(samples, writer);
+        writer.close();
+        List<long[]> read = readAll(new ImuCompressedReader(
+                new ByteArrayInputStream(out.toByteArray())));
+
+        assertEquals(samples.size(), read.size());
+        for (int i = 0; i < samples.size(); i++) {
+            long[] expected = samples.get(i);
+            long[] actual = read.get(i);
+            assertEquals(expected[0], actual[0]);
+            assertEquals(expected[1], actual[1]);
+            for (int axis = 2; axis < 5; axis++) {
+                float value = Float.intBitsToFloat((int) expected[axis]);
+                float decoded = Float.intBitsToFloat((int) actual[axis]);
+                if (expected[0] == GYRO) {
+                    assertEquals("sample " + i, value, decoded,
+                            step / 2 + Math.ulp(value) + Math.ulp(step));
+                } else {
+                    // Not quantized, so exact.
+                    assertEquals("sample " + i, expected[axis], actual[axis]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void damagedBlockOnlyLosesItself() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = new ImuCompressedWriter(out, BLOCK_SIZE);
+        List<List<long[]>> blocks = new ArrayList<List<long[]>>();
+        int[] ends = new int[3];
+        for (int b = 0; b < 3; b++) {
+            List<long[]> block = new ArrayList<long[]>();
+            for (int i = 0; i < 40; i++) {
+                block.add(sample(GYRO, (b * 40 + i) * 2500000L, b, i, b * i));
+            }
+            write(block, writer);
+            writer.flush();
+            ends[b] = out.size();
+            blocks.add(block);
+        }
+        writer.close();
+        byte[] log = out.toByteArray();
+        // Damage the payload of the middle block.
+        log[(ends[0] + ends[1]) / 2] ^= 0x10;
+
+        ImuCompressedReader reader = new ImuCompressedReader(new ByteArrayInputStream(log));
+        List<long[]> expected = new ArrayList<long[]>(blocks.get(0));
+        expected.addAll(blocks.get(2));
+        assertSamples(expected, readAll(reader));
+        assertEquals(2, reader.getBlockCount());
+        assertEquals(ends[1] - ends[0], reader.getSkippedBytes());
+    }
+
+    @Test
+    public void truncatedLastBlockIsIgnored() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImuCompressedWriter writer = new ImuCompressedWriter(out, BLOCK_SIZE);
+        List<long[]> first = new ArrayList<long[]>();
+        for (int i = 0; i < 30; i++) {
+            first.add(sample(ACCEL, i * 2000000L, i, -i, 9.81f));
+        }
+        write(first, writer);
+        writer.flush();
+        int complete = out.size();
+        write(Arrays.asList(sample(ACCEL, 60000000L, 1, 1, 1),
+                sample(ACCEL, 62000000L, 2, 2, 2)), writer);
+        writer.close();
+        // The app died while the last block was being written.
+        byte[] log = Arrays.copyOf(out.toByteArray(), out.size() - 3);
+
+        ImuCompressedReader reader = new ImuCompressedReader(new ByteArrayInputStream(log));
+        assertSamples(first, readAll(reader));
+        assertEquals(log.length - complete, reader.getSkippedBytes());
+    }
+
+    @Test
+    public void rejectsOtherFilesAndReadsEmptyLog() throws IOException {
+        byte[] other = {'I', 'M', 'U', 'R', 1, 0, 0, 0, 22, 0, 0, 0, 0, 0, 0, 0};
+        try {
+            new ImuCompressedReader(new ByteArrayInputStream(other));
+            fail("not a compressed log");
+        } catch (IOException expected) {
+            // The magic does not match.
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new ImuCompressedWriter(out, BLOCK_SIZE).close();
+        ImuCompressedReader empty = new ImuCompressedReader(
+                new ByteArrayInputStream(out.toByteArray()));
+        assertFalse(empty.next());
+        assertEquals(0, empty.getSkippedBytes());
+    }
+
+    /**
+     * A sample as {tag, timestamp, raw bits of x, y and z}.
+     */
+    private static long[] sample(byte tag, long timestampNs, float x, float y, float z) {
+        return new long[] {tag, timestampNs, Float.floatToRawIntBits(x),
+                Float.floatToRawIntBits(y), Float.floatToRawIntBits(z)};
+    }
+
+    private static void write(List<long[]> samples, ImuCompressedWriter writer)
+            throws IOException {
+        for (long[] sample : samples) {
+            writer.write((byte) sample[0], sample[1], Float.intBitsToFloat((int) sample[2]),
+                    Float.intBitsToFloat((int) sample[3]), Float.intBitsToFloat((int) sample[4]));
+        }
+    }
+
+    private static List<long[]> readAll(ImuCompressedReader reader) throws IOException {
+        List<long[]> samples = new ArrayList<long[]>();
+        try {
+            while (reader.next()) {
+                samples.add(sample(reader.getTag(), reader.getTimestampNs(), reader.getX(),
+                        reader.getY(), reader.getZ()));
+            }
+        } finally {
+            reader.close();
+        }
+        return samples;
+    }
+
+    private static void assertSamples(List<long[]> expected, List<long[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertTrue("sample " + i + ": " + Arrays.toString(actual.get(i)),
+                    Arrays.equals(expected.get(i), actual.get(i)));
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.example.android.sensor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes IMU logs with {@link ImuRecordWriter}, reads them back with
+ * {@link ImuRecordReader} and converts them with {@link ImuCsvConverter} into
+ * the CSV files the app used to write.
+ */
+public class ImuRecordWriterTest {
+    private static final byte[] TAGS = {ImuRecordWriter.TAG_ACCELEROMETER,
+            ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED, ImuRecordWriter.TAG_GYROSCOPE,
+            ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED, ImuRecordWriter.TAG_IMAGE};
+
+    private File mFolder;
+    private File mLog;
+
+    @Before
+    public void setUp() throws IOException {
+        mFolder = File.createTempFile("imu", "");
+        assertTrue(mFolder.delete() && mFolder.mkdir());
+        mLog = new File(mFolder, "imu.bin");
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = mFolder.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mFolder.delete();
+    }
+
+    @Test
+    public void roundTripKeepsEveryBit() throws IOException {
+        float[] special = {0f, -0f, Float.NaN, Float.intBitsToFloat(0x7fc12345),
+                Float.POSITIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.MIN_VALUE,
+                -Float.MIN_NORMAL, Float.MAX_VALUE};
+        Random random = new Random(16);
+        List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 3000; i++) {
+            float[] values = new float[3];
+            for (int j = 0; j < 3; j++) {
+                values[j] = i % 7 == 0 ? special[random.nextInt(special.length)]
+                        : Float.intBitsToFloat(random.nextInt());
+            }
+            long timestampNs = i == 1 ? Long.MIN_VALUE : i == 2 ? Long.MAX_VALUE
+                    : random.nextLong();
+            records.add(new Record(TAGS[random.nextInt(TAGS.length)], timestampNs, values));
+        }
+        // A buffer of a few records, so it is written out many times and
+        // records straddle the reader's buffer too.
+        ImuRecordWriter writer = new ImuRecordWriter(mLog.getPath(), 100);
+        try {
+            for (Record record : records) {
+                record.writeTo(writer);
+            }
+            assertEquals(records.size(), writer.getRecordCount());
+        } finally {
+            writer.close();
+        }
+        assertEquals(ImuRecordWriter.HEADER_SIZE
+                + (long) records.size() * ImuRecordWriter.RECORD_SIZE, mLog.length());
+
+        assertEquals(records, read(mLog));
+    }
+
+    @Test
+    public void recordCutShortIsIgnored() throws IOException {
+        ImuRecordWriter writer = new ImuRecordWriter(mLog.getPath());
+        try {
+            for (int i = 0; i < 10; i++) {
+                writer.write(ImuRecordWriter.TAG_GYROSCOPE, i, i, -i, 0.5f);
+            }
+        } finally {
+            writer.close();
+        }
+        RandomAccessFile file = new RandomAccessFile(mLog, "rw");
+        try {
+            file.setLength(file.length() - 3);
+        } finally {
+            file.close();
+        }
+        List<Record> records = read(mLog);
+        assertEquals(9, records.size());
+        assertEquals(8, records.get(8).mTimestampNs);
+    }
+
+    @Test
+    public void otherFilesAreRejected() throws IOException {
+        RandomAccessFile file = new RandomAccessFile(mLog, "rw");
+        try {
+            file.write("#timestamp [ns]\n1000\n2000\n".getBytes("US-ASCII"));
+        } finally {
+            file.close();
+        }
+        try {
+            new ImuRecordReader(mLog.getPath()).close();
+            fail("Read a CSV file as records");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Not an IMU record file"));
+        }
+    }
+
+    @Test
+    public void convertsToTheCsvFilesTheAppWrote() throws IOException {
+        Random random = new Random(17);
+        List<Record> records = new ArrayList<Record>();
+        long timestampNs = 12000000000L;
+        for (int i = 0; i < 2000; i++) {
+            timestampNs += 1000000 + random.nextInt(1000000);
+            byte tag = TAGS[random.nextInt(TAGS.length)];
+            float[] values = new float[3];
+            if (tag != ImuRecordWriter.TAG_IMAGE) {
+                for (int j = 0; j < 3; j++) {
+                    values[j] = sensorValue(random);
+                }
+            }
+            records.add(new Record(tag, timestampNs, values));
+        }
+        ImuRecordWriter writer = new ImuRecordWriter(mLog.getPath());
+        ImuCompressedWriter compressed =
+                new ImuCompressedWriter(new File(mFolder, "imu.imz").getPath());
+        try {
+            for (Record record : records) {
+                record.writeTo(writer);
+                record.writeTo(compressed);
+            }
+        } finally {
+            writer.close();
+            compressed.close();
+        }
+
+        File csv = new File(mFolder, "records");
+        assertTrue(csv.mkdir());
+        assertEquals(records.size(), ImuCsvConverter.convert(mLog.getPath(), csv.getPath()));
+        assertLegacyCsv(records, csv);
+        File fromCompressed = new File(mFolder, "compressed");
+        assertTrue(fromCompressed.mkdir());
+        assertEquals(records.size(), ImuCsvConverter.convert(
+                new File(mFolder, "imu.imz").getPath(), fromCompressed.getPath()));
+        assertLegacyCsv(records, fromCompressed);
+    }
+
+    /**
+     * A value as sensors report them, which {@link Float#toString} writes
+     * without an exponent.
+     */
+    private static float sensorValue(Random random) {
+        float value = (random.nextFloat() - 0.5f) * 40;
+        return Math.abs(value) < 1e-3f ? 0.25f : value;
+    }
+
+    /**
+     * Checks the CSV files in {@code folder} line by line against what the
+     * app wrote for the same samples, with the same expressions.
+     */
+    private static void assertLegacyCsv(List<Record> records, File folder) throws IOException {
+        List<String> accelerometer = new ArrayList<String>();
+        List<String> accelerometerUncalibrated = new ArrayList<String>();
+        List<String> gyroscope = new ArrayList<String>();
+        List<String> gyroscopeUncalibrated = new ArrayList<String>();
+        List<String> images = new ArrayList<String>();
+        String accelerometerHeader =
+                "#timestamp [ns], a_RS_S_x [m s^-2], a_RS_S_y [m s^-2], a_RS_S_z [m s^-2]";
+        String gyroscopeHeader =
+                "#timestamp [ns], w_RS_S_x [rad s^-1], w_RS_S_y [rad s^-1], w_RS_S_z [rad s^-1]";
+        accelerometer.add(accelerometerHeader);
+        accelerometerUncalibrated.add(accelerometerHeader);
+        gyroscope.add(gyroscopeHeader);
+        gyroscopeUncalibrated.add(gyroscopeHeader);
+        images.add("#timestamp [ns]");
+        for (Record record : records) {
+            long t = record.mTimestampNs;
+            float[] v = record.mValues;
+            switch (record.mTag) {
+                case ImuRecordWriter.TAG_ACCELEROMETER:
+                    accelerometer.add(t + "," + v[0] + "," + v[1] + "," + v[2]);
+                    break;
+                case ImuRecordWriter.TAG_ACCELEROMETER_UNCALIBRATED:
+                    accelerometerUncalibrated.add(t + "," + v[0] + "," + v[1] + "," + v[2]);
+                    break;
+                case ImuRecordWriter.TAG_GYROSCOPE:
+                    gyroscope.add(String.format(Locale.US, "%d,%f,%f,%f", t, v[0], v[1], v[2]));
+                    break;
+                case ImuRecordWriter.TAG_GYROSCOPE_UNCALIBRATED:
+                    gyroscopeUncalibrated.add(t + "," + v[0] + "," + v[1] + "," + v[2]);
+                    break;
+                default:
+                    images.add(String.valueOf(t));
+                    break;
+            }
+        }
+        assertEquals(accelerometer, lines(new File(folder, "accelerometer.csv")));
+        assertEquals(accelerometerUncalibrated,
+                lines(new File(folder, "accelerometerUncalibrated.csv")));
+        assertEquals(gyroscope, lines(new File(folder, "gyroscope.csv")));
+        assertEquals(gyroscopeUncalibrated, lines(new File(folder, "gyroscopeUncalibrated.csv")));
+        assertEquals(images, lines(new File(folder, "image_timestamp.csv")));
+    }
+
+    private static List<String> lines(File file) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), "US-ASCII"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lines.add(line);
+            }
+        } finally {
+            reader.close();
+        }
+        return lines;
+    }
+
+    private static List<Record> read(File log) throws IOException {
+        List<Record> records = new ArrayList<Record>();
+        ImuRecordReader reader = new ImuRecordReader(log.getPath());
+        try {
+            while (reader.next()) {
+                records.add(new Record(reader.getTag(), reader.getTimestampNs(),
+                        new float[] {reader.getX(), reader.getY(), reader.getZ()}));
+            }
+            assertFalse(reader.next());
+        } finally {
+            reader.close();
+        }
+        return records;
+    }
+
+    /**
+     * One record, compared bit for bit.
+     */
+    private static class Record {
+        final byte mTag;
+        final long mTimestampNs;
+        final float[] mValues;
+
+        Record(byte tag, long timestampNs, float[] values) {
+            mTag = tag;
+            mTimestampNs = timestampNs;
+            mValues = values;
+        }
+
+        void writeTo(SensorSampleSink sink) throws IOException {
+            sink.write(mTag, mTimestampNs, mValues[0], mValues[1], mValues[2]);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Record)) {
+                return false;
+            }
+            Record other = (Record) o;
+            if (mTag != other.mTag || mTimestampNs != other.mTimestampNs) {
+                return false;
+            }
+            for (int i = 0; i < 3; i++) {
+                if (Float.floatToRawIntBits(mValues[i])
+                        != Float.floatToRawIntBits(other.mValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) mTimestampNs;
+        }
+
+        @Override
+        public String toString() {
+            return mTag + "," + mTimestampNs + "," + mValues[0] + "," + mValues[1] + ","
+                    + mValues[2];
+        }
+    }
+}
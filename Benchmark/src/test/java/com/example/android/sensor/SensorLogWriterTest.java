@@ -0,0 +1,230 @@
+package com.example.android.sensor;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Offers samples to {@link SensorSampleRing}s, directly and from producer
+ * threads while a {@link SensorLogWriter} drains them, and checks what
+ * reaches the sink and when it is flushed.
+ */
+public class SensorLogWriterTest {
+    private static final byte GYRO = ImuRecordWriter.TAG_GYROSCOPE;
+    private static final byte IMAGE = ImuRecordWriter.TAG_IMAGE;
+
+    @Test
+    public void fullRingRejectsAndCountsSamples() throws IOException {
+        // Not a power of two: the ring has eight slots but holds five.
+        SensorSampleRing ring = new SensorSampleRing(5);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(ring.offer(GYRO, i, i, 2 * i, 3 * i));
+        }
+        assertFalse(ring.offer(GYRO, 5, 0, 0, 0));
+        assertEquals(1, ring.getOverflowCount());
+        assertEquals(5, ring.size());
+
+        RecordingSink sink = new RecordingSink();
+        assertEquals(2, ring.drain(sink, 2));
+        for (int i = 5; i < 7; i++) {
+            assertTrue(ring.offer(GYRO, i, i, 2 * i, 3 * i));
+        }
+        assertFalse(ring.offer(GYRO, 7, 0, 0, 0));
+        assertEquals(2, ring.getOverflowCount());
+        // Wraps around the slots.
+        assertEquals(5, ring.drain(sink, 100));
+        assertEquals(0, ring.drain(sink, 100));
+        assertEquals(0, ring.size());
+        assertEquals(7, sink.mTimestamps.size());
+        for (int i = 0; i < 7; i++) {
+            assertEquals(i, sink.mTimestamps.get(i).longValue());
+            assertEquals(3 * i, sink.mZ.get(i), 0);
+        }
+    }
+
+    @Test
+    public void sampleThatFailsStaysQueued() throws IOException {
+        SensorSampleRing ring = new SensorSampleRing(8);
+        for (int i = 0; i < 6; i++) {
+            ring.offer(GYRO, i, 0, 0, 0);
+        }
+        RecordingSink sink = new RecordingSink();
+        sink.mFailAt = 3;
+        try {
+            ring.drain(sink, 8);
+            fail("Sink error was swallowed");
+        } catch (IOException expected) {
+        }
+        // The samples before the failed one are consumed and not written
+        // twice; the failed one is tried again.
+        assertEquals(3, ring.size());
+        sink.mFailAt = -1;
+        assertEquals(3, ring.drain(sink, 8));
+        assertEquals(6, sink.mTimestamps.size());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i, sink.mTimestamps.get(i).longValue());
+        }
+    }
+
+    @Test(timeout = 30000)
+    public void producersNeverWaitAndEverySampleIsWrittenOrCounted()
+            throws IOException, InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        SensorLogWriter writer = new SensorLogWriter(sink, 20);
+        // Small rings, so the producers outrun the writer now and then.
+        final SensorSampleRing sensors = writer.addRing(64);
+        final SensorSampleRing images = writer.addRing(4);
+        writer.start();
+        final int samples = 200000;
+        Thread sensorThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples; i++) {
+                    // The values repeat the timestamp, to catch torn slots.
+                    sensors.offer(GYRO, i, i, -i, 2 * i);
+                }
+            }
+        });
+        Thread imageThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                for (int i = 0; i < samples / 10; i++) {
+                    images.offer(IMAGE, i, i, -i, 2 * i);
+                }
+            }
+        });
+        sensorThread.start();
+        imageThread.start();
+        sensorThread.join();
+        imageThread.join();
+        writer.stop();
+
+        long written = sink.mTimestamps.size();
+        assertTrue(written > 0);
+        assertEquals(written, writer.getSamplesWritten());
+        assertEquals(samples + samples / 10, written + writer.getOverflowCount());
+        assertEquals(sensors.getOverflowCount() + images.getOverflowCount(),
+                writer.getOverflowCount());
+        // Each ring keeps its own order; the writer interleaves them.
+        long lastSensor = -1;
+        long lastImage = -1;
+        for (int i = 0; i < written; i++) {
+            long timestampNs = sink.mTimestamps.get(i);
+            assertEquals((float) timestampNs, sink.mX.get(i), 0);
+            assertEquals((float) -timestampNs, sink.mY.get(i), 0);
+            assertEquals((float) (2 * timestampNs), sink.mZ.get(i), 0);
+            if (sink.mTags.get(i) == GYRO) {
+                assertTrue(timestampNs > lastSensor);
+                lastSensor = timestampNs;
+            } else {
+                assertTrue(timestampNs > lastImage);
+                lastImage = timestampNs;
+            }
+        }
+        // stop() writes the rest and flushes it.
+        assertEquals(0, sensors.size() + images.size());
+        assertEquals(written, sink.mFlushedCount);
+    }
+
+    @Test(timeout = 10000)
+    public void sinkIsFlushedOncePerIntervalAndOnStop()
+            throws IOException, InterruptedException {
+        long intervalMs = 50;
+        RecordingSink sink = new RecordingSink();
+        SensorLogWriter writer = new SensorLogWriter(sink, intervalMs);
+        SensorSampleRing ring = writer.addRing(1024);
+        writer.start();
+        long start = System.nanoTime();
+        long runMs = 500;
+        int offered = 0;
+        while (System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(runMs)) {
+            ring.offer(GYRO, offered++, 0, 0, 0);
+            Thread.sleep(1);
+        }
+        writer.stop();
+
+        List<Long> flushes = sink.mFlushTimes;
+        // One per interval, give or take a poll, plus the one on stop().
+        assertTrue("flushes " + flushes.size(), flushes.size() >= runMs / intervalMs / 2);
+        assertTrue("flushes " + flushes.size(), flushes.size() <= runMs / intervalMs + 2);
+        for (int i = 1; i < flushes.size() - 1; i++) {
+            long gapNs = flushes.get(i) - flushes.get(i - 1);
+            // Due after the interval; measured by the writer slightly
+            // earlier than by the sink.
+            assertTrue("gap " + gapNs, gapNs >= TimeUnit.MILLISECONDS.toNanos(intervalMs) * 9 / 10);
+        }
+        assertEquals(offered, sink.mTimestamps.size());
+        assertEquals(offered, sink.mFlushedCount);
+        assertEquals(0, writer.getOverflowCount());
+    }
+
+    @Test(timeout = 10000)
+    public void sinkErrorStopsWriterAndIsRethrownByStop() throws InterruptedException {
+        RecordingSink sink = new RecordingSink();
+        sink.mFailAt = 10;
+        SensorLogWriter writer = new SensorLogWriter(sink, 1000);
+        SensorSampleRing ring = writer.addRing(64);
+        writer.start();
+        for (int i = 0; i < 20; i++) {
+            ring.offer(GYRO, i, 0, 0, 0);
+        }
+        // The writer stops draining at the error, so the ring fills up.
+        while (ring.size() < 64) {
+            ring.offer(GYRO, 0, 0, 0, 0);
+            Thread.sleep(1);
+        }
+        try {
+            writer.stop();
+            fail("Sink error was swallowed");
+        } catch (IOException e) {
+            assertSame(sink.mError, e);
+        }
+        assertEquals(10, sink.mTimestamps.size());
+    }
+
+    /**
+     * Records the samples written to it, and the time of each flush and how
+     * many samples it covered.
+     */
+    private static class RecordingSink implements SensorSampleSink {
+        final List<Byte> mTags = new ArrayList<Byte>();
+        final List<Long> mTimestamps = new ArrayList<Long>();
+        final List<Float> mX = new ArrayList<Float>();
+        final List<Float> mY = new ArrayList<Float>();
+        final List<Float> mZ = new ArrayList<Float>();
+        final List<Long> mFlushTimes = new ArrayList<Long>();
+        int mFlushedCount;
+        // Index of the sample to fail at, or -1.
+        int mFailAt = -1;
+        final IOException mError = new IOException("disk full");
+        private int mWrites;
+
+        @Override
+        public void write(byte tag, long timestampNs, float x, float y, float z)
+                throws IOException {
+            if (mWrites++ == mFailAt) {
+                throw mError;
+            }
+            mTags.add(tag);
+            mTimestamps.add(timestampNs);
+            mX.add(x);
+            mY.add(y);
+            mZ.add(z);
+        }
+
+        @Override
+        public void flush() {
+            mFlushTimes.add(System.nanoTime());
+            mFlushedCount = mTimestamps.size();
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.example.android.yuv;
+
+import com.example.android.benchmark.SyntheticYuvFrame;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Checks that {@link ParallelYuvConverter} writes the same bytes as the
+ * per-pixel reference when frames are split into stripes, including when a
+ * producer recycles its plane buffers or hands in new ones.
+ */
+public class ParallelYuvConverterTest {
+    private static final int FRAME_WIDTH = 96;
+    private static final int FRAME_HEIGHT = 64;
+    private static final int[] FORMATS = {YuvConverter.COLOR_FormatI420,
+            YuvConverter.COLOR_FormatNV12, YuvConverter.COLOR_FormatNV21};
+    private static final int[][] CROPS = {
+            {0, 0, FRAME_WIDTH, FRAME_HEIGHT},
+            {0, 0, 2, 6},
+            {10, 6, 40, 30},
+    };
+
+    // Every frame takes the parallel path.
+    private final ParallelYuvConverter mConverter = new ParallelYuvConverter(3, 0);
+
+    @After
+    public void tearDown() {
+        mConverter.release();
+    }
+
+    @Test
+    public void matchesLegacyConversionInStripes() {
+        for (int pixelStride = 1; pixelStride <= 2; pixelStride++) {
+            SyntheticYuvFrame frame = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT,
+                    pixelStride, 16);
+            for (int format : FORMATS) {
+                for (int[] crop : CROPS) {
+                    YuvConverterTest.assertMatchesLegacy(mConverter, frame.planes, format, crop,
+                            "pixelStride=" + pixelStride);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void followsRecycledAndReplacedBuffers() {
+        SyntheticYuvFrame first = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 2, 16);
+        SyntheticYuvFrame second = new SyntheticYuvFrame(FRAME_WIDTH + 2, FRAME_HEIGHT, 2, 16);
+        int[] crop = CROPS[0];
+        YuvConverterTest.assertMatchesLegacy(mConverter, first.planes,
+                YuvConverter.COLOR_FormatNV12, crop, "first frame");
+        // The producer writes the next frame into the same buffers.
+        for (YuvPlane plane : first.planes) {
+            ByteBuffer buffer = plane.getBuffer();
+            for (int i = 0; i < buffer.limit(); i++) {
+                buffer.put(i, (byte) (buffer.get(i) * 7 + i));
+            }
+        }
+        YuvConverterTest.assertMatchesLegacy(mConverter, first.planes,
+                YuvConverter.COLOR_FormatNV12, crop, "recycled buffers");
+        YuvConverterTest.assertMatchesLegacy(mConverter, second.planes,
+                YuvConverter.COLOR_FormatNV12, crop, "new buffers");
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.android.yuv;
+
+import com.example.android.benchmark.LegacyYuvConversion;
+import com.example.android.benchmark.SyntheticYuvFrame;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@link YuvConverter} byte for byte against the per-pixel loop it
+ * replaced, {@link LegacyYuvConversion}, for every combination of output
+ * format, chroma pixel stride, row padding and crop rectangle.
+ */
+public class YuvConverterTest {
+    private static final int[] FORMATS = {YuvConverter.COLOR_FormatI420,
+            YuvConverter.COLOR_FormatNV12, YuvConverter.COLOR_FormatNV21};
+    private static final int[] PIXEL_STRIDES = {1, 2};
+    private static final int[] ROW_ALIGNMENTS = {2, 16, 64};
+    private static final int FRAME_WIDTH = 96;
+    private static final int FRAME_HEIGHT = 64;
+    // {left, top, width, height}, all even as YUV 4:2:0 crops are.
+    private static final int[][] CROPS = {
+            {0, 0, FRAME_WIDTH, FRAME_HEIGHT},
+            {0, 0, 2, 2},
+            {2, 0, FRAME_WIDTH - 2, FRAME_HEIGHT},
+            {0, 4, FRAME_WIDTH, FRAME_HEIGHT - 4},
+            {10, 6, 40, 30},
+            {FRAME_WIDTH - 18, FRAME_HEIGHT - 14, 18, 14},
+    };
+
+    @Test
+    public void matchesLegacyConversionForEveryLayoutAndCrop() {
+        YuvConverter converter = new YuvConverter();
+        for (int pixelStride : PIXEL_STRIDES) {
+            for (int alignment : ROW_ALIGNMENTS) {
+                SyntheticYuvFrame frame = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT,
+                        pixelStride, alignment);
+                for (int format : FORMATS) {
+                    for (int[] crop : CROPS) {
+                        assertMatchesLegacy(converter, frame.planes, format, crop,
+                                "pixelStride=" + pixelStride + " alignment=" + alignment);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesLegacyConversionForNv21Source() {
+        YuvConverter converter = new YuvConverter();
+        for (int alignment : ROW_ALIGNMENTS) {
+            SyntheticYuvFrame frame = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 2,
+                    alignment);
+            // The V plane now comes first in the shared chroma memory.
+            YuvPlane[] planes = {frame.planes[0], frame.planes[2], frame.planes[1]};
+            for (int format : FORMATS) {
+                for (int[] crop : CROPS) {
+                    assertMatchesLegacy(converter, planes, format, crop, "NV21 source alignment="
+                            + alignment);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void matchesLegacyConversionForHeapBuffers() {
+        YuvConverter converter = new YuvConverter();
+        for (int pixelStride : PIXEL_STRIDES) {
+            YuvPlane[] planes = toHeap(new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT,
+                    pixelStride, 16).planes, pixelStride);
+            for (int format : FORMATS) {
+                for (int[] crop : CROPS) {
+                    assertMatchesLegacy(converter, planes, format, crop, "heap pixelStride="
+                            + pixelStride);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void detectsInterleavedChroma() {
+        YuvPlane[] direct = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 2, 16).planes;
+        assertEquals(YuvConverter.CHROMA_LAYOUT_NV12,
+                YuvConverter.detectChromaLayout(direct[1], direct[2]));
+        assertEquals(YuvConverter.CHROMA_LAYOUT_NV21,
+                YuvConverter.detectChromaLayout(direct[2], direct[1]));
+        YuvPlane[] heap = toHeap(direct, 2);
+        assertEquals(YuvConverter.CHROMA_LAYOUT_NV12,
+                YuvConverter.detectChromaLayout(heap[1], heap[2]));
+        assertEquals(YuvConverter.CHROMA_LAYOUT_NV21,
+                YuvConverter.detectChromaLayout(heap[2], heap[1]));
+    }
+
+    @Test
+    public void readOnlySourcesConvertWithoutWrites() {
+        // Camera planes are mapped for reading only; any write would throw here.
+        for (int pixelStride : PIXEL_STRIDES) {
+            YuvPlane[] planes = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, pixelStride,
+                    16).planes;
+            YuvPlane[] readOnly = new YuvPlane[3];
+            for (int i = 0; i < 3; i++) {
+                readOnly[i] = new YuvPlane(planes[i].getBuffer().asReadOnlyBuffer(),
+                        planes[i].getRowStride(), planes[i].getPixelStride());
+            }
+            for (int format : FORMATS) {
+                for (int[] crop : CROPS) {
+                    assertMatchesLegacy(new YuvConverter(), readOnly, format, crop,
+                            "read-only pixelStride=" + pixelStride);
+                    assertMatchesLegacyInBuffer(readOnly, format, crop,
+                            "read-only pixelStride=" + pixelStride);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void separateChromaPlanesThatLookInterleavedConvertAsPlanar() {
+        // Separate planes where every V sample equals the U byte after it for
+        // the first rows, as if they overlapped, and not from then on.
+        int stride = FRAME_WIDTH;
+        int size = stride * (FRAME_HEIGHT / 2 - 1) + FRAME_WIDTH;
+        YuvPlane[] frame = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 1, 16).planes;
+        for (int divergingRow : new int[] {0, 1, 9, FRAME_HEIGHT / 2 - 1, FRAME_HEIGHT / 2}) {
+            for (boolean direct : new boolean[] {false, true}) {
+                ByteBuffer u = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                ByteBuffer v = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+                for (int i = 0; i < size; i++) {
+                    u.put(i, (byte) (i * 7 + i / stride));
+                }
+                for (int i = 0; i < size - 1; i++) {
+                    v.put(i, i / stride < divergingRow ? u.get(i + 1) : (byte) ~u.get(i + 1));
+                }
+                YuvPlane[] planes = {frame[0], new YuvPlane(u, stride, 2),
+                        new YuvPlane(v, stride, 2)};
+                if (divergingRow > 0) {
+                    assertEquals(YuvConverter.CHROMA_LAYOUT_NV12,
+                            YuvConverter.detectChromaLayout(planes[1], planes[2]));
+                }
+                String message = "diverging at " + divergingRow + " direct=" + direct;
+                for (int format : FORMATS) {
+                    for (int[] crop : CROPS) {
+                        assertMatchesLegacy(new YuvConverter(), planes, format, crop, message);
+                        assertMatchesLegacyInBuffer(planes, format, crop, message);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void detectionLeavesBufferCursorsAlone() {
+        YuvPlane[] planes = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 2, 16).planes;
+        planes[1].getBuffer().position(3);
+        planes[2].getBuffer().limit(planes[2].getBuffer().capacity() - 5);
+        YuvConverter.detectChromaLayout(planes[1], planes[2]);
+        assertEquals(3, planes[1].getBuffer().position());
+        assertEquals(planes[2].getBuffer().capacity() - 5, planes[2].getBuffer().limit());
+    }
+
+    @Test
+    public void rejectsShortOutput() {
+        SyntheticYuvFrame frame = new SyntheticYuvFrame(FRAME_WIDTH, FRAME_HEIGHT, 2, 16);
+        try {
+            new YuvConverter().convert(frame.planes, 0, 0, FRAME_WIDTH, FRAME_HEIGHT,
+                    YuvConverter.COLOR_FormatNV12,
+                    new byte[YuvConverter.getFrameSize(FRAME_WIDTH, FRAME_HEIGHT) - 1]);
+            fail("short output accepted");
+        } catch (IllegalArgumentException expected) {
+            // The output must hold a whole frame.
+        }
+    }
+
+    static void assertMatchesLegacy(YuvConverter converter, YuvPlane[] planes, int format,
+                                    int[] crop, String message) {
+        int size = YuvConverter.getFrameSize(crop[2], crop[3]);
+        byte[] expected = new byte[size];
+        byte[] actual = new byte[size];
+        // Stale output must not show through.
+        Arrays.fill(actual, (byte) 0x5a);
+        LegacyYuvConversion.convert(planes, crop[0], crop[1], crop[2], crop[3], format, expected);
+        converter.convert(planes, crop[0], crop[1], crop[2], crop[3], format, actual);
+        assertArrayEquals(message + " format=" + format + " crop=" + Arrays.toString(crop),
+                expected, actual);
+    }
+
+    /**
+     * Converts into a direct buffer without row padding, which has the same
+     * layout as the packed array the legacy loop fills.
+     */
+    static void assertMatchesLegacyInBuffer(YuvPlane[] planes, int format, int[] crop,
+                                            String message) {
+        int size = YuvConverter.getFrameSize(crop[2], crop[3]);
+        byte[] expected = new byte[size];
+        LegacyYuvConversion.convert(planes, crop[0], crop[1], crop[2], crop[3], format, expected);
+        ByteBuffer output = ByteBuffer.allocateDirect(size);
+        assertEquals(size, new YuvConverter().convert(planes, crop[0], crop[1], crop[2], crop[3],
+                format, output, crop[2], crop[3]));
+        byte[] actual = new byte[size];
+        output.get(actual);
+        assertArrayEquals(message + " buffer format=" + format + " crop=" + Arrays.toString(crop),
+                expected, actual);
+    }
+
+    /**
+     * Copies direct planes into heap buffers with the same layout. Interleaved
+     * chroma stays one array that both chroma planes view.
+     */
+    static YuvPlane[] toHeap(YuvPlane[] planes, int pixelStride) {
+        YuvPlane[] heap = new YuvPlane[3];
+        heap[0] = new YuvPlane(copy(planes[0].getBuffer()), planes[0].getRowStride(), 1);
+        if (pixelStride == 1) {
+            for (int i = 1; i < 3; i++) {
+                heap[i] = new YuvPlane(copy(planes[i].getBuffer()), planes[i].getRowStride(), 1);
+            }
+            return heap;
+        }
+        ByteBuffer u = planes[1].getBuffer();
+        byte[] chroma = new byte[u.capacity() + 1];
+        u.duplicate().get(chroma, 0, u.capacity());
+        chroma[u.capacity()] = planes[2].getBuffer().get(planes[2].getBuffer().capacity() - 1);
+        ByteBuffer shared = ByteBuffer.wrap(chroma);
+        shared.position(1);
+        heap[1] = new YuvPlane(ByteBuffer.wrap(chroma, 0, chroma.length - 1).slice(),
+                planes[1].getRowStride(), 2);
+        heap[2] = new YuvPlane(shared.slice(), planes[2].getRowStride(), 2);
+        return heap;
+    }
+
+    private static ByteBuffer copy(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.capacity()];
+        ByteBuffer source = buffer.duplicate();
+        source.clear();
+        source.get(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+}